@@ -0,0 +1,115 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.google.gson.JsonObject;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.server.StackMobLocalServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole requests through the sdk against a {@link StackMobLocalServer}, with a configurable delay standing in for
+ * the network. Run it with more threads, such as -t 16, to load the sdk's executor, transport and limits
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatastoreBenchmark {
+
+    private static final int BOOKS = 100;
+
+    private static class Result extends StackMobCallback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile StackMobException error;
+
+        @Override
+        public void success(String responseBody) {
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            error = e;
+            latch.countDown();
+        }
+
+        void await() throws Exception {
+            if(!latch.await(30, TimeUnit.SECONDS)) throw new IllegalStateException("The request never finished");
+            if(error != null) throw error;
+        }
+    }
+
+    @Param({"0", "20"})
+    public int latencyMillis;
+
+    private StackMobLocalServer server;
+    private StackMob stackmob;
+    private StackMobQuery query;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StackMobLocalServer().start();
+        server.setLatency(latencyMillis, latencyMillis, TimeUnit.MILLISECONDS);
+        for(int i = 0; i < BOOKS; i++) {
+            JsonObject book = new JsonObject();
+            book.addProperty("book_id", "b" + i);
+            book.addProperty("title", "The title of book " + i);
+            book.addProperty("pages", 100 + i);
+            server.put("book", book);
+        }
+        stackmob = new StackMob(StackMob.OAuthVersion.Two, 0, "API_KEY", null, server.getHost(),
+                StackMob.DEFAULT_USER_SCHEMA_NAME, StackMob.DEFAULT_USER_ID, StackMob.DEFAULT_PASSWORD_FIELD,
+                StackMob.DEFAULT_REDIRECTED_CALLBACK, StackMobExecutors.cached());
+        stackmob.getSession().setHTTPSOverride(false);
+        stackmob.getDatastore().setCoalesceGets(false);
+        query = new StackMobQuery("book").fieldIsLessThan("pages", 150).isInRange(0, 19);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public void fetch() throws Exception {
+        Result result = new Result();
+        stackmob.getDatastore().get("book/b1", result);
+        result.await();
+    }
+
+    @Benchmark
+    public void query() throws Exception {
+        Result result = new Result();
+        stackmob.getDatastore().get(query, result);
+        result.await();
+    }
+
+    @Benchmark
+    public void save() throws Exception {
+        Result result = new Result();
+        stackmob.getDatastore().put("book", "b2", "{\"title\":\"A new title\"}", result);
+        result.await();
+    }
+}
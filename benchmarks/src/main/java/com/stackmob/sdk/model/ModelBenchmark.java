@@ -0,0 +1,157 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.exception.StackMobException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a tree of models with {@link StackMobModel#toJson(StackMobOptions)} and reading it back with
+ * {@link StackMobModel#fillFromJson(String)}. Every model has three children, three levels deep, and the expand depth
+ * decides how many of those levels are written out in full rather than as ids
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+
+    private static final int FANOUT = 3;
+    private static final int LEVELS = 3;
+
+    public static class Small extends StackMobModel {
+        private String name;
+        private int count;
+        private List<Small> children = new ArrayList<Small>();
+
+        public Small() {
+            super(Small.class);
+        }
+    }
+
+    public static class Wide extends StackMobModel {
+        private String title;
+        private String subtitle;
+        private String description;
+        private String author;
+        private String publisher;
+        private String isbn;
+        private String language;
+        private String category;
+        private int pages;
+        private int edition;
+        private int copies;
+        private int rating;
+        private long published;
+        private long updated;
+        private long views;
+        private double price;
+        private double weight;
+        private double discount;
+        private boolean available;
+        private boolean featured;
+        private List<String> tags;
+        private List<Wide> children = new ArrayList<Wide>();
+
+        public Wide() {
+            super(Wide.class);
+        }
+    }
+
+    @Param({"small", "wide"})
+    public String shape;
+
+    @Param({"0", "1", "2", "3"})
+    public int depth;
+
+    private StackMobModel root;
+    private StackMobOptions options;
+    private String json;
+    private int nextId;
+
+    @Setup
+    public void setUp() {
+        new StackMob(StackMob.OAuthVersion.Two, 0, "API_KEY", null);
+        nextId = 0;
+        root = tree(LEVELS);
+        options = StackMobOptions.depthOf(depth);
+        json = root.toJson(options);
+    }
+
+    private StackMobModel newModel() {
+        return "wide".equals(shape) ? new Wide() : new Small();
+    }
+
+    private StackMobModel tree(int levels) {
+        int id = nextId++;
+        if("wide".equals(shape)) {
+            Wide wide = new Wide();
+            wide.setID("wide" + id);
+            wide.title = "The title of book " + id;
+            wide.subtitle = "A subtitle";
+            wide.description = "A longer description of the book, the kind of thing that goes on the back cover";
+            wide.author = "An Author";
+            wide.publisher = "A Publisher";
+            wide.isbn = "978-3-16-148410-0";
+            wide.language = "en";
+            wide.category = "fiction";
+            wide.pages = 320 + id;
+            wide.edition = 2;
+            wide.copies = 1000 * id;
+            wide.rating = 4;
+            wide.published = 1356998400000L + id;
+            wide.updated = 1372636800000L + id;
+            wide.views = 123456789L * id;
+            wide.price = 19.99;
+            wide.weight = 0.45;
+            wide.discount = 0.1;
+            wide.available = true;
+            wide.featured = id % 2 == 0;
+            wide.tags = Arrays.asList("one", "two", "three");
+            for(int i = 0; levels > 0 && i < FANOUT; i++) wide.children.add((Wide) tree(levels - 1));
+            return wide;
+        } else {
+            Small small = new Small();
+            small.setID("small" + id);
+            small.name = "name " + id;
+            small.count = id;
+            for(int i = 0; levels > 0 && i < FANOUT; i++) small.children.add((Small) tree(levels - 1));
+            return small;
+        }
+    }
+
+    @Benchmark
+    public String toJson() {
+        return root.toJson(options);
+    }
+
+    @Benchmark
+    public StackMobModel fillFromJson() throws StackMobException {
+        StackMobModel model = newModel();
+        model.fillFromJson(json);
+        return model;
+    }
+}
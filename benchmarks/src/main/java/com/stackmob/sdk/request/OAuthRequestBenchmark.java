@@ -0,0 +1,64 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.net.HttpVerbWithPayload;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import org.openjdk.jmh.annotations.*;
+import org.scribe.model.OAuthRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building a request's headers and signing it with {@link StackMobRequest#getOAuthRequest(String, com.stackmob.sdk.net.HttpVerb, String)},
+ * either with OAuth1 or with an OAuth2 MAC token
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OAuthRequestBenchmark {
+
+    private static final String URL = "http://api.stackmob.com/book?author=An%20Author&pages%5Blt%5D=500";
+    private static final String PAYLOAD = "{\"title\":\"A Title\",\"author\":\"An Author\",\"pages\":320}";
+
+    @Param({"One", "Two"})
+    public StackMob.OAuthVersion oauthVersion;
+
+    private StackMobRequest request;
+
+    @Setup
+    public void setUp() {
+        StackMob stackmob = new StackMob(oauthVersion, 0, "API_KEY", "API_SECRET");
+        stackmob.getSession().setOAuth2TokensAndExpiration("ACCESS_TOKEN", "MAC_KEY", "REFRESH_TOKEN", 24 * 60 * 60);
+        request = new StackMobRequestWithoutPayload(stackmob.getExecutor(), stackmob.getSession(), null,
+                HttpVerbWithoutPayload.GET, "book", null, StackMob.DEFAULT_REDIRECTED_CALLBACK);
+    }
+
+    @Benchmark
+    public OAuthRequest get() {
+        return request.getOAuthRequest("http", HttpVerbWithoutPayload.GET, URL);
+    }
+
+    @Benchmark
+    public OAuthRequest post() {
+        return request.getOAuthRequest("http", HttpVerbWithPayload.POST, URL, PAYLOAD);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.api.StackMobQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning a query into the query string of a request, with {@link StackMobQuery#getArguments()} and
+ * {@link StackMobRequest#formatQueryString(List)}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    private StackMobQuery simple;
+    private StackMobQuery complex;
+
+    @Setup
+    public void setUp() {
+        simple = new StackMobQuery("book").fieldIsEqualTo("author", "An Author");
+        complex = new StackMobQuery("book")
+                .fieldIsIn("author", Arrays.asList("An Author", "Another Author", "A Third Author"))
+                .fieldIsLessThan("pages", 500)
+                .fieldIsGreaterThanOrEqualTo("rating", 3)
+                .fieldIsNotNull("publisher")
+                .or(new StackMobQuery().fieldIsEqualTo("category", "fiction & poetry").fieldIsEqualTo("language", "en"))
+                .or(new StackMobQuery().fieldIsEqualTo("featured", "true"))
+                .fieldIsOrderedBy("published", StackMobQuery.Ordering.DESCENDING);
+    }
+
+    @Benchmark
+    public String simpleQuery() {
+        return StackMobRequest.formatQueryString(simple.getArguments());
+    }
+
+    @Benchmark
+    public String complexQuery() {
+        return StackMobRequest.formatQueryString(complex.getArguments());
+    }
+
+    @Benchmark
+    public List<Map.Entry<String, String>> complexArguments() {
+        return complex.getArguments();
+    }
+}
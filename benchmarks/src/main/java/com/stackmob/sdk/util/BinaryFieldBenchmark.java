@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting a binary field for upload with {@link BinaryFieldFormatter#getJsonValue()}, which is mostly
+ * {@link Base64#encode(byte[])}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryFieldBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private BinaryFieldFormatter formatter;
+
+    @Setup
+    public void setUp() {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        formatter = new BinaryFieldFormatter("image/jpeg", "picture.jpg", data);
+    }
+
+    @Benchmark
+    public String getJsonValue() {
+        return formatter.getJsonValue();
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the Cookie header every request sends with {@link StackMobCookieManager#cookieHeader()}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CookieHeaderBenchmark {
+
+    @Param({"0", "1", "5"})
+    public int cookies;
+
+    private StackMobCookieManager cookieManager;
+
+    @Setup
+    public void setUp() {
+        cookieManager = new StackMobCookieManager();
+        for(int i = 0; i < cookies; i++) {
+            cookieManager.storeCookies(Collections.singletonMap("Set-Cookie",
+                    "session_" + i + "=0123456789abcdef0123456789abcdef;Path=/"));
+        }
+    }
+
+    @Benchmark
+    public String cookieHeader() {
+        return cookieManager.cookieHeader();
+    }
+}
@@ -0,0 +1,426 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The objects behind a {@link StackMobLocalServer}, kept in insertion order per schema. Stored objects are never
+ * changed in place, so the copies handed out stay consistent after the lock is released
+ */
+class InMemoryDatastore {
+
+    static final String CREATED_DATE = "createddate";
+    static final String LAST_MOD_DATE = "lastmoddate";
+    private static final String INC = "[inc]";
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Map<String, JsonObject>> schemas = new HashMap<String, Map<String, JsonObject>>();
+    private final Map<String, String> idFields = new HashMap<String, String>();
+    private final Map<String, Map<String, String>> relations = new HashMap<String, Map<String, String>>();
+    private final Map<String, String> hiddenFields = new HashMap<String, String>();
+
+    void setIdField(String schema, String field) {
+        lock.writeLock().lock();
+        try {
+            idFields.put(schema.toLowerCase(), field.toLowerCase());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    String getIdField(String schema) {
+        lock.readLock().lock();
+        try {
+            return idField(schema);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private String idField(String schema) {
+        String field = idFields.get(schema);
+        return field == null ? schema + "_id" : field;
+    }
+
+    /**
+     * keep a field, such as a user's password, out of every object handed back by {@link #view}
+     */
+    void setHiddenField(String schema, String field) {
+        lock.writeLock().lock();
+        try {
+            hiddenFields.put(schema.toLowerCase(), field.toLowerCase());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void setRelation(String schema, String field, String relatedSchema) {
+        lock.writeLock().lock();
+        try {
+            relation(schema, field, relatedSchema.toLowerCase());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void relation(String schema, String field, String relatedSchema) {
+        Map<String, String> fields = relations.get(schema);
+        if(fields == null) {
+            fields = new HashMap<String, String>();
+            relations.put(schema, fields);
+        }
+        fields.put(field.toLowerCase(), relatedSchema);
+    }
+
+    String getRelatedSchema(String schema, String field) {
+        lock.readLock().lock();
+        try {
+            return relatedSchema(schema, field);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private String relatedSchema(String schema, String field) {
+        Map<String, String> fields = relations.get(schema);
+        return fields == null ? null : fields.get(field);
+    }
+
+    /**
+     * learn relationships from an X-StackMob-Relations header, such as {@code author=person&author.home=address},
+     * where each path is relative to the schema being saved
+     */
+    void learnRelations(String schema, String header) {
+        if(header == null || header.length() == 0) return;
+        List<String[]> paths = new ArrayList<String[]>();
+        for(String entry : header.split("&")) {
+            int equals = entry.indexOf('=');
+            if(equals > 0) paths.add(new String[] {entry.substring(0, equals).toLowerCase(), entry.substring(equals + 1).toLowerCase()});
+        }
+        // shorter paths first, so the schema a nested path starts from is always known
+        Collections.sort(paths, new Comparator<String[]>() {
+            @Override
+            public int compare(String[] a, String[] b) {
+                return a[0].split("\\.").length - b[0].split("\\.").length;
+            }
+        });
+        lock.writeLock().lock();
+        try {
+            for(String[] path : paths) {
+                String owner = schema;
+                String[] fields = path[0].split("\\.");
+                for(int i = 0; owner != null && i < fields.length - 1; i++) {
+                    owner = relatedSchema(owner, fields[i]);
+                }
+                if(owner != null) relation(owner, fields[fields.length - 1], path[1]);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Map<String, JsonObject> objects(String schema) {
+        Map<String, JsonObject> objects = schemas.get(schema);
+        if(objects == null) {
+            objects = new LinkedHashMap<String, JsonObject>();
+            schemas.put(schema, objects);
+        }
+        return objects;
+    }
+
+    JsonObject get(String schema, String id) {
+        lock.readLock().lock();
+        try {
+            Map<String, JsonObject> objects = schemas.get(schema);
+            return objects == null ? null : objects.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<JsonObject> query(String schema, QueryFilter filter) {
+        List<JsonObject> found = new ArrayList<JsonObject>();
+        lock.readLock().lock();
+        try {
+            Map<String, JsonObject> objects = schemas.get(schema);
+            if(objects == null) return found;
+            for(JsonObject object : objects.values()) {
+                if(filter == null || filter.matches(object)) found.add(object);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return found;
+    }
+
+    int count(String schema) {
+        lock.readLock().lock();
+        try {
+            Map<String, JsonObject> objects = schemas.get(schema);
+            return objects == null ? 0 : objects.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * create an object, or update it if its id is already taken. Related objects nested inside it are saved to their
+     * own schemas and replaced by their ids
+     * @return the object as stored
+     */
+    JsonObject save(String schema, JsonObject body) {
+        lock.writeLock().lock();
+        try {
+            return saveLocked(schema, body, System.currentTimeMillis());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private JsonObject saveLocked(String schema, JsonObject body, long now) {
+        String idField = idField(schema);
+        JsonElement idElt = body.get(idField);
+        String id = idElt == null || idElt.isJsonNull() ? UUID.randomUUID().toString().replace("-", "") : idElt.getAsString();
+        Map<String, JsonObject> objects = objects(schema);
+        JsonObject existing = objects.get(id);
+        JsonObject saved = existing == null ? new JsonObject() : copy(existing);
+        for(Map.Entry<String, JsonElement> field : body.entrySet()) {
+            String name = field.getKey().toLowerCase();
+            JsonElement value = field.getValue();
+            String related = relatedSchema(schema, name);
+            if(related != null) value = saveRelated(related, value, now);
+            if(name.endsWith(INC)) {
+                name = name.substring(0, name.length() - INC.length());
+                value = increment(saved.get(name), value);
+            }
+            saved.add(name, value);
+        }
+        saved.add(idField, new JsonPrimitive(id));
+        saved.add(CREATED_DATE, existing == null ? new JsonPrimitive(now) : existing.get(CREATED_DATE));
+        saved.add(LAST_MOD_DATE, new JsonPrimitive(now));
+        objects.put(id, saved);
+        return saved;
+    }
+
+    private JsonElement saveRelated(String schema, JsonElement value, long now) {
+        if(value.isJsonObject()) {
+            return saveLocked(schema, value.getAsJsonObject(), now).get(idField(schema));
+        }
+        if(value.isJsonArray()) {
+            JsonArray ids = new JsonArray();
+            for(JsonElement element : value.getAsJsonArray()) ids.add(saveRelated(schema, element, now));
+            return ids;
+        }
+        return value;
+    }
+
+    private static JsonElement increment(JsonElement current, JsonElement by) {
+        if(by == null || !by.isJsonPrimitive() || !by.getAsJsonPrimitive().isNumber()) {
+            throw new HttpError(400, "[inc] needs a number");
+        }
+        if(current == null || !current.isJsonPrimitive() || !current.getAsJsonPrimitive().isNumber()) return by;
+        Number a = current.getAsNumber();
+        Number b = by.getAsNumber();
+        if(isIntegral(a) && isIntegral(b)) return new JsonPrimitive(a.longValue() + b.longValue());
+        return new JsonPrimitive(a.doubleValue() + b.doubleValue());
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n.doubleValue() == Math.rint(n.doubleValue()) && !n.toString().contains(".");
+    }
+
+    /**
+     * change some fields of an existing object
+     * @return the object as stored, or null if there's no such object
+     */
+    JsonObject update(String schema, String id, JsonObject body) {
+        lock.writeLock().lock();
+        try {
+            Map<String, JsonObject> objects = schemas.get(schema);
+            if(objects == null || !objects.containsKey(id)) return null;
+            body = copy(body);
+            body.add(idField(schema), new JsonPrimitive(id));
+            return saveLocked(schema, body, System.currentTimeMillis());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * add ids to a relationship or array field, skipping any already there
+     * @return the object as stored, or null if there's no such object
+     */
+    JsonObject append(String schema, String id, String field, List<JsonElement> values) {
+        lock.writeLock().lock();
+        try {
+            Map<String, JsonObject> objects = schemas.get(schema);
+            JsonObject existing = objects == null ? null : objects.get(id);
+            if(existing == null) return null;
+            JsonArray array = new JsonArray();
+            JsonElement current = existing.get(field);
+            if(current != null && current.isJsonArray()) {
+                for(JsonElement element : current.getAsJsonArray()) array.add(element);
+            } else if(current != null && !current.isJsonNull()) {
+                array.add(current);
+            }
+            for(JsonElement value : values) {
+                if(!contains(array, value)) array.add(value);
+            }
+            JsonObject saved = copy(existing);
+            saved.add(field, array);
+            saved.add(LAST_MOD_DATE, new JsonPrimitive(System.currentTimeMillis()));
+            objects.put(id, saved);
+            return saved;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static boolean contains(JsonArray array, JsonElement value) {
+        for(JsonElement element : array) {
+            if(element.equals(value)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * remove ids from a relationship or array field, and optionally delete the objects they refer to
+     * @return false if there's no such object
+     */
+    boolean remove(String schema, String id, String field, Collection<String> values, boolean cascade) {
+        lock.writeLock().lock();
+        try {
+            Map<String, JsonObject> objects = schemas.get(schema);
+            JsonObject existing = objects == null ? null : objects.get(id);
+            if(existing == null) return false;
+            JsonObject saved = copy(existing);
+            JsonElement current = existing.get(field);
+            if(current != null && current.isJsonArray()) {
+                JsonArray array = new JsonArray();
+                for(JsonElement element : current.getAsJsonArray()) {
+                    if(!element.isJsonPrimitive() || !values.contains(element.getAsString())) array.add(element);
+                }
+                saved.add(field, array);
+            } else if(current != null && current.isJsonPrimitive() && values.contains(current.getAsString())) {
+                saved.remove(field);
+            }
+            saved.add(LAST_MOD_DATE, new JsonPrimitive(System.currentTimeMillis()));
+            objects.put(id, saved);
+            String related = relatedSchema(schema, field);
+            if(cascade && related != null && schemas.containsKey(related)) {
+                for(String value : values) schemas.get(related).remove(value);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    boolean delete(String schema, String id) {
+        lock.writeLock().lock();
+        try {
+            Map<String, JsonObject> objects = schemas.get(schema);
+            return objects != null && objects.remove(id) != null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    int delete(String schema, QueryFilter filter) {
+        lock.writeLock().lock();
+        try {
+            Map<String, JsonObject> objects = schemas.get(schema);
+            if(objects == null) return 0;
+            int deleted = 0;
+            for(Iterator<JsonObject> it = objects.values().iterator(); it.hasNext();) {
+                if(filter.matches(it.next())) {
+                    it.remove();
+                    deleted++;
+                }
+            }
+            return deleted;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * prepare an object to be sent back: hidden fields are left out, and the ids in its relationship fields are
+     * replaced with the objects they refer to, the given number of levels deep. Ids of objects that no longer exist
+     * are left alone
+     * @return a new object, leaving the stored one untouched
+     */
+    JsonObject view(String schema, JsonObject object, int depth) {
+        lock.readLock().lock();
+        try {
+            return viewLocked(schema, object, depth);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private JsonObject viewLocked(String schema, JsonObject object, int depth) {
+        Map<String, String> fields = relations.get(schema);
+        String hidden = hiddenFields.get(schema);
+        if((depth <= 0 || fields == null) && (hidden == null || !object.has(hidden))) return object;
+        JsonObject view = copy(object);
+        if(hidden != null) view.remove(hidden);
+        if(depth <= 0 || fields == null) return view;
+        for(Map.Entry<String, String> relation : fields.entrySet()) {
+            JsonElement value = object.get(relation.getKey());
+            if(value == null || value.isJsonNull()) continue;
+            if(value.isJsonArray()) {
+                JsonArray array = new JsonArray();
+                for(JsonElement element : value.getAsJsonArray()) array.add(expandId(relation.getValue(), element, depth));
+                view.add(relation.getKey(), array);
+            } else {
+                view.add(relation.getKey(), expandId(relation.getValue(), value, depth));
+            }
+        }
+        return view;
+    }
+
+    private JsonElement expandId(String schema, JsonElement id, int depth) {
+        if(!id.isJsonPrimitive()) return id;
+        Map<String, JsonObject> objects = schemas.get(schema);
+        JsonObject related = objects == null ? null : objects.get(id.getAsString());
+        return related == null ? id : viewLocked(schema, related, depth - 1);
+    }
+
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            schemas.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static JsonObject copy(JsonObject object) {
+        JsonObject copy = new JsonObject();
+        for(Map.Entry<String, JsonElement> field : object.entrySet()) copy.add(field.getKey(), field.getValue());
+        return copy;
+    }
+}
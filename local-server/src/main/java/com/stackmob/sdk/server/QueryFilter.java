@@ -0,0 +1,186 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+/**
+ * The constraints in a datastore query string, such as {@code age[lt]=40&name[in]=joe,bob}. Constraints are ANDed,
+ * except those in an {@code [orN].} group, where each constraint, or each {@code [andM].} group of constraints, is
+ * one alternative
+ */
+class QueryFilter {
+
+    private static class Condition {
+        private final String field;
+        private final String operator;
+        private final String value;
+
+        Condition(String key, String value) {
+            int bracket = key.indexOf('[');
+            if(bracket > 0 && key.endsWith("]")) {
+                this.field = key.substring(0, bracket);
+                this.operator = key.substring(bracket + 1, key.length() - 1);
+            } else {
+                this.field = key;
+                this.operator = null;
+            }
+            this.value = value;
+            if(operator != null && !Arrays.asList("lt", "gt", "lte", "gte", "in", "nin", "ne", "null").contains(operator)) {
+                throw new HttpError(400, String.format("The [%s] operator isn't supported", operator));
+            }
+        }
+
+        boolean matches(JsonObject object) {
+            JsonElement actual = object.get(field);
+            if(actual != null && actual.isJsonNull()) actual = null;
+            if(operator == null) return matchesValue(actual, value);
+            if(operator.equals("ne")) return !matchesValue(actual, value);
+            if(operator.equals("null")) return Boolean.parseBoolean(value) == (actual == null);
+            if(operator.equals("in") || operator.equals("nin")) {
+                boolean found = false;
+                for(String candidate : value.split(",")) {
+                    if(matchesValue(actual, candidate)) found = true;
+                }
+                return found == operator.equals("in");
+            }
+            if(actual == null || !actual.isJsonPrimitive()) return false;
+            int comparison = compare(actual.getAsJsonPrimitive(), value);
+            if(operator.equals("lt")) return comparison < 0;
+            if(operator.equals("lte")) return comparison <= 0;
+            if(operator.equals("gt")) return comparison > 0;
+            return comparison >= 0;
+        }
+    }
+
+    private final List<Condition> required = new ArrayList<Condition>();
+    // each or group holds its alternatives, each of which is a list of conditions that must all match
+    private final Map<String, Map<String, List<Condition>>> orGroups = new TreeMap<String, Map<String, List<Condition>>>();
+
+    /**
+     * @param params the decoded query string parameters
+     * @throws HttpError if a parameter uses an operator that isn't supported
+     */
+    QueryFilter(List<Map.Entry<String, String>> params) {
+        for(Map.Entry<String, String> param : params) {
+            String key = param.getKey();
+            String orGroup = prefix(key, "[or");
+            if(orGroup == null) {
+                String andGroup = prefix(key, "[and");
+                required.add(new Condition(andGroup == null ? key : key.substring(andGroup.length()), param.getValue()));
+                continue;
+            }
+            key = key.substring(orGroup.length());
+            String andGroup = prefix(key, "[and");
+            // a constraint that's alone in its or group is an alternative of its own
+            String alternative = andGroup == null ? key : andGroup;
+            if(andGroup != null) key = key.substring(andGroup.length());
+            Map<String, List<Condition>> alternatives = orGroups.get(orGroup);
+            if(alternatives == null) {
+                alternatives = new TreeMap<String, List<Condition>>();
+                orGroups.put(orGroup, alternatives);
+            }
+            List<Condition> conditions = alternatives.get(alternative);
+            if(conditions == null) {
+                conditions = new ArrayList<Condition>();
+                alternatives.put(alternative, conditions);
+            }
+            conditions.add(new Condition(key, param.getValue()));
+        }
+    }
+
+    /**
+     * @return the group prefix the key starts with, such as {@code [or1].}, or null if it doesn't start with one
+     */
+    private static String prefix(String key, String start) {
+        if(!key.startsWith(start)) return null;
+        int end = key.indexOf("].");
+        return end < 0 ? null : key.substring(0, end + 2);
+    }
+
+    boolean matches(JsonObject object) {
+        for(Condition condition : required) {
+            if(!condition.matches(object)) return false;
+        }
+        for(Map<String, List<Condition>> alternatives : orGroups.values()) {
+            boolean any = false;
+            for(List<Condition> conditions : alternatives.values()) {
+                boolean all = true;
+                for(Condition condition : conditions) {
+                    if(!condition.matches(object)) {
+                        all = false;
+                        break;
+                    }
+                }
+                if(all) {
+                    any = true;
+                    break;
+                }
+            }
+            if(!any) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the value is equal to the string from the query, or is an array containing it
+     */
+    static boolean matchesValue(JsonElement actual, String expected) {
+        if(actual == null) return false;
+        if(actual.isJsonArray()) {
+            for(JsonElement element : (JsonArray) actual) {
+                if(matchesValue(element, expected)) return true;
+            }
+            return false;
+        }
+        if(!actual.isJsonPrimitive()) return false;
+        return compare(actual.getAsJsonPrimitive(), expected) == 0;
+    }
+
+    /**
+     * compare a stored value with a string from the query, as numbers or booleans if the stored value is one
+     */
+    static int compare(JsonPrimitive actual, String expected) {
+        if(actual.isNumber()) {
+            try {
+                return new BigDecimal(actual.getAsString()).compareTo(new BigDecimal(expected));
+            } catch(NumberFormatException e) {
+                return actual.getAsString().compareTo(expected);
+            }
+        }
+        if(actual.isBoolean()) {
+            return Boolean.valueOf(actual.getAsBoolean()).compareTo(Boolean.parseBoolean(expected));
+        }
+        return actual.getAsString().compareTo(expected);
+    }
+
+    /**
+     * compare two stored values for sorting. Missing values come first
+     */
+    static int compare(JsonElement a, JsonElement b) {
+        boolean aMissing = a == null || !a.isJsonPrimitive();
+        boolean bMissing = b == null || !b.isJsonPrimitive();
+        if(aMissing || bMissing) return aMissing == bMissing ? 0 : aMissing ? -1 : 1;
+        return compare(a.getAsJsonPrimitive(), b.getAsString());
+    }
+}
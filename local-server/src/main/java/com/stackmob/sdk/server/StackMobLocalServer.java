@@ -0,0 +1,644 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.server;
+
+import com.google.gson.*;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for the StackMob REST API that keeps everything in memory, so the sdk can be tested and load-tested on
+ * one machine without keys or a network. Point a {@link com.stackmob.sdk.api.StackMob} at {@link #getHost()} with
+ * https turned off:
+ * <pre>
+ * {@code
+ * StackMobLocalServer server = new StackMobLocalServer();
+ * server.start();
+ * StackMob stackmob = new StackMob(StackMob.OAuthVersion.Two, 0, "API_KEY", null, server.getHost(),
+ *         StackMob.DEFAULT_USER_SCHEMA_NAME, StackMob.DEFAULT_USER_ID, StackMob.DEFAULT_PASSWORD_FIELD,
+ *         StackMob.DEFAULT_REDIRECTED_CALLBACK, StackMobExecutors.cached());
+ * stackmob.getSession().setHTTPSOverride(false);
+ * }
+ * </pre>
+ *
+ * It covers the datastore calls the sdk makes: creating, reading, updating and deleting objects, queries with the
+ * usual operators, {@code [or]} groups, ordering, paging with Range and Content-Range, selecting and expanding
+ * relationships, {@code [inc]} counters and adding and removing related objects. OAuth2 logins and token refreshes
+ * are supported too. A request with a MAC Authorization header must carry a live access token, but the signature
+ * itself isn't checked, and requests without one are let through. Geo queries and anything else not listed get a 400.
+ */
+public class StackMobLocalServer {
+
+    private static final Pattern RANGE = Pattern.compile("objects=(\\d+)-(\\d*)");
+    private static final Pattern MAC_ID = Pattern.compile("MAC id=\"([^\"]*)\".*");
+    private static final int MAX_EXPAND_DEPTH = 3;
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_CREATED = 201;
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_UNAUTHORIZED = 401;
+    private static final int HTTP_NOT_FOUND = 404;
+    private static final int HTTP_BAD_METHOD = 405;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int HTTP_INTERNAL_ERROR = 500;
+
+    private static class Token {
+        private final String accessToken;
+        private final String macKey;
+        private final String refreshToken;
+        private final String userId;
+        private final long expiresAt;
+
+        Token(String userId, int lifetimeSeconds) {
+            this.accessToken = randomHex();
+            this.macKey = randomHex();
+            this.refreshToken = randomHex();
+            this.userId = userId;
+            this.expiresAt = System.currentTimeMillis() + lifetimeSeconds * 1000L;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+    }
+
+    private final int port;
+    private final InMemoryDatastore datastore = new InMemoryDatastore();
+    private final Map<String, Token> accessTokens = new ConcurrentHashMap<String, Token>();
+    private final Map<String, Token> refreshTokens = new ConcurrentHashMap<String, Token>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private final Random random = new Random();
+    private HttpServer server;
+    private ExecutorService executor;
+    private volatile long minLatencyMillis = 0;
+    private volatile long maxLatencyMillis = 0;
+    private volatile String userSchema;
+    private volatile String passwordField;
+    private volatile int tokenLifetimeSeconds = 3600;
+
+    /**
+     * a server on any free port
+     */
+    public StackMobLocalServer() {
+        this(0);
+    }
+
+    /**
+     * @param port the port to listen on, or 0 for any free one
+     */
+    public StackMobLocalServer(int port) {
+        this.port = port;
+        setUserSchema("user", "username", "password");
+    }
+
+    /**
+     * start listening on 127.0.0.1
+     * @return this server
+     * @throws IOException if the port can't be bound
+     */
+    public synchronized StackMobLocalServer start() throws IOException {
+        if(server != null) return this;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        return this;
+    }
+
+    /**
+     * stop listening, abandoning any requests in progress. The stored objects are kept
+     */
+    public synchronized void stop() {
+        if(server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    public synchronized int getPort() {
+        if(server == null) throw new IllegalStateException("The server hasn't been started");
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the host and port to use as the sdk's api host
+     */
+    public String getHost() {
+        return "127.0.0.1:" + getPort();
+    }
+
+    /**
+     * delay every response by a random amount of time in a range, to stand in for the network and the real server
+     * @param min the shortest delay
+     * @param max the longest delay
+     * @param unit the unit of min and max
+     * @return this server
+     */
+    public StackMobLocalServer setLatency(long min, long max, TimeUnit unit) {
+        if(min < 0 || max < min) throw new IllegalArgumentException("The latency range must satisfy 0 <= min <= max");
+        this.minLatencyMillis = unit.toMillis(min);
+        this.maxLatencyMillis = unit.toMillis(max);
+        return this;
+    }
+
+    /**
+     * set the schema users log in to, which defaults to user, username and password like the sdk
+     * @param schema the user schema
+     * @param idField the field holding the username
+     * @param passwordField the field holding the password, which is never sent back
+     * @return this server
+     */
+    public StackMobLocalServer setUserSchema(String schema, String idField, String passwordField) {
+        this.userSchema = schema.toLowerCase();
+        this.passwordField = passwordField.toLowerCase();
+        datastore.setIdField(schema, idField);
+        datastore.setHiddenField(schema, passwordField);
+        return this;
+    }
+
+    /**
+     * @param seconds how long newly issued access tokens last
+     * @return this server
+     */
+    public StackMobLocalServer setTokenLifetime(int seconds) {
+        this.tokenLifetimeSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * make every access token issued so far invalid, so the next request using one gets a 401 and the sdk has to
+     * refresh it. Refresh tokens keep working
+     */
+    public void expireAccessTokens() {
+        accessTokens.clear();
+    }
+
+    /**
+     * set the primary key of a schema, which is otherwise the schema name followed by _id
+     * @param schema the schema
+     * @param field the primary key field
+     * @return this server
+     */
+    public StackMobLocalServer setIdField(String schema, String field) {
+        datastore.setIdField(schema, field);
+        return this;
+    }
+
+    /**
+     * declare a relationship between two schemas. Relationships are also learned from the X-StackMob-Relations
+     * header the sdk sends when saving a model
+     * @param schema the schema that has the relationship field
+     * @param field the relationship field
+     * @param relatedSchema the schema of the objects the field refers to
+     * @return this server
+     */
+    public StackMobLocalServer setRelation(String schema, String field, String relatedSchema) {
+        datastore.setRelation(schema.toLowerCase(), field, relatedSchema);
+        return this;
+    }
+
+    /**
+     * store an object directly, creating it or updating the object with the same id
+     * @param schema the schema to store it in
+     * @param object the object
+     * @return the object as stored, including its id and dates
+     */
+    public JsonObject put(String schema, JsonObject object) {
+        return InMemoryDatastore.copy(datastore.save(schema.toLowerCase(), object));
+    }
+
+    /**
+     * @param schema the schema
+     * @param id the object's id
+     * @return the stored object, or null if there's no such object
+     */
+    public JsonObject get(String schema, String id) {
+        JsonObject object = datastore.get(schema.toLowerCase(), id);
+        return object == null ? null : InMemoryDatastore.copy(object);
+    }
+
+    /**
+     * @param schema the schema
+     * @return the number of objects in it
+     */
+    public int count(String schema) {
+        return datastore.count(schema.toLowerCase());
+    }
+
+    /**
+     * @return the number of requests the server has received
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * throw away every stored object and token
+     */
+    public void clear() {
+        datastore.clear();
+        accessTokens.clear();
+        refreshTokens.clear();
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+            delay();
+            route(exchange);
+        } catch(HttpError e) {
+            sendError(exchange, e.getStatus(), e.getMessage());
+        } catch(JsonParseException e) {
+            sendError(exchange, HTTP_BAD_REQUEST, "The body isn't valid json");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(RuntimeException e) {
+            sendError(exchange, HTTP_INTERNAL_ERROR, String.valueOf(e));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void delay() throws InterruptedException {
+        long min = minLatencyMillis;
+        long max = maxLatencyMillis;
+        if(max <= 0) return;
+        long millis = min;
+        if(max > min) {
+            synchronized(random) {
+                millis += (long) (random.nextDouble() * (max - min + 1));
+            }
+        }
+        Thread.sleep(millis);
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        List<String> path = new ArrayList<String>();
+        for(String segment : exchange.getRequestURI().getPath().split("/")) {
+            if(segment.length() > 0) path.add(segment);
+        }
+        if(path.isEmpty()) throw new HttpError(HTTP_NOT_FOUND, "No schema given");
+        String schema = path.get(0).toLowerCase();
+        boolean head = method.equals("HEAD");
+        boolean read = head || method.equals("GET");
+
+        if(path.size() == 2 && schema.equals(userSchema) && method.equals("POST")) {
+            if(path.get(1).equals("accessToken")) {
+                login(exchange);
+                return;
+            }
+            if(path.get(1).equals("refreshToken")) {
+                refresh(exchange);
+                return;
+            }
+        }
+        Token token = authenticate(exchange);
+        if(path.size() == 2 && schema.equals(userSchema) && read) {
+            if(path.get(1).equals("loggedInUser")) {
+                loggedInUser(exchange, token, head);
+                return;
+            }
+            if(path.get(1).equals("logout")) {
+                if(token != null) {
+                    accessTokens.remove(token.accessToken);
+                    refreshTokens.remove(token.refreshToken);
+                }
+                send(exchange, HTTP_OK, new JsonObject(), head);
+                return;
+            }
+        }
+
+        if(path.size() == 1 && read) {
+            query(exchange, schema, head);
+        } else if(path.size() == 1 && method.equals("POST")) {
+            create(exchange, schema);
+        } else if(path.size() == 1 && method.equals("DELETE")) {
+            int deleted = datastore.delete(schema, new QueryFilter(params(exchange.getRequestURI().getRawQuery())));
+            JsonObject result = new JsonObject();
+            result.addProperty("deleted", deleted);
+            send(exchange, HTTP_OK, result, false);
+        } else if(path.size() == 2 && read) {
+            JsonObject object = datastore.get(schema, path.get(1));
+            if(object == null) throw notFound(schema, path.get(1));
+            send(exchange, HTTP_OK, render(exchange, schema, object), head);
+        } else if(path.size() == 2 && method.equals("PUT")) {
+            datastore.learnRelations(schema, exchange.getRequestHeaders().getFirst("X-StackMob-Relations"));
+            JsonObject updated = datastore.update(schema, path.get(1), readObject(exchange));
+            if(updated == null) throw notFound(schema, path.get(1));
+            send(exchange, HTTP_OK, render(exchange, schema, updated), false);
+        } else if(path.size() == 2 && method.equals("DELETE")) {
+            if(!datastore.delete(schema, path.get(1))) throw notFound(schema, path.get(1));
+            send(exchange, HTTP_OK, new JsonObject(), false);
+        } else if(path.size() == 3 && method.equals("POST")) {
+            postRelated(exchange, schema, path.get(1), path.get(2).toLowerCase());
+        } else if(path.size() == 3 && method.equals("PUT")) {
+            JsonElement body = readBody(exchange);
+            List<JsonElement> ids = new ArrayList<JsonElement>();
+            if(body.isJsonArray()) {
+                for(JsonElement id : body.getAsJsonArray()) ids.add(id);
+            } else {
+                ids.add(body);
+            }
+            JsonObject updated = datastore.append(schema, path.get(1), path.get(2).toLowerCase(), ids);
+            if(updated == null) throw notFound(schema, path.get(1));
+            send(exchange, HTTP_OK, render(exchange, schema, updated), false);
+        } else if(path.size() == 4 && method.equals("DELETE")) {
+            boolean cascade = "true".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("X-StackMob-CascadeDelete"));
+            List<String> ids = Arrays.asList(path.get(3).split(","));
+            if(!datastore.remove(schema, path.get(1), path.get(2).toLowerCase(), ids, cascade)) {
+                throw notFound(schema, path.get(1));
+            }
+            send(exchange, HTTP_OK, new JsonObject(), false);
+        } else if(path.size() <= 4) {
+            throw new HttpError(HTTP_BAD_METHOD, String.format("%s isn't supported on %s", method, exchange.getRequestURI().getPath()));
+        } else {
+            throw new HttpError(HTTP_NOT_FOUND, String.format("Nothing is at %s", exchange.getRequestURI().getPath()));
+        }
+    }
+
+    private static HttpError notFound(String schema, String id) {
+        return new HttpError(HTTP_NOT_FOUND, String.format("There's no %s with id %s", schema, id));
+    }
+
+    private void query(HttpExchange exchange, String schema, boolean head) throws IOException {
+        List<JsonObject> found = datastore.query(schema, new QueryFilter(params(exchange.getRequestURI().getRawQuery())));
+        sort(found, exchange.getRequestHeaders().getFirst("X-StackMob-OrderBy"));
+        int total = found.size();
+        Matcher range = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+        if(range.matches() && total > 0) {
+            int start = Integer.parseInt(range.group(1));
+            int end = range.group(2).length() == 0 ? total - 1 : Math.min(total - 1, Integer.parseInt(range.group(2)));
+            if(start > end) {
+                exchange.getResponseHeaders().add("Content-Range", "objects */" + total);
+                throw new HttpError(HTTP_RANGE_NOT_SATISFIABLE, String.format("There are only %d objects", total));
+            }
+            found = found.subList(start, end + 1);
+            exchange.getResponseHeaders().add("Content-Range", String.format("objects %d-%d/%d", start, end, total));
+        }
+        JsonArray results = new JsonArray();
+        for(JsonObject object : found) results.add(render(exchange, schema, object));
+        send(exchange, HTTP_OK, results, head);
+    }
+
+    private static void sort(List<JsonObject> objects, String orderBy) {
+        if(orderBy == null || orderBy.length() == 0) return;
+        final List<String[]> orderings = new ArrayList<String[]>();
+        for(String ordering : orderBy.split(",")) orderings.add(ordering.trim().toLowerCase().split(":"));
+        Collections.sort(objects, new Comparator<JsonObject>() {
+            @Override
+            public int compare(JsonObject a, JsonObject b) {
+                for(String[] ordering : orderings) {
+                    int comparison = QueryFilter.compare(a.get(ordering[0]), b.get(ordering[0]));
+                    if(ordering.length > 1 && ordering[1].equals("desc")) comparison = -comparison;
+                    if(comparison != 0) return comparison;
+                }
+                return 0;
+            }
+        });
+    }
+
+    private void create(HttpExchange exchange, String schema) throws IOException {
+        datastore.learnRelations(schema, exchange.getRequestHeaders().getFirst("X-StackMob-Relations"));
+        JsonElement body = readBody(exchange);
+        if(body.isJsonArray()) {
+            send(exchange, HTTP_CREATED, saveAll(schema, body.getAsJsonArray()), false);
+        } else if(body.isJsonObject()) {
+            send(exchange, HTTP_CREATED, render(exchange, schema, datastore.save(schema, body.getAsJsonObject())), false);
+        } else {
+            throw new HttpError(HTTP_BAD_REQUEST, "Expected an object or an array of objects");
+        }
+    }
+
+    /**
+     * save a bulk upload
+     * @return the ids of the saved objects, the way the api reports a bulk save
+     */
+    private JsonObject saveAll(String schema, JsonArray objects) {
+        JsonArray succeeded = new JsonArray();
+        JsonArray failed = new JsonArray();
+        String idField = datastore.getIdField(schema);
+        for(JsonElement object : objects) {
+            if(object.isJsonObject()) {
+                succeeded.add(datastore.save(schema, object.getAsJsonObject()).get(idField));
+            } else {
+                failed.add(object);
+            }
+        }
+        JsonObject result = new JsonObject();
+        result.add("succeeded", succeeded);
+        result.add("failed", failed);
+        return result;
+    }
+
+    private void postRelated(HttpExchange exchange, String schema, String id, String field) throws IOException {
+        String related = datastore.getRelatedSchema(schema, field);
+        if(related == null) throw new HttpError(HTTP_BAD_REQUEST, String.format("%s.%s isn't a relationship", schema, field));
+        if(datastore.get(schema, id) == null) throw notFound(schema, id);
+        JsonElement body = readBody(exchange);
+        JsonElement result;
+        List<JsonElement> ids = new ArrayList<JsonElement>();
+        if(body.isJsonArray()) {
+            JsonObject saved = saveAll(related, body.getAsJsonArray());
+            for(JsonElement savedId : saved.getAsJsonArray("succeeded")) ids.add(savedId);
+            result = saved;
+        } else if(body.isJsonObject()) {
+            JsonObject saved = datastore.save(related, body.getAsJsonObject());
+            ids.add(saved.get(datastore.getIdField(related)));
+            result = datastore.view(related, saved, 0);
+        } else {
+            throw new HttpError(HTTP_BAD_REQUEST, "Expected an object or an array of objects");
+        }
+        if(datastore.append(schema, id, field, ids) == null) throw notFound(schema, id);
+        send(exchange, HTTP_CREATED, result, false);
+    }
+
+    /**
+     * apply X-StackMob-Expand and X-StackMob-Select to an object being sent back
+     */
+    private JsonObject render(HttpExchange exchange, String schema, JsonObject object) {
+        Headers headers = exchange.getRequestHeaders();
+        int depth = 0;
+        String expand = headers.getFirst("X-StackMob-Expand");
+        if(expand != null) {
+            try {
+                depth = Math.min(MAX_EXPAND_DEPTH, Integer.parseInt(expand.trim()));
+            } catch(NumberFormatException e) {
+                throw new HttpError(HTTP_BAD_REQUEST, "X-StackMob-Expand must be a number");
+            }
+        }
+        JsonObject view = datastore.view(schema, object, depth);
+        String select = headers.getFirst("X-StackMob-Select");
+        if(select == null || select.length() == 0) return view;
+        Set<String> fields = new HashSet<String>();
+        for(String field : select.toLowerCase().split(",")) {
+            // nested selections like author.name keep the whole of the top level field
+            int dot = field.indexOf('.');
+            fields.add((dot < 0 ? field : field.substring(0, dot)).trim());
+        }
+        fields.add(datastore.getIdField(schema));
+        JsonObject selected = new JsonObject();
+        for(Map.Entry<String, JsonElement> field : view.entrySet()) {
+            if(fields.contains(field.getKey())) selected.add(field.getKey(), field.getValue());
+        }
+        return selected;
+    }
+
+    /**
+     * check the access token in a MAC Authorization header, if there is one
+     * @return the token, or null if the request doesn't use one
+     */
+    private Token authenticate(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if(authorization == null) return null;
+        Matcher mac = MAC_ID.matcher(authorization);
+        if(!mac.matches()) return null;
+        Token token = accessTokens.get(mac.group(1));
+        if(token == null || token.isExpired()) throw new HttpError(HTTP_UNAUTHORIZED, "The access token is invalid or has expired");
+        return token;
+    }
+
+    private void login(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for(Map.Entry<String, String> param : params(readString(exchange))) params.put(param.getKey(), param.getValue());
+        String username = params.get(datastore.getIdField(userSchema));
+        JsonObject user = username == null ? null : datastore.get(userSchema, username);
+        JsonElement password = user == null ? null : user.get(passwordField);
+        if(password == null || !password.isJsonPrimitive() || !password.getAsString().equals(params.get(passwordField))) {
+            throw new HttpError(HTTP_UNAUTHORIZED, "Invalid username or password");
+        }
+        sendToken(exchange, new Token(username, tokenLifetimeSeconds));
+    }
+
+    private void refresh(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        for(Map.Entry<String, String> param : params(readString(exchange))) params.put(param.getKey(), param.getValue());
+        String refreshToken = params.get("refresh_token");
+        Token old = refreshToken == null ? null : refreshTokens.remove(refreshToken);
+        if(old == null) throw new HttpError(HTTP_UNAUTHORIZED, "The refresh token is invalid");
+        accessTokens.remove(old.accessToken);
+        sendToken(exchange, new Token(old.userId, tokenLifetimeSeconds));
+    }
+
+    private void sendToken(HttpExchange exchange, Token token) throws IOException {
+        JsonObject user = datastore.get(userSchema, token.userId);
+        if(user == null) throw new HttpError(HTTP_UNAUTHORIZED, "The user no longer exists");
+        accessTokens.put(token.accessToken, token);
+        refreshTokens.put(token.refreshToken, token);
+        JsonObject result = new JsonObject();
+        result.addProperty("access_token", token.accessToken);
+        result.addProperty("mac_key", token.macKey);
+        result.addProperty("mac_algorithm", "hmac-sha-1");
+        result.addProperty("token_type", "mac");
+        result.addProperty("expires_in", tokenLifetimeSeconds);
+        result.addProperty("refresh_token", token.refreshToken);
+        JsonObject stackmob = new JsonObject();
+        stackmob.add("user", datastore.view(userSchema, user, 0));
+        result.add("stackmob", stackmob);
+        send(exchange, HTTP_OK, result, false);
+    }
+
+    private void loggedInUser(HttpExchange exchange, Token token, boolean head) throws IOException {
+        JsonObject user = token == null ? null : datastore.get(userSchema, token.userId);
+        if(user == null) throw new HttpError(HTTP_UNAUTHORIZED, "Nobody is logged in");
+        send(exchange, HTTP_OK, render(exchange, userSchema, user), head);
+    }
+
+    /**
+     * split a query string or form body into decoded parameters, keeping their order
+     */
+    private static List<Map.Entry<String, String>> params(String encoded) throws UnsupportedEncodingException {
+        List<Map.Entry<String, String>> params = new ArrayList<Map.Entry<String, String>>();
+        if(encoded == null || encoded.length() == 0) return params;
+        for(String pair : encoded.split("&")) {
+            if(pair.length() == 0) continue;
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.add(new AbstractMap.SimpleEntry<String, String>(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8")));
+        }
+        return params;
+    }
+
+    private static String readString(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static JsonElement readBody(HttpExchange exchange) throws IOException {
+        String body = readString(exchange);
+        if(body.trim().length() == 0) throw new HttpError(HTTP_BAD_REQUEST, "The body is empty");
+        return new JsonParser().parse(body);
+    }
+
+    private static JsonObject readObject(HttpExchange exchange) throws IOException {
+        JsonElement body = readBody(exchange);
+        if(!body.isJsonObject()) throw new HttpError(HTTP_BAD_REQUEST, "Expected an object");
+        return body.getAsJsonObject();
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        JsonObject error = new JsonObject();
+        error.addProperty("error", message);
+        send(exchange, status, error, exchange.getRequestMethod().equals("HEAD"));
+    }
+
+    private static void send(HttpExchange exchange, int status, JsonElement body, boolean head) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if(head) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.toString().getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+
+    private static String randomHex() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.api.StackMobGeoPoint;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.callback.StackMobCountCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.exception.StackMobHTTPResponseException;
+import com.stackmob.sdk.model.StackMobModel;
+import com.stackmob.sdk.model.StackMobQueryCursor;
+import com.stackmob.sdk.model.StackMobUser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StackMobLocalServerTests {
+
+    public static class Author extends StackMobModel {
+        private String name;
+
+        public Author() {
+            super(Author.class);
+        }
+
+        public Author(String name) {
+            this();
+            this.name = name;
+        }
+    }
+
+    public static class Book extends StackMobModel {
+        private String title;
+        private Author author;
+
+        public Book() {
+            super(Book.class);
+        }
+
+        public Book(String title, Author author) {
+            this();
+            this.title = title;
+            this.author = author;
+        }
+    }
+
+    public static class User extends StackMobUser {
+        public User(String username, String password) {
+            super(User.class, username, password);
+        }
+    }
+
+    private static class Result extends StackMobCallback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile String body;
+        private volatile StackMobException error;
+
+        @Override
+        public void success(String responseBody) {
+            body = responseBody;
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            error = e;
+            latch.countDown();
+        }
+
+        String await() throws Exception {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            if(error != null) throw error;
+            return body;
+        }
+
+        int awaitFailure() throws Exception {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertTrue(error instanceof StackMobHTTPResponseException);
+            return ((StackMobHTTPResponseException) error).getCode();
+        }
+    }
+
+    private static class Count extends StackMobCountCallback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile long count = -1;
+
+        @Override
+        public void success(long count) {
+            this.count = count;
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            latch.countDown();
+        }
+
+        long await() throws Exception {
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            return count;
+        }
+    }
+
+    private StackMobLocalServer server;
+    private StackMob stackmob;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new StackMobLocalServer().start();
+        stackmob = new StackMob(StackMob.OAuthVersion.Two, 0, "API_KEY", null, server.getHost(),
+                StackMob.DEFAULT_USER_SCHEMA_NAME, StackMob.DEFAULT_USER_ID, StackMob.DEFAULT_PASSWORD_FIELD,
+                StackMob.DEFAULT_REDIRECTED_CALLBACK, StackMobExecutors.cached());
+        stackmob.getSession().setHTTPSOverride(false);
+        stackmob.getDatastore().setCoalesceGets(false);
+        StackMob.setStackMob(stackmob);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private void addBooks(int count) {
+        for(int i = 0; i < count; i++) {
+            JsonObject book = new JsonObject();
+            book.addProperty("book_id", "b" + i);
+            book.addProperty("title", "title " + i);
+            book.addProperty("pages", i * 10);
+            book.addProperty("author", i % 2 == 0 ? "even" : "odd");
+            server.put("book", book);
+        }
+    }
+
+    private JsonArray query(StackMobQuery query) throws Exception {
+        Result result = new Result();
+        stackmob.getDatastore().get(query, result);
+        return new JsonParser().parse(result.await()).getAsJsonArray();
+    }
+
+    @Test public void createReadUpdateDelete() throws Exception {
+        Result created = new Result();
+        stackmob.getDatastore().post("book", "{\"title\":\"first\",\"pages\":100}", created);
+        JsonObject book = new JsonParser().parse(created.await()).getAsJsonObject();
+        String id = book.get("book_id").getAsString();
+        assertTrue(book.has("createddate"));
+
+        Result updated = new Result();
+        stackmob.getDatastore().put("book", id, "{\"title\":\"second\"}", updated);
+        updated.await();
+
+        Result fetched = new Result();
+        stackmob.getDatastore().get("book/" + id, fetched);
+        book = new JsonParser().parse(fetched.await()).getAsJsonObject();
+        assertEquals("second", book.get("title").getAsString());
+        assertEquals(100, book.get("pages").getAsInt());
+
+        Result deleted = new Result();
+        stackmob.getDatastore().delete("book", id, deleted);
+        deleted.await();
+        assertEquals(0, server.count("book"));
+
+        Result missing = new Result();
+        stackmob.getDatastore().get("book/" + id, missing);
+        assertEquals(404, missing.awaitFailure());
+    }
+
+    @Test public void queryOperators() throws Exception {
+        addBooks(10);
+        assertEquals(5, query(new StackMobQuery("book").fieldIsLessThan("pages", 50)).size());
+        assertEquals(2, query(new StackMobQuery("book").fieldIsIn("book_id", Arrays.asList("b1", "b7", "b20"))).size());
+        assertEquals(2, query(new StackMobQuery("book").fieldIsEqualTo("author", "odd").fieldIsLessThan("pages", 50)).size());
+        // the even books, plus the odd ones with at least 70 pages
+        JsonArray either = query(new StackMobQuery("book")
+                .or(new StackMobQuery().fieldIsEqualTo("author", "even"))
+                .or(new StackMobQuery().fieldIsEqualTo("author", "odd").fieldIsGreaterThanOrEqualTo("pages", 70)));
+        assertEquals(7, either.size());
+        JsonArray ordered = query(new StackMobQuery("book").fieldIsOrderedBy("pages", StackMobQuery.Ordering.DESCENDING));
+        assertEquals("b9", ordered.get(0).getAsJsonObject().get("book_id").getAsString());
+    }
+
+    @Test public void unsupportedOperatorsAreRejected() throws Exception {
+        Result result = new Result();
+        stackmob.getDatastore().get(new StackMobQuery("book").fieldIsNear("location", new StackMobGeoPoint(1.0, 2.0)), result);
+        assertEquals(400, result.awaitFailure());
+    }
+
+    @Test public void pagesWithRanges() throws Exception {
+        addBooks(25);
+        StackMobQueryCursor<Book> cursor = StackMobModel.cursor(stackmob, Book.class, new StackMobQuery()).withPageSize(10);
+        int read = 0;
+        while(cursor.hasNextPage()) {
+            for(Book book : cursor.nextPage()) {
+                assertEquals("title " + read, book.title);
+                read++;
+            }
+        }
+        assertEquals(25, read);
+        assertEquals(25, cursor.getTotal());
+
+        Count count = new Count();
+        stackmob.getDatastore().count(new StackMobQuery("book").fieldIsEqualTo("author", "odd"), count);
+        assertEquals(12, count.await());
+
+        Result pastTheEnd = new Result();
+        stackmob.getDatastore().get(new StackMobQuery("book").isInRange(30, 39), pastTheEnd);
+        assertEquals(416, pastTheEnd.awaitFailure());
+    }
+
+    @Test public void expandsRelations() throws Exception {
+        Book book = new Book("a book", new Author("an author"));
+        Result saved = new Result();
+        book.save(StackMobOptions.depthOf(1), saved);
+        saved.await();
+        assertEquals(1, server.count("author"));
+
+        Book expanded = new Book();
+        expanded.setID(book.getID());
+        Result fetched = new Result();
+        expanded.fetch(StackMobOptions.depthOf(1), fetched);
+        fetched.await();
+        assertEquals("an author", expanded.author.name);
+
+        Book flat = new Book();
+        flat.setID(book.getID());
+        fetched = new Result();
+        flat.fetch(fetched);
+        fetched.await();
+        assertEquals(book.author.getID(), flat.author.getID());
+        assertNull(flat.author.name);
+    }
+
+    @Test public void atomicCounters() throws Exception {
+        JsonObject game = new JsonObject();
+        game.addProperty("game_id", "g1");
+        game.addProperty("score", 5);
+        server.put("game", game);
+        Result result = new Result();
+        stackmob.getDatastore().updateAtomicCounter("game", "g1", "score", 3, result);
+        assertEquals(8, new JsonParser().parse(result.await()).getAsJsonObject().get("score").getAsInt());
+        result = new Result();
+        stackmob.getDatastore().updateAtomicCounter("game", "g1", "score", -10, result);
+        result.await();
+        assertEquals(-2, server.get("game", "g1").get("score").getAsInt());
+    }
+
+    @Test public void oauth2LoginAndRefresh() throws Exception {
+        JsonObject bob = new JsonObject();
+        bob.addProperty("username", "bob");
+        bob.addProperty("password", "secret");
+        server.put("user", bob);
+
+        Result wrongPassword = new Result();
+        new User("bob", "wrong").login(wrongPassword);
+        assertEquals(401, wrongPassword.awaitFailure());
+
+        Result login = new Result();
+        new User("bob", "secret").login(login);
+        JsonObject user = new JsonParser().parse(login.await()).getAsJsonObject();
+        assertEquals("bob", user.get("username").getAsString());
+        assertFalse(user.has("password"));
+        assertTrue(stackmob.getSession().oauth2TokenValid());
+
+        String refreshToken = stackmob.getSession().getOAuth2RefreshToken();
+        server.expireAccessTokens();
+        Result fetched = new Result();
+        stackmob.getDatastore().get("user/bob", fetched);
+        assertFalse(new JsonParser().parse(fetched.await()).getAsJsonObject().has("password"));
+        assertFalse(refreshToken.equals(stackmob.getSession().getOAuth2RefreshToken()));
+    }
+
+    @Test public void injectsLatency() throws Exception {
+        addBooks(1);
+        server.setLatency(100, 100, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        query(new StackMobQuery("book"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+}
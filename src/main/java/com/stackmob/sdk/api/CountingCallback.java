@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.google.gson.stream.JsonReader;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.util.Http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns a successful response to a count request into a body holding just the count, taken from the Content-Range
+ * header. Without one the objects in the body are counted as it streams in, without reading them
+ */
+class CountingCallback extends StackMobStreamingCallback {
+
+    private final StackMobRawCallback delegate;
+
+    CountingCallback(StackMobRawCallback delegate) {
+        this.delegate = delegate;
+        this.retriesRemaining = delegate.getRetriesRemaining();
+    }
+
+    /**
+     * @return the number of elements in a json array, or -1 if the body isn't one
+     */
+    static long countElements(InputStream body) {
+        long count = 0;
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(body, "UTF-8"));
+            reader.beginArray();
+            while(reader.hasNext()) {
+                reader.skipValue();
+                count++;
+            }
+            reader.endArray();
+        } catch(Exception e) {
+            return -1;
+        }
+        return count;
+    }
+
+    @Override
+    public void success(InputStream responseBody) throws IOException {
+        long count = getTotalObjectCountFromPagination();
+        // No header means all available items were returned, so count them
+        if(count < 0) count = countElements(responseBody);
+        delegate.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, String.valueOf(count).getBytes());
+    }
+
+    @Override
+    public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+        if(Http.isSuccess(responseStatusCode)) {
+            super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+        } else {
+            delegate.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+        }
+    }
+
+    @Override
+    public void failure(StackMobException e) {
+        delegate.unsent(e);
+    }
+
+    @Override
+    public void unsent(StackMobException e) {
+        delegate.unsent(e);
+    }
+
+    @Override
+    public void temporaryPasswordResetRequired(StackMobException e) {
+        delegate.temporaryPasswordResetRequired(e);
+    }
+
+    @Override
+    public boolean retry(int afterMilliseconds) {
+        return delegate.retry(afterMilliseconds);
+    }
+
+    @Override
+    public boolean redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+        return delegate.redirected(originalUrl, redirectHeaders, redirectBody, newURL);
+    }
+
+    @Override
+    public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+        delegate.circularRedirect(originalUrl, redirectHeaders, redirectBody, newURL);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A callback that passes everything on to another one. Subclass it to look at a response on its way to the
+ * caller's callback
+ */
+class ForwardingCallback extends StackMobRawCallback {
+
+    protected final StackMobRawCallback delegate;
+
+    ForwardingCallback(StackMobRawCallback delegate) {
+        this.delegate = delegate;
+        this.retriesRemaining = delegate.getRetriesRemaining();
+    }
+
+    @Override
+    public void unsent(StackMobException e) {
+        delegate.unsent(e);
+    }
+
+    @Override
+    public void temporaryPasswordResetRequired(StackMobException e) {
+        delegate.temporaryPasswordResetRequired(e);
+    }
+
+    @Override
+    public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+        delegate.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+    }
+
+    @Override
+    public boolean retry(int afterMilliseconds) {
+        return delegate.retry(afterMilliseconds);
+    }
+
+    @Override
+    public boolean redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+        return delegate.redirected(originalUrl, redirectHeaders, redirectBody, newURL);
+    }
+
+    @Override
+    public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+        delegate.circularRedirect(originalUrl, redirectHeaders, redirectBody, newURL);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The callback for one copy of a hedged read. The first copy to get a response passes it on to the caller's
+ * callback and the rest are ignored. A copy that gets no response at all only passes that on if it was the last
+ * one still waiting
+ */
+class HedgedCallback extends StackMobStreamingCallback {
+
+    /**
+     * the copies of one read
+     */
+    static class Race {
+        private final StackMobRawCallback callback;
+        // all guarded by this
+        private boolean over = false;
+        private int waiting = 0;
+
+        Race(StackMobRawCallback callback) {
+            this.callback = callback;
+        }
+
+        synchronized boolean launch() {
+            if(over) return false;
+            waiting++;
+            return true;
+        }
+
+        synchronized boolean isOver() {
+            return over;
+        }
+
+        /**
+         * @return whether a copy with a response is the first, and so should be passed on
+         */
+        synchronized boolean respond() {
+            if(over) return false;
+            over = true;
+            return true;
+        }
+
+        /**
+         * @return whether a copy without a response was the last one waiting, and so should be passed on
+         */
+        synchronized boolean fail() {
+            waiting--;
+            if(over || waiting > 0) return false;
+            over = true;
+            return true;
+        }
+    }
+
+    private final StackMobHedgePolicy policy;
+    private final String endpoint;
+    private final Race race;
+    private final StackMobRawCallback delegate;
+    private final long startNanos = System.nanoTime();
+
+    HedgedCallback(StackMobHedgePolicy policy, String endpoint, Race race) {
+        this.policy = policy;
+        this.endpoint = endpoint;
+        this.race = race;
+        this.delegate = race.callback;
+        this.retriesRemaining = delegate.getRetriesRemaining();
+    }
+
+    @Override
+    public void setStreamed(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, InputStream responseBody) {
+        policy.record(endpoint, System.nanoTime() - startNanos);
+        if(!race.respond()) return;
+        if(delegate instanceof StackMobStreamingCallback) {
+            ((StackMobStreamingCallback) delegate).setStreamed(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+            return;
+        }
+        // the caller wants the whole body, as it would have had without hedging
+        byte[] body;
+        try {
+            body = readFully(responseBody);
+        } catch(IOException e) {
+            delegate.setDone(requestVerb, requestURL, requestHeaders, requestBody, -1, responseHeaders, String.valueOf(e.getMessage()).getBytes());
+            return;
+        }
+        delegate.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, body);
+    }
+
+    @Override
+    public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+        boolean answered = responseStatusCode != null && responseStatusCode > 0;
+        if(answered) policy.record(endpoint, System.nanoTime() - startNanos);
+        if(answered ? race.respond() : race.fail()) {
+            delegate.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public void success(InputStream responseBody) throws IOException {
+        // never called, responses are passed on whole by setStreamed and done
+    }
+
+    @Override
+    public void failure(StackMobException e) {
+        // never called, responses are passed on whole by setStreamed and done
+    }
+
+    @Override
+    public void unsent(StackMobException e) {
+        if(race.fail()) delegate.unsent(e);
+    }
+
+    @Override
+    public void temporaryPasswordResetRequired(StackMobException e) {
+        if(race.respond()) delegate.temporaryPasswordResetRequired(e);
+    }
+
+    @Override
+    public boolean retry(int afterMilliseconds) {
+        return !race.isOver() && delegate.retry(afterMilliseconds);
+    }
+
+    @Override
+    public boolean redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+        return delegate.redirected(originalUrl, redirectHeaders, redirectBody, newURL);
+    }
+
+    @Override
+    public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+        if(race.respond()) delegate.circularRedirect(originalUrl, redirectHeaders, redirectBody, newURL);
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.util.StackMobLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks reads that have been sent and not yet answered, so that an identical read made in the meantime can wait
+ * for the same response instead of going to the network again
+ */
+class InFlightRequests {
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * identify a read by everything that can change its response
+     */
+    static String key(String host, String path, List<Map.Entry<String, String>> arguments, StackMobOptions options) {
+        StringBuilder key = new StringBuilder(options.isHTTPS() ? "https://" : "http://").append(host).append(path);
+        char separator = '?';
+        for(Map.Entry<String, String> argument : arguments) {
+            key.append(separator).append(argument.getKey()).append('=').append(argument.getValue());
+            separator = '&';
+        }
+        for(Map.Entry<String, String> header : options.getHeaders()) {
+            key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+        }
+        return key.toString();
+    }
+
+    /**
+     * join the read with this key if one is already in flight, otherwise start tracking a new one
+     * @param key the read's key
+     * @param path the path being read
+     * @param options the read's options, which say whether it expands relationships into other schemas
+     * @param callback the caller's callback
+     * @param logger logs callbacks that throw
+     * @return the callback to send the request with, or null if the caller's callback will hear back from a
+     *         request that's already been sent
+     */
+    StackMobRawCallback join(String key, String path, StackMobOptions options, StackMobRawCallback callback, StackMobLogger logger) {
+        boolean expanded = false;
+        for(Map.Entry<String, String> header : options.getHeaders()) {
+            if(StackMobCache.EXPAND_HEADER.equalsIgnoreCase(header.getKey())) expanded = true;
+        }
+        Flight flight = new Flight(key, StackMobCache.schemaOf(path), expanded, callback, logger);
+        while(true) {
+            Flight existing = flights.putIfAbsent(key, flight);
+            if(existing == null) return flight;
+            if(existing.follow(callback)) return null;
+            // it finished while we were looking, so it's on its way out of the table
+            flights.remove(key, existing);
+        }
+    }
+
+    /**
+     * stop later reads from joining ones that may have been answered before a write. Reads already waiting still get
+     * the response they joined
+     * @param schema the schema being written to, or null if the write can touch any schema
+     */
+    void detach(String schema) {
+        for(Map.Entry<String, Flight> entry : flights.entrySet()) {
+            Flight flight = entry.getValue();
+            if(schema == null || flight.expanded || flight.schema.equals(schema)) flights.remove(entry.getKey(), flight);
+        }
+    }
+
+    int size() {
+        return flights.size();
+    }
+
+    /**
+     * The callback of the request that was actually sent. It passes the outcome on to everyone who joined
+     */
+    private class Flight extends StackMobRawCallback {
+        private final String key;
+        private final String schema;
+        private final boolean expanded;
+        private final StackMobRawCallback leader;
+        private final StackMobLogger logger;
+        private final List<StackMobRawCallback> followers = new ArrayList<StackMobRawCallback>();
+        private boolean finished = false;
+
+        Flight(String key, String schema, boolean expanded, StackMobRawCallback leader, StackMobLogger logger) {
+            this.key = key;
+            this.schema = schema;
+            this.expanded = expanded;
+            this.leader = leader;
+            this.logger = logger;
+            setRetriesRemaining(leader.getRetriesRemaining());
+        }
+
+        synchronized boolean follow(StackMobRawCallback callback) {
+            if(finished) return false;
+            followers.add(callback);
+            return true;
+        }
+
+        private List<StackMobRawCallback> finish() {
+            flights.remove(key, this);
+            List<StackMobRawCallback> everyone = new ArrayList<StackMobRawCallback>();
+            everyone.add(leader);
+            synchronized(this) {
+                finished = true;
+                everyone.addAll(followers);
+            }
+            return everyone;
+        }
+
+        private void callbackFailed(Throwable t) {
+            if(logger.isErrorEnabled()) logger.logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+        }
+
+        @Override
+        public void unsent(StackMobException e) {
+            for(StackMobRawCallback callback : finish()) {
+                try {
+                    callback.unsent(e);
+                } catch(Throwable t) {
+                    callbackFailed(t);
+                }
+            }
+        }
+
+        @Override
+        public void temporaryPasswordResetRequired(StackMobException e) {
+            for(StackMobRawCallback callback : finish()) {
+                try {
+                    callback.temporaryPasswordResetRequired(e);
+                } catch(Throwable t) {
+                    callbackFailed(t);
+                }
+            }
+        }
+
+        @Override
+        public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            for(StackMobRawCallback callback : finish()) {
+                try {
+                    callback.circularRedirect(originalUrl, redirectHeaders, redirectBody, newURL);
+                } catch(Throwable t) {
+                    callbackFailed(t);
+                }
+            }
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            for(StackMobRawCallback callback : finish()) {
+                try {
+                    callback.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+                } catch(Throwable t) {
+                    callbackFailed(t);
+                }
+            }
+        }
+
+        @Override
+        public boolean retry(int afterMilliseconds) {
+            return leader.retry(afterMilliseconds);
+        }
+
+        @Override
+        public boolean redirected(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            return leader.redirected(originalUrl, redirectHeaders, redirectBody, newURL);
+        }
+    }
+}
@@ -29,7 +29,6 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * The StackMob object is your interface for accessing StackMob's many features. Its functions include:
@@ -145,7 +144,7 @@ public class StackMob {
     };
 
     private static ExecutorService createNewExecutor() {
-        return Executors.newCachedThreadPool();
+        return StackMobExecutors.cached();
     }
 
     private static StackMob stackmob;
@@ -231,8 +230,39 @@ public class StackMob {
                     String userIdName,
                     String passwordFieldName,
                     StackMobRedirectedCallback redirectedCallback) {
+        this(oauthVersion, apiVersionNumber, apiKey, apiSecret, apiHost, userSchema, userIdName, passwordFieldName,
+                redirectedCallback, createNewExecutor());
+    }
+
+    /**
+     * The most complete StackMob constructor, also allowing you to choose how requests are executed.
+     * @param oauthVersion whether to use OAuth1 or OAuth2
+     * @param apiVersionNumber the version of your app's API that you want to use with this StackMob session.
+     *                         Pass 0 for sandbox.
+     * @param apiKey the api key for your app
+     * @param apiSecret the api secret for your app. Can be null if you're using OAuth2.
+     * @param apiHost the base of the url for api requests
+     * @param userSchema the name of your app's user object. If you do not have a user object, pass the empty string
+     *                   here, and do not use the login, logout, Facebook or Twitter methods, as they will fail.
+     * @param userIdName the name of your app's user object primary key
+     * @param passwordFieldName the name of your app's user object primary key
+     * @param redirectedCallback callback to be called if the StackMob platform issues a redirect
+     * @param executor runs requests and their callbacks. It's shared with the datastore and any
+     *                 {@link com.stackmob.sdk.push.StackMobPush} created from this object. See {@link StackMobExecutors}
+     *                 for some common choices
+     */
+    public StackMob(OAuthVersion oauthVersion,
+                    Integer apiVersionNumber,
+                    String apiKey,
+                    String apiSecret,
+                    String apiHost,
+                    String userSchema,
+                    String userIdName,
+                    String passwordFieldName,
+                    StackMobRedirectedCallback redirectedCallback,
+                    ExecutorService executor) {
         this.session = new StackMobSession(oauthVersion, apiVersionNumber, apiKey, apiSecret, userSchema, userIdName);
-        this.executor = createNewExecutor();
+        this.executor = executor;
         this.apiUrlFormat = apiHost;
         this.userSchema = userSchema;
         this.userIdName = userIdName;
@@ -0,0 +1,358 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.util.Http;
+
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces single object saves and fetches by id that arrive close together into one request per schema. Saves
+ * become one POST of an array of objects, and fetches become one GET with an {@code [in]} query on the id field.
+ * Each caller's callback still gets the result for its own object. Batching is off unless you turn it on:
+ *
+ * <pre>
+ * {@code
+ * StackMobDatastore datastore = stackmob.getDatastore();
+ * datastore.setBatcher(new StackMobBatcher(datastore).withWindow(5, TimeUnit.MILLISECONDS).withMaxBatchSize(50));
+ * }
+ * </pre>
+ *
+ * Once set, {@link com.stackmob.sdk.model.StackMobModel#save(com.stackmob.sdk.callback.StackMobCallback)} and
+ * {@link com.stackmob.sdk.model.StackMobModel#fetch(com.stackmob.sdk.callback.StackMobCallback)} go through the
+ * batcher whenever they're called without options. A batch is sent when its window ends or when it reaches the
+ * maximum size, whichever comes first. A batch that ends up with a single request sends it unchanged
+ */
+public class StackMobBatcher {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 10;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+
+    private final StackMobDatastore datastore;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownsScheduler;
+    private volatile long windowMillis = DEFAULT_WINDOW_MILLIS;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private final Map<String, Batch> pending = new HashMap<String, Batch>();
+
+    /**
+     * create a batcher with its own timer thread
+     * @param datastore the datastore to send batches through
+     */
+    public StackMobBatcher(StackMobDatastore datastore) {
+        this(datastore, StackMobExecutors.timer(), true);
+    }
+
+    /**
+     * create a batcher that uses an existing scheduler to end batch windows
+     * @param datastore the datastore to send batches through
+     * @param scheduler runs the timers. Batches are sent from it, so it shouldn't be busy with slow work
+     */
+    public StackMobBatcher(StackMobDatastore datastore, ScheduledExecutorService scheduler) {
+        this(datastore, scheduler, false);
+    }
+
+    private StackMobBatcher(StackMobDatastore datastore, ScheduledExecutorService scheduler, boolean ownsScheduler) {
+        this.datastore = datastore;
+        this.scheduler = scheduler;
+        this.ownsScheduler = ownsScheduler;
+    }
+
+    /**
+     * set how long a batch waits for more requests after the first one arrives. Defaults to 10ms
+     * @param window the window
+     * @param unit the unit of the window
+     * @return the batcher
+     */
+    public StackMobBatcher withWindow(long window, TimeUnit unit) {
+        this.windowMillis = unit.toMillis(window);
+        return this;
+    }
+
+    /**
+     * set the most objects a single batch holds. Defaults to 50
+     * @param maxBatchSize the maximum batch size
+     * @return the batcher
+     */
+    public StackMobBatcher withMaxBatchSize(int maxBatchSize) {
+        if(maxBatchSize < 1) throw new IllegalArgumentException("The maximum batch size must be at least 1");
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * queue an object to be created or updated. The callback receives the json for this object alone, or a 400 if
+     * the bulk save it went out in didn't list it as succeeded
+     * @param schema the schema to post to
+     * @param idField the name of the schema's id field, which the object must have set
+     * @param object the object
+     * @param headers headers for the request. Only objects with the same headers are batched together
+     * @param callback invoked when the batch returns
+     */
+    public void save(String schema, String idField, JsonObject object, List<Map.Entry<String, String>> headers, StackMobRawCallback callback) {
+        StringBuilder key = new StringBuilder("POST ").append(schema);
+        for(Map.Entry<String, String> header : headers) {
+            key.append('\n').append(header.getKey()).append(": ").append(header.getValue());
+        }
+        JsonElement id = object.get(idField);
+        add(key.toString(), new Entry(schema, idField, id == null ? null : id.getAsString(), object, headers, callback));
+    }
+
+    /**
+     * queue a fetch of one object by id. The callback receives the json for this object alone, or a 404 if it
+     * doesn't exist
+     * @param schema the schema to get from
+     * @param idField the name of the schema's id field
+     * @param id the id of the object to get
+     * @param callback invoked when the batch returns
+     */
+    public void fetch(String schema, String idField, String id, StackMobRawCallback callback) {
+        add("GET " + schema + "\n" + idField, new Entry(schema, idField, id, null, null, callback));
+    }
+
+    /**
+     * send everything that's waiting now
+     */
+    public void flush() {
+        List<Batch> batches;
+        synchronized(pending) {
+            batches = new ArrayList<Batch>(pending.values());
+            pending.clear();
+        }
+        for(Batch batch : batches) {
+            batch.send();
+        }
+    }
+
+    /**
+     * send everything that's waiting, and stop the timer thread if the batcher created it
+     */
+    public void shutdown() {
+        flush();
+        if(ownsScheduler) scheduler.shutdown();
+    }
+
+    private void add(final String key, Entry entry) {
+        Batch full = null;
+        synchronized(pending) {
+            Batch batch = pending.get(key);
+            if(batch == null) {
+                final Batch newBatch = new Batch();
+                pending.put(key, newBatch);
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        sendIfPending(key, newBatch);
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+                batch = newBatch;
+            }
+            batch.entries.add(entry);
+            if(batch.entries.size() >= maxBatchSize) {
+                pending.remove(key);
+                full = batch;
+            }
+        }
+        if(full != null) full.send();
+    }
+
+    private void sendIfPending(String key, Batch batch) {
+        synchronized(pending) {
+            if(pending.get(key) != batch) return;
+            pending.remove(key);
+        }
+        batch.send();
+    }
+
+    private static class Entry {
+        final String schema;
+        final String idField;
+        final String id;
+        final JsonObject object;
+        final List<Map.Entry<String, String>> headers;
+        final StackMobRawCallback callback;
+
+        Entry(String schema, String idField, String id, JsonObject object, List<Map.Entry<String, String>> headers, StackMobRawCallback callback) {
+            this.schema = schema;
+            this.idField = idField;
+            this.id = id;
+            this.object = object;
+            this.headers = headers;
+            this.callback = callback;
+        }
+
+        boolean isSave() {
+            return object != null;
+        }
+    }
+
+    private class Batch {
+        final List<Entry> entries = new ArrayList<Entry>();
+
+        void send() {
+            Entry first = entries.get(0);
+            if(entries.size() == 1) {
+                sendAlone(first);
+            } else if(first.isSave()) {
+                JsonArray array = new JsonArray();
+                for(Entry entry : entries) {
+                    array.add(entry.object);
+                }
+                datastore.post(first.schema, array.toString(), StackMobOptions.headers(first.headers), new BatchCallback(entries));
+            } else {
+                Set<String> ids = new LinkedHashSet<String>();
+                for(Entry entry : entries) {
+                    ids.add(entry.id);
+                }
+                StackMobQuery query = new StackMobQuery(first.schema).fieldIsIn(first.idField, new ArrayList<String>(ids));
+                datastore.get(query, new BatchCallback(entries));
+            }
+        }
+
+        private void sendAlone(Entry entry) {
+            if(entry.isSave()) {
+                datastore.post(entry.schema, entry.object.toString(), StackMobOptions.headers(entry.headers), entry.callback);
+            } else {
+                datastore.get(entry.schema + "/" + entry.id, entry.callback);
+            }
+        }
+    }
+
+    /**
+     * Splits the response to a batch up among the callbacks of the requests in it
+     */
+    private static class BatchCallback extends StackMobRawCallback {
+        private final List<Entry> entries;
+
+        BatchCallback(List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public void unsent(StackMobException e) {
+            for(Entry entry : entries) {
+                entry.callback.unsent(e);
+            }
+        }
+
+        @Override
+        public void temporaryPasswordResetRequired(StackMobException e) {
+            for(Entry entry : entries) {
+                entry.callback.temporaryPasswordResetRequired(e);
+            }
+        }
+
+        @Override
+        public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            for(Entry entry : entries) {
+                entry.callback.circularRedirect(originalUrl, redirectHeaders, redirectBody, newURL);
+            }
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            JsonElement json = null;
+            if(Http.isSuccess(responseStatusCode)) {
+                try {
+                    json = new JsonParser().parse(new String(responseBody, "UTF-8"));
+                } catch(Exception ignore) { }
+            }
+            Set<String> savedIds = json == null ? null : savedIds(json, entries.get(0).idField);
+            for(int i = 0; i < entries.size(); i++) {
+                Entry entry = entries.get(i);
+                int status = responseStatusCode;
+                byte[] body = responseBody;
+                if(savedIds != null && entry.isSave()) {
+                    // a bulk save only reports which ids made it
+                    if(savedIds.contains(entry.id)) {
+                        status = 200;
+                        body = bytes(entry.object.toString());
+                    } else {
+                        status = 400;
+                        body = bytes("{\"error\":\"" + entry.schema + " with " + entry.idField + " " + entry.id + " wasn't saved\"}");
+                    }
+                } else if(json != null) {
+                    JsonElement result = entry.isSave() ? saveResult(json, entry, i) : fetchResult(json, entry);
+                    if(result != null) {
+                        body = bytes(result.toString());
+                    } else if(!entry.isSave()) {
+                        status = 404;
+                        body = bytes("{\"error\":\"" + entry.schema + " with " + entry.idField + " " + entry.id + " not found\"}");
+                    }
+                }
+                try {
+                    entry.callback.setDone(requestVerb, requestURL, requestHeaders, requestBody, status, responseHeaders, body);
+                } catch(Throwable ignore) { } // One bad callback shouldn't keep the others from hearing back
+            }
+        }
+
+        /**
+         * the ids in a bulk save's {@code {"succeeded":[ids],"failed":[...]}} response, or null if it isn't one
+         */
+        private static Set<String> savedIds(JsonElement json, String idField) {
+            if(!json.isJsonObject() || !json.getAsJsonObject().has("succeeded")) return null;
+            JsonElement succeeded = json.getAsJsonObject().get("succeeded");
+            if(!succeeded.isJsonArray()) return null;
+            Set<String> ids = new HashSet<String>();
+            for(JsonElement id : succeeded.getAsJsonArray()) {
+                if(id.isJsonObject()) id = id.getAsJsonObject().get(idField);
+                if(id != null && id.isJsonPrimitive()) ids.add(id.getAsString());
+            }
+            return ids;
+        }
+
+        /**
+         * the created object at the same position, or null to pass on the whole response if it isn't a list of
+         * objects
+         */
+        private static JsonElement saveResult(JsonElement json, Entry entry, int index) {
+            if(json.isJsonArray() && index < json.getAsJsonArray().size()) {
+                JsonElement result = json.getAsJsonArray().get(index);
+                if(result.isJsonObject()) return result;
+            }
+            return null;
+        }
+
+        private static JsonElement fetchResult(JsonElement json, Entry entry) {
+            if(!json.isJsonArray()) return null;
+            for(JsonElement candidate : json.getAsJsonArray()) {
+                if(!candidate.isJsonObject()) continue;
+                JsonElement id = candidate.getAsJsonObject().get(entry.idField);
+                if(id != null && id.isJsonPrimitive() && id.getAsString().equals(entry.id)) return candidate;
+            }
+            return null;
+        }
+
+        private static byte[] bytes(String s) {
+            try {
+                return s.getBytes("UTF-8");
+            } catch(UnsupportedEncodingException e) {
+                return s.getBytes();
+            }
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.util.Http;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps successful get and head responses, and counts, from the datastore in memory so that repeating a read doesn't go to the
+ * network. Responses are keyed by path, query arguments, headers (including select and expand) and the logged in
+ * user. Caching is off unless you turn it on:
+ *
+ * <pre>
+ * {@code
+ * stackmob.getDatastore().setCache(new StackMobCache().withMaxEntries(500)
+ *                                                     .withTTL(1, TimeUnit.MINUTES)
+ *                                                     .withTTL("country", 1, TimeUnit.DAYS));
+ * }
+ * </pre>
+ *
+ * When the cache is full the least recently used response is dropped. Creating, updating or deleting through
+ * the datastore drops every cached response for that schema, along with any response that expanded relations.
+ * Changes made by other clients aren't seen until the cached response expires, so pick TTLs to match how stale
+ * each schema is allowed to get
+ */
+public class StackMobCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+    static final String EXPAND_HEADER = "X-StackMob-Expand";
+
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
+    private volatile long defaultTTLMillis = DEFAULT_TTL_MILLIS;
+    private volatile long countTTLMillis = -1;
+    private final ConcurrentMap<String, Long> schemaTTLMillis = new ConcurrentHashMap<String, Long>();
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    // Bumped on every invalidation, so a read that was sent before a write can tell not to store its response
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * set the most responses the cache holds. Defaults to 100
+     * @param maxEntries the maximum number of responses
+     * @return the cache
+     */
+    public StackMobCache withMaxEntries(int maxEntries) {
+        if(maxEntries < 1) throw new IllegalArgumentException("The cache must hold at least one entry");
+        this.maxEntries = maxEntries;
+        synchronized(entries) {
+            trim();
+        }
+        return this;
+    }
+
+    /**
+     * set how long responses are kept for schemas without their own TTL. Defaults to one minute
+     * @param ttl how long to keep responses. 0 turns caching off for those schemas
+     * @param unit the unit of the ttl
+     * @return the cache
+     */
+    public StackMobCache withTTL(long ttl, TimeUnit unit) {
+        this.defaultTTLMillis = unit.toMillis(ttl);
+        return this;
+    }
+
+    /**
+     * set how long responses from one schema are kept
+     * @param schema the schema
+     * @param ttl how long to keep responses. 0 turns caching off for this schema
+     * @param unit the unit of the ttl
+     * @return the cache
+     */
+    public StackMobCache withTTL(String schema, long ttl, TimeUnit unit) {
+        schemaTTLMillis.put(schema.toLowerCase(), unit.toMillis(ttl));
+        return this;
+    }
+
+    /**
+     * set how long counts are kept, separately from the responses to other reads. Counts are cheap to keep, and a
+     * screen that shows the same few counts over and over can keep them for a few seconds without going to the
+     * network each time. Defaults to the TTL of the schema being counted
+     * @param ttl how long to keep counts. 0 turns caching off for counts
+     * @param unit the unit of the ttl
+     * @return the cache
+     */
+    public StackMobCache withCountTTL(long ttl, TimeUnit unit) {
+        this.countTTLMillis = unit.toMillis(ttl);
+        return this;
+    }
+
+    /**
+     * @return the number of reads answered from the cache
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of cacheable reads that had to go to the network
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of responses dropped to make room for newer ones
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the fraction of cacheable reads answered from the cache, or 0 if there haven't been any
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * @return the number of responses in the cache, including any that have expired but haven't been looked up since
+     */
+    public int size() {
+        synchronized(entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * drop every cached response
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        synchronized(entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * drop every cached response for a schema, and any response that expanded relations
+     * @param schema the schema
+     */
+    public void invalidate(String schema) {
+        String name = schemaOf(schema);
+        generation.incrementAndGet();
+        synchronized(entries) {
+            Iterator<Entry> it = entries.values().iterator();
+            while(it.hasNext()) {
+                Entry entry = it.next();
+                if(entry.expanded || entry.schema.equals(name)) it.remove();
+            }
+        }
+    }
+
+    /**
+     * @param path a datastore path, with or without a leading slash
+     * @return the schema the path belongs to
+     */
+    static String schemaOf(String path) {
+        int start = path.startsWith("/") ? 1 : 0;
+        int end = path.indexOf('/', start);
+        return (end < 0 ? path.substring(start) : path.substring(start, end)).toLowerCase();
+    }
+
+    private long ttlFor(String schema) {
+        Long ttl = schemaTTLMillis.get(schema);
+        return ttl == null ? defaultTTLMillis : ttl;
+    }
+
+    private long countTTLFor(String schema) {
+        long ttl = countTTLMillis;
+        return ttl < 0 ? ttlFor(schema) : ttl;
+    }
+
+    /**
+     * @return whether reads from this path are cached at all
+     */
+    boolean isCacheable(String path) {
+        return ttlFor(schemaOf(path)) > 0;
+    }
+
+    /**
+     * @return whether counts of this path are cached at all
+     */
+    boolean isCountCacheable(String path) {
+        return countTTLFor(schemaOf(path)) > 0;
+    }
+
+    /**
+     * answer a read from the cache if possible
+     * @param key the read's key
+     * @param callback the caller's callback
+     * @param executor runs the callback, just as it would have run for a response from the network
+     * @return whether the callback was answered
+     */
+    boolean answer(String key, final StackMobRawCallback callback, Executor executor) {
+        final Entry entry;
+        synchronized(entries) {
+            Entry found = entries.get(key);
+            if(found != null && found.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(key);
+                found = null;
+            }
+            entry = found;
+        }
+        if(entry == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.setDone(entry.requestVerb, entry.requestURL, entry.requestHeaders, "", entry.responseStatusCode, entry.responseHeaders, entry.responseBody);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * wrap the callback of a read that missed so that its response is stored
+     * @param key the read's key
+     * @param path the path being read
+     * @param headers the headers the read was sent with
+     * @param callback the callback to pass the response on to
+     * @return the callback to send the read with
+     */
+    StackMobRawCallback storing(String key, String path, List<Map.Entry<String, String>> headers, StackMobRawCallback callback) {
+        boolean expanded = false;
+        for(Map.Entry<String, String> header : headers) {
+            if(EXPAND_HEADER.equalsIgnoreCase(header.getKey())) expanded = true;
+        }
+        String schema = schemaOf(path);
+        return new StoringCallback(key, schema, expanded, ttlFor(schema), generation.get(), callback);
+    }
+
+    /**
+     * wrap the callback of a count that missed so that the count is stored
+     * @param key the count's key
+     * @param path the path being counted
+     * @param callback the callback to pass the count on to
+     * @return the callback to send the count with
+     */
+    StackMobRawCallback storingCount(String key, String path, StackMobRawCallback callback) {
+        String schema = schemaOf(path);
+        return new StoringCallback(key, schema, false, countTTLFor(schema), generation.get(), callback);
+    }
+
+    /**
+     * wrap the callback of a write so that the cache is invalidated again once the write has been applied, in case a
+     * read sent while it was in flight stored what it replaced
+     * @param path the path being written to, or null if the write can touch any schema
+     * @param callback the callback to pass the response on to
+     * @return the callback to send the write with
+     */
+    StackMobRawCallback invalidating(final String path, StackMobRawCallback callback) {
+        return new ForwardingCallback(callback) {
+            @Override
+            public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+                if(path == null) {
+                    clear();
+                } else {
+                    invalidate(path);
+                }
+                super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+            }
+        };
+    }
+
+    private void store(String key, Entry entry, long readGeneration) {
+        synchronized(entries) {
+            // Something was written since the read was sent, so the response may already be stale
+            if(generation.get() != readGeneration) return;
+            entries.put(key, entry);
+            trim();
+        }
+    }
+
+    private void trim() {
+        Iterator<Entry> it = entries.values().iterator();
+        while(entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static class Entry {
+        final String schema;
+        final boolean expanded;
+        final long expiresAt;
+        final HttpVerb requestVerb;
+        final String requestURL;
+        final List<Map.Entry<String, String>> requestHeaders;
+        final int responseStatusCode;
+        final List<Map.Entry<String, String>> responseHeaders;
+        final byte[] responseBody;
+
+        Entry(String schema, boolean expanded, long expiresAt, HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, int responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            this.schema = schema;
+            this.expanded = expanded;
+            this.expiresAt = expiresAt;
+            this.requestVerb = requestVerb;
+            this.requestURL = requestURL;
+            this.requestHeaders = requestHeaders;
+            this.responseStatusCode = responseStatusCode;
+            this.responseHeaders = responseHeaders;
+            this.responseBody = responseBody;
+        }
+    }
+
+    private class StoringCallback extends ForwardingCallback {
+        private final String key;
+        private final String schema;
+        private final boolean expanded;
+        private final long ttlMillis;
+        private final long readGeneration;
+
+        StoringCallback(String key, String schema, boolean expanded, long ttlMillis, long readGeneration, StackMobRawCallback callback) {
+            super(callback);
+            this.key = key;
+            this.schema = schema;
+            this.expanded = expanded;
+            this.ttlMillis = ttlMillis;
+            this.readGeneration = readGeneration;
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            if(Http.isSuccess(responseStatusCode)) {
+                long expiresAt = System.currentTimeMillis() + ttlMillis;
+                store(key, new Entry(schema, expanded, expiresAt, requestVerb, requestURL, requestHeaders, responseStatusCode, responseHeaders, responseBody), readGeneration);
+            }
+            super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+        }
+    }
+}
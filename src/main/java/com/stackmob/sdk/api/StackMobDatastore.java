@@ -18,6 +18,7 @@ package com.stackmob.sdk.api;
 import com.google.gson.*;
 import com.stackmob.sdk.callback.StackMobRawCallback;
 import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
 import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.net.HttpVerb;
 import com.stackmob.sdk.net.HttpVerbWithPayload;
@@ -27,11 +28,16 @@ import com.stackmob.sdk.request.StackMobRequestWithPayload;
 import com.stackmob.sdk.request.StackMobRequestWithoutPayload;
 import com.stackmob.sdk.util.Http;
 import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.StackMobLogger;
+import com.stackmob.sdk.util.StackMobMetricsRegistry;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 
 /**
@@ -39,11 +45,23 @@ import java.util.concurrent.ExecutorService;
  */
 public class StackMobDatastore {
 
+    private static final Gson gson = new Gson();
+    private static final int METHOD_NOT_ALLOWED = 405;
+    private static final int NOT_IMPLEMENTED = 501;
 
     private ExecutorService executor;
     private StackMobSession session;
     private String host;
     private StackMobRedirectedCallback redirectedCallback;
+    private volatile StackMobBatcher batcher;
+    private final InFlightRequests inFlightGets = new InFlightRequests();
+    private volatile boolean coalesceGets = false;
+    private volatile boolean countWithHead = true;
+    // schemas whose last head didn't give a total, because everything fit in one page, so counts go straight to a get
+    private final Set<String> pathsCountedByGet = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile StackMobCache cache;
+    private volatile StackMobHedgePolicy hedgePolicy;
+    private volatile StackMobWriteBehind writeBehind;
 
     public StackMobDatastore(ExecutorService executor, StackMobSession session, String host, StackMobRedirectedCallback redirectedCallback) {
         this.executor = executor;
@@ -60,20 +78,159 @@ public class StackMobDatastore {
         this.session = session;
     }
 
+    /**
+     * batch model saves and fetches together, or stop batching them. Anything the previous batcher still holds is
+     * sent right away
+     * @param batcher the batcher to use, or null to send every request on its own
+     * @see StackMobBatcher
+     */
+    public void setBatcher(StackMobBatcher batcher) {
+        StackMobBatcher old = this.batcher;
+        this.batcher = batcher;
+        if(old != null && old != batcher) old.shutdown();
+    }
+
+    /**
+     * @return the batcher in use, or null if requests aren't being batched
+     */
+    public StackMobBatcher getBatcher() {
+        return batcher;
+    }
+
+    /**
+     * journal model saves and deletes and send them in the background, or stop doing so. The previous write-behind
+     * is shut down, and anything it hadn't sent stays in its journal until it's opened again
+     * @param writeBehind the write-behind to use, or null to send every write right away
+     * @see StackMobWriteBehind
+     */
+    public void setWriteBehind(StackMobWriteBehind writeBehind) {
+        StackMobWriteBehind old = this.writeBehind;
+        this.writeBehind = writeBehind;
+        if(old != null && old != writeBehind) old.shutdown();
+    }
+
+    /**
+     * @return the write-behind in use, or null if writes are sent right away
+     */
+    public StackMobWriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    StackMobLogger getLogger() {
+        return session.getLogger();
+    }
+
+    /**
+     * When on, a get that's identical to one already waiting for a response (same url, query, headers and logged in
+     * user) isn't sent. Its callback gets the response to the earlier request instead. Gets with a
+     * {@link StackMobStreamingCallback} are never shared, since a stream can only be read once. A write stops later
+     * gets from joining earlier ones on its schema. This is off by default
+     * @param coalesceGets whether to share responses between identical concurrent gets
+     */
+    public void setCoalesceGets(boolean coalesceGets) {
+        this.coalesceGets = coalesceGets;
+    }
+
+    /**
+     * @return whether identical concurrent gets share a response
+     */
+    public boolean isCoalescingGets() {
+        return coalesceGets;
+    }
+
+    /**
+     * Counts are read from the Content-Range of a head request, so nothing but headers comes back. Turn this off if
+     * a proxy in the way doesn't pass head requests through properly, and counts will use a get of the first object
+     * instead. It's turned off automatically if the server rejects head requests. This is on by default
+     * @param countWithHead whether to count with head requests
+     */
+    public void setCountWithHead(boolean countWithHead) {
+        this.countWithHead = countWithHead;
+    }
+
+    /**
+     * @return whether counts are read from head requests
+     */
+    public boolean isCountingWithHead() {
+        return countWithHead;
+    }
+
+    /**
+     * keep get and head responses in memory and answer repeated reads from there, or stop caching them. Gets with a
+     * {@link StackMobStreamingCallback} aren't stored, since that would mean buffering the whole stream
+     * @param cache the cache to use, or null to send every read
+     * @see StackMobCache
+     */
+    public void setCache(StackMobCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the cache in use, or null if reads aren't being cached
+     */
+    public StackMobCache getCache() {
+        return cache;
+    }
+
+    /**
+     * send a second copy of any get or head that's slow to be answered, and use whichever response comes first
+     * @param hedgePolicy when to hedge, or null never to
+     * @see StackMobHedgePolicy
+     */
+    public void setHedgePolicy(StackMobHedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+    }
+
+    /**
+     * @return the hedge policy in use, or null if reads aren't being hedged
+     */
+    public StackMobHedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    private void recordCount(String name, String path) {
+        StackMobMetricsRegistry metrics = session.getMetrics();
+        if(metrics != null) metrics.increment(name, Http.endpoint(this.host, path));
+    }
+
+    private String cacheKey(HttpVerb verb, String path, List<Map.Entry<String, String>> arguments, StackMobOptions options) {
+        return verb + " " + InFlightRequests.key(this.host, path, arguments, options) + "\n" + session.getLoginIdentity();
+    }
+
+    /**
+     * drop cached reads that a write is about to make stale, and again once it's done. Reads in flight are detached
+     * at the same points, so a read made afterwards doesn't join one that may return what the write replaced
+     * @param path the path being written to, or null if the write can reach into other schemas
+     * @param callback the write's callback
+     * @return the callback to send the write with
+     */
+    private StackMobRawCallback invalidateCache(String path, StackMobRawCallback callback) {
+        final String schema = path == null ? null : StackMobCache.schemaOf(path);
+        inFlightGets.detach(schema);
+        callback = new ForwardingCallback(callback) {
+            @Override
+            public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+                inFlightGets.detach(schema);
+                super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+            }
+        };
+        StackMobCache cache = this.cache;
+        if(cache == null) return callback;
+        if(path == null) {
+            cache.clear();
+        } else {
+            cache.invalidate(path);
+        }
+        return cache.invalidating(path, callback);
+    }
+
     /**
      * do a get request on the StackMob platform
      * @param path the path to get
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     public void get(String path, StackMobRawCallback callback) {
-        new StackMobRequestWithoutPayload(this.executor,
-                                          this.session,
-                                          HttpVerbWithoutPayload.GET,
-                                          StackMobOptions.none(),
-                                          StackMobRequest.EmptyParams,
-                                          path,
-                                          callback,
-                                          this.redirectedCallback).setUrlFormat(this.host).sendRequest();
+        get(path, StackMobRequest.EmptyParams, StackMobOptions.none(), callback);
     }
 
     /**
@@ -94,14 +251,7 @@ public class StackMobDatastore {
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     private void get(String path, List<Map.Entry<String, String>> arguments, List<Map.Entry<String, String>> headers, StackMobRawCallback callback) {
-        new StackMobRequestWithoutPayload(this.executor,
-                                          this.session,
-                                          HttpVerbWithoutPayload.GET,
-                                          StackMobOptions.headers(headers),
-                                          arguments,
-                                          path,
-                                          callback,
-                                          this.redirectedCallback).setUrlFormat(this.host).sendRequest();
+        get(path, arguments, StackMobOptions.headers(headers), callback);
     }
 
     /**
@@ -112,9 +262,50 @@ public class StackMobDatastore {
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     private void get(String path, List<Map.Entry<String, String>> arguments, StackMobOptions options, StackMobRawCallback callback) {
+        StackMobCache cache = this.cache;
+        String cacheKey = null;
+        if(cache != null && cache.isCacheable(path)) {
+            cacheKey = cacheKey(HttpVerbWithoutPayload.GET, path, arguments, options);
+            if(cache.answer(cacheKey, callback, this.executor)) {
+                recordCount(StackMobMetricsRegistry.CACHE_HITS, path);
+                return;
+            }
+        }
+        // sharing or storing a response means buffering it, which would defeat a streaming callback
+        boolean streaming = callback instanceof StackMobStreamingCallback;
+        if(coalesceGets && !streaming) {
+            callback = inFlightGets.join(cacheKey(HttpVerbWithoutPayload.GET, path, arguments, options), path, options, callback, session.getLogger());
+            // an identical request is already on its way
+            if(callback == null) {
+                recordCount(StackMobMetricsRegistry.COALESCED, path);
+                return;
+            }
+        }
+        if(cacheKey != null && !streaming) callback = cache.storing(cacheKey, path, options.getHeaders(), callback);
+        sendRead(HttpVerbWithoutPayload.GET, path, arguments, options, callback);
+    }
+
+    /**
+     * send a get or head, hedging it if there's a policy to
+     */
+    private void sendRead(final HttpVerbWithoutPayload verb, final String path, final List<Map.Entry<String, String>> arguments, final StackMobOptions options, StackMobRawCallback callback) {
+        StackMobHedgePolicy hedgePolicy = this.hedgePolicy;
+        if(hedgePolicy == null) {
+            sendOneRead(verb, path, arguments, options, callback);
+            return;
+        }
+        hedgePolicy.send(verb, path, callback, new StackMobHedgePolicy.Sender() {
+            @Override
+            public void send(StackMobRawCallback callback) {
+                sendOneRead(verb, path, arguments, options, callback);
+            }
+        });
+    }
+
+    private void sendOneRead(HttpVerbWithoutPayload verb, String path, List<Map.Entry<String, String>> arguments, StackMobOptions options, StackMobRawCallback callback) {
         new StackMobRequestWithoutPayload(this.executor,
                 this.session,
-                HttpVerbWithoutPayload.GET,
+                verb,
                 options,
                 arguments,
                 path,
@@ -148,14 +339,7 @@ public class StackMobDatastore {
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     public void head(String path, StackMobRawCallback callback) {
-        new StackMobRequestWithoutPayload(this.executor,
-                this.session,
-                HttpVerbWithoutPayload.HEAD,
-                StackMobOptions.none(),
-                StackMobRequest.EmptyParams,
-                path,
-                callback,
-                this.redirectedCallback).setUrlFormat(this.host).sendRequest();
+        head(path, StackMobRequest.EmptyParams, StackMobOptions.none(), callback);
     }
 
     /**
@@ -176,14 +360,7 @@ public class StackMobDatastore {
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     private void head(String path, List<Map.Entry<String, String>> arguments, List<Map.Entry<String, String>> headers, StackMobRawCallback callback) {
-        new StackMobRequestWithoutPayload(this.executor,
-                this.session,
-                HttpVerbWithoutPayload.HEAD,
-                StackMobOptions.headers(headers),
-                arguments,
-                path,
-                callback,
-                this.redirectedCallback).setUrlFormat(this.host).sendRequest();
+        head(path, arguments, StackMobOptions.headers(headers), callback);
     }
 
     /**
@@ -194,14 +371,16 @@ public class StackMobDatastore {
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     private void head(String path, List<Map.Entry<String, String>> arguments, StackMobOptions options, StackMobRawCallback callback) {
-        new StackMobRequestWithoutPayload(this.executor,
-                this.session,
-                HttpVerbWithoutPayload.HEAD,
-                options,
-                arguments,
-                path,
-                callback,
-                this.redirectedCallback).setUrlFormat(this.host).sendRequest();
+        StackMobCache cache = this.cache;
+        if(cache != null && cache.isCacheable(path)) {
+            String key = cacheKey(HttpVerbWithoutPayload.HEAD, path, arguments, options);
+            if(cache.answer(key, callback, this.executor)) {
+                recordCount(StackMobMetricsRegistry.CACHE_HITS, path);
+                return;
+            }
+            callback = cache.storing(key, path, options.getHeaders(), callback);
+        }
+        sendRead(HttpVerbWithoutPayload.HEAD, path, arguments, options, callback);
     }
 
     /**
@@ -239,7 +418,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        requestObject,
                                        path,
-                                       callback,
+                                       invalidateCache(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -258,7 +437,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        requestObject,
                                        path,
-                                       callback,
+                                       invalidateCache(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -276,7 +455,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        body,
                                        path,
-                                       callback,
+                                       invalidateCache(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -295,7 +474,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        body,
                                        path,
-                                       callback,
+                                       invalidateCache(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -313,7 +492,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        requestObjects,
                                        path,
-                                       callback,
+                                       invalidateCache(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -333,7 +512,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        relatedObject,
                                        String.format("%s/%s/%s", path, primaryId, relatedField),
-                                       callback,
+                                       invalidateCache(null, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -353,7 +532,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        relatedObject,
                                        String.format("%s/%s/%s", path, primaryId, relatedField),
-                                       callback,
+                                       invalidateCache(null, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -385,7 +564,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        requestObject,
                                        path + "/" + id,
-                                       callback,
+                                       invalidateCache(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -404,7 +583,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        body,
                                        path + "/" + id,
-                                       callback,
+                                       invalidateCache(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -422,7 +601,7 @@ public class StackMobDatastore {
                                            Object requestObject,
                                            List<String> counterFields,
                                            StackMobRawCallback callback) {
-        JsonObject obj = new Gson().toJsonTree(requestObject).getAsJsonObject();
+        JsonObject obj = gson.toJsonTree(requestObject).getAsJsonObject();
         for(Map.Entry<String, JsonElement> field : new HashSet<Map.Entry<String, JsonElement>>(obj.entrySet())) {
             if(counterFields.contains(field.getKey())) {
                 obj.remove(field.getKey());
@@ -471,7 +650,7 @@ public class StackMobDatastore {
                                        StackMobRequest.EmptyParams,
                                        relatedIds,
                                        String.format("%s/%s/%s", path, primaryId, relatedField),
-                                       callback,
+                                       invalidateCache(path, callback),
                                        this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -487,7 +666,7 @@ public class StackMobDatastore {
                 StackMobOptions.none(),
                 StackMobRequest.EmptyParams,
                 path,
-                callback,
+                invalidateCache(path, callback),
                 this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -534,7 +713,7 @@ public class StackMobDatastore {
                                           StackMobOptions.headers(headers),
                                           StackMobRequest.EmptyParams,
                                           String.format("%s/%s/%s/%s", path, primaryId, field, ids.toString()),
-                                          callback,
+                                          invalidateCache(cascadeDeletes ? null : path, callback),
                                           this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -564,7 +743,7 @@ public class StackMobDatastore {
                                           StackMobOptions.headers(headers),
                                           StackMobRequest.EmptyParams,
                                           String.format("%s/%s/%s/%s", path, primaryId, field, idToDelete),
-                                          callback,
+                                          invalidateCache(cascadeDelete ? null : path, callback),
                                           this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -585,7 +764,7 @@ public class StackMobDatastore {
                 StackMobOptions.none(),
                 query.getArguments(),
                 query.getObjectName(),
-                callback,
+                invalidateCache(query.getObjectName(), callback),
                 this.redirectedCallback).setUrlFormat(this.host).sendRequest();
     }
 
@@ -599,42 +778,85 @@ public class StackMobDatastore {
     }
 
     /**
-     * retrieve the number of objects for a query on the StackMob platform
+     * retrieve the number of objects for a query on the StackMob platform. The count is read from the Content-Range
+     * of a head request where the server supports it, otherwise from a get of the first object. A schema small enough
+     * that its head had no total is counted with the get straight away until it grows. Counts are cached
+     * when a {@link StackMobCache} is set, see {@link StackMobCache#withCountTTL(long, java.util.concurrent.TimeUnit)}
      * @param query the query to send
      * @param callback callback to be called when the server returns. may execute in a separate thread
      */
     public void count(StackMobQuery query, StackMobRawCallback callback) {
-        final StackMobRawCallback userCallback = callback;
-        get(query.isInRange(0, 0), new StackMobRawCallback() {
-            @Override
-            public void unsent(StackMobException e) {
-                userCallback.unsent(e);
+        StackMobQuery countQuery = query.copy().isInRange(0, 0);
+        final String path = "/" + countQuery.getObjectName();
+        List<Map.Entry<String, String>> arguments = countQuery.getArguments();
+        StackMobOptions options = StackMobOptions.headers(countQuery.getHeaders());
+        String countKey = "COUNT " + InFlightRequests.key(this.host, path, arguments, options) + "\n" + session.getLoginIdentity();
+        StackMobCache cache = this.cache;
+        String cacheKey = null;
+        if(cache != null && cache.isCountCacheable(path)) {
+            cacheKey = countKey;
+            if(cache.answer(cacheKey, callback, this.executor)) {
+                recordCount(StackMobMetricsRegistry.CACHE_HITS, path);
+                return;
             }
-
-            @Override
-            public void temporaryPasswordResetRequired(StackMobException e) {
-                userCallback.temporaryPasswordResetRequired(e);
+        }
+        if(coalesceGets) {
+            callback = inFlightGets.join(countKey, path, options, callback, session.getLogger());
+            // the same count is already on its way
+            if(callback == null) {
+                recordCount(StackMobMetricsRegistry.COALESCED, path);
+                return;
             }
+        }
+        if(cacheKey != null) callback = cache.storingCount(cacheKey, path, callback);
+        if(countWithHead && !pathsCountedByGet.contains(path)) {
+            headCount(path, arguments, options, callback);
+        } else if(countWithHead) {
+            sendCount(HttpVerbWithoutPayload.GET, path, arguments, options, new CountingCallback(new ForwardingCallback(callback) {
+                @Override
+                public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+                    // a total means the schema has outgrown one page, so a head would give it too
+                    if(getTotalNumberOfItemsFromContentRange(responseHeaders) >= 0) pathsCountedByGet.remove(path);
+                    super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+                }
+            }));
+        } else {
+            sendCount(HttpVerbWithoutPayload.GET, path, arguments, options, new CountingCallback(callback));
+        }
+    }
 
+    private void headCount(final String path, final List<Map.Entry<String, String>> arguments, final StackMobOptions options, final StackMobRawCallback callback) {
+        sendCount(HttpVerbWithoutPayload.HEAD, path, arguments, options, new ForwardingCallback(callback) {
             @Override
             public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
-                if(Http.isSuccess(responseStatusCode)) {
+                if(responseStatusCode == METHOD_NOT_ALLOWED || responseStatusCode == NOT_IMPLEMENTED) {
+                    countWithHead = false;
+                } else if(!Http.isSuccess(responseStatusCode)) {
+                    super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+                    return;
+                } else {
                     long count = getTotalNumberOfItemsFromContentRange(responseHeaders);
-                    if (count < 0) {
-                        try { // No header means all available items were returned, so count them (0 or 1)
-                            count = new JsonParser().parse(new String(responseBody)).getAsJsonArray().size();
-                        } catch(Exception ignore) {}
+                    if(count >= 0) {
+                        super.done(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, String.valueOf(count).getBytes());
+                        return;
                     }
-                    responseBody = String.valueOf(count).getBytes();
+                    pathsCountedByGet.add(path);
                 }
-                userCallback.setDone(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
-            }
-
-            @Override
-            public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
-                userCallback.circularRedirect(originalUrl, redirectHeaders, redirectBody, newURL);
+                // the head didn't say, so the objects have to be counted
+                sendCount(HttpVerbWithoutPayload.GET, path, arguments, options, new CountingCallback(callback));
             }
         });
     }
 
+    private void sendCount(HttpVerbWithoutPayload verb, String path, List<Map.Entry<String, String>> arguments, StackMobOptions options, StackMobRawCallback callback) {
+        new StackMobRequestWithoutPayload(this.executor,
+                this.session,
+                verb,
+                options,
+                arguments,
+                path,
+                callback,
+                this.redirectedCallback).setUrlFormat(this.host).sendRequest();
+    }
+
 }
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.api;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ready made execution strategies for the {@link StackMob} constructor that takes an {@link ExecutorService}. The
+ * executor runs each request's network call (or, with an asynchronous transport, just its response handling) and
+ * the callback afterwards. With an asynchronous transport, response handling never runs on the transport's I/O
+ * thread: whatever the executor rejects or would run on the calling thread goes to a separate callback thread instead.
+ *
+ * <pre>
+ * {@code
+ * // at most 8 threads, at most 100 requests waiting, the caller handles anything beyond that itself
+ * ExecutorService executor = StackMobExecutors.bounded(8, 100);
+ * }
+ * </pre>
+ */
+public final class StackMobExecutors {
+
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 60;
+
+    private StackMobExecutors() { }
+
+    /**
+     * the default strategy: a new thread for every request when none are free, reused while idle. Simple, but a
+     * burst of requests turns into a burst of threads
+     * @return a cached thread pool
+     */
+    public static ExecutorService cached() {
+        return Executors.newCachedThreadPool(new NamedThreadFactory());
+    }
+
+    /**
+     * a fixed number of threads with a limited queue. Once the queue is full the thread sending the request runs
+     * it instead, which slows callers down rather than dropping work. With an asynchronous transport the
+     * response handling it can't queue runs on a separate callback thread rather than the transport's I/O thread
+     * @param threads the maximum number of threads
+     * @param queueCapacity the maximum number of requests waiting for a thread
+     * @return a bounded pool
+     */
+    public static ExecutorService bounded(int threads, int queueCapacity) {
+        return bounded(threads, queueCapacity, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * a fixed number of threads with a limited queue and your choice of what happens when it's full. With
+     * {@link ThreadPoolExecutor.AbortPolicy} requests that don't fit fail immediately via
+     * {@link com.stackmob.sdk.callback.StackMobRawCallback#unsent(com.stackmob.sdk.exception.StackMobException)}
+     * @param threads the maximum number of threads. Idle threads exit after a minute
+     * @param queueCapacity the maximum number of requests waiting for a thread
+     * @param rejectionPolicy what to do with a request once the queue is full
+     * @return a bounded pool
+     */
+    public static ExecutorService bounded(int threads, int queueCapacity, RejectedExecutionHandler rejectionPolicy) {
+        if(threads < 1) throw new IllegalArgumentException("At least one thread is required");
+        if(queueCapacity < 1) throw new IllegalArgumentException("The queue must hold at least one request");
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, IDLE_THREAD_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueCapacity), new NamedThreadFactory(), rejectionPolicy);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return whether this runtime supports virtual threads, and so {@link #virtualThreads()}
+     */
+    public static boolean supportsVirtualThreads() {
+        return virtualThreadFactory() != null;
+    }
+
+    /**
+     * a new virtual thread for every request, which costs next to nothing while it waits on the network. Virtual
+     * threads need Java 21 or later; elsewhere, including Android, this falls back to {@link #cached()}
+     * @return a virtual thread per task executor if possible
+     */
+    public static ExecutorService virtualThreads() {
+        Method factory = virtualThreadFactory();
+        if(factory != null) {
+            try {
+                return (ExecutorService) factory.invoke(null);
+            } catch(Exception e) {
+                // fall through to the default
+            }
+        }
+        return cached();
+    }
+
+    /**
+     * run everything on the thread that sends the request. Calls don't return until the callback has run, so
+     * this suits command line tools and tests rather than UI threads. It isn't meant for an asynchronous transport,
+     * whose responses would otherwise be handled on its I/O thread, so there they're handled on a callback thread
+     * @return an executor that runs tasks immediately on the calling thread
+     */
+    public static ExecutorService callerRuns() {
+        return new CallerRunsExecutorService();
+    }
+
+    private static Method virtualThreadFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch(NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * a single daemon thread for timed work such as flushing batches. Tasks should be short and hand anything slow
+     * off to another executor
+     * @return a scheduler that won't keep the jvm alive
+     */
+    public static ScheduledExecutorService timer() {
+        return Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory(true));
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private static final AtomicInteger poolNumber = new AtomicInteger(1);
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String prefix = "StackMob-" + poolNumber.getAndIncrement() + "-";
+        private final boolean daemon;
+
+        NamedThreadFactory() {
+            this(false);
+        }
+
+        NamedThreadFactory(boolean daemon) {
+            this.daemon = daemon;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(daemon);
+            return t;
+        }
+    }
+
+    private static class CallerRunsExecutorService extends AbstractExecutorService {
+        private volatile boolean shutdown = false;
+
+        @Override
+        public void execute(Runnable command) {
+            if(shutdown) throw new RejectedExecutionException("Executor has been shut down");
+            command.run();
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return shutdown;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.net.HttpVerb;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cuts the time spent waiting on the occasional slow read. When a get or head from the datastore hasn't been answered
+ * after a while, the same request is sent again and whichever response comes back first is the one the callback
+ * gets; the other is thrown away. Hedging is off unless you turn it on:
+ *
+ * <pre>
+ * {@code
+ * stackmob.getDatastore().setHedgePolicy(new StackMobHedgePolicy().withPercentile(0.95, 20, TimeUnit.MILLISECONDS)
+ *                                                                 .withMaxHedgeRatio(0.05));
+ * }
+ * </pre>
+ *
+ * By default the wait is the 95th percentile of recent response times for the schema being read, so about one read
+ * in twenty is hedged, and nothing is hedged until enough responses have been seen. A fixed wait can be set instead
+ * with {@link #withDelay(long, java.util.concurrent.TimeUnit)}. Either way hedges are limited to a fraction of all
+ * reads, so a slow server doesn't get twice the traffic
+ */
+public class StackMobHedgePolicy {
+
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final long DEFAULT_MIN_DELAY_MILLIS = 10;
+    public static final double DEFAULT_MAX_HEDGE_RATIO = 0.1;
+
+    static final int SAMPLES = 100;
+    static final int MIN_SAMPLES = 20;
+    private static final double MAX_BALANCE = 10;
+
+    private volatile long fixedDelayNanos = -1;
+    private volatile double percentile = DEFAULT_PERCENTILE;
+    private volatile long minDelayNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MIN_DELAY_MILLIS);
+    private final ConcurrentMap<String, Latencies> latencies = new ConcurrentHashMap<String, Latencies>();
+    private final AtomicLong hedged = new AtomicLong();
+    private volatile ScheduledExecutorService scheduler;
+
+    // guarded by this
+    private double maxHedgeRatio = DEFAULT_MAX_HEDGE_RATIO;
+    private double balance = 0;
+
+    /**
+     * create a policy with its own timer thread, started the first time a read is sent
+     */
+    public StackMobHedgePolicy() { }
+
+    /**
+     * create a policy that waits to hedge on an existing scheduler
+     * @param scheduler sends the hedges
+     */
+    public StackMobHedgePolicy(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * hedge any read that hasn't been answered after a fixed time
+     * @param delay how long to wait before sending the same read again
+     * @param unit the unit of the delay
+     * @return the policy
+     */
+    public StackMobHedgePolicy withDelay(long delay, TimeUnit unit) {
+        if(delay < 0) throw new IllegalArgumentException("The delay can't be negative");
+        this.fixedDelayNanos = unit.toNanos(delay);
+        return this;
+    }
+
+    /**
+     * hedge reads that take longer than most recent reads of the same schema did. This is the default
+     * @param percentile the fraction of recent reads that have to have been faster, 0.95 by default
+     * @param minDelay never hedge sooner than this, 10ms by default
+     * @param unit the unit of the minimum delay
+     * @return the policy
+     */
+    public StackMobHedgePolicy withPercentile(double percentile, long minDelay, TimeUnit unit) {
+        if(percentile <= 0 || percentile >= 1 || minDelay < 0) throw new IllegalArgumentException("The percentile must be between 0 and 1 and the delay can't be negative");
+        this.percentile = percentile;
+        this.minDelayNanos = unit.toNanos(minDelay);
+        this.fixedDelayNanos = -1;
+        return this;
+    }
+
+    /**
+     * @param maxHedgeRatio the most hedges to send for each read, 0.1 by default
+     * @return the policy
+     */
+    public synchronized StackMobHedgePolicy withMaxHedgeRatio(double maxHedgeRatio) {
+        if(maxHedgeRatio < 0 || maxHedgeRatio > 1) throw new IllegalArgumentException("The ratio must be between 0 and 1");
+        this.maxHedgeRatio = maxHedgeRatio;
+        return this;
+    }
+
+    /**
+     * @return the number of hedges sent
+     */
+    public long getHedgedCount() {
+        return hedged.get();
+    }
+
+    /**
+     * the reads of a schema are timed together, since they're likely to take about as long as each other
+     */
+    static String endpoint(HttpVerb verb, String path) {
+        String schema = path == null ? "" : path;
+        while(schema.startsWith("/")) schema = schema.substring(1);
+        int slash = schema.indexOf('/');
+        if(slash >= 0) schema = schema.substring(0, slash);
+        return verb + " " + schema;
+    }
+
+    /**
+     * @return how long to wait before hedging a read, or -1 not to hedge it
+     */
+    long delayNanos(String endpoint) {
+        long fixed = fixedDelayNanos;
+        if(fixed >= 0) return fixed;
+        Latencies recent = latencies.get(endpoint);
+        long observed = recent == null ? -1 : recent.percentile(percentile);
+        return observed < 0 ? -1 : Math.max(observed, minDelayNanos);
+    }
+
+    void record(String endpoint, long latencyNanos) {
+        Latencies recent = latencies.get(endpoint);
+        if(recent == null) {
+            Latencies created = new Latencies();
+            recent = latencies.putIfAbsent(endpoint, created);
+            if(recent == null) recent = created;
+        }
+        recent.add(latencyNanos);
+    }
+
+    /**
+     * send a read, and send it again if it takes too long
+     * @param verb the read's verb
+     * @param path the path being read
+     * @param callback the read's callback
+     * @param sender sends one copy of the read with the callback it's given
+     */
+    void send(HttpVerb verb, String path, StackMobRawCallback callback, final Sender sender) {
+        final String endpoint = endpoint(verb, path);
+        synchronized(this) {
+            balance = Math.min(balance + maxHedgeRatio, MAX_BALANCE);
+        }
+        final HedgedCallback.Race race = new HedgedCallback.Race(callback);
+        race.launch();
+        sender.send(new HedgedCallback(this, endpoint, race));
+        long delay = delayNanos(endpoint);
+        if(delay < 0) return;
+        Runnable hedge = new Runnable() {
+            @Override
+            public void run() {
+                if(race.isOver() || !tryAcquire() || !race.launch()) return;
+                hedged.incrementAndGet();
+                sender.send(new HedgedCallback(StackMobHedgePolicy.this, endpoint, race));
+            }
+        };
+        try {
+            getScheduler().schedule(hedge, delay, TimeUnit.NANOSECONDS);
+        } catch(RejectedExecutionException ignore) {
+            // the read is already on its way, it just won't be hedged
+        }
+    }
+
+    private synchronized boolean tryAcquire() {
+        if(balance < 1) return false;
+        balance -= 1;
+        return true;
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService current = scheduler;
+        if(current == null) {
+            synchronized(this) {
+                if(scheduler == null) scheduler = StackMobExecutors.timer();
+                current = scheduler;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * sends one copy of a read
+     */
+    interface Sender {
+        void send(StackMobRawCallback callback);
+    }
+
+    /**
+     * the most recent response times for an endpoint
+     */
+    private static class Latencies {
+        // all guarded by this
+        private final long[] samples = new long[SAMPLES];
+        private int next = 0;
+        private int count = 0;
+
+        synchronized void add(long latencyNanos) {
+            samples[next] = latencyNanos;
+            next = (next + 1) % samples.length;
+            if(count < samples.length) count++;
+        }
+
+        /**
+         * @return the latency the given fraction of recent responses were faster than, or -1 if too few have been seen
+         */
+        long percentile(double fraction) {
+            long[] sorted;
+            synchronized(this) {
+                if(count < MIN_SAMPLES) return -1;
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+        }
+    }
+}
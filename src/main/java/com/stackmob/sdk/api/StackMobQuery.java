@@ -177,6 +177,21 @@ public class StackMobQuery {
         return this;
     }
 
+    /**
+     * copy this query, so the copy can be changed, for example given a different range, without changing this one
+     * @return a new query with the same schema and constraints as this one
+     */
+    public StackMobQuery copy() {
+        StackMobQuery copy = new StackMobQuery(objectName);
+        copy.headers.putAll(headers);
+        copy.args.putAll(args);
+        copy.orCount = orCount;
+        copy.andCount = andCount;
+        copy.isAnd = isAnd;
+        copy.isOr = isOr;
+        return copy;
+    }
+
     private Map<String,String> prependString(String prefix, Map<String, String> args) {
         Map<String, String> newMap = new HashMap<String, String>();
         for(String arg : args.keySet()) {
@@ -24,9 +24,20 @@ import java.util.HashMap;
 import java.util.Map;
 
 import com.stackmob.sdk.api.StackMob.OAuthVersion;
+import com.stackmob.sdk.net.StackMobApi;
+import com.stackmob.sdk.net.StackMobHttpTransport;
+import com.stackmob.sdk.net.StackMobPooledHttpTransport;
+import com.stackmob.sdk.request.StackMobCircuitBreaker;
+import com.stackmob.sdk.request.StackMobRequestLimiter;
+import com.stackmob.sdk.request.StackMobRetryPolicy;
+import com.stackmob.sdk.util.Pair;
 import com.stackmob.sdk.util.StackMobCookieManager;
 import com.stackmob.sdk.util.StackMobLogger;
+import com.stackmob.sdk.util.StackMobMetricsRegistry;
+import com.stackmob.sdk.util.StackMobTracer;
 import org.apache.commons.codec.binary.Base64;
+import org.scribe.builder.ServiceBuilder;
+import org.scribe.oauth.OAuthService;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -53,8 +64,17 @@ public class StackMobSession {
     private Boolean httpsOverride = null;
     private StackMobCookieManager cookieManager = new StackMobCookieManager();
     private StackMobLogger logger = new StackMobLogger();
+    private StackMobHttpTransport httpTransport = new StackMobPooledHttpTransport();
+    private StackMobRetryPolicy retryPolicy = new StackMobRetryPolicy();
+    private StackMobRequestLimiter requestLimiter = new StackMobRequestLimiter();
+    private StackMobCircuitBreaker circuitBreaker = new StackMobCircuitBreaker();
+    private volatile StackMobMetricsRegistry metrics;
+    private volatile StackMobTracer tracer;
     protected String userAgentName = "Java Client";
     protected Map<String, String> cachedRedirects = new HashMap<String, String>();
+    private volatile OAuthService oAuthService;
+    private volatile Pair<String, String> renderedUserAgent;
+    private String acceptHeader;
 
     public StackMobSession(OAuthVersion oauthVersion, int apiVersionNumber, String key, String secret, String userObjectName, String userIdName) {
         this.oauthVersion = oauthVersion;
@@ -63,6 +83,7 @@ public class StackMobSession {
         this.userObjectName = userObjectName;
         this.userIdName = userIdName;
         this.apiVersionNumber = apiVersionNumber;
+        this.acceptHeader = renderAcceptHeader(apiVersionNumber);
     }
 
     public StackMobSession(StackMobSession that) {
@@ -78,7 +99,15 @@ public class StackMobSession {
         this.oauth2TokenExpiration = that.oauth2TokenExpiration;
         this.cookieManager = that.cookieManager;
         this.logger = that.logger;
+        this.httpTransport = that.httpTransport;
+        this.retryPolicy = that.retryPolicy;
+        this.requestLimiter = that.requestLimiter;
+        this.circuitBreaker = that.circuitBreaker;
+        this.metrics = that.metrics;
+        this.tracer = that.tracer;
         this.userAgentName = that.userAgentName;
+        this.oAuthService = that.oAuthService;
+        this.acceptHeader = that.acceptHeader;
     }
 
     public String getKey() {
@@ -101,22 +130,48 @@ public class StackMobSession {
         return apiVersionNumber;
     }
 
+    private static String renderAcceptHeader(int apiVersionNumber) {
+        return "application/vnd.stackmob+json; version=" + apiVersionNumber;
+    }
+
+    /**
+     * @return the default Accept header for this session's api version
+     */
+    public String getAcceptHeader() {
+        return acceptHeader;
+    }
+
+    /**
+     * get the OAuth 1.0 signer for this session's key and secret. It's built the first time it's needed and shared by
+     * every request made through the session
+     * @return the OAuth service
+     */
+    public OAuthService getOAuthService() {
+        OAuthService service = oAuthService;
+        if(service == null) {
+            // building it twice in a race is harmless, the service is stateless
+            service = new ServiceBuilder().provider(StackMobApi.class).apiKey(key).apiSecret(secret).build();
+            oAuthService = service;
+        }
+        return service;
+    }
+
     protected long getLocalTime() {
         return new Date().getTime() / 1000;
     }
 
     public long getServerTime() {
-        if(getServerTimeDiff() != 0) {
+        if(getServerTimeDiff() != 0 && logger.isDebugEnabled()) {
             logger.logDebug("Adjusting time for server by %d seconds", getServerTimeDiff());
         }
         return getServerTimeDiff() + getLocalTime();
     }
 
     public void recordServerTimeDiff(String timeHeader) {
-        logger.logDebug("Got a time header of: %s", timeHeader);
+        if(logger.isDebugEnabled()) logger.logDebug("Got a time header of: %s", timeHeader);
         try {
             long serverTime = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz").parse(timeHeader).getTime() / 1000;
-            logger.logDebug("Got a server time of %d versus local time %d", serverTime, getLocalTime());
+            if(logger.isDebugEnabled()) logger.logDebug("Got a server time of %d versus local time %d", serverTime, getLocalTime());
             saveServerTimeDiff(serverTime - getLocalTime());
         } catch(Exception ignore) { }
     }
@@ -137,6 +192,14 @@ public class StackMobSession {
         return lastUserLoginName;
     }
 
+    /**
+     * @return something that changes whenever a different user logs in or out, so responses for one user aren't
+     *         reused for another
+     */
+    String getLoginIdentity() {
+        return isOAuth2() ? oauth2Token : lastUserLoginName;
+    }
+
     public void setEnableHTTPS(boolean enableHTTPS) {
         this.httpsOverride = enableHTTPS;
     }
@@ -224,8 +287,118 @@ public class StackMobSession {
         return logger;
     }
 
+    /**
+     * Set the transport used to send requests. The default, {@link StackMobPooledHttpTransport}, keeps a pool
+     * of keep-alive connections to each host
+     * @param transport the transport to use
+     */
+    public void setHttpTransport(StackMobHttpTransport transport) {
+        this.httpTransport = transport;
+    }
+
+    /**
+     * Access the current transport
+     * @return the transport requests are sent with
+     */
+    public StackMobHttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Set how failed requests are retried. The default waits with jittered exponential backoff on a timer thread,
+     * and retries at most one request in five once a few retries a second have been made
+     * @param retryPolicy the policy to use
+     */
+    public void setRetryPolicy(StackMobRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    /**
+     * Access the current retry policy
+     * @return the policy failed requests are retried with
+     */
+    public StackMobRetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Set how many requests can be sent to each host at once. The default starts at 20 and adapts to how the host
+     * responds, queueing up to 1000 requests beyond that
+     * @param requestLimiter the limiter to use, or null to send every request straight away
+     */
+    public void setRequestLimiter(StackMobRequestLimiter requestLimiter) {
+        this.requestLimiter = requestLimiter;
+    }
+
+    /**
+     * Access the current request limiter
+     * @return the limiter requests wait on, or null if there isn't one
+     */
+    public StackMobRequestLimiter getRequestLimiter() {
+        return requestLimiter;
+    }
+
+    /**
+     * Set when to stop sending requests to an endpoint that's failing. By default an endpoint is avoided for 30s
+     * once half of at least 20 recent requests to it have failed
+     * @param circuitBreaker the breaker to use, or null to always send requests
+     */
+    public void setCircuitBreaker(StackMobCircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Access the current circuit breaker
+     * @return the breaker requests are checked against, or null if there isn't one
+     */
+    public StackMobCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Measure requests as they go by: latencies, status codes, sizes, retries, redirects and so on. Nothing is
+     * measured by default
+     * @param metrics where to send measurements, such as a {@link com.stackmob.sdk.util.StackMobInMemoryMetrics},
+     *                or null to stop measuring
+     */
+    public void setMetrics(StackMobMetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Access the current metrics registry
+     * @return where measurements are sent, or null if nothing is being measured
+     */
+    public StackMobMetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Follow each request from being sent until its callback returns, timing the phases in between. Nothing is
+     * traced by default
+     * @param tracer what to send each finished request's {@link com.stackmob.sdk.util.StackMobSpan} to, or null to
+     *               stop tracing
+     */
+    public void setTracer(StackMobTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Access the current tracer
+     * @return where finished spans are sent, or null if requests aren't being traced
+     */
+    public StackMobTracer getTracer() {
+        return tracer;
+    }
+
     public String getUserAgent() {
-        return String.format("StackMob (%s; %s)", userAgentName, StackMob.getVersion());
+        String name = userAgentName;
+        Pair<String, String> rendered = renderedUserAgent;
+        if(rendered == null || !rendered.getKey().equals(name)) {
+            rendered = new Pair<String, String>(name, String.format("StackMob (%s; %s)", name, StackMob.getVersion()));
+            renderedUserAgent = rendered;
+        }
+        return rendered.getValue();
     }
 
     public String generateMacToken(String method, String uri, String host, String port) {
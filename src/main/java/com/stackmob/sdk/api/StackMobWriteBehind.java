@@ -0,0 +1,497 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.stackmob.sdk.callback.StackMobRawCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.net.HttpVerbWithPayload;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import com.stackmob.sdk.util.Http;
+import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.StackMobLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets saves and deletes return as soon as they've been written to a journal on local disk, and sends them to the
+ * datastore in the background. Writing behind is off unless you turn it on:
+ *
+ * <pre>
+ * {@code
+ * StackMobDatastore datastore = stackmob.getDatastore();
+ * datastore.setWriteBehind(new StackMobWriteBehind(datastore, new File(dataDir, "stackmob.journal")));
+ * }
+ * </pre>
+ *
+ * Once set, {@link com.stackmob.sdk.model.StackMobModel#save(com.stackmob.sdk.callback.StackMobCallback)} and
+ * {@link com.stackmob.sdk.model.StackMobModel#destroy(com.stackmob.sdk.callback.StackMobCallback)} go through the
+ * journal whenever they're called without options. Their callbacks hear back with a 202 as soon as the write is in
+ * the journal, and the saved object's own json as the response body.
+ * <p>
+ * Writes are sent in the order they were made. Consecutive saves to the same schema go out together as one POST,
+ * as long as no object appears twice. If the datastore can't be reached or is unavailable the journal is retried
+ * with a growing delay; writes the datastore rejects outright are logged and dropped. Anything that hasn't been
+ * sent when the process stops is sent the next time the same journal file is opened. Since a write may be sent
+ * again after a crash, writes are delivered at least once. Reads don't see a write until it's been sent
+ */
+public class StackMobWriteBehind {
+
+    public static final int DEFAULT_JOURNAL_CAPACITY = 4 * 1024 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+
+    private static final String SAVE = "save";
+    private static final String DELETE = "delete";
+
+    private enum Outcome { SENT, REJECTED, RETRY }
+
+    private final StackMobDatastore datastore;
+    private final WriteBehindJournal journal;
+    private final ScheduledExecutorService scheduler = StackMobExecutors.timer();
+    private volatile long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+    private final Object lock = new Object();
+    private boolean flushing = false;
+    private boolean closed = false;
+    private int consecutiveFailures = 0;
+    private int sendAlone = 0;
+    private ScheduledFuture<?> nextFlush;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            startFlush();
+        }
+    };
+
+    /**
+     * open a journal and start sending anything left in it from last time
+     * @param datastore the datastore to send writes to
+     * @param journal the file to keep the journal in. It's created if it doesn't exist
+     * @throws IOException if the journal can't be opened
+     */
+    public StackMobWriteBehind(StackMobDatastore datastore, File journal) throws IOException {
+        this(datastore, journal, DEFAULT_JOURNAL_CAPACITY);
+    }
+
+    /**
+     * open a journal of a given size and start sending anything left in it from last time
+     * @param datastore the datastore to send writes to
+     * @param journal the file to keep the journal in. It's created if it doesn't exist
+     * @param capacity the size of the journal in bytes. Defaults to 4MB. Writes that don't fit are sent directly
+     * @throws IOException if the journal can't be opened
+     */
+    public StackMobWriteBehind(StackMobDatastore datastore, File journal, int capacity) throws IOException {
+        this.datastore = datastore;
+        this.journal = new WriteBehindJournal(journal, capacity);
+        if(this.journal.size() > 0) scheduleFlush(0);
+    }
+
+    /**
+     * set how often the journal is sent while there's anything in it. Defaults to one second
+     * @param interval the interval
+     * @param unit the unit of the interval
+     * @return the write-behind
+     */
+    public StackMobWriteBehind withFlushInterval(long interval, TimeUnit unit) {
+        this.flushIntervalMillis = unit.toMillis(interval);
+        return this;
+    }
+
+    /**
+     * set the most saves sent in one request. Defaults to 50. Reaching it also starts sending right away
+     * @param maxBatchSize the maximum batch size
+     * @return the write-behind
+     */
+    public StackMobWriteBehind withMaxBatchSize(int maxBatchSize) {
+        if(maxBatchSize < 1) throw new IllegalArgumentException("The maximum batch size must be at least 1");
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    /**
+     * force every write to disk before its callback hears back. This makes the journal survive the machine losing
+     * power as well as the process dying, at the cost of a disk sync per write. Off by default
+     * @param sync whether to sync each write
+     * @return the write-behind
+     */
+    public StackMobWriteBehind withSyncWrites(boolean sync) {
+        journal.setSync(sync);
+        return this;
+    }
+
+    /**
+     * @return the number of writes in the journal that haven't been sent yet
+     */
+    public int getPendingCount() {
+        return journal.size();
+    }
+
+    /**
+     * journal a save of one object
+     * @param schema the schema to post to
+     * @param idField the name of the schema's id field
+     * @param object the object, which should have its id set
+     * @param headers headers for the request
+     * @param callback hears back once the save is in the journal
+     */
+    public void save(String schema, String idField, JsonObject object, List<Map.Entry<String, String>> headers, StackMobRawCallback callback) {
+        JsonElement id = object.get(idField);
+        JsonObject record = new JsonObject();
+        record.addProperty("op", SAVE);
+        record.addProperty("schema", schema);
+        record.addProperty("idField", idField);
+        if(id != null && id.isJsonPrimitive()) record.addProperty("id", id.getAsString());
+        record.add("body", object);
+        JsonArray headerArray = new JsonArray();
+        for(Map.Entry<String, String> header : headers) {
+            JsonArray pair = new JsonArray();
+            pair.add(new JsonPrimitive(header.getKey()));
+            pair.add(new JsonPrimitive(header.getValue()));
+            headerArray.add(pair);
+        }
+        record.add("headers", headerArray);
+        String body = object.toString();
+        if(append(record)) {
+            callback.setDone(HttpVerbWithPayload.POST, schema, headers, body, 202, new ArrayList<Map.Entry<String, String>>(), bytes(body));
+        } else {
+            datastore.post(schema, body, StackMobOptions.headers(headers), callback);
+        }
+    }
+
+    /**
+     * journal a delete of one object
+     * @param schema the schema to delete from
+     * @param id the id of the object
+     * @param callback hears back once the delete is in the journal
+     */
+    public void delete(String schema, String id, StackMobRawCallback callback) {
+        JsonObject record = new JsonObject();
+        record.addProperty("op", DELETE);
+        record.addProperty("schema", schema);
+        record.addProperty("id", id);
+        if(append(record)) {
+            callback.setDone(HttpVerbWithoutPayload.DELETE, schema + "/" + id, new ArrayList<Map.Entry<String, String>>(), "", 202, new ArrayList<Map.Entry<String, String>>(), new byte[0]);
+        } else {
+            datastore.delete(schema, id, callback);
+        }
+    }
+
+    /**
+     * start sending the journal now rather than waiting for the next interval
+     */
+    public void flush() {
+        scheduleFlush(0);
+    }
+
+    /**
+     * stop sending and close the journal. Anything still in it is sent the next time it's opened
+     */
+    public void shutdown() {
+        synchronized(lock) {
+            if(closed) return;
+            closed = true;
+            if(nextFlush != null) nextFlush.cancel(false);
+        }
+        scheduler.shutdown();
+        journal.close();
+    }
+
+    private boolean append(JsonObject record) {
+        synchronized(lock) {
+            if(closed) return false;
+        }
+        try {
+            journal.append(bytes(record.toString()));
+        } catch(IOException e) {
+            StackMobLogger logger = datastore.getLogger();
+            if(logger.isWarningEnabled()) logger.logWarning("Sending write directly: %s", e.getMessage());
+            return false;
+        }
+        scheduleFlush(journal.size() >= maxBatchSize ? 0 : flushIntervalMillis);
+        return true;
+    }
+
+    /**
+     * make sure a flush starts within the delay. A flush that's already running picks up everything, and one that's
+     * backing off after a failure isn't hurried
+     */
+    private void scheduleFlush(long delayMillis) {
+        synchronized(lock) {
+            if(closed || flushing) return;
+            if(nextFlush != null && !nextFlush.isDone()) {
+                if(consecutiveFailures > 0 || nextFlush.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) return;
+                nextFlush.cancel(false);
+            }
+            nextFlush = scheduler.schedule(flushTask, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void startFlush() {
+        int batchLimit;
+        synchronized(lock) {
+            if(closed || flushing) return;
+            flushing = true;
+            batchLimit = sendAlone > 0 ? 1 : maxBatchSize;
+        }
+        sendNext(batchLimit);
+    }
+
+    /**
+     * send the next batch from the front of the journal, or finish this flush if it's empty
+     */
+    private void sendNext(int batchLimit) {
+        List<WriteBehindJournal.Record> records = journal.getPending();
+        if(records.isEmpty()) {
+            finishFlush(flushIntervalMillis);
+            return;
+        }
+        List<WriteBehindJournal.Record> batch = new ArrayList<WriteBehindJournal.Record>();
+        List<JsonObject> entries = new ArrayList<JsonObject>();
+        Set<String> ids = new HashSet<String>();
+        for(WriteBehindJournal.Record record : records) {
+            JsonObject entry = decode(record);
+            if(entry == null) {
+                if(batch.isEmpty()) {
+                    // nothing we can do with it, so it mustn't hold up everything behind it
+                    journal.remove(record);
+                    continue;
+                }
+                break;
+            }
+            if(!batch.isEmpty() && !canJoin(entries.get(0), entry, ids)) break;
+            batch.add(record);
+            entries.add(entry);
+            if(entry.has("id")) ids.add(entry.get("id").getAsString());
+            if(DELETE.equals(entry.get("op").getAsString()) || batch.size() >= batchLimit) break;
+        }
+        if(batch.isEmpty()) {
+            finishFlush(flushIntervalMillis);
+            return;
+        }
+        send(batch, entries);
+    }
+
+    private static boolean canJoin(JsonObject first, JsonObject entry, Set<String> ids) {
+        return SAVE.equals(first.get("op").getAsString()) && SAVE.equals(entry.get("op").getAsString()) &&
+               first.get("schema").equals(entry.get("schema")) && first.get("headers").equals(entry.get("headers")) &&
+               !(entry.has("id") && ids.contains(entry.get("id").getAsString()));
+    }
+
+    private JsonObject decode(WriteBehindJournal.Record record) {
+        try {
+            JsonObject entry = new JsonParser().parse(new String(record.payload, "UTF-8")).getAsJsonObject();
+            if(entry.has("op") && entry.has("schema")) return entry;
+        } catch(Exception ignore) { }
+        StackMobLogger logger = datastore.getLogger();
+        if(logger.isErrorEnabled()) logger.logError("Dropping unreadable write-behind journal entry");
+        return null;
+    }
+
+    private void send(List<WriteBehindJournal.Record> batch, List<JsonObject> entries) {
+        JsonObject first = entries.get(0);
+        String schema = first.get("schema").getAsString();
+        FlushCallback callback = new FlushCallback(batch, entries);
+        if(DELETE.equals(first.get("op").getAsString())) {
+            datastore.delete(schema, first.get("id").getAsString(), callback);
+            return;
+        }
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        for(JsonElement header : first.getAsJsonArray("headers")) {
+            JsonArray pair = header.getAsJsonArray();
+            headers.add(new Pair<String, String>(pair.get(0).getAsString(), pair.get(1).getAsString()));
+        }
+        String body;
+        if(entries.size() == 1) {
+            body = first.get("body").toString();
+        } else {
+            JsonArray objects = new JsonArray();
+            for(JsonObject entry : entries) {
+                objects.add(entry.get("body"));
+            }
+            body = objects.toString();
+        }
+        datastore.post(schema, body, StackMobOptions.headers(headers), callback);
+    }
+
+    private void finishFlush(long nextDelayMillis) {
+        synchronized(lock) {
+            flushing = false;
+        }
+        if(journal.size() > 0) scheduleFlush(nextDelayMillis);
+    }
+
+    private void sent(final List<WriteBehindJournal.Record> batch, Outcome outcome) {
+        synchronized(lock) {
+            if(closed) return;
+        }
+        if(outcome == Outcome.RETRY) {
+            int failures;
+            synchronized(lock) {
+                failures = ++consecutiveFailures;
+            }
+            long delay = Math.min(MAX_RETRY_DELAY_MILLIS, flushIntervalMillis << Math.min(failures - 1, 16));
+            finishFlush(Math.max(delay, 1));
+            return;
+        }
+        boolean split = outcome == Outcome.REJECTED && batch.size() > 1;
+        final int nextLimit;
+        synchronized(lock) {
+            consecutiveFailures = 0;
+            if(split) {
+                // one bad object spoils the whole batch, so send every one of them alone to find it
+                sendAlone = batch.size();
+            } else {
+                sendAlone = Math.max(0, sendAlone - batch.size());
+            }
+            nextLimit = sendAlone > 0 ? 1 : maxBatchSize;
+        }
+        if(!split) {
+            for(WriteBehindJournal.Record record : batch) {
+                journal.remove(record);
+            }
+        }
+        // carry on from the scheduler rather than deep inside the callback
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendNext(nextLimit);
+                }
+            });
+        } catch(Exception e) {
+            finishFlush(flushIntervalMillis);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            return s.getBytes();
+        }
+    }
+
+    /**
+     * Decides what to do with a batch once the datastore has answered
+     */
+    private class FlushCallback extends StackMobRawCallback {
+        private final List<WriteBehindJournal.Record> batch;
+        private final List<JsonObject> entries;
+
+        FlushCallback(List<WriteBehindJournal.Record> batch, List<JsonObject> entries) {
+            this.batch = batch;
+            this.entries = entries;
+        }
+
+        /**
+         * a bulk post answers 2xx even when some of the objects weren't saved, so pick those out of the reply and
+         * drop them the way a rejected write is dropped
+         */
+        private void rejectFailed(byte[] responseBody) {
+            JsonObject result;
+            try {
+                JsonElement json = new JsonParser().parse(new String(responseBody, "UTF-8"));
+                if(!json.isJsonObject()) return;
+                result = json.getAsJsonObject();
+            } catch(Exception ignore) {
+                return;
+            }
+            JsonElement idField = entries.get(0).get("idField");
+            Set<String> succeeded = null;
+            if(result.has("succeeded") && result.get("succeeded").isJsonArray()) {
+                succeeded = new HashSet<String>();
+                for(JsonElement id : result.getAsJsonArray("succeeded")) {
+                    if(id.isJsonObject() && idField != null) id = id.getAsJsonObject().get(idField.getAsString());
+                    if(id != null && id.isJsonPrimitive()) succeeded.add(id.getAsString());
+                }
+            }
+            List<JsonElement> failed = new ArrayList<JsonElement>();
+            if(result.has("failed") && result.get("failed").isJsonArray()) {
+                for(JsonElement object : result.getAsJsonArray("failed")) {
+                    failed.add(object);
+                }
+            }
+            StackMobLogger logger = datastore.getLogger();
+            for(JsonObject entry : entries) {
+                boolean saved = entry.has("id") && succeeded != null ? succeeded.contains(entry.get("id").getAsString()) : !failed.contains(entry.get("body"));
+                if(!saved && logger.isErrorEnabled()) {
+                    logger.logError("Write-behind save to %s rejected: %s", entry.get("schema").getAsString(), entry.get("body"));
+                }
+            }
+        }
+
+        private void rejected(String reason) {
+            StackMobLogger logger = datastore.getLogger();
+            if(logger.isErrorEnabled()) logger.logError("Write-behind batch of %d rejected: %s", batch.size(), reason);
+            sent(batch, Outcome.REJECTED);
+        }
+
+        @Override
+        public void unsent(StackMobException e) {
+            // nothing reached the server, so the batch is still good
+            sent(batch, Outcome.RETRY);
+        }
+
+        @Override
+        public void temporaryPasswordResetRequired(StackMobException e) {
+            rejected(e.getMessage());
+        }
+
+        @Override
+        public void done(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders, String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders, byte[] responseBody) {
+            if(responseStatusCode == null || responseStatusCode < 0) {
+                // the server couldn't be reached, which says nothing about the batch itself
+                sent(batch, Outcome.RETRY);
+            } else if(Http.isSuccess(responseStatusCode)) {
+                if(batch.size() > 1 && responseBody != null) rejectFailed(responseBody);
+                sent(batch, Outcome.SENT);
+            } else if(responseStatusCode >= 500 || responseStatusCode == 429 || responseStatusCode == 408) {
+                sent(batch, Outcome.RETRY);
+            } else if(batch.size() > 1) {
+                sent(batch, Outcome.REJECTED);
+            } else {
+                rejected(responseStatusCode + " " + new String(responseBody));
+            }
+        }
+
+        @Override
+        public boolean retry(int afterMilliseconds) {
+            // failed batches stay in the journal and are backed off and resent by the queue
+            return false;
+        }
+
+        @Override
+        public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+            rejected("circular redirect from " + originalUrl + " to " + newURL);
+        }
+    }
+}
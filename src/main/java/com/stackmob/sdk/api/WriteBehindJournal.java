@@ -0,0 +1,228 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal in a memory-mapped file. The file starts with a header holding the offset of the oldest
+ * record that hasn't been flushed yet, followed by records of the form {@code [length][crc32][payload]}. A record
+ * with a zero length, or one whose checksum doesn't match because the process died while writing it, marks the end
+ * of the journal. Records are removed from the front once they've been flushed, and the file is rewound once it's
+ * empty or compacted once the flushed space at the front is larger than what's still pending
+ */
+class WriteBehindJournal {
+
+    private static final int MAGIC = 0x534d4a31; // SMJ1
+    private static final int FLUSHED_OFFSET_POSITION = 4;
+    static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * A record that's been written but not yet flushed
+     */
+    static class Record {
+        private int offset;
+        private final int length;
+        final byte[] payload;
+
+        private Record(int offset, byte[] payload) {
+            this.offset = offset;
+            this.length = RECORD_HEADER_SIZE + payload.length;
+            this.payload = payload;
+        }
+
+        private int end() {
+            return offset + length;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private volatile boolean sync;
+    private final LinkedList<Record> pending = new LinkedList<Record>();
+    private int writeOffset;
+
+    /**
+     * open a journal, recovering any records that weren't flushed before it was last closed
+     * @param journal the file to keep the journal in. It's created if it doesn't exist
+     * @param capacity the size of the file in bytes
+     * @throws IOException if the file can't be opened or mapped
+     */
+    WriteBehindJournal(File journal, int capacity) throws IOException {
+        this.file = new RandomAccessFile(journal, "rw");
+        this.channel = file.getChannel();
+        this.capacity = (int) Math.max(capacity, file.length());
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        if(buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putLong(FLUSHED_OFFSET_POSITION, HEADER_SIZE);
+            buffer.putInt(HEADER_SIZE, 0);
+        }
+        recover();
+    }
+
+    private void recover() {
+        long flushedOffset = buffer.getLong(FLUSHED_OFFSET_POSITION);
+        int offset = flushedOffset < HEADER_SIZE || flushedOffset > capacity ? HEADER_SIZE : (int) flushedOffset;
+        while(offset + RECORD_HEADER_SIZE <= capacity) {
+            int payloadLength = buffer.getInt(offset);
+            if(payloadLength <= 0 || offset + RECORD_HEADER_SIZE + payloadLength > capacity) break;
+            byte[] payload = read(offset + RECORD_HEADER_SIZE, payloadLength);
+            if(checksum(payload) != buffer.getInt(offset + 4)) break; // torn write
+            Record record = new Record(offset, payload);
+            pending.add(record);
+            offset = record.end();
+        }
+        writeOffset = offset;
+        if(pending.isEmpty()) rewind();
+    }
+
+    private byte[] read(int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        byte[] bytes = new byte[length];
+        view.get(bytes);
+        return bytes;
+    }
+
+    private void write(int offset, byte[] bytes) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(bytes);
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @param sync whether to force each change to disk as it's made. Without this records survive the process dying
+     *             but not the machine losing power
+     */
+    void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * @return the records that haven't been flushed, oldest first
+     */
+    synchronized List<Record> getPending() {
+        return new ArrayList<Record>(pending);
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * write a record
+     * @param payload the record's contents
+     * @return the record
+     * @throws IOException if the journal doesn't have room for it
+     */
+    synchronized Record append(byte[] payload) throws IOException {
+        int length = RECORD_HEADER_SIZE + payload.length;
+        if(!fits(length)) compact();
+        if(!fits(length)) throw new IOException("The write-behind journal is full");
+        Record record = new Record(writeOffset, payload);
+        int end = record.end();
+        // The terminator and the payload go in before the length, so a record only counts once it's complete
+        if(end + 4 <= capacity) buffer.putInt(end, 0);
+        write(record.offset + RECORD_HEADER_SIZE, payload);
+        buffer.putInt(record.offset + 4, checksum(payload));
+        buffer.putInt(record.offset, payload.length);
+        if(sync) buffer.force();
+        pending.add(record);
+        writeOffset = end;
+        return record;
+    }
+
+    private boolean fits(int length) {
+        return writeOffset + length <= capacity;
+    }
+
+    /**
+     * drop a record once it's been flushed. Records have to be removed oldest first
+     * @param record the record
+     */
+    synchronized void remove(Record record) {
+        if(pending.peekFirst() != record) throw new IllegalStateException("Journal records must be removed in order");
+        pending.removeFirst();
+        if(pending.isEmpty()) {
+            rewind();
+        } else {
+            buffer.putLong(FLUSHED_OFFSET_POSITION, pending.getFirst().offset);
+        }
+        if(sync) buffer.force();
+    }
+
+    private void rewind() {
+        // Point past everything first, so nothing that's been flushed can come back if we die part way through
+        buffer.putLong(FLUSHED_OFFSET_POSITION, writeOffset);
+        buffer.putInt(HEADER_SIZE, 0);
+        buffer.putLong(FLUSHED_OFFSET_POSITION, HEADER_SIZE);
+        writeOffset = HEADER_SIZE;
+    }
+
+    /**
+     * move pending records to the front of the file. This only happens when the space they move into doesn't overlap
+     * the space they're in, so the old copy is intact until the header points at the new one
+     */
+    private void compact() {
+        if(pending.isEmpty()) {
+            rewind();
+            return;
+        }
+        int from = pending.getFirst().offset;
+        int length = writeOffset - from;
+        // room for the records and the terminator after them
+        if(from - HEADER_SIZE < length + 4) return;
+        write(HEADER_SIZE, read(from, length));
+        buffer.putInt(HEADER_SIZE + length, 0);
+        buffer.putLong(FLUSHED_OFFSET_POSITION, HEADER_SIZE);
+        int shift = from - HEADER_SIZE;
+        for(Record record : pending) {
+            record.offset -= shift;
+        }
+        writeOffset -= shift;
+    }
+
+    /**
+     * write everything out and close the file
+     */
+    synchronized void close() {
+        buffer.force();
+        try {
+            channel.close();
+            file.close();
+        } catch(IOException ignore) { }
+    }
+}
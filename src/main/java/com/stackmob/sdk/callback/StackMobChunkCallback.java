@@ -0,0 +1,71 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.callback;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link StackMobStreamingCallback} that receives the response body as a series of {@link ByteBuffer} chunks as
+ * they're read from the network, followed by a call to {@link #complete()}. A single buffer is reused for every
+ * chunk, so copy anything you need to keep.
+ */
+public abstract class StackMobChunkCallback extends StackMobStreamingCallback {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    private final int chunkSize;
+
+    public StackMobChunkCallback() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize the largest chunk to deliver at once
+     */
+    public StackMobChunkCallback(int chunkSize) {
+        if(chunkSize < 1) throw new IllegalArgumentException("chunkSize must be positive");
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void success(InputStream responseBody) throws IOException {
+        byte[] data = new byte[chunkSize];
+        ByteBuffer chunk = ByteBuffer.wrap(data);
+        int read;
+        while((read = responseBody.read(data)) != -1) {
+            if(read == 0) continue;
+            chunk.clear();
+            chunk.limit(read);
+            chunk(chunk);
+        }
+        complete();
+    }
+
+    /**
+     * override this method to consume the next part of the response body
+     * @param chunk the bytes between the buffer's position and limit. Only valid until this method returns
+     */
+    abstract public void chunk(ByteBuffer chunk);
+
+    /**
+     * override this method to handle the end of the response body
+     */
+    abstract public void complete();
+}
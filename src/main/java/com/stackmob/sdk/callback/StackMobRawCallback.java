@@ -104,15 +104,14 @@ public abstract class StackMobRawCallback {
     /**
      * The method that will be called when a retry is possible. This is triggered when there is a distinct
      * and short term reason your request failed, and it should be successful on retry after the specified
-     * interval. By default at most three attempts are made before failing. Override to implement your own
-     * logic on retry, and return false to stop the request from being automatically retried.
-     * @param afterMilliseconds the number of milliseconds to wait until retrying the request.
+     * interval, or when the request got no response and is safe to send again. By default at most three more
+     * attempts are made before failing. The wait happens on a timer rather than in this method, see
+     * {@link com.stackmob.sdk.request.StackMobRetryPolicy}. Override to implement your own logic on retry, and
+     * return false to stop the request from being automatically retried.
+     * @param afterMilliseconds the number of milliseconds until the request is retried.
      * @return whether or not to automatically retry
      */
     public boolean retry(int afterMilliseconds) {
-        try {
-            Thread.sleep(afterMilliseconds);
-        } catch (InterruptedException ignore) { }
         return true;
     }
 
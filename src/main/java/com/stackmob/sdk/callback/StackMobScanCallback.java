@@ -0,0 +1,49 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.model.StackMobModel;
+
+import java.util.List;
+
+/**
+ * A callback used by {@link com.stackmob.sdk.model.StackMobScan}. It receives the objects a partition at a time as
+ * they're read, then either {@link #success(long)} or {@link #failure(StackMobException)}. Calls are never made at
+ * the same time, but may come from different background threads
+ * @param <T> The type of the class being scanned
+ */
+public abstract class StackMobScanCallback<T extends StackMobModel> {
+
+    /**
+     * override this method to consume the objects in one partition
+     * @param models the objects in the partition
+     */
+    public abstract void partition(List<T> models);
+
+    /**
+     * override this method to handle the end of the scan
+     * @param count the number of objects read
+     */
+    public abstract void success(long count);
+
+    /**
+     * override this method to handle errors. No more partitions are delivered after this
+     * @param e a representation of the error that occurred
+     */
+    abstract public void failure(StackMobException e);
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.callback;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.exception.StackMobHTTPResponseException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.util.Http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A callback that reads a successful response body as a stream while it arrives, rather than receiving it
+ * as a fully buffered byte array or String. Use this for large query results and binary downloads so the response
+ * never has to fit in memory all at once. Failed responses are small and are still buffered.
+ * <pre>
+ * {@code
+ * stackmob.getDatastore().get("bigschema", new StackMobStreamingCallback() {
+ *     public void success(InputStream responseBody) throws IOException {
+ *         copy(responseBody, file);
+ *     }
+ *
+ *     public void failure(StackMobException e) {
+ *         handleError(e);
+ *     }
+ * });
+ * }
+ * </pre>
+ * The stream is only valid during {@link #success(InputStream)} and is closed afterwards; {@link #responseBody}
+ * stays null for streamed responses.
+ */
+public abstract class StackMobStreamingCallback extends StackMobRawCallback {
+
+    @Override
+    public void unsent(StackMobException e) {
+        failure(e);
+    }
+
+    @Override
+    public void temporaryPasswordResetRequired(StackMobException e) {
+        failure(e);
+    }
+
+    @Override
+    public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
+        failure(new StackMobException("Circular redirect detected from " + originalUrl + " to " + newURL));
+    }
+
+    /**
+     * the method that will be called instead of {@link #setDone} when a successful response is streamed. may be
+     * executed in a background thread
+     * @param requestVerb the HTTP verb that was requested
+     * @param requestURL the URL that was requested
+     * @param requestHeaders the headers in the request
+     * @param requestBody the body of the request. will be an empty string for GET, DELETE, etc...
+     * @param responseStatusCode the status code of the HTTP response from StackMob
+     * @param responseHeaders the response headers from StackMob
+     * @param responseBody the response body as it arrives from StackMob
+     */
+    public void setStreamed(HttpVerb requestVerb,
+                            String requestURL,
+                            List<Map.Entry<String, String>> requestHeaders,
+                            String requestBody,
+                            Integer responseStatusCode,
+                            List<Map.Entry<String, String>> responseHeaders,
+                            InputStream responseBody) {
+        this.requestVerb = requestVerb;
+        this.requestURL = requestURL;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = requestBody;
+        this.responseStatusCode = responseStatusCode;
+        this.responseHeaders = responseHeaders;
+        this.responseBody = null;
+        try {
+            success(responseBody == null ? new ByteArrayInputStream(new byte[0]) : responseBody);
+        } catch(IOException e) {
+            failure(new StackMobException("Failed reading the response: " + e.getMessage()));
+        }
+    }
+
+    @Override
+    public void done(HttpVerb requestVerb,
+                     String requestURL,
+                     List<Map.Entry<String, String>> requestHeaders,
+                     String requestBody,
+                     Integer responseStatusCode,
+                     List<Map.Entry<String, String>> responseHeaders,
+                     byte[] responseBody) {
+        if(Http.isSuccess(responseStatusCode)) {
+            try {
+                success(new ByteArrayInputStream(responseBody));
+            } catch(IOException e) {
+                failure(new StackMobException("Failed reading the response: " + e.getMessage()));
+            }
+        } else {
+            StackMobException smException = new StackMobHTTPResponseException(responseStatusCode, responseHeaders, responseBody);
+            if(isTemporaryPasswordMessage("error") || isTemporaryPasswordMessage("error_description")) {
+                temporaryPasswordResetRequired(smException);
+            } else {
+                failure(smException);
+            }
+        }
+    }
+
+    private boolean isTemporaryPasswordMessage(String name) {
+        boolean matched = false;
+        try {
+            JsonElement message = new JsonParser().parse(new String(responseBody, "UTF-8")).getAsJsonObject().get(name);
+            matched = message != null && message.isJsonPrimitive() && message.getAsJsonPrimitive().isString() &&
+                      message.getAsString().startsWith("Temporary password reset required.");
+        } catch(Throwable ignore) { }
+        return matched;
+    }
+
+    /**
+     * override this method to read the body of a successful call.
+     * @param responseBody the response body as it arrives from StackMob. There's no need to close it
+     * @throws IOException if reading fails, in which case {@link #failure(StackMobException)} is called
+     */
+    abstract public void success(InputStream responseBody) throws IOException;
+
+    /**
+     * override this method to handle errors
+     * @param e a representation of the error that occurred
+     */
+    abstract public void failure(StackMobException e);
+}
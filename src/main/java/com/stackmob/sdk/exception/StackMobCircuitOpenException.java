@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.exception;
+
+/**
+ * An exception given to a request that wasn't sent because recent requests to the same endpoint have been failing.
+ * It's safe to try again once the endpoint has had time to recover
+ */
+public class StackMobCircuitOpenException extends StackMobException {
+    private static final long serialVersionUID = 1L;
+
+    private String endpoint;
+    private long retryAfterMillis;
+
+    /**
+     * create a new exception for an endpoint that's being avoided
+     * @param endpoint the host and method the request was for
+     * @param retryAfterMillis how long until requests to the endpoint will be tried again
+     */
+    public StackMobCircuitOpenException(String endpoint, long retryAfterMillis) {
+        super(String.format("Requests to %s are failing, so the request wasn't sent. Try again in %dms", endpoint, retryAfterMillis));
+        this.endpoint = endpoint;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * get the endpoint being avoided
+     * @return the host and method
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * get how long until requests to the endpoint will be tried again
+     * @return the time in milliseconds, 0 if it's waiting on requests already sent
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
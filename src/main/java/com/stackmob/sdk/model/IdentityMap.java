@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonElement;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The models seen so far while reading one response, by class and id. An object that shows up more than once in a
+ * response, which is common when relations are expanded, is read into a single shared instance, and only read
+ * again if a later copy of it has different json. Not thread safe; each fill or query gets its own
+ */
+final class IdentityMap {
+
+    private final Map<Class<?>, String> idFieldNames = new HashMap<Class<?>, String>();
+    private final Map<Class<?>, Map<String, StackMobModel>> models = new HashMap<Class<?>, Map<String, StackMobModel>>();
+    private final Map<StackMobModel, JsonElement> filledFrom = new IdentityHashMap<StackMobModel, JsonElement>();
+
+    /**
+     * @param json an object, or the id of an unexpanded relation
+     * @param idFieldName the name of the id field in the object
+     * @return the id, or null if the json doesn't have one
+     */
+    static String idOf(JsonElement json, String idFieldName) {
+        if(json.isJsonPrimitive()) return json.getAsString();
+        if(!json.isJsonObject() || idFieldName == null) return null;
+        JsonElement id = json.getAsJsonObject().get(idFieldName);
+        return id != null && id.isJsonPrimitive() ? id.getAsString() : null;
+    }
+
+    /**
+     * @param modelClass the class the json should be read into
+     * @param json an object, or the id of an unexpanded relation
+     * @return the instance already read for that object, or null if there isn't one yet
+     */
+    StackMobModel find(Class<? extends StackMobModel> modelClass, JsonElement json) {
+        Map<String, StackMobModel> byId = models.get(modelClass);
+        if(byId == null) return null;
+        String id = idOf(json, idFieldNames.get(modelClass));
+        return id == null ? null : byId.get(id);
+    }
+
+    /**
+     * remember a model under its id. Models without an id aren't tracked
+     */
+    void add(StackMobModel model) {
+        String id = model.getID();
+        if(id == null) return;
+        Class<?> modelClass = model.getClass();
+        Map<String, StackMobModel> byId = models.get(modelClass);
+        if(byId == null) {
+            byId = new HashMap<String, StackMobModel>();
+            models.put(modelClass, byId);
+            idFieldNames.put(modelClass, model.getIDFieldName());
+        }
+        if(!byId.containsKey(id)) byId.put(id, model);
+    }
+
+    /**
+     * record that a model is being filled from some json
+     */
+    void filling(StackMobModel model, JsonElement json) {
+        filledFrom.put(model, json);
+    }
+
+    /**
+     * @return whether filling the model from this json would change nothing, because it's already been filled from
+     *         the same json or the json is just its id
+     */
+    boolean isFilledFrom(StackMobModel model, JsonElement json) {
+        JsonElement previous = filledFrom.get(model);
+        if(previous == null) return false;
+        return json.isJsonPrimitive() || previous == json || previous.equals(json);
+    }
+}
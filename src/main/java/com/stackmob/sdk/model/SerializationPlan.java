@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.util.SerializationMetadata;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The schema name and fields of a model class, resolved once and shared by every instance so that reading and
+ * writing models doesn't repeat reflection lookups. Plans are immutable once built
+ */
+final class SerializationPlan {
+
+    /**
+     * A single field of a model, ready to be read or written
+     */
+    static final class FieldPlan {
+        final Field field;
+        final String name;
+        final String jsonName;
+        final SerializationMetadata metadata;
+        final Class<?> type;
+        /**
+         * the model class of a MODEL field, or the component class of a MODEL_ARRAY field
+         */
+        final Class<? extends StackMobModel> modelClass;
+        final boolean simpleNumber;
+
+        private FieldPlan(Field field, SerializationMetadata metadata) {
+            this.field = field;
+            this.name = field.getName();
+            this.jsonName = name.toLowerCase();
+            this.metadata = metadata;
+            this.type = field.getType();
+            if(metadata == SerializationMetadata.MODEL) {
+                this.modelClass = type.asSubclass(StackMobModel.class);
+            } else if(metadata == SerializationMetadata.MODEL_ARRAY) {
+                this.modelClass = SerializationMetadata.getComponentClass(field).asSubclass(StackMobModel.class);
+            } else {
+                this.modelClass = null;
+            }
+            this.simpleNumber = isSimpleNumber(type);
+        }
+
+        private static boolean isSimpleNumber(Class<?> type) {
+            return type == int.class || type == Integer.class || type == long.class || type == Long.class ||
+                   type == double.class || type == Double.class || type == float.class || type == Float.class ||
+                   type == short.class || type == Short.class || type == byte.class || type == Byte.class;
+        }
+    }
+
+    private static final ConcurrentMap<Class<?>, SerializationPlan> plans = new ConcurrentHashMap<Class<?>, SerializationPlan>();
+
+    /**
+     * @param modelClass a model class
+     * @return the plan for the class, building it the first time
+     */
+    static SerializationPlan forClass(Class<? extends StackMobModel> modelClass) {
+        SerializationPlan plan = plans.get(modelClass);
+        if(plan == null) {
+            plan = new SerializationPlan(modelClass);
+            SerializationPlan existing = plans.putIfAbsent(modelClass, plan);
+            if(existing != null) plan = existing;
+        }
+        return plan;
+    }
+
+    private final Class<? extends StackMobModel> modelClass;
+    private final String schemaName;
+    private final List<FieldPlan> serializedFields;
+    private final Map<String, FieldPlan> fieldsByName;
+    private final Map<String, FieldPlan> fieldsByJsonName;
+
+    private SerializationPlan(Class<? extends StackMobModel> modelClass) {
+        this.modelClass = modelClass;
+        this.schemaName = findSchemaName(modelClass);
+        List<FieldPlan> serialized = new ArrayList<FieldPlan>();
+        Map<String, FieldPlan> byName = new HashMap<String, FieldPlan>();
+        Map<String, FieldPlan> byJsonName = new HashMap<String, FieldPlan>();
+        // Subclass fields come first, and shadow superclass fields of the same name
+        Class<?> currentClass = modelClass;
+        while(!currentClass.equals(StackMobModel.class)) {
+            for(Field field : currentClass.getDeclaredFields()) {
+                if(byName.containsKey(field.getName())) continue;
+                field.setAccessible(true);
+                FieldPlan fieldPlan = new FieldPlan(field, SerializationMetadata.getSerializationMetadata(modelClass, field.getName()));
+                byName.put(fieldPlan.name, fieldPlan);
+                if(!byJsonName.containsKey(fieldPlan.jsonName)) byJsonName.put(fieldPlan.jsonName, fieldPlan);
+                // These are the fields gson would have written
+                int modifiers = field.getModifiers();
+                if(!Modifier.isTransient(modifiers) && !Modifier.isStatic(modifiers) && !field.isSynthetic()) {
+                    serialized.add(fieldPlan);
+                }
+            }
+            currentClass = currentClass.getSuperclass();
+        }
+        this.serializedFields = Collections.unmodifiableList(serialized);
+        this.fieldsByName = byName;
+        this.fieldsByJsonName = byJsonName;
+    }
+
+    private static String findSchemaName(Class<?> modelClass) {
+        try {
+            Method getSchemaName = modelClass.getDeclaredMethod("overrideSchemaName");
+            Object result = getSchemaName.invoke(null);
+            return (String) result;
+        } catch (Exception e) {
+            return modelClass.getSimpleName().toLowerCase();
+        }
+    }
+
+    Class<? extends StackMobModel> getModelClass() {
+        return modelClass;
+    }
+
+    /**
+     * @return the schema name, from the class's overrideSchemaName method if it has one
+     */
+    String getSchemaName() {
+        return schemaName;
+    }
+
+    /**
+     * @return the fields written when a model is serialized, in declaration order starting from the subclass
+     */
+    List<FieldPlan> getSerializedFields() {
+        return serializedFields;
+    }
+
+    /**
+     * @param name a java field name
+     * @return the field, or null if the model has no such field
+     */
+    FieldPlan getField(String name) {
+        return fieldsByName.get(name);
+    }
+
+    /**
+     * @param jsonName the lowercased name a field has in json
+     * @return the field, or null if the model has no such field
+     */
+    FieldPlan getFieldForJsonName(String jsonName) {
+        return fieldsByJsonName.get(jsonName);
+    }
+}
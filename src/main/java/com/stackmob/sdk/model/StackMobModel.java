@@ -26,13 +26,18 @@ import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.util.Pair;
 import com.stackmob.sdk.util.TypeHints;
 import com.stackmob.sdk.util.SerializationMetadata;
+import com.stackmob.sdk.util.StackMobLogger;
+import com.stackmob.sdk.util.StackMobSpan;
 
 import static com.stackmob.sdk.util.SerializationMetadata.*;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.math.BigDecimal;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.lang.reflect.Type;
 import java.util.*;
 
 /**
@@ -176,12 +181,39 @@ public abstract class StackMobModel {
 
 
     private static <T extends StackMobModel> String getSchemaName(Class<T> theClass) {
-        try {
-            Method getSchemaName = theClass.getDeclaredMethod("overrideSchemaName", new Class[]{});
-            Object result = getSchemaName.invoke(null);
-            return (String) result;
-        } catch (Exception e) {
-            return theClass.getSimpleName().toLowerCase();
+        return SerializationPlan.forClass(theClass).getSchemaName();
+    }
+
+    /**
+     * Look up everything the sdk needs to know about your model classes, along with the models they refer to, ahead
+     * of time. This is optional; otherwise it happens the first time each class is used, which can slow down the
+     * first requests your app makes. Call it once during startup
+     * <pre>
+     * {@code
+     * StackMobModel.registerModels(Task.class, TaskList.class);
+     * }
+     * </pre>
+     * @param modelClasses the classes extending StackMobModel to register
+     * @throws IllegalArgumentException if one of the classes isn't a model
+     * @throws IllegalStateException if a class has an invalid schema name
+     */
+    public static void registerModels(Class<?>... modelClasses) {
+        for(Class<?> modelClass : modelClasses) {
+            if(!StackMobModel.class.isAssignableFrom(modelClass) || modelClass.equals(StackMobModel.class)) {
+                throw new IllegalArgumentException(modelClass.getName() + " doesn't extend StackMobModel");
+            }
+            register(modelClass.asSubclass(StackMobModel.class), new HashSet<Class<?>>());
+        }
+    }
+
+    private static void register(Class<? extends StackMobModel> modelClass, Set<Class<?>> seen) {
+        if(!seen.add(modelClass)) return;
+        SerializationPlan plan = SerializationPlan.forClass(modelClass);
+        ensureValidName(plan.getSchemaName(), "model");
+        for(SerializationPlan.FieldPlan fieldPlan : plan.getSerializedFields()) {
+            if(fieldPlan.modelClass != null && !fieldPlan.modelClass.equals(StackMobModel.class)) {
+                register(fieldPlan.modelClass, seen);
+            }
         }
     }
     /**
@@ -204,15 +236,19 @@ public abstract class StackMobModel {
      */
     public static <T extends StackMobModel> void query(final StackMob stackmob, final Class<T> theClass, StackMobQuery q, StackMobOptions options, final StackMobQueryCallback<T> callback) {
         q.setObjectName(getSchemaName(theClass));
-        stackmob.getDatastore().get(q, options, new StackMobCallback() {
+        stackmob.getDatastore().get(q, options, new StackMobStreamingCallback() {
             @Override
-            public void success(String responseBody) {
-                JsonArray array = new JsonParser().parse(responseBody).getAsJsonArray();
-                List<T> resultList = new ArrayList<T>();
-                for(JsonElement elt : array) {
-                    try {
-                        resultList.add(StackMobModel.newFromJson(stackmob, theClass, elt.toString()));
-                    } catch (StackMobException ignore) { }
+            public void success(InputStream responseBody) throws IOException {
+                // Decode straight off the wire in one pass rather than building a tree of the whole result first
+                List<T> resultList;
+                try {
+                    resultList = listFromJson(stackmob, theClass, new JsonReader(new InputStreamReader(responseBody, "UTF-8")));
+                } catch(JsonParseException e) {
+                    failure(new StackMobException(e.getMessage()));
+                    return;
+                } catch(IllegalStateException e) {
+                    failure(new StackMobException(e.getMessage()));
+                    return;
                 }
                 callback.success(resultList);
             }
@@ -224,6 +260,54 @@ public abstract class StackMobModel {
         });
     }
 
+    /**
+     * read the results of a query a page at a time, with the following pages fetched in the background. See
+     * {@link StackMobQueryCursor}
+     * @param theClass The class of your model
+     * @param q The query to run. Any range on it is replaced by the cursor's pages
+     * @return a cursor over the results, which doesn't send anything until it's first read
+     */
+    public static <T extends StackMobModel> StackMobQueryCursor<T> cursor(Class<T> theClass, StackMobQuery q) {
+        return cursor(StackMob.getStackMob(), theClass, q);
+    }
+
+    /**
+     * read the results of a query a page at a time, with the following pages fetched in the background. See
+     * {@link StackMobQueryCursor}
+     * @param stackmob The stackmob instance to run requests on
+     * @param theClass The class of your model
+     * @param q The query to run. Any range on it is replaced by the cursor's pages
+     * @return a cursor over the results, which doesn't send anything until it's first read
+     */
+    public static <T extends StackMobModel> StackMobQueryCursor<T> cursor(StackMob stackmob, Class<T> theClass, StackMobQuery q) {
+        StackMobQuery query = q.copy();
+        query.setObjectName(getSchemaName(theClass));
+        return new StackMobQueryCursor<T>(stackmob, theClass, query);
+    }
+
+    /**
+     * read every instance of your model matching a query, fetching several ranges at once. See {@link StackMobScan}
+     * @param theClass The class of your model
+     * @param q The query to run. Any range on it is replaced by the scan's partitions
+     * @return a scan over the results, which doesn't send anything until it's started
+     */
+    public static <T extends StackMobModel> StackMobScan<T> scan(Class<T> theClass, StackMobQuery q) {
+        return scan(StackMob.getStackMob(), theClass, q);
+    }
+
+    /**
+     * read every instance of your model matching a query, fetching several ranges at once. See {@link StackMobScan}
+     * @param stackmob The stackmob instance to run requests on
+     * @param theClass The class of your model
+     * @param q The query to run. Any range on it is replaced by the scan's partitions
+     * @return a scan over the results, which doesn't send anything until it's started
+     */
+    public static <T extends StackMobModel> StackMobScan<T> scan(StackMob stackmob, Class<T> theClass, StackMobQuery q) {
+        StackMobQuery query = q.copy();
+        query.setObjectName(getSchemaName(theClass));
+        return new StackMobScan<T>(stackmob, theClass, query);
+    }
+
     /**
      * run a count query on the server to count all the instances of your model within certain constraints
      * @param theClass The class of your model
@@ -289,8 +373,33 @@ public abstract class StackMobModel {
         return newObject;
     }
 
+    /**
+     * read a json array of objects into new instances of a model class. Objects that can't be read are left out
+     * @throws IOException if the json is malformed or can't be read
+     */
+    static <T extends StackMobModel> List<T> listFromJson(StackMob stackmob, Class<T> classOfT, JsonReader reader) throws IOException {
+        StackMobSpan span = StackMobSpan.decoding();
+        try {
+            List<T> result = new ArrayList<T>();
+            IdentityMap identities = new IdentityMap();
+            reader.beginArray();
+            while(reader.hasNext()) {
+                T newObject = newInstance(classOfT);
+                newObject.setStackMob(stackmob);
+                try {
+                    ((StackMobModel) newObject).fillFromJson(reader, identities);
+                    result.add(newObject);
+                } catch(StackMobException ignore) { }
+            }
+            reader.endArray();
+            return result;
+        } finally {
+            if(span != null) span.decoded();
+        }
+    }
+
     private static <T extends StackMobModel> T newInstance(Class<T> classOfT) {
-        T newObject = new Gson().fromJson("{}", classOfT);
+        T newObject = gson.fromJson("{}", classOfT);
         newObject.init(classOfT);
         return newObject;
     }
@@ -363,6 +472,7 @@ public abstract class StackMobModel {
     private transient String schemaName;
     private transient boolean hasData;
     private transient StackMob stackmob = StackMob.getStackMob();
+    private transient SerializationPlan plan;
     private static final Gson gson = getGson();
 
     /**
@@ -394,9 +504,9 @@ public abstract class StackMobModel {
 
     protected void init(Class<? extends StackMobModel> actualClass) {
         this.actualClass = actualClass;
-        schemaName = getSchemaName(actualClass);
+        plan = SerializationPlan.forClass(actualClass);
+        schemaName = plan.getSchemaName();
         ensureValidName(schemaName, "model");
-        ensureMetadata(actualClass);
     }
 
     private void ensureValidFieldName(String name) {
@@ -412,12 +522,24 @@ public abstract class StackMobModel {
         }
     }
 
-    private SerializationMetadata getMetadata(String fieldName) {
-        return getSerializationMetadata(actualClass, fieldName);
+    private SerializationPlan getPlan() {
+        SerializationPlan current = plan;
+        if(current == null || current.getModelClass() != actualClass) {
+            current = SerializationPlan.forClass(actualClass);
+            plan = current;
+        }
+        return current;
+    }
+
+    private Field getField(String fieldName) throws NoSuchFieldException {
+        SerializationPlan.FieldPlan fieldPlan = getPlan().getField(fieldName);
+        if(fieldPlan == null) throw new NoSuchFieldException(fieldName);
+        return fieldPlan.field;
     }
 
-    private String getFieldName(String jsonName) {
-        return getFieldNameFromJsonName(actualClass, jsonName);
+    private SerializationMetadata getMetadata(String fieldName) {
+        SerializationPlan.FieldPlan fieldPlan = getPlan().getField(fieldName);
+        return fieldPlan == null ? null : fieldPlan.metadata;
     }
 
     /**
@@ -484,21 +606,23 @@ public abstract class StackMobModel {
         return hasData;
     }
 
-    private void fillModel(Field field, JsonElement json) throws StackMobException, IllegalAccessException { // Delegate any expanded relations to the appropriate object
-        StackMobModel relatedModel = (StackMobModel) field.get(this);
-        // If there's a model with the same id, keep it. Otherwise create a new one
-        if(relatedModel == null || !relatedModel.hasSameID(json)) {
-            relatedModel = newInstance((Class<? extends StackMobModel>) field.getType());
+    private void fillModel(SerializationPlan.FieldPlan fieldPlan, JsonElement json, IdentityMap identities) throws StackMobException, IllegalAccessException { // Delegate any expanded relations to the appropriate object
+        StackMobModel relatedModel = identities.find(fieldPlan.modelClass, json);
+        if(relatedModel == null) {
+            relatedModel = (StackMobModel) fieldPlan.field.get(this);
+            // If there's a model with the same id, keep it. Otherwise create a new one
+            if(relatedModel == null || !relatedModel.hasSameID(json)) {
+                relatedModel = newInstance(fieldPlan.modelClass);
+            }
         }
-        relatedModel.fillFromJson(json);
-        field.set(this, relatedModel);
+        fillOnce(relatedModel, json, identities);
+        fieldPlan.field.set(this, relatedModel);
     }
 
-    private void fillModelArray(Field field, JsonElement json) throws InstantiationException, IllegalAccessException, StackMobException {
-        Class<? extends StackMobModel> actualModelClass = (Class<? extends StackMobModel>) SerializationMetadata.getComponentClass(field);
-        Collection<StackMobModel> existingModels = getFieldAsCollection(field);
-        List<StackMobModel> newModels = updateModelListFromJson(json.getAsJsonArray(), existingModels, actualModelClass);
-        setFieldFromList(field, newModels, actualModelClass);
+    private void fillModelArray(SerializationPlan.FieldPlan fieldPlan, JsonElement json, IdentityMap identities) throws InstantiationException, IllegalAccessException, StackMobException {
+        Collection<StackMobModel> existingModels = getFieldAsCollection(fieldPlan.field);
+        List<StackMobModel> newModels = updateModelListFromJson(json.getAsJsonArray(), existingModels, fieldPlan.modelClass, identities);
+        setFieldFromList(fieldPlan.field, newModels, fieldPlan.modelClass);
     }
 
     private void fillCounter(Field field, JsonElement json) throws IllegalAccessException {
@@ -513,23 +637,28 @@ public abstract class StackMobModel {
         }
     }
 
-    private void fillFieldFromJson(String jsonName, JsonElement json) throws StackMobException {
+    private void fillFieldFromJson(String jsonName, JsonElement json, IdentityMap identities) throws StackMobException {
         try {
             if(jsonName.equals(getIDFieldName())) {
                 // The id field is special, its name doesn't match the field
                 setID(json.getAsJsonPrimitive().getAsString());
+                identities.add(this);
             } else {
                 // undo the toLowerCase we do when sending out the json
-                String fieldName = getFieldName(jsonName);
-                if(fieldName != null) {
-                    Field field = getField(fieldName);
-                    if(getMetadata(fieldName) == MODEL) {
-                        fillModel(field, json);
-                    } else if(getMetadata(fieldName) == MODEL_ARRAY) {
-                        fillModelArray(field, json);
-                    } else if(getMetadata(fieldName) == COUNTER) {
-                        fillCounter(field, json);
-                    } else if(getMetadata(fieldName) == BINARY) {
+                SerializationPlan.FieldPlan fieldPlan = getPlan().getFieldForJsonName(jsonName);
+                if(fieldPlan == null) {
+                    StackMobLogger logger = stackmob.getSession().getLogger();
+                    if(logger.isDebugEnabled()) {
+                        logger.logDebug("Ignoring extraneous json field:\nfield: %s\ndata: %s", jsonName, json);
+                    }
+                    return;
+                }
+                Field field = fieldPlan.field;
+                switch(fieldPlan.metadata) {
+                    case MODEL: fillModel(fieldPlan, json, identities); break;
+                    case MODEL_ARRAY: fillModelArray(fieldPlan, json, identities); break;
+                    case COUNTER: fillCounter(field, json); break;
+                    case BINARY: {
                         StackMobFile file = (StackMobFile) field.get(this);
                         String url = json.getAsJsonPrimitive().getAsString();
                         if(file == null) {
@@ -538,16 +667,19 @@ public abstract class StackMobModel {
                         } else {
                             file.setS3Url(url);
                         }
-                    } else {
+                        break;
+                    }
+                    default: {
                         // Let gson do its thing
-                        field.set(this, gson.fromJson(json, field.getType()));
+                        field.set(this, gson.fromJson(json, fieldPlan.type));
                     }
                 }
             }
-        } catch(NoSuchFieldException e) {
-            stackmob.getSession().getLogger().logDebug(String.format("Ignoring extraneous json field:\nfield: %s\ndata: %s", jsonName, json.toString()));
         } catch(JsonSyntaxException e) {
-            stackmob.getSession().getLogger().logWarning(String.format("Incoming data does not match data model:\nfield: %s\ndata: %s", jsonName, json.toString()));
+            StackMobLogger logger = stackmob.getSession().getLogger();
+            if(logger.isWarningEnabled()) {
+                logger.logWarning("Incoming data does not match data model:\nfield: %s\ndata: %s", jsonName, json);
+            }
         } catch(IllegalAccessException e) {
             throw new StackMobException(e.getMessage());
         } catch (InstantiationException e) {
@@ -606,16 +738,53 @@ public abstract class StackMobModel {
     }
     
     static List<StackMobModel> updateModelListFromJson(JsonArray array, Collection<? extends StackMobModel> existingModels, Class<? extends StackMobModel> modelClass) throws IllegalAccessException, InstantiationException, StackMobException {
+        return updateModelListFromJson(array, existingModels, modelClass, new IdentityMap());
+    }
+
+    /**
+     * read a json array into models, reusing models already seen in this response, then existing models with the
+     * same id, then existing models without an id, in that order
+     */
+    private static List<StackMobModel> updateModelListFromJson(JsonArray array, Collection<? extends StackMobModel> existingModels, Class<? extends StackMobModel> modelClass, IdentityMap identities) throws IllegalAccessException, InstantiationException, StackMobException {
+        // Index the existing models once rather than searching them for every element
+        Map<String, StackMobModel> existingById = new HashMap<String, StackMobModel>();
+        LinkedList<StackMobModel> existingWithoutIds = new LinkedList<StackMobModel>();
+        String idFieldName = null;
+        if(existingModels != null) {
+            for(StackMobModel model : existingModels) {
+                if(model.getID() == null) {
+                    existingWithoutIds.add(model);
+                } else {
+                    if(idFieldName == null) idFieldName = model.getIDFieldName();
+                    if(!existingById.containsKey(model.getID())) existingById.put(model.getID(), model);
+                }
+            }
+        }
         List<StackMobModel> result = new ArrayList<StackMobModel>();
         for(JsonElement json : array) {
-            StackMobModel model = getExistingModel(existingModels, json);
+            StackMobModel model = identities.find(modelClass, json);
+            if(model == null) {
+                String id = IdentityMap.idOf(json, idFieldName);
+                if(id != null) model = existingById.get(id);
+            }
+            if(model == null && !existingWithoutIds.isEmpty()) {
+                model = existingWithoutIds.removeFirst();
+                model.setID(json);
+            }
             if(model == null) model = newInstance(modelClass);
-            model.fillFromJson(json);
+            fillOnce(model, json, identities);
             result.add(model);
         }
         return result;
     }
 
+    /**
+     * fill a model unless it's already been filled from the same json while reading this response
+     */
+    private static void fillOnce(StackMobModel model, JsonElement json, IdentityMap identities) throws StackMobException {
+        if(!identities.isFilledFrom(model, json)) model.fillFromJson(json, null, identities);
+    }
+
     /**
      * Finds a model with the same id as the json
      * @param oldList The data in the object already
@@ -641,19 +810,6 @@ public abstract class StackMobModel {
         return null;
     }
     
-    private Field getField(String fieldName) throws NoSuchFieldException {
-        Class<?> classToCheck = actualClass;
-        while(!classToCheck.equals(StackMobModel.class)) {
-            try {
-                Field field = classToCheck.getDeclaredField(fieldName);
-                field.setAccessible(true);
-                return field;
-            } catch (NoSuchFieldException ignored) { }
-            classToCheck = classToCheck.getSuperclass();
-        }
-        throw new NoSuchFieldException(fieldName);
-    }
-
     /**
      * fill the objects fields in from a json string. This isn't necessary during normal usage of a model class, but can be useful
      * if you've had to serialize the class for some reason
@@ -661,7 +817,12 @@ public abstract class StackMobModel {
      * @throws StackMobException
      */
     public void fillFromJson(String jsonString) throws StackMobException {
-        fillFromJson(new JsonParser().parse(jsonString));
+        StackMobSpan span = StackMobSpan.decoding();
+        try {
+            fillFromJson(new JsonParser().parse(jsonString));
+        } finally {
+            if(span != null) span.decoded();
+        }
     }
 
     void fillFromJson(JsonElement json) throws StackMobException {
@@ -669,19 +830,123 @@ public abstract class StackMobModel {
     }
 
     void fillFromJson(JsonElement json, List<String> selection) throws StackMobException {
+        StackMobSpan span = StackMobSpan.decoding();
+        try {
+            fillFromJson(json, selection, new IdentityMap());
+        } finally {
+            if(span != null) span.decoded();
+        }
+    }
+
+    private void fillFromJson(JsonElement json, List<String> selection, IdentityMap identities) throws StackMobException {
+        identities.filling(this, json);
         if(json.isJsonPrimitive()) {
             //This ought to be an unexpanded relation then
             setID(json.getAsJsonPrimitive().getAsString());
+            identities.add(this);
         } else {
+            // Known by its id up front, so relations that lead back to this object find it
+            String id = IdentityMap.idOf(json, getIDFieldName());
+            if(id != null && getID() == null) setID(id);
+            if(id != null && id.equals(getID())) identities.add(this);
             for (Map.Entry<String, JsonElement> jsonField : json.getAsJsonObject().entrySet()) {
                 if(selection == null || selection.contains(jsonField.getKey()) || getMetadata(jsonField.getKey()) == BINARY) {
-                    fillFieldFromJson(jsonField.getKey(), jsonField.getValue());
+                    fillFieldFromJson(jsonField.getKey(), jsonField.getValue(), identities);
                 }
             }
             hasData = true;
         }
     }
 
+    /**
+     * fill the object's fields from the next value in a json stream, reading simple fields directly and only
+     * building json trees for relations and other complex fields
+     * @param reader a reader positioned at an object or an unexpanded relation's id
+     * @throws StackMobException if a field couldn't be set. The rest of the object is still read
+     */
+    void fillFromJson(JsonReader reader) throws IOException, StackMobException {
+        StackMobSpan span = StackMobSpan.decoding();
+        try {
+            fillFromJson(reader, new IdentityMap());
+        } finally {
+            if(span != null) span.decoded();
+        }
+    }
+
+    private void fillFromJson(JsonReader reader, IdentityMap identities) throws IOException, StackMobException {
+        if(reader.peek() != JsonToken.BEGIN_OBJECT) {
+            fillFromJson(new JsonParser().parse(reader), null, identities);
+            return;
+        }
+        StackMobException failure = null;
+        String idFieldName = getIDFieldName();
+        reader.beginObject();
+        while(reader.hasNext()) {
+            String jsonName = reader.nextName();
+            try {
+                if(jsonName.equals(idFieldName) || !readSimpleField(jsonName, reader, identities)) {
+                    fillFieldFromJson(jsonName, new JsonParser().parse(reader), identities);
+                }
+            } catch(StackMobException e) {
+                if(failure == null) failure = e;
+            }
+        }
+        reader.endObject();
+        hasData = true;
+        if(failure != null) throw failure;
+    }
+
+    /**
+     * set a string, number or boolean field straight from the stream when the json has the expected type
+     * @return false if nothing was read and the value needs the general treatment
+     */
+    private boolean readSimpleField(String jsonName, JsonReader reader, IdentityMap identities) throws IOException, StackMobException {
+        SerializationPlan.FieldPlan fieldPlan = getPlan().getFieldForJsonName(jsonName);
+        if(fieldPlan == null) {
+            reader.skipValue();
+            return true;
+        }
+        if(fieldPlan.metadata != PRIMITIVE && fieldPlan.metadata != OBJECT) return false;
+        Field field = fieldPlan.field;
+        Class<?> type = fieldPlan.type;
+        JsonToken token = reader.peek();
+        try {
+            if(token == JsonToken.STRING && type == String.class) {
+                field.set(this, reader.nextString());
+                return true;
+            }
+            if(token == JsonToken.BOOLEAN && (type == boolean.class || type == Boolean.class)) {
+                field.set(this, reader.nextBoolean());
+                return true;
+            }
+            if(token == JsonToken.NUMBER && fieldPlan.simpleNumber) {
+                String number = reader.nextString();
+                Object value;
+                try {
+                    value = parseNumber(type, number);
+                } catch(NumberFormatException e) {
+                    // Something like 1.5 for an int, let gson decide what to do
+                    fillFieldFromJson(jsonName, new JsonPrimitive(new BigDecimal(number)), identities);
+                    return true;
+                }
+                field.set(this, value);
+                return true;
+            }
+        } catch(IllegalAccessException e) {
+            throw new StackMobException(e.getMessage());
+        }
+        return false;
+    }
+
+    private static Object parseNumber(Class<?> type, String number) {
+        if(type == int.class || type == Integer.class) return Integer.valueOf(number);
+        if(type == long.class || type == Long.class) return Long.valueOf(number);
+        if(type == double.class || type == Double.class) return Double.valueOf(number);
+        if(type == float.class || type == Float.class) return Float.valueOf(number);
+        if(type == short.class || type == Short.class) return Short.valueOf(number);
+        return Byte.valueOf(number);
+    }
+
     /**
      * Checks if the current object has the same id as this json
      * @param json
@@ -704,116 +969,139 @@ public abstract class StackMobModel {
         }
     }
     
-    private List<String> getFieldNames(JsonObject json) {
-        List<String> list = new ArrayList<String>();
-        for(Map.Entry<String,JsonElement> entry : json.entrySet()) {
-            list.add(entry.getKey());
-        }
-        return list;
+    private JsonElement relatedModelJson(String fieldName, StackMobModel relatedModel, Selection selection, TypeHints relationHints, TypeHints typeHints, int depth) {
+        relationHints.add(fieldName, relatedModel.getSchemaName());
+        relationHints.push(fieldName);
+        typeHints.push(fieldName);
+        JsonElement relatedJson = relatedModel.toJsonElement(depth - 1, selection.subSelection(fieldName), relationHints, typeHints);
+        relationHints.pop();
+        typeHints.pop();
+        return relatedJson;
     }
 
-    private void replaceModelJson(JsonObject json, String fieldName, Selection selection, TypeHints relationHints, TypeHints typeHints, int depth) {
-        json.remove(fieldName);
-        try {
-            Field relationField = getField(fieldName);
-            StackMobModel relatedModel = (StackMobModel) relationField.get(this);
-            relationHints.add(fieldName, relatedModel.getSchemaName());
-            relationHints.push(fieldName);
-            typeHints.push(fieldName);
+    private JsonElement relatedModelArrayJson(String fieldName, Object value, Selection selection, TypeHints relationHints, TypeHints typeHints, int depth) {
+        JsonArray array = new JsonArray();
+        Collection<StackMobModel> relatedModels;
+        if(value instanceof StackMobModel[]) {
+            relatedModels = Arrays.asList((StackMobModel[]) value);
+        } else {
+            relatedModels = (Collection<StackMobModel>) value;
+        }
+        boolean first = true;
+        for(StackMobModel relatedModel : relatedModels) {
+            if(first) {
+                relationHints.add(fieldName, relatedModel.getSchemaName());
+                relationHints.push(fieldName);
+                typeHints.push(fieldName);
+                first = false;
+            }
             JsonElement relatedJson = relatedModel.toJsonElement(depth - 1, selection.subSelection(fieldName), relationHints, typeHints);
+            if(relatedJson != null) array.add(relatedJson);
+        }
+        if(!first) {
             relationHints.pop();
             typeHints.pop();
-            if(relatedJson != null) json.add(fieldName, relatedJson);
-        } catch (Exception ignore) { } //Should never happen
+        }
+        return array;
     }
 
-    private void replaceModelArrayJson(JsonObject json, String fieldName, Selection selection, TypeHints relationHints, TypeHints typeHints, int depth) {
-        json.remove(fieldName);
-        try {
-            Field relationField = getField(fieldName);
-            JsonArray array = new JsonArray();
-            Collection<StackMobModel> relatedModels;
-            if(relationField.getType().isArray()) {
-                relatedModels = Arrays.asList((StackMobModel[])relationField.get(this));
-            } else {
-                relatedModels = (Collection<StackMobModel>) relationField.get(this);
-            }
-            boolean first = true;
-            for(StackMobModel relatedModel : relatedModels) {
-                if(first) {
-                    relationHints.add(fieldName, relatedModel.getSchemaName());
-                    relationHints.push(fieldName);
-                    typeHints.push(fieldName);
-                    first = false;
-                }
-                JsonElement relatedJson = relatedModel.toJsonElement(depth - 1, selection.subSelection(fieldName), relationHints, typeHints);
-                if(relatedJson != null) array.add(relatedJson);
-            }
-            if(!first) {
-                relationHints.pop();
-                typeHints.pop();
-            }
-            json.add(fieldName, array);
-        } catch (Exception ignore) { } //Should never happen
+    /**
+     * serialize a field value the way gson would as part of the whole object, skipping gson for the common simple types
+     */
+    private static JsonElement valueToJson(SerializationPlan.FieldPlan fieldPlan, Object value) {
+        if(value instanceof String) return new JsonPrimitive((String) value);
+        if(value instanceof Boolean) return new JsonPrimitive((Boolean) value);
+        if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return new JsonPrimitive((Number) value);
+        }
+        // Like gson, prefer the runtime type unless the field's declared type carries type parameters
+        Type type = fieldPlan.field.getGenericType();
+        return gson.toJsonTree(value, type instanceof Class ? value.getClass() : type);
     }
 
     protected JsonElement toJsonElement(int depth, Selection selection, TypeHints relationHints, TypeHints typeHints) {
         // Set the id here as opposed to on the server to avoid a race condition
         if(getID() == null) setID(UUID.randomUUID().toString().replace("-",""));
         if(depth < 0) return new JsonPrimitive(getID());
-        JsonObject json = gson.toJsonTree(this).getAsJsonObject();
         JsonObject outgoing = new JsonObject();
-        for(String fieldName : getFieldNames(json)) {
+        for(SerializationPlan.FieldPlan fieldPlan : getPlan().getSerializedFields()) {
+            Object value;
+            try {
+                value = fieldPlan.field.get(this);
+            } catch(IllegalAccessException e) {
+                continue; //Should never happen, the field is accessible
+            }
+            // Null fields are left out entirely
+            if(value == null) continue;
+            String fieldName = fieldPlan.name;
             if(!selection.isSelected(fieldName)) continue;
-            String newFieldName = fieldName;
             ensureValidFieldName(fieldName);
-            JsonElement value = json.get(fieldName);
-            if(getMetadata(fieldName) == MODEL) {
-                replaceModelJson(json, fieldName, selection, relationHints, typeHints, depth);
-            } else if(getMetadata(fieldName) == MODEL_ARRAY) {
-                replaceModelArrayJson(json, fieldName, selection, relationHints, typeHints, depth);
-            } else if(getMetadata(fieldName) == OBJECT) {
-                //We don't support subobjects. Gson automatically converts a few types like
-                //Date and BigInteger to primitive types, but anything else has to be an error.
-                if(value.isJsonObject()) {
-                    throw new IllegalStateException("Field " + fieldName + " is a subobject which is not supported at this time");
+            String newFieldName = fieldPlan.jsonName;
+            JsonElement json;
+            switch(fieldPlan.metadata) {
+                case MODEL: {
+                    try {
+                        json = relatedModelJson(fieldName, (StackMobModel) value, selection, relationHints, typeHints, depth);
+                    } catch(Exception ignore) {
+                        json = null;
+                    }
+                    break;
                 }
-            } else if(getMetadata(fieldName) == COUNTER) {
-                json.remove(fieldName);
-                try {
-                    StackMobCounter counter = (StackMobCounter) getField(fieldName).get(this);
+                case MODEL_ARRAY: {
+                    try {
+                        json = relatedModelArrayJson(fieldName, value, selection, relationHints, typeHints, depth);
+                    } catch(Exception ignore) {
+                        json = null;
+                    }
+                    break;
+                }
+                case OBJECT: {
+                    json = valueToJson(fieldPlan, value);
+                    //We don't support subobjects. Gson automatically converts a few types like
+                    //Date and BigInteger to primitive types, but anything else has to be an error.
+                    if(json.isJsonObject()) {
+                        throw new IllegalStateException("Field " + fieldName + " is a subobject which is not supported at this time");
+                    }
+                    break;
+                }
+                case COUNTER: {
+                    StackMobCounter counter = (StackMobCounter) value;
                     switch(counter.getMode()) {
                         case INCREMENT: {
                             newFieldName += "[inc]";
-                            json.add(fieldName, new JsonPrimitive(counter.getIncrement()));
+                            json = new JsonPrimitive(counter.getIncrement());
                             break;
                         }
-                        case SET: json.add(fieldName, new JsonPrimitive(counter.get())); break;
+                        default: json = new JsonPrimitive(counter.get()); break;
                     }
                     counter.reset();
-
-                } catch (Exception ignore) { } //Should never happen
-            } else if(getMetadata(fieldName) == BINARY) {
-                typeHints.add(fieldName, BINARY.name().toLowerCase());
-                json.remove(fieldName);
-                try {
-                    StackMobFile file = (StackMobFile) getField(fieldName).get(this);
+                    break;
+                }
+                case BINARY: {
+                    typeHints.add(fieldName, BINARY.name().toLowerCase());
+                    StackMobFile file = (StackMobFile) value;
+                    json = null;
                     if(file.getBinaryString() != null) {
-                        json.add(fieldName, new JsonPrimitive(file.getBinaryString()));
+                        json = new JsonPrimitive(file.getBinaryString());
                     } else {
                         //don't post the url
                         newFieldName = null;
                     }
-
-                } catch(Exception e) {
-                    stackmob.getSession().getLogger().logWarning("Got exception while serializing binary file " + e);
-                } //Should never happen
-            } else if(getMetadata(fieldName) == GEOPOINT) {
-                typeHints.add(fieldName, GEOPOINT.name().toLowerCase());
-            } else if(getMetadata(fieldName) == FORGOT_PASSWORD) {
-                typeHints.add(fieldName, FORGOT_PASSWORD.name().toLowerCase().replace("_", ""));
+                    break;
+                }
+                case GEOPOINT: {
+                    typeHints.add(fieldName, GEOPOINT.name().toLowerCase());
+                    json = valueToJson(fieldPlan, value);
+                    break;
+                }
+                case FORGOT_PASSWORD: {
+                    typeHints.add(fieldName, FORGOT_PASSWORD.name().toLowerCase().replace("_", ""));
+                    json = valueToJson(fieldPlan, value);
+                    break;
+                }
+                default: json = valueToJson(fieldPlan, value);
             }
-            if(newFieldName != null) outgoing.add(newFieldName.toLowerCase(), json.get(fieldName));
+            if(newFieldName != null) outgoing.add(newFieldName, json);
         }
         if(id != null) {
             outgoing.addProperty(getIDFieldName(),id);
@@ -858,19 +1146,33 @@ public abstract class StackMobModel {
      * @param callback invoked when the load is complete
      */
     public void fetch(StackMobOptions options, StackMobCallback callback) {
-        stackmob.getDatastore().get(getSchemaName() + "/" + id, options, new StackMobIntermediaryCallback(callback) {
+        StackMobCallback fillingCallback = new StackMobIntermediaryCallback(callback) {
             @Override
             public void success(String responseBody) {
                 boolean fillSucceeded = false;
                 try {
-                    StackMobModel.this.fillFromJson(new JsonParser().parse(responseBody));
+                    StackMobModel.this.fillFromJson(responseBody);
                     fillSucceeded = true;
                 } catch (StackMobException e) {
                     failure(e);
                 }
                 if(fillSucceeded) super.success(responseBody);
             }
-        });
+        };
+        StackMobBatcher batcher = stackmob.getDatastore().getBatcher();
+        if(batcher != null && isBatchable(options)) {
+            batcher.fetch(getSchemaName(), getIDFieldName(), id, fillingCallback);
+        } else {
+            stackmob.getDatastore().get(getSchemaName() + "/" + id, options, fillingCallback);
+        }
+    }
+
+    /**
+     * whether a request with these options can share a batch with others. Options that change the request, like
+     * expanding relations or selecting fields, need a request of their own
+     */
+    private static boolean isBatchable(StackMobOptions options) {
+        return options.getHeaders().isEmpty() && !options.isHTTPS();
     }
 
     /**
@@ -904,11 +1206,13 @@ public abstract class StackMobModel {
     public void save(StackMobOptions options, StackMobCallback callback) {
         TypeHints relationHints = new TypeHints();
         TypeHints typeHints = new TypeHints();
-        String json = toJson(options, relationHints, typeHints);
+        StackMobBatcher batcher = stackmob.getDatastore().getBatcher();
+        boolean batched = batcher != null && isBatchable(options);
+        JsonElement json = toJsonElement(options.getExpandDepth(), new Selection(options.getSelection()), relationHints, typeHints);
         List<Map.Entry<String,String>> headers= new ArrayList<Map.Entry<String,String>>();
         headers.add(new Pair<String,String>("X-StackMob-Relations", relationHints.toHeaderString()));
         headers.add(new Pair<String,String>("X-StackMob-FieldTypes", typeHints.toHeaderString()));
-        stackmob.getDatastore().post(getSchemaName(), json, options.withHeaders(headers), new StackMobIntermediaryCallback(callback) {
+        StackMobCallback fillingCallback = new StackMobIntermediaryCallback(callback) {
             @Override
             public void success(String responseBody) {
                 boolean fillSucceeded = false;
@@ -920,7 +1224,16 @@ public abstract class StackMobModel {
                 }
                 if(fillSucceeded) super.success(responseBody);
             }
-        });
+        };
+        StackMobWriteBehind writeBehind = stackmob.getDatastore().getWriteBehind();
+        if(writeBehind != null && isBatchable(options)) {
+            // there's no response yet, so there's nothing to fill in
+            writeBehind.save(getSchemaName(), getIDFieldName(), json.getAsJsonObject(), headers, callback);
+        } else if(batched) {
+            batcher.save(getSchemaName(), getIDFieldName(), json.getAsJsonObject(), headers, fillingCallback);
+        } else {
+            stackmob.getDatastore().post(getSchemaName(), json.toString(), options.withHeaders(headers), fillingCallback);
+        }
     }
 
     /**
@@ -935,7 +1248,12 @@ public abstract class StackMobModel {
      * @param callback invoked when the delete is complete
      */
     public void destroy(StackMobCallback callback) {
-        stackmob.getDatastore().delete(getSchemaName(), id, callback);
+        StackMobWriteBehind writeBehind = stackmob.getDatastore().getWriteBehind();
+        if(writeBehind != null) {
+            writeBehind.delete(getSchemaName(), id, callback);
+        } else {
+            stackmob.getDatastore().delete(getSchemaName(), id, callback);
+        }
     }
 
     public void exists(StackMobExistsCallback callback) {
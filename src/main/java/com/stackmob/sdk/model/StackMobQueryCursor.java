@@ -0,0 +1,285 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.exception.StackMobHTTPResponseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.*;
+
+/**
+ * Reads the results of a query a page at a time, fetching the next pages in the background while you work on the
+ * current one, so reading a large result is limited by how fast the pages arrive rather than by waiting on each
+ * one in turn:
+ *
+ * <pre>
+ * {@code
+ * StackMobQueryCursor<Task> cursor = StackMobModel.cursor(Task.class, new StackMobQuery()).withPageSize(500);
+ * while(cursor.hasNextPage()) {
+ *     for(Task task : cursor.nextPage()) {
+ *         ...
+ *     }
+ * }
+ * }
+ * </pre>
+ *
+ * The first page says how many objects the query matched, and nothing else is fetched until it arrives. After
+ * that up to {@link #withPrefetch(int)} pages are fetched ahead of the one you're on, which bounds the memory held
+ * to the page you're working on plus that many more. {@link #hasNextPage()} and {@link #nextPage()} wait for the
+ * page to arrive, so don't use a cursor on the ui thread. A cursor should only be read from one thread at a time
+ *
+ * @param <T> the model class the query is on
+ */
+public class StackMobQueryCursor<T extends StackMobModel> implements Iterator<List<T>> {
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int DEFAULT_PREFETCH = 1;
+
+    private static final int UNKNOWN = Integer.MAX_VALUE;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+
+    private static class Page<T> {
+        final List<T> models;
+        final StackMobException error;
+
+        Page(List<T> models, StackMobException error) {
+            this.models = models;
+            this.error = error;
+        }
+    }
+
+    private final StackMob stackmob;
+    private final Class<T> modelClass;
+    private final StackMobQuery query;
+    private StackMobOptions options = StackMobOptions.none();
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int prefetch = DEFAULT_PREFETCH;
+
+    // guarded by this
+    private final Map<Integer, Page<T>> arrived = new HashMap<Integer, Page<T>>();
+    private boolean started = false;
+    private boolean closed = false;
+    private boolean firstPageArrived = false;
+    private int nextToRequest = 0;
+    private int nextToDeliver = 0;
+    private int lastPage = UNKNOWN;
+    private int total = -1;
+
+    StackMobQueryCursor(StackMob stackmob, Class<T> modelClass, StackMobQuery query) {
+        this.stackmob = stackmob;
+        this.modelClass = modelClass;
+        this.query = query;
+    }
+
+    private synchronized void checkNotStarted() {
+        if(started) throw new IllegalStateException("The cursor has already started reading");
+    }
+
+    /**
+     * @param pageSize how many objects to read in each request
+     * @return this cursor
+     */
+    public StackMobQueryCursor<T> withPageSize(int pageSize) {
+        if(pageSize < 1) throw new IllegalArgumentException("pageSize must be positive");
+        checkNotStarted();
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param pages how many pages to fetch ahead of the one being worked on. 0 only fetches a page when it's asked for
+     * @return this cursor
+     */
+    public StackMobQueryCursor<T> withPrefetch(int pages) {
+        if(pages < 0) throw new IllegalArgumentException("pages can't be negative");
+        checkNotStarted();
+        this.prefetch = pages;
+        return this;
+    }
+
+    /**
+     * @param options options, such as select and expand, to apply to every page
+     * @return this cursor
+     */
+    public StackMobQueryCursor<T> withOptions(StackMobOptions options) {
+        checkNotStarted();
+        this.options = options;
+        return this;
+    }
+
+    /**
+     * @return the number of objects the query matched when the first page was read, or -1 if the first page hasn't
+     *         arrived or the server didn't say
+     */
+    public synchronized int getTotal() {
+        return total;
+    }
+
+    /**
+     * wait for the next page if it hasn't arrived yet
+     * @return whether there's another page
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean hasNextPage() throws InterruptedException {
+        send(claim(0));
+        synchronized(this) {
+            while(true) {
+                if(closed || nextToDeliver > lastPage) return false;
+                Page<T> page = arrived.get(nextToDeliver);
+                if(page != null) return page.error != null || !page.models.isEmpty();
+                wait();
+            }
+        }
+    }
+
+    /**
+     * get the next page, waiting for it if it hasn't arrived yet, and start fetching the ones after it
+     * @return the models in the page
+     * @throws StackMobException if the page couldn't be read. The cursor ends there
+     * @throws InterruptedException if interrupted while waiting
+     * @throws NoSuchElementException if there are no more pages
+     */
+    public List<T> nextPage() throws StackMobException, InterruptedException {
+        if(!hasNextPage()) throw new NoSuchElementException();
+        Page<T> page;
+        synchronized(this) {
+            page = arrived.remove(nextToDeliver++);
+        }
+        if(page.error != null) throw page.error;
+        send(claim(prefetch - 1));
+        return page.models;
+    }
+
+    /**
+     * stop fetching pages. Pages already on their way are thrown away when they arrive
+     */
+    public synchronized void close() {
+        closed = true;
+        arrived.clear();
+        notifyAll();
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            return hasNextPage();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a page", e);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException wrapping the {@link StackMobException} if the page couldn't be read
+     */
+    @Override
+    public List<T> next() {
+        try {
+            return nextPage();
+        } catch(StackMobException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for a page", e);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @param ahead how many pages past the next one to fetch
+     * @return the pages that should be requested now
+     */
+    private synchronized List<Integer> claim(int ahead) {
+        started = true;
+        List<Integer> pages = new ArrayList<Integer>();
+        if(closed) return pages;
+        // Until the first page says how many there are, asking for more could run past the end
+        long upTo = firstPageArrived ? Math.min((long) nextToDeliver + ahead, lastPage) : 0;
+        while(nextToRequest <= upTo) {
+            pages.add(nextToRequest++);
+        }
+        return pages;
+    }
+
+    private void send(List<Integer> pages) {
+        for(int page : pages) {
+            send(page);
+        }
+    }
+
+    private void send(final int page) {
+        StackMobQuery pageQuery = query.copy().isInRange(page * pageSize, (page + 1) * pageSize - 1);
+        stackmob.getDatastore().get(pageQuery, options, new StackMobStreamingCallback() {
+            @Override
+            public void success(InputStream responseBody) throws IOException {
+                List<T> models;
+                try {
+                    models = StackMobModel.listFromJson(stackmob, modelClass, new JsonReader(new InputStreamReader(responseBody, "UTF-8")));
+                } catch(JsonParseException e) {
+                    failure(new StackMobException(e.getMessage()));
+                    return;
+                } catch(IllegalStateException e) {
+                    failure(new StackMobException(e.getMessage()));
+                    return;
+                }
+                arrived(page, models, getTotalObjectCountFromPagination(), null);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                if(e instanceof StackMobHTTPResponseException && ((StackMobHTTPResponseException) e).getCode() == RANGE_NOT_SATISFIABLE) {
+                    // past the end of a result whose size the server didn't know
+                    arrived(page, new ArrayList<T>(), -1, null);
+                } else {
+                    arrived(page, null, -1, e);
+                }
+            }
+        });
+    }
+
+    private synchronized void arrived(int page, List<T> models, int total, StackMobException error) {
+        if(closed || page > lastPage) return;
+        if(page == 0) {
+            firstPageArrived = true;
+            if(error == null) {
+                this.total = total;
+                if(total >= 0) {
+                    lastPage = Math.max(0, (total + pageSize - 1) / pageSize - 1);
+                } else if(total == -1) {
+                    // no Content-Range means everything came back at once
+                    lastPage = 0;
+                }
+            }
+        }
+        if(error != null || models.size() < pageSize) lastPage = Math.min(lastPage, page);
+        arrived.put(page, new Page<T>(models, error));
+        notifyAll();
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.model;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobOptions;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobCountCallback;
+import com.stackmob.sdk.callback.StackMobScanCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.*;
+
+/**
+ * Reads every object matching a query as fast as possible, for things like exports and reindexing. The scan counts
+ * the objects first, splits them into partitions by range, and fetches several partitions at once:
+ *
+ * <pre>
+ * {@code
+ * StackMobModel.scan(Task.class, new StackMobQuery().fieldIsOrderedBy("task_id", StackMobQuery.Ordering.ASCENDING))
+ *              .withConcurrency(8)
+ *              .start(new StackMobScanCallback<Task>() {
+ *                  ...
+ *              });
+ * }
+ * </pre>
+ *
+ * Partitions are delivered as they arrive unless {@link #withOrdered(boolean)} is set, in which case they're
+ * delivered in range order. Either way at most {@link #withConcurrency(int)} partitions are held at once. A
+ * partition that fails is retried on its own, and the scan only fails once a partition runs out of retries. The
+ * count is taken when the scan starts, so objects added while it's running may be missed; give the query an
+ * ordering on a field that doesn't change, such as the id, so the ranges don't shift between requests
+ *
+ * @param <T> the model class being scanned
+ */
+public class StackMobScan<T extends StackMobModel> {
+
+    public static final int DEFAULT_PARTITION_SIZE = 500;
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_RETRIES = 2;
+
+    private final StackMob stackmob;
+    private final Class<T> modelClass;
+    private final StackMobQuery query;
+    private StackMobOptions options = StackMobOptions.none();
+    private int partitionSize = DEFAULT_PARTITION_SIZE;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private int retries = DEFAULT_RETRIES;
+    private boolean ordered = false;
+
+    // guarded by this
+    private StackMobScanCallback<T> callback;
+    private final TreeMap<Integer, List<T>> ready = new TreeMap<Integer, List<T>>();
+    private int partitions = -1;
+    private int nextToLaunch = 0;
+    private int nextToDeliver = 0;
+    private int delivered = 0;
+    private long count = 0;
+    private boolean delivering = false;
+    private boolean finished = false;
+    private StackMobException error;
+
+    StackMobScan(StackMob stackmob, Class<T> modelClass, StackMobQuery query) {
+        this.stackmob = stackmob;
+        this.modelClass = modelClass;
+        this.query = query;
+    }
+
+    private synchronized void checkNotStarted() {
+        if(callback != null) throw new IllegalStateException("The scan has already started");
+    }
+
+    /**
+     * @param partitionSize how many objects to read in each request
+     * @return this scan
+     */
+    public StackMobScan<T> withPartitionSize(int partitionSize) {
+        if(partitionSize < 1) throw new IllegalArgumentException("partitionSize must be positive");
+        checkNotStarted();
+        this.partitionSize = partitionSize;
+        return this;
+    }
+
+    /**
+     * @param concurrency how many partitions to fetch at once
+     * @return this scan
+     */
+    public StackMobScan<T> withConcurrency(int concurrency) {
+        if(concurrency < 1) throw new IllegalArgumentException("concurrency must be positive");
+        checkNotStarted();
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param retries how many more times to try a partition that fails before giving up on the scan
+     * @return this scan
+     */
+    public StackMobScan<T> withRetries(int retries) {
+        if(retries < 0) throw new IllegalArgumentException("retries can't be negative");
+        checkNotStarted();
+        this.retries = retries;
+        return this;
+    }
+
+    /**
+     * @param ordered whether to deliver partitions in range order rather than as they arrive
+     * @return this scan
+     */
+    public StackMobScan<T> withOrdered(boolean ordered) {
+        checkNotStarted();
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * @param options options, such as select and expand, to apply to every partition
+     * @return this scan
+     */
+    public StackMobScan<T> withOptions(StackMobOptions options) {
+        checkNotStarted();
+        this.options = options;
+        return this;
+    }
+
+    /**
+     * start the scan. A scan can only be started once
+     * @param callback receives the partitions and the result
+     */
+    public void start(StackMobScanCallback<T> callback) {
+        synchronized(this) {
+            checkNotStarted();
+            this.callback = callback;
+        }
+        stackmob.getDatastore().count(query.copy(), new StackMobCountCallback() {
+            @Override
+            public void success(long count) {
+                synchronized(StackMobScan.this) {
+                    partitions = (int) ((Math.max(count, 0) + partitionSize - 1) / partitionSize);
+                }
+                launch();
+                deliver();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                fail(e);
+            }
+        });
+    }
+
+    /**
+     * stop the scan. Partitions on their way are thrown away, and the callback isn't called again
+     */
+    public synchronized void cancel() {
+        finished = true;
+        ready.clear();
+    }
+
+    private void launch() {
+        List<Integer> toSend = new ArrayList<Integer>();
+        synchronized(this) {
+            // everything launched but not yet handed over counts, so a slow consumer doesn't let partitions pile up
+            while(!finished && error == null && nextToLaunch < partitions && nextToLaunch - delivered < concurrency) {
+                toSend.add(nextToLaunch++);
+            }
+        }
+        for(int partition : toSend) {
+            send(partition, retries);
+        }
+    }
+
+    private synchronized boolean isFinished() {
+        return finished || error != null;
+    }
+
+    private void send(final int partition, final int retriesLeft) {
+        int start = partition * partitionSize;
+        StackMobQuery partitionQuery = query.copy().isInRange(start, start + partitionSize - 1);
+        stackmob.getDatastore().get(partitionQuery, options, new StackMobStreamingCallback() {
+            @Override
+            public void success(InputStream responseBody) throws IOException {
+                List<T> models;
+                try {
+                    models = StackMobModel.listFromJson(stackmob, modelClass, new JsonReader(new InputStreamReader(responseBody, "UTF-8")));
+                } catch(JsonParseException e) {
+                    failure(new StackMobException(e.getMessage()));
+                    return;
+                } catch(IllegalStateException e) {
+                    failure(new StackMobException(e.getMessage()));
+                    return;
+                }
+                arrived(partition, models);
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                if(isFinished()) return;
+                if(retriesLeft > 0) {
+                    send(partition, retriesLeft - 1);
+                } else {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    private void arrived(int partition, List<T> models) {
+        synchronized(this) {
+            if(finished) return;
+            ready.put(partition, models);
+        }
+        deliver();
+    }
+
+    private void fail(StackMobException e) {
+        synchronized(this) {
+            if(error == null) error = e;
+        }
+        deliver();
+    }
+
+    /**
+     * hand ready partitions to the callback. Whichever thread finds nobody else delivering does it, so the callback
+     * is never called from two threads at once
+     */
+    private void deliver() {
+        while(true) {
+            List<T> models = null;
+            StackMobException failed = null;
+            boolean succeeded = false;
+            long total = 0;
+            StackMobScanCallback<T> callback;
+            synchronized(this) {
+                if(delivering || finished) return;
+                callback = this.callback;
+                if(error != null) {
+                    finished = true;
+                    ready.clear();
+                    failed = error;
+                } else if(!ready.isEmpty() && (!ordered || ready.firstKey() == nextToDeliver)) {
+                    models = ready.remove(ready.firstKey());
+                    nextToDeliver++;
+                    delivered++;
+                    count += models.size();
+                    delivering = true;
+                } else if(delivered == partitions) {
+                    finished = true;
+                    succeeded = true;
+                    total = count;
+                } else {
+                    return;
+                }
+            }
+            if(failed != null) {
+                callback.failure(failed);
+                return;
+            }
+            if(succeeded) {
+                callback.success(total);
+                return;
+            }
+            try {
+                callback.partition(models);
+            } finally {
+                synchronized(this) {
+                    delivering = false;
+                }
+            }
+            launch();
+        }
+    }
+}
@@ -0,0 +1,518 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.Request;
+import org.scribe.model.Verb;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Encoding and decoding of HTTP/1.1 messages for the transports in this package
+ */
+class HttpMessages {
+
+    static final String HEADER_CHARSET = "ISO-8859-1";
+    static final String DEFAULT_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+    private HttpMessages() { }
+
+    static int portOf(URL url) {
+        return url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+    }
+
+    static boolean isSecure(URL url) {
+        return "https".equalsIgnoreCase(url.getProtocol());
+    }
+
+    static String hostKey(URL url) {
+        return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + portOf(url);
+    }
+
+    /**
+     * Ask the TLS stack to check the certificate against the host name during the handshake. The API for this only
+     * exists on Java 7 and up, so it's looked up reflectively
+     * @return whether the check was enabled
+     */
+    static boolean requireHostnameInHandshake(SSLParameters params) {
+        try {
+            Method setAlgorithm = SSLParameters.class.getMethod("setEndpointIdentificationAlgorithm", String.class);
+            setAlgorithm.invoke(params, "HTTPS");
+            return true;
+        } catch(Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * make sure the certificate presented matches the host we meant to connect to
+     * @param verifiedInHandshake whether {@link #requireHostnameInHandshake(SSLParameters)} succeeded for the connection
+     */
+    static void verifyHostname(String host, SSLSession session, boolean verifiedInHandshake) throws SSLPeerUnverifiedException {
+        HostnameVerifier verifier = HttpsURLConnection.getDefaultHostnameVerifier();
+        // The JDK's default verifier rejects everything, it expects the check to happen in the handshake
+        boolean placeholderVerifier = verifier.getClass().getName().equals("javax.net.ssl.HttpsURLConnection$DefaultHostnameVerifier");
+        if(!(verifiedInHandshake && placeholderVerifier) && !verifier.verify(host, session)) {
+            throw new SSLPeerUnverifiedException("Certificate does not match host " + host);
+        }
+    }
+
+    static boolean hasPayload(Verb verb) {
+        return verb == Verb.POST || verb == Verb.PUT;
+    }
+
+    /**
+     * whether a request can be sent again after it may have reached the server without taking effect twice. PUT
+     * isn't, since the api uses it for [inc] counters and appending to relationships
+     */
+    static boolean isSafeToResend(Verb verb) {
+        return verb == Verb.GET || verb == Verb.HEAD || verb == Verb.DELETE;
+    }
+
+    /**
+     * serialize a request, including its body, into the bytes to write to the connection
+     */
+    static byte[] encodeRequest(Request request, URL url) throws IOException {
+        return encodeRequest(request, url, false);
+    }
+
+    /**
+     * serialize a request, including its body, into the bytes to write to the connection
+     * @param absoluteTarget whether to put the whole url in the request line, as an http proxy needs
+     */
+    static byte[] encodeRequest(Request request, URL url, boolean absoluteTarget) throws IOException {
+        byte[] body = null;
+        if(hasPayload(request.getVerb())) {
+            String contents = request.getBodyContents();
+            body = contents == null ? new byte[0] : contents.getBytes(request.getCharset());
+        }
+
+        StringBuilder head = new StringBuilder(512);
+        String path = url.getFile().length() == 0 ? "/" : url.getFile();
+        String target = absoluteTarget ? new URL(url.getProtocol(), url.getHost(), url.getPort(), path).toString() : path;
+        head.append(request.getVerb().name()).append(' ').append(target).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if(url.getPort() != -1 && url.getPort() != url.getDefaultPort()) head.append(':').append(url.getPort());
+        head.append("\r\n");
+        boolean hasContentType = false;
+        for(Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+            String name = header.getKey();
+            if(name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Connection")) continue;
+            if(name.equalsIgnoreCase("Content-Type")) hasContentType = true;
+            head.append(name).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if(body != null) {
+            if(!hasContentType) head.append("Content-Type: ").append(DEFAULT_CONTENT_TYPE).append("\r\n");
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("Connection: keep-alive\r\n\r\n");
+
+        byte[] headBytes = head.toString().getBytes(HEADER_CHARSET);
+        if(body == null || body.length == 0) return headBytes;
+        byte[] message = new byte[headBytes.length + body.length];
+        System.arraycopy(headBytes, 0, message, 0, headBytes.length);
+        System.arraycopy(body, 0, message, headBytes.length, body.length);
+        return message;
+    }
+
+    /**
+     * The status line and headers of a response
+     */
+    static class ResponseHead {
+        int code;
+        boolean http11;
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        String header(String name) {
+            for(Map.Entry<String, String> header : headers.entrySet()) {
+                if(name.equalsIgnoreCase(header.getKey())) return header.getValue();
+            }
+            return null;
+        }
+
+        /**
+         * whether the connection may be used again after this response's body has been read
+         */
+        boolean keepAlive() {
+            String connection = header("Connection");
+            if(connection != null && connection.toLowerCase().contains("close")) return false;
+            return http11 || (connection != null && connection.toLowerCase().contains("keep-alive"));
+        }
+
+        boolean isChunked() {
+            String encoding = header("Transfer-Encoding");
+            return encoding != null && encoding.toLowerCase().contains("chunked");
+        }
+
+        /**
+         * the declared body length, or -1 if the body is chunked or runs until the connection closes
+         */
+        long contentLength(Verb verb) throws IOException {
+            if(verb == Verb.HEAD || code == 204 || code == 304 || (code >= 100 && code < 200)) return 0;
+            if(isChunked()) return -1;
+            String length = header("Content-Length");
+            if(length == null) return -1;
+            try {
+                return Long.parseLong(length.trim());
+            } catch(NumberFormatException e) {
+                throw new IOException("Malformed Content-Length: " + length);
+            }
+        }
+
+        void parseStatusLine(String line) throws IOException {
+            String[] parts = line.split(" ", 3);
+            if(parts.length < 2 || !parts[0].startsWith("HTTP/")) throw new IOException("Malformed status line: " + line);
+            http11 = !parts[0].equals("HTTP/1.0");
+            try {
+                code = Integer.parseInt(parts[1]);
+            } catch(NumberFormatException e) {
+                throw new IOException("Malformed status line: " + line);
+            }
+        }
+
+        void parseHeaderLine(String line) {
+            int colon = line.indexOf(':');
+            if(colon > 0) headers.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+    }
+
+    /**
+     * read the status line and headers, skipping any interim 1xx responses
+     * @throws EOFException if the connection closed before the status line arrived
+     */
+    static ResponseHead readResponseHead(InputStream in) throws IOException {
+        while(true) {
+            String statusLine = readLine(in);
+            if(statusLine == null) throw new EOFException("Connection closed before a response was received");
+            ResponseHead head = new ResponseHead();
+            head.parseStatusLine(statusLine);
+            String line;
+            while((line = readLine(in)) != null && line.length() > 0) {
+                head.parseHeaderLine(line);
+            }
+            if(head.code >= 200 || head.code == 101) return head;
+        }
+    }
+
+    /**
+     * read a CRLF (or bare LF) terminated line
+     * @return the line without its terminator, or null at end of stream
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while((b = in.read()) != -1) {
+            if(b == '\n') {
+                return trimCR(line);
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : trimCR(line);
+    }
+
+    private static String trimCR(ByteArrayOutputStream line) throws UnsupportedEncodingException {
+        String s = line.toString(HEADER_CHARSET);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /**
+     * A body with a known length
+     */
+    static class FixedLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        FixedLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        boolean isComplete() {
+            return remaining == 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(remaining == 0) return -1;
+            int b = in.read();
+            if(b == -1) throw new EOFException("Connection closed with " + remaining + " bytes of the body remaining");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if(remaining == 0) return -1;
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if(read == -1) throw new EOFException("Connection closed with " + remaining + " bytes of the body remaining");
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * A body sent with chunked transfer encoding
+     */
+    static class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long chunkRemaining = 0;
+        private boolean complete = false;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if(complete) return false;
+            if(chunkRemaining == 0) {
+                String sizeLine = readLine(in);
+                if(sizeLine == null) throw new EOFException("Connection closed in a chunked body");
+                int extension = sizeLine.indexOf(';');
+                if(extension >= 0) sizeLine = sizeLine.substring(0, extension);
+                try {
+                    chunkRemaining = Long.parseLong(sizeLine.trim(), 16);
+                } catch(NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + sizeLine);
+                }
+                if(chunkRemaining == 0) {
+                    // Skip any trailers
+                    String trailer;
+                    while((trailer = readLine(in)) != null && trailer.length() > 0) { }
+                    complete = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void endOfData(int read) throws IOException {
+            chunkRemaining -= read;
+            if(chunkRemaining == 0) readLine(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!nextChunk()) return -1;
+            int b = in.read();
+            if(b == -1) throw new EOFException("Connection closed in a chunked body");
+            endOfData(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if(!nextChunk()) return -1;
+            int read = in.read(buffer, offset, (int) Math.min(length, chunkRemaining));
+            if(read == -1) throw new EOFException("Connection closed in a chunked body");
+            endOfData(read);
+            return read;
+        }
+    }
+    /**
+     * A growable byte buffer that can be read back without copying it
+     */
+    private static class BodyBuffer extends ByteArrayOutputStream {
+        BodyBuffer(int size) {
+            super(size);
+        }
+
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+
+    /**
+     * Parses a response incrementally as bytes arrive from a non-blocking connection, buffering the body
+     */
+    static class ResponseParser {
+        private static final int STATUS = 0, HEADERS = 1, FIXED = 2, CHUNK_SIZE = 3, CHUNK_DATA = 4, CHUNK_END = 5,
+                                 TRAILERS = 6, UNTIL_CLOSE = 7, DONE = 8;
+
+        private final Verb verb;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        private BodyBuffer body;
+        private ResponseHead head = new ResponseHead();
+        private int state = STATUS;
+        private long remaining;
+        private long received = 0;
+
+        ResponseParser(Verb verb) {
+            this.verb = verb;
+        }
+
+        /**
+         * @return the number of response bytes seen so far
+         */
+        long received() {
+            return received;
+        }
+
+        boolean isComplete() {
+            return state == DONE;
+        }
+
+        /**
+         * consume bytes from the buffer
+         * @return true once the whole response has been read. Any bytes after the response are left in the buffer
+         */
+        boolean feed(ByteBuffer buffer) throws IOException {
+            while(buffer.hasRemaining() && state != DONE) {
+                int before = buffer.position();
+                switch(state) {
+                    case STATUS:
+                    case HEADERS:
+                    case CHUNK_SIZE:
+                    case CHUNK_END:
+                    case TRAILERS: {
+                        String completed = readLine(buffer);
+                        if(completed != null) onLine(completed);
+                        break;
+                    }
+                    case FIXED:
+                    case CHUNK_DATA: {
+                        int length = (int) Math.min(buffer.remaining(), remaining);
+                        copyToBody(buffer, length);
+                        remaining -= length;
+                        if(remaining == 0) state = state == FIXED ? DONE : CHUNK_END;
+                        break;
+                    }
+                    case UNTIL_CLOSE: {
+                        copyToBody(buffer, buffer.remaining());
+                        break;
+                    }
+                }
+                received += buffer.position() - before;
+            }
+            return state == DONE;
+        }
+
+        /**
+         * the connection closed
+         * @return true if that marks the end of a complete response
+         */
+        boolean endOfStream() {
+            if(state == UNTIL_CLOSE) state = DONE;
+            return state == DONE;
+        }
+
+        boolean keepAlive() {
+            return state == DONE && head.keepAlive();
+        }
+
+        StackMobHttpResponse toResponse() {
+            InputStream stream = body == null ? null : body.toInputStream();
+            return new StackMobHttpResponse(head.code, head.headers, stream);
+        }
+
+        private void copyToBody(ByteBuffer buffer, int length) {
+            if(body == null) body = new BodyBuffer(state == FIXED ? (int) Math.min(remaining, 1 << 20) : 4096);
+            if(buffer.hasArray()) {
+                body.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                buffer.position(buffer.position() + length);
+            } else {
+                byte[] chunk = new byte[length];
+                buffer.get(chunk);
+                body.write(chunk, 0, length);
+            }
+        }
+
+        private String readLine(ByteBuffer buffer) throws UnsupportedEncodingException {
+            while(buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if(b == '\n') {
+                    String completed = trimCR(line);
+                    line.reset();
+                    return completed;
+                }
+                line.write(b);
+            }
+            return null;
+        }
+
+        private void onLine(String text) throws IOException {
+            switch(state) {
+                case STATUS:
+                    head.parseStatusLine(text);
+                    state = HEADERS;
+                    break;
+                case HEADERS:
+                    if(text.length() > 0) {
+                        head.parseHeaderLine(text);
+                    } else if(head.code < 200 && head.code != 101) {
+                        // Interim response, the real one follows
+                        head = new ResponseHead();
+                        state = STATUS;
+                    } else {
+                        long length = head.contentLength(verb);
+                        if(length == 0) {
+                            state = DONE;
+                        } else if(length > 0) {
+                            remaining = length;
+                            state = FIXED;
+                        } else if(head.isChunked()) {
+                            state = CHUNK_SIZE;
+                        } else {
+                            state = UNTIL_CLOSE;
+                        }
+                    }
+                    break;
+                case CHUNK_SIZE: {
+                    int extension = text.indexOf(';');
+                    String size = extension >= 0 ? text.substring(0, extension) : text;
+                    try {
+                        remaining = Long.parseLong(size.trim(), 16);
+                    } catch(NumberFormatException e) {
+                        throw new IOException("Malformed chunk size: " + text);
+                    }
+                    state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                    break;
+                }
+                case CHUNK_END:
+                    state = CHUNK_SIZE;
+                    break;
+                case TRAILERS:
+                    if(text.length() == 0) state = DONE;
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.Request;
+
+import java.io.IOException;
+
+/**
+ * A {@link StackMobHttpTransport} that can send a request without holding a thread while it waits for the server.
+ * When the session's transport implements this, requests only occupy an executor thread while their response is
+ * being handled, so many requests can be in flight at once without a thread apiece.
+ */
+public interface StackMobAsyncHttpTransport extends StackMobHttpTransport {
+
+    /**
+     * Receives the outcome of an asynchronous request. Exactly one of the methods is called, usually on one of the
+     * transport's I/O threads, so implementations should hand off any real work rather than doing it inline
+     */
+    public interface ResponseHandler {
+        /**
+         * @param response the complete response. Its body is already buffered in memory
+         */
+        void completed(StackMobHttpResponse response);
+
+        /**
+         * @param e the reason the request couldn't be completed
+         */
+        void failed(IOException e);
+    }
+
+    /**
+     * start sending a request and return immediately
+     * @param request the fully built and signed request
+     * @param handler notified once the response has arrived or the request has failed
+     */
+    void executeAsync(Request request, ResponseHandler handler);
+}
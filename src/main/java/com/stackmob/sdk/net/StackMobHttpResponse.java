@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A response returned by a {@link StackMobHttpTransport}. The body is exposed as a stream so the transport can
+ * reuse the underlying connection once it has been read to the end or closed.
+ */
+public class StackMobHttpResponse {
+
+    private final int code;
+    private final Map<String, String> headers;
+    private final InputStream body;
+
+    /**
+     * create a response
+     * @param code the HTTP status code
+     * @param headers the response headers. If a header was repeated the last value wins
+     * @param body the response body, or null if there isn't one
+     */
+    public StackMobHttpResponse(int code, Map<String, String> headers, InputStream body) {
+        this.code = code;
+        this.headers = Collections.unmodifiableMap(headers);
+        this.body = body == null ? new ByteArrayInputStream(new byte[0]) : body;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * get the response headers in the form callbacks receive them
+     * @return a new list with the headers
+     */
+    public List<Map.Entry<String, String>> getHeaderList() {
+        return new ArrayList<Map.Entry<String, String>>(headers.entrySet());
+    }
+
+    /**
+     * look up a header, ignoring case
+     * @param name the header name
+     * @return the value, or null if the header wasn't sent
+     */
+    public String getHeader(String name) {
+        for(Map.Entry<String, String> header : headers.entrySet()) {
+            if(name.equalsIgnoreCase(header.getKey())) return header.getValue();
+        }
+        return null;
+    }
+
+    public InputStream getBody() {
+        return body;
+    }
+
+    /**
+     * release the response. Unread body content is discarded
+     */
+    public void close() {
+        try {
+            body.close();
+        } catch(IOException ignore) { }
+    }
+}
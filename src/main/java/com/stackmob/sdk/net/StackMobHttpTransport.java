@@ -0,0 +1,46 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.Request;
+
+import java.io.IOException;
+
+/**
+ * The interface StackMob requests use to put bytes on the wire. A request is built and signed as a scribe
+ * {@link Request}, then handed to the session's transport, which is responsible for connecting to the host,
+ * sending it and returning the response. The default is {@link StackMobPooledHttpTransport}; set a different
+ * one with {@link com.stackmob.sdk.api.StackMobSession#setHttpTransport(StackMobHttpTransport)}.
+ * Implementations must be thread safe.
+ */
+public interface StackMobHttpTransport {
+
+    /**
+     * send a request and wait for the response status and headers. The body of the returned response may still
+     * be streaming from the server, and must be read or closed by the caller
+     * @param request the fully built and signed request
+     * @return the response
+     * @throws IOException if the request couldn't be sent or the response couldn't be read
+     */
+    StackMobHttpResponse execute(Request request) throws IOException;
+
+    /**
+     * release any connections or threads held by this transport. Requests executed afterwards may fail
+     */
+    void shutdown();
+}
@@ -0,0 +1,904 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.Request;
+import org.scribe.model.Verb;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking {@link StackMobAsyncHttpTransport}. A small, fixed number of I/O threads multiplex every connection
+ * with a selector, so thousands of outstanding requests cost buffers rather than threads. Connections are kept alive
+ * and reused per host just like {@link StackMobPooledHttpTransport}.
+ *
+ * The number of requests on the wire is bounded; requests beyond the limit wait in a queue without holding a thread,
+ * and requests beyond the queue limit fail immediately. Responses are buffered in memory before being handed back.
+ * Unlike {@link StackMobPooledHttpTransport}, it always connects directly and ignores any configured proxy.
+ * <pre>
+ * {@code
+ * session.setHttpTransport(new StackMobNioHttpTransport().withIOThreads(2).withMaxInFlight(500));
+ * }
+ * </pre>
+ */
+public class StackMobNioHttpTransport implements StackMobAsyncHttpTransport {
+
+    public static final int DEFAULT_IO_THREADS = 1;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    public static final int DEFAULT_MAX_QUEUED = 10000;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 32;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long TIMEOUT_CHECK_INTERVAL_MILLIS = 250;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Object admissionLock = new Object();
+    private final LinkedList<Exchange> queued = new LinkedList<Exchange>();
+    private int inFlight = 0;
+    private IOLoop[] loops;
+
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int maxQueued = DEFAULT_MAX_QUEUED;
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private boolean tcpNoDelay = true;
+    private SSLContext sslContext = null;
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param threads the number of selector threads. One is plenty for most clients
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withIOThreads(int threads) {
+        if(threads < 1) throw new IllegalArgumentException("At least one I/O thread is required");
+        this.ioThreads = threads;
+        return this;
+    }
+
+    /**
+     * @param max the most requests that can be sent or awaiting a response at once, across all hosts
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withMaxInFlight(int max) {
+        if(max < 1) throw new IllegalArgumentException("At least one request must be allowed in flight");
+        this.maxInFlight = max;
+        return this;
+    }
+
+    /**
+     * @param max the most requests that can wait for an in flight slot. Requests beyond this fail immediately
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withMaxQueued(int max) {
+        if(max < 0) throw new IllegalArgumentException("The queue limit can't be negative");
+        this.maxQueued = max;
+        return this;
+    }
+
+    /**
+     * @param max the maximum number of connections to a single host. Requests beyond that wait for a connection
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withMaxConnectionsPerHost(int max) {
+        if(max < 1) throw new IllegalArgumentException("At least one connection per host is required");
+        this.maxConnectionsPerHost = max;
+        return this;
+    }
+
+    /**
+     * @param millis how long to wait to establish a connection, 0 for no limit
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withConnectTimeout(int millis) {
+        this.connectTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param millis how long to wait without hearing from the server before failing a request, 0 for no limit
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withReadTimeout(int millis) {
+        this.readTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param millis how long an idle connection is kept for reuse before it's closed
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withKeepAlive(long millis) {
+        this.keepAliveMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param tcpNoDelay whether to disable Nagle's algorithm. Enabled by default since requests are small
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * @param context the context to create https connections with, defaults to the platform's
+     * @return this transport
+     */
+    public StackMobNioHttpTransport withSSLContext(SSLContext context) {
+        this.sslContext = context;
+        return this;
+    }
+
+    /**
+     * @return the number of requests currently on the wire
+     */
+    public int getInFlightCount() {
+        synchronized(admissionLock) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * @return the number of requests waiting for an in flight slot
+     */
+    public int getQueuedCount() {
+        synchronized(admissionLock) {
+            return queued.size();
+        }
+    }
+
+    /**
+     * the number of idle connections currently kept for a host
+     * @param url any url on the host
+     * @return the idle connection count
+     */
+    public int getIdleConnectionCount(URL url) {
+        Host host = hosts.get(HttpMessages.hostKey(url));
+        return host == null ? 0 : host.idleCount();
+    }
+
+    @Override
+    public void executeAsync(Request request, ResponseHandler handler) {
+        Exchange exchange;
+        try {
+            if(shutdown) throw new IOException("Transport has been shut down");
+            URL url = new URL(request.getCompleteUrl());
+            exchange = new Exchange(request.getVerb(), url, HttpMessages.encodeRequest(request, url), handler);
+        } catch(IOException e) {
+            handler.failed(e);
+            return;
+        }
+        boolean admitted = false;
+        boolean rejected = false;
+        synchronized(admissionLock) {
+            if(inFlight < maxInFlight) {
+                inFlight++;
+                admitted = true;
+            } else if(queued.size() < maxQueued) {
+                queued.add(exchange);
+            } else {
+                rejected = true;
+            }
+        }
+        if(admitted) {
+            dispatch(exchange);
+        } else if(rejected) {
+            exchange.fail(new IOException("Too many requests in flight"));
+        }
+    }
+
+    @Override
+    public StackMobHttpResponse execute(Request request) throws IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final StackMobHttpResponse[] response = new StackMobHttpResponse[1];
+        final IOException[] failure = new IOException[1];
+        executeAsync(request, new ResponseHandler() {
+            @Override
+            public void completed(StackMobHttpResponse r) {
+                response[0] = r;
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(IOException e) {
+                failure[0] = e;
+                latch.countDown();
+            }
+        });
+        try {
+            latch.await();
+        } catch(InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a response");
+        }
+        if(failure[0] != null) throw failure[0];
+        return response[0];
+    }
+
+    @Override
+    public void shutdown() {
+        LinkedList<Exchange> abandoned;
+        synchronized(admissionLock) {
+            shutdown = true;
+            abandoned = new LinkedList<Exchange>(queued);
+            queued.clear();
+        }
+        for(Host host : hosts.values()) {
+            abandoned.addAll(host.abandonWaiting());
+        }
+        for(Exchange exchange : abandoned) {
+            exchange.fail(new IOException("Transport has been shut down"));
+        }
+        synchronized(this) {
+            if(loops != null) {
+                for(IOLoop loop : loops) {
+                    loop.close();
+                }
+            }
+        }
+    }
+
+    private void dispatch(Exchange exchange) {
+        if(shutdown) {
+            exchange.fail(new IOException("Transport has been shut down"));
+            return;
+        }
+        String key = HttpMessages.hostKey(exchange.url);
+        Host host = hosts.get(key);
+        if(host == null) {
+            Host newHost = new Host(exchange.url);
+            host = hosts.putIfAbsent(key, newHost);
+            if(host == null) host = newHost;
+        }
+        host.dispatch(exchange);
+    }
+
+    /**
+     * an exchange has finished one way or another, so its slot can go to the next queued request
+     */
+    private void finished() {
+        Exchange next;
+        synchronized(admissionLock) {
+            next = queued.poll();
+            if(next == null) inFlight--;
+        }
+        if(next != null) dispatch(next);
+    }
+
+    private synchronized IOLoop nextLoop() throws IOException {
+        if(loops == null) {
+            IOLoop[] started = new IOLoop[ioThreads];
+            for(int i = 0; i < started.length; i++) {
+                started[i] = new IOLoop(i);
+                started[i].start();
+            }
+            loops = started;
+        }
+        return loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+    }
+
+    private SSLContext getSSLContext() throws IOException {
+        if(sslContext != null) return sslContext;
+        try {
+            return SSLContext.getDefault();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException("No TLS support available: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A request on its way through the transport. Its slot is released before the handler runs, so by the time a
+     * caller hears about a response the transport's counts already reflect it
+     */
+    private class Exchange {
+        private final Verb verb;
+        private final URL url;
+        private final byte[] message;
+        private final ResponseHandler handler;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private boolean retried = false;
+
+        Exchange(Verb verb, URL url, byte[] message, ResponseHandler handler) {
+            this.verb = verb;
+            this.url = url;
+            this.message = message;
+            this.handler = handler;
+        }
+
+        void succeed(StackMobHttpResponse response) {
+            if(done.compareAndSet(false, true)) {
+                try {
+                    finished();
+                } finally {
+                    handler.completed(response);
+                }
+            }
+        }
+
+        void fail(IOException e) {
+            if(done.compareAndSet(false, true)) {
+                try {
+                    finished();
+                } finally {
+                    handler.failed(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tracks the connections to one host. Requests reuse an idle connection, open a new one if the host is under its
+     * limit, or wait for one to come free
+     */
+    private class Host {
+        private final URL url;
+        private final LinkedList<Connection> idle = new LinkedList<Connection>();
+        private final LinkedList<Exchange> waiting = new LinkedList<Exchange>();
+        private int open = 0;
+
+        Host(URL url) {
+            this.url = url;
+        }
+
+        synchronized int idleCount() {
+            return idle.size();
+        }
+
+        void dispatch(final Exchange exchange) {
+            Connection conn = null;
+            boolean openNew = false;
+            synchronized(this) {
+                if(!idle.isEmpty()) {
+                    // Most recently used first, it's the least likely to have been closed by the server
+                    conn = idle.removeFirst();
+                } else if(open < maxConnectionsPerHost) {
+                    open++;
+                    openNew = true;
+                } else {
+                    waiting.add(exchange);
+                }
+            }
+            if(conn != null) {
+                final Connection reused = conn;
+                reused.loop.execute(new Runnable() {
+                    public void run() {
+                        reused.reuse(exchange);
+                    }
+                });
+            } else if(openNew) {
+                openFor(exchange);
+            }
+        }
+
+        synchronized LinkedList<Exchange> abandonWaiting() {
+            LinkedList<Exchange> abandoned = new LinkedList<Exchange>(waiting);
+            waiting.clear();
+            return abandoned;
+        }
+
+        private void openFor(final Exchange exchange) {
+            final IOLoop loop;
+            try {
+                if(shutdown) throw new IOException("Transport has been shut down");
+                loop = nextLoop();
+            } catch(IOException e) {
+                synchronized(this) {
+                    open--;
+                }
+                exchange.fail(e);
+                return;
+            }
+            loop.execute(new Runnable() {
+                public void run() {
+                    new Connection(loop, Host.this).connect(exchange);
+                }
+            });
+        }
+
+        /**
+         * called on the connection's loop thread once it has finished an exchange and can be reused
+         */
+        void released(final Connection conn) {
+            final Exchange next;
+            synchronized(this) {
+                next = waiting.poll();
+                if(next == null) idle.addFirst(conn);
+            }
+            if(next != null) {
+                // Starting the next request has to wait until the current read has unwound
+                conn.loop.execute(new Runnable() {
+                    public void run() {
+                        conn.reuse(next);
+                    }
+                });
+            }
+        }
+
+        /**
+         * close an idle connection if it's still idle
+         */
+        void evict(Connection conn) {
+            boolean wasIdle;
+            synchronized(this) {
+                wasIdle = idle.remove(conn);
+            }
+            if(wasIdle) conn.close();
+        }
+
+        void closed(Connection conn) {
+            Exchange next;
+            synchronized(this) {
+                idle.remove(conn);
+                open--;
+                next = waiting.poll();
+                if(next != null) open++;
+            }
+            if(next != null) openFor(next);
+        }
+    }
+
+    /**
+     * A selector and the thread that services it. Everything touching a connection's channel runs on its loop's
+     * thread; other threads hand work over with {@link #execute(Runnable)}
+     */
+    private class IOLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final Set<Connection> connections = new HashSet<Connection>();
+        private volatile boolean running = true;
+
+        IOLoop(int index) throws IOException {
+            super("StackMob NIO " + index);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextTimeoutCheck = System.currentTimeMillis() + TIMEOUT_CHECK_INTERVAL_MILLIS;
+            try {
+                while(running) {
+                    selector.select(TIMEOUT_CHECK_INTERVAL_MILLIS);
+                    Runnable task;
+                    while((task = tasks.poll()) != null) {
+                        runSafely(task);
+                    }
+                    Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                    while(selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        Connection conn = (Connection) key.attachment();
+                        if(key.isValid()) conn.ready(key);
+                    }
+                    long now = System.currentTimeMillis();
+                    if(now >= nextTimeoutCheck) {
+                        checkTimeouts(now);
+                        nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL_MILLIS;
+                    }
+                }
+            } catch(IOException e) {
+                // select itself failed, nothing more this loop can do
+            } catch(ClosedSelectorException e) {
+                // shutting down
+            } finally {
+                IOException closed = new IOException("Transport has been shut down");
+                for(Connection conn : new HashSet<Connection>(connections)) {
+                    conn.fail(closed, false);
+                }
+                Runnable task;
+                while((task = tasks.poll()) != null) {
+                    runSafely(task);
+                }
+                try {
+                    selector.close();
+                } catch(IOException ignored) { }
+            }
+        }
+
+        private void runSafely(Runnable task) {
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                // A bug in one connection shouldn't take down every other one on this thread
+            }
+        }
+
+        private void checkTimeouts(long now) {
+            for(Connection conn : new HashSet<Connection>(connections)) {
+                if(conn.exchange != null) {
+                    if(conn.deadline > 0 && now > conn.deadline) {
+                        conn.fail(new SocketTimeoutException("Timed out waiting for " + conn.host.url.getHost()), false);
+                    }
+                } else if(now - conn.idleSince > keepAliveMillis) {
+                    conn.host.evict(conn);
+                }
+            }
+        }
+    }
+
+    /**
+     * One keep-alive connection. Only ever touched from its loop's thread
+     */
+    private class Connection {
+        private final IOLoop loop;
+        private final Host host;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private SSLEngine engine;
+        private boolean verifiedInHandshake;
+        private boolean handshaking = false;
+        private ByteBuffer netIn;
+        private ByteBuffer netOut;
+        private ByteBuffer appIn;
+        private ByteBuffer requestOut;
+        private HttpMessages.ResponseParser parser;
+        private Exchange exchange;
+        private boolean reused = false;
+        private boolean closed = false;
+        private long deadline = 0;
+        private long idleSince = 0;
+
+        Connection(IOLoop loop, Host host) {
+            this.loop = loop;
+            this.host = host;
+        }
+
+        void connect(Exchange first) {
+            exchange = first;
+            loop.connections.add(this);
+            try {
+                URL url = host.url;
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(tcpNoDelay);
+                key = channel.register(loop.selector, 0, this);
+                deadline = connectTimeoutMillis > 0 ? System.currentTimeMillis() + connectTimeoutMillis : 0;
+                if(channel.connect(new InetSocketAddress(url.getHost(), HttpMessages.portOf(url)))) {
+                    connected();
+                } else {
+                    key.interestOps(SelectionKey.OP_CONNECT);
+                }
+            } catch(IOException e) {
+                fail(e, false);
+            } catch(RuntimeException e) {
+                // unresolved addresses and the like
+                fail(new IOException("Couldn't connect to " + host.url.getHost() + ": " + e), false);
+            }
+        }
+
+        void reuse(Exchange next) {
+            if(closed) {
+                // the server hung up while this was being handed over
+                host.dispatch(next);
+                return;
+            }
+            exchange = next;
+            reused = true;
+            begin();
+        }
+
+        void ready(SelectionKey readyKey) {
+            try {
+                if(readyKey.isConnectable()) {
+                    if(channel.finishConnect()) connected();
+                } else {
+                    pump();
+                }
+            } catch(IOException e) {
+                fail(e, true);
+            } catch(RuntimeException e) {
+                fail(new IOException("Unexpected failure talking to " + host.url.getHost() + ": " + e), false);
+            }
+        }
+
+        private void connected() throws IOException {
+            if(HttpMessages.isSecure(host.url)) {
+                engine = getSSLContext().createSSLEngine(host.url.getHost(), HttpMessages.portOf(host.url));
+                engine.setUseClientMode(true);
+                SSLParameters params = engine.getSSLParameters();
+                verifiedInHandshake = HttpMessages.requireHostnameInHandshake(params);
+                engine.setSSLParameters(params);
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+                engine.beginHandshake();
+                handshaking = true;
+            } else {
+                appIn = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+            begin();
+        }
+
+        private void begin() {
+            parser = new HttpMessages.ResponseParser(exchange.verb);
+            requestOut = ByteBuffer.wrap(exchange.message);
+            touch();
+            try {
+                pump();
+            } catch(IOException e) {
+                fail(e, true);
+            }
+        }
+
+        private void touch() {
+            deadline = readTimeoutMillis > 0 ? System.currentTimeMillis() + readTimeoutMillis : 0;
+        }
+
+        /**
+         * make whatever progress the channel allows without blocking, then wait for it to be ready again
+         */
+        private void pump() throws IOException {
+            if(closed) return;
+            if(handshaking && !handshake()) {
+                updateInterest();
+                return;
+            }
+            if(exchange != null && requestOut.hasRemaining()) {
+                write();
+            }
+            if(!closed) read();
+            if(!closed) updateInterest();
+        }
+
+        private void updateInterest() {
+            int ops = SelectionKey.OP_READ;
+            boolean pendingOut = (requestOut != null && requestOut.hasRemaining()) || (netOut != null && netOut.position() > 0);
+            if(pendingOut) ops |= SelectionKey.OP_WRITE;
+            if(key.interestOps() != ops) key.interestOps(ops);
+        }
+
+        private void write() throws IOException {
+            if(engine == null) {
+                channel.write(requestOut);
+                return;
+            }
+            if(!flushNet()) return;
+            while(requestOut.hasRemaining()) {
+                SSLEngineResult result = engine.wrap(requestOut, netOut);
+                if(result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("Connection closed during write");
+                if(!flushNet()) return;
+            }
+        }
+
+        private void read() throws IOException {
+            boolean endOfStream = false;
+            while(true) {
+                int n = channel.read(engine == null ? appIn : netIn);
+                if(n < 0) {
+                    endOfStream = true;
+                } else if(n > 0) {
+                    touch();
+                }
+                if(engine == null) {
+                    deliver();
+                } else {
+                    unwrap();
+                }
+                if(closed || n <= 0) break;
+            }
+            if(endOfStream && !closed) endOfStream();
+        }
+
+        private void unwrap() throws IOException {
+            netIn.flip();
+            try {
+                while(netIn.hasRemaining() && !closed) {
+                    SSLEngineResult result = engine.unwrap(netIn, appIn);
+                    if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break;
+                    if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        deliver();
+                        netIn.clear();
+                        endOfStream();
+                        return;
+                    }
+                    // TLS 1.3 servers may send session tickets after the handshake
+                    runDelegatedTasks();
+                    if(engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                        engine.wrap(EMPTY, netOut);
+                        flushNet();
+                    }
+                    deliver();
+                    boolean stuck = result.bytesConsumed() == 0 && result.bytesProduced() == 0;
+                    if(stuck && result.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) break;
+                }
+            } finally {
+                netIn.compact();
+            }
+        }
+
+        /**
+         * hand decrypted bytes to the response parser
+         */
+        private void deliver() throws IOException {
+            appIn.flip();
+            try {
+                if(!appIn.hasRemaining()) return;
+                if(exchange == null) {
+                    // Nothing was asked for, the connection is in an unknown state
+                    close();
+                    return;
+                }
+                if(parser.feed(appIn)) {
+                    complete(!appIn.hasRemaining());
+                }
+            } finally {
+                appIn.clear();
+            }
+        }
+
+        private void endOfStream() {
+            if(exchange == null) {
+                close();
+            } else if(parser.endOfStream()) {
+                complete(false);
+            } else {
+                fail(new EOFException("Connection closed by " + host.url.getHost()), true);
+            }
+        }
+
+        private void complete(boolean reusable) {
+            Exchange finished = exchange;
+            exchange = null;
+            deadline = 0;
+            boolean keepAlive = reusable && parser.keepAlive() && !closed;
+            StackMobHttpResponse response = parser.toResponse();
+            parser = null;
+            if(keepAlive) {
+                idleSince = System.currentTimeMillis();
+                host.released(this);
+            } else {
+                close();
+            }
+            finished.succeed(response);
+        }
+
+        /**
+         * @param mayRetry whether the exchange can be retried on a fresh connection if this reused one turns out
+         *                 to have been closed by the server before any response arrived. Even then, only requests
+         *                 that are safe to resend are retried
+         */
+        void fail(IOException e, boolean mayRetry) {
+            Exchange failed = exchange;
+            boolean stale = mayRetry && reused && parser != null && parser.received() == 0;
+            exchange = null;
+            close();
+            if(failed == null) return;
+            if(stale && !failed.retried && HttpMessages.isSafeToResend(failed.verb)) {
+                failed.retried = true;
+                host.dispatch(failed);
+            } else {
+                failed.fail(e);
+            }
+        }
+
+        void close() {
+            if(closed) return;
+            closed = true;
+            loop.connections.remove(this);
+            if(key != null) key.cancel();
+            if(engine != null) engine.closeOutbound();
+            try {
+                if(channel != null) channel.close();
+            } catch(IOException ignored) { }
+            host.closed(this);
+        }
+
+        /**
+         * @return true once the handshake is complete, false if it needs the channel to be ready again
+         */
+        private boolean handshake() throws IOException {
+            while(true) {
+                switch(engine.getHandshakeStatus()) {
+                    case NEED_TASK:
+                        runDelegatedTasks();
+                        break;
+                    case NEED_WRAP: {
+                        SSLEngineResult result = engine.wrap(EMPTY, netOut);
+                        if(result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("Handshake failed");
+                        if(!flushNet()) return false;
+                        break;
+                    }
+                    case NEED_UNWRAP: {
+                        if(!flushNet()) return false;
+                        int n = channel.read(netIn);
+                        if(n < 0) throw new EOFException("Connection closed during handshake with " + host.url.getHost());
+                        if(n > 0) touch();
+                        netIn.flip();
+                        SSLEngineResult result;
+                        try {
+                            result = engine.unwrap(netIn, appIn);
+                        } finally {
+                            netIn.compact();
+                        }
+                        if(result.getStatus() == SSLEngineResult.Status.CLOSED) throw new SSLException("Handshake failed");
+                        if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && n == 0) return false;
+                        break;
+                    }
+                    default:
+                        if(!flushNet()) return false;
+                        handshaking = false;
+                        HttpMessages.verifyHostname(host.url.getHost(), engine.getSession(), verifiedInHandshake);
+                        return true;
+                }
+            }
+        }
+
+        private void runDelegatedTasks() {
+            Runnable task;
+            while((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * @return true if all encrypted output has been written
+         */
+        private boolean flushNet() throws IOException {
+            netOut.flip();
+            try {
+                channel.write(netOut);
+                return !netOut.hasRemaining();
+            } finally {
+                netOut.compact();
+            }
+        }
+    }
+}
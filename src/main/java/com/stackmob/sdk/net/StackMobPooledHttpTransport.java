@@ -0,0 +1,562 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.net;
+
+import org.scribe.model.Request;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The default {@link StackMobHttpTransport}. It speaks HTTP/1.1 over plain sockets and keeps a bounded pool of
+ * keep-alive connections for each host (typically the api and push hosts), so most requests skip TCP and TLS setup.
+ * A connection is returned to its pool once the response body has been read to the end.
+ *
+ * Connections go through the proxy {@link ProxySelector#getDefault()} picks, so the http.proxyHost, https.proxyHost
+ * and socksProxyHost system properties work as they do for {@link java.net.HttpURLConnection}. Https goes through an
+ * http proxy with a CONNECT tunnel. Proxies that require authentication aren't supported.
+ *
+ * Settings can be chained and should be applied before the transport is used:
+ * <pre>
+ * {@code
+ * session.setHttpTransport(new StackMobPooledHttpTransport().withMaxConnectionsPerHost(20).withReadTimeout(30000));
+ * }
+ * </pre>
+ */
+public class StackMobPooledHttpTransport implements StackMobHttpTransport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 10;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 60000;
+    public static final long DEFAULT_POOL_TIMEOUT_MILLIS = 30000;
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+
+    private final ConcurrentHashMap<String, HostPool> pools = new ConcurrentHashMap<String, HostPool>();
+    private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+    private long poolTimeoutMillis = DEFAULT_POOL_TIMEOUT_MILLIS;
+    private long keepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+    private boolean tcpNoDelay = true;
+    private SSLSocketFactory sslSocketFactory = null;
+    private ProxySelector proxySelector = null;
+    private volatile boolean shutdown = false;
+
+    /**
+     * set the maximum number of connections, idle or in use, to a single host. Requests beyond that wait for a
+     * connection to free up
+     * @param max the maximum number of connections
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withMaxConnectionsPerHost(int max) {
+        if(max < 1) throw new IllegalArgumentException("At least one connection per host is required");
+        this.maxConnectionsPerHost = max;
+        return this;
+    }
+
+    /**
+     * @param millis how long to wait to establish a connection, 0 for no limit
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withConnectTimeout(int millis) {
+        this.connectTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param millis how long to wait for data from the server, 0 for no limit
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withReadTimeout(int millis) {
+        this.readTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param millis how long a request waits for a free connection when the host's pool is exhausted
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withPoolTimeout(long millis) {
+        this.poolTimeoutMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param millis how long an idle connection is kept for reuse before it's closed
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withKeepAlive(long millis) {
+        this.keepAliveMillis = millis;
+        return this;
+    }
+
+    /**
+     * set the socket buffer sizes. Pass 0 to keep the platform default
+     * @param sendBufferSize SO_SNDBUF in bytes
+     * @param receiveBufferSize SO_RCVBUF in bytes
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withSocketBufferSizes(int sendBufferSize, int receiveBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * @param tcpNoDelay whether to disable Nagle's algorithm. Enabled by default since requests are small
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    /**
+     * @param factory the factory to use for https connections, defaults to the platform's
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withSSLSocketFactory(SSLSocketFactory factory) {
+        this.sslSocketFactory = factory;
+        return this;
+    }
+
+    /**
+     * @param selector the selector that picks the proxy for each host, defaults to {@link ProxySelector#getDefault()}
+     * @return this transport
+     */
+    public StackMobPooledHttpTransport withProxySelector(ProxySelector selector) {
+        this.proxySelector = selector;
+        return this;
+    }
+
+    /**
+     * the number of idle connections currently pooled for a host
+     * @param url any url on the host
+     * @return the idle connection count
+     */
+    public int getIdleConnectionCount(URL url) {
+        HostPool pool = pools.get(poolKey(url, proxyFor(url)));
+        return pool == null ? 0 : pool.idleCount();
+    }
+
+    @Override
+    public StackMobHttpResponse execute(Request request) throws IOException {
+        if(shutdown) throw new IOException("Transport has been shut down");
+        URL url = new URL(request.getCompleteUrl());
+        Proxy proxy = proxyFor(url);
+        boolean absoluteTarget = proxy.type() == Proxy.Type.HTTP && !HttpMessages.isSecure(url);
+        byte[] message = HttpMessages.encodeRequest(request, url, absoluteTarget);
+        boolean safeToResend = HttpMessages.isSafeToResend(request.getVerb());
+        HostPool pool = poolFor(url, proxy);
+        pool.acquire();
+        boolean handedOff = false;
+        try {
+            Connection conn = pool.takeIdle();
+            // A request that can't be resent mustn't find out the hard way that the server closed the connection
+            while(!safeToResend && conn != null && conn.isStale()) {
+                conn.close();
+                conn = pool.takeIdle();
+            }
+            StackMobHttpResponse response;
+            if(conn != null) {
+                try {
+                    response = exchange(pool, conn, request, message);
+                } catch(StaleConnectionException e) {
+                    // The server closed the idle connection, most likely before it saw the request, so try a new one.
+                    // That's only certain enough to do for requests that are harmless to repeat
+                    conn.close();
+                    if(!safeToResend) throw e;
+                    response = exchange(pool, open(url, proxy), request, message);
+                }
+            } else {
+                response = exchange(pool, open(url, proxy), request, message);
+            }
+            handedOff = true;
+            return response;
+        } finally {
+            if(!handedOff) pool.release(null);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        for(HostPool pool : pools.values()) {
+            pool.closeIdle();
+        }
+    }
+
+    private Proxy proxyFor(URL url) {
+        ProxySelector selector = proxySelector == null ? ProxySelector.getDefault() : proxySelector;
+        if(selector == null) return Proxy.NO_PROXY;
+        try {
+            List<Proxy> proxies = selector.select(url.toURI());
+            if(proxies != null && !proxies.isEmpty() && proxies.get(0) != null) return proxies.get(0);
+        } catch(URISyntaxException ignore) { }
+        return Proxy.NO_PROXY;
+    }
+
+    private void proxyFailed(URL url, Proxy proxy, IOException e) {
+        ProxySelector selector = proxySelector == null ? ProxySelector.getDefault() : proxySelector;
+        if(selector == null || proxy.type() == Proxy.Type.DIRECT) return;
+        try {
+            selector.connectFailed(url.toURI(), proxy.address(), e);
+        } catch(URISyntaxException ignore) { }
+    }
+
+    private static String poolKey(URL url, Proxy proxy) {
+        String key = HttpMessages.hostKey(url);
+        return proxy.type() == Proxy.Type.DIRECT ? key : key + " via " + proxy;
+    }
+
+    private HostPool poolFor(URL url, Proxy proxy) {
+        String key = poolKey(url, proxy);
+        HostPool pool = pools.get(key);
+        if(pool == null) {
+            HostPool newPool = new HostPool(maxConnectionsPerHost);
+            pool = pools.putIfAbsent(key, newPool);
+            if(pool == null) pool = newPool;
+        }
+        return pool;
+    }
+
+    private Connection open(URL url, Proxy proxy) throws IOException {
+        String host = url.getHost();
+        int port = HttpMessages.portOf(url);
+        Socket socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(proxy) : new Socket();
+        try {
+            socket.setTcpNoDelay(tcpNoDelay);
+            socket.setKeepAlive(true);
+            if(sendBufferSize > 0) socket.setSendBufferSize(sendBufferSize);
+            if(receiveBufferSize > 0) socket.setReceiveBufferSize(receiveBufferSize);
+            socket.setSoTimeout(readTimeoutMillis);
+            if(proxy.type() == Proxy.Type.HTTP) {
+                InetSocketAddress address = (InetSocketAddress) proxy.address();
+                if(address.isUnresolved()) address = new InetSocketAddress(address.getHostName(), address.getPort());
+                socket.connect(address, connectTimeoutMillis);
+                if(HttpMessages.isSecure(url)) tunnel(socket, host, port);
+            } else if(proxy.type() == Proxy.Type.SOCKS) {
+                // let the proxy resolve the host, as it may be the only one that can
+                socket.connect(InetSocketAddress.createUnresolved(host, port), connectTimeoutMillis);
+            } else {
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            }
+            if(HttpMessages.isSecure(url)) {
+                SSLSocketFactory factory = sslSocketFactory == null ? (SSLSocketFactory) SSLSocketFactory.getDefault() : sslSocketFactory;
+                SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+                socket = sslSocket;
+                SSLParameters params = sslSocket.getSSLParameters();
+                boolean verifiedInHandshake = HttpMessages.requireHostnameInHandshake(params);
+                sslSocket.setSSLParameters(params);
+                sslSocket.startHandshake();
+                HttpMessages.verifyHostname(host, sslSocket.getSession(), verifiedInHandshake);
+            }
+            return new Connection(socket);
+        } catch(IOException e) {
+            try { socket.close(); } catch(IOException ignore) { }
+            proxyFailed(url, proxy, e);
+            throw e;
+        }
+    }
+
+    /**
+     * ask an http proxy for a tunnel to the host, which the TLS connection then goes through
+     */
+    private static void tunnel(Socket socket, String host, int port) throws IOException {
+        String authority = host + ":" + port;
+        OutputStream out = socket.getOutputStream();
+        out.write(("CONNECT " + authority + " HTTP/1.1\r\nHost: " + authority + "\r\n\r\n").getBytes(HttpMessages.HEADER_CHARSET));
+        out.flush();
+        // read straight from the socket, since anything buffered past the proxy's response would belong to TLS
+        HttpMessages.ResponseHead head = HttpMessages.readResponseHead(socket.getInputStream());
+        if(head.code / 100 != 2) throw new IOException("The proxy refused to connect to " + authority + ": " + head.code);
+    }
+
+    private StackMobHttpResponse exchange(HostPool pool, Connection conn, Request request, byte[] message) throws IOException {
+        HttpMessages.ResponseHead head;
+        try {
+            conn.out.write(message);
+            conn.out.flush();
+            head = HttpMessages.readResponseHead(conn.in);
+        } catch(SocketTimeoutException e) {
+            conn.close();
+            throw e;
+        } catch(IOException e) {
+            if(conn.reused && !conn.receivedData()) throw new StaleConnectionException(e);
+            conn.close();
+            throw e;
+        }
+
+        long length = head.contentLength(request.getVerb());
+        InputStream body;
+        boolean reusable = head.keepAlive();
+        if(length == 0) {
+            pool.release(reusable ? conn : conn.closed());
+            body = null;
+        } else if(length > 0) {
+            body = new PooledBodyInputStream(pool, conn, new HttpMessages.FixedLengthInputStream(conn.in, length), reusable);
+        } else if(head.isChunked()) {
+            body = new PooledBodyInputStream(pool, conn, new HttpMessages.ChunkedInputStream(conn.in), reusable);
+        } else {
+            // No framing, the body ends when the server closes the connection
+            body = new PooledBodyInputStream(pool, conn, conn.in, false);
+        }
+        return new StackMobHttpResponse(head.code, head.headers, body);
+    }
+
+    private static class StaleConnectionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        StaleConnectionException(IOException cause) {
+            super(cause.getMessage());
+            initCause(cause);
+        }
+    }
+
+    /**
+     * An open socket and its buffered streams
+     */
+    private static class Connection {
+        final Socket socket;
+        final CountingInputStream in;
+        final OutputStream out;
+        boolean reused = false;
+        long idleSince;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new CountingInputStream(new BufferedInputStream(socket.getInputStream(), 8192));
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+        }
+
+        boolean receivedData() {
+            return in.count > in.countAtRelease;
+        }
+
+        /**
+         * check an idle connection without sending anything on it. If the server closed it, or sent something
+         * unasked for, it can't be used
+         */
+        boolean isStale() {
+            try {
+                int timeout = socket.getSoTimeout();
+                socket.setSoTimeout(1);
+                try {
+                    // anything but a timeout, whether the end of the stream or stray data, means it's unusable
+                    in.read();
+                    return true;
+                } finally {
+                    socket.setSoTimeout(timeout);
+                }
+            } catch(SocketTimeoutException e) {
+                return false;
+            } catch(IOException e) {
+                return true;
+            }
+        }
+
+        Connection closed() {
+            close();
+            return null;
+        }
+
+        void close() {
+            try { socket.close(); } catch(IOException ignore) { }
+        }
+    }
+
+    /**
+     * Counts bytes so we can tell whether a failed exchange got any response at all
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count = 0;
+        long countAtRelease = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if(read > 0) count += read;
+            return read;
+        }
+    }
+
+    /**
+     * The connections for one scheme/host/port. The semaphore bounds the total number of connections, and
+     * idle ones are reused most recently used first so the rest can age out
+     */
+    private class HostPool {
+        private final Semaphore permits;
+        private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+        HostPool(int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        void acquire() throws IOException {
+            try {
+                if(!permits.tryAcquire(poolTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Timed out waiting for a connection from the pool");
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a connection from the pool");
+            }
+        }
+
+        /**
+         * return a connection's permit, and the connection itself if it can be reused
+         */
+        void release(Connection conn) {
+            if(conn != null) {
+                if(shutdown) {
+                    conn.close();
+                } else {
+                    conn.reused = true;
+                    conn.idleSince = System.currentTimeMillis();
+                    conn.in.countAtRelease = conn.in.count;
+                    synchronized(idle) {
+                        idle.addFirst(conn);
+                    }
+                }
+            }
+            permits.release();
+        }
+
+        Connection takeIdle() {
+            long oldest = System.currentTimeMillis() - keepAliveMillis;
+            synchronized(idle) {
+                Iterator<Connection> it = idle.iterator();
+                Connection found = null;
+                while(it.hasNext()) {
+                    Connection conn = it.next();
+                    if(found == null && conn.idleSince >= oldest && !conn.socket.isClosed()) {
+                        found = conn;
+                        it.remove();
+                    } else if(conn.idleSince < oldest) {
+                        conn.close();
+                        it.remove();
+                    }
+                }
+                return found;
+            }
+        }
+
+        int idleCount() {
+            synchronized(idle) {
+                return idle.size();
+            }
+        }
+
+        void closeIdle() {
+            synchronized(idle) {
+                for(Connection conn : idle) {
+                    conn.close();
+                }
+                idle.clear();
+            }
+        }
+    }
+
+    /**
+     * A response body that hands its connection back to the pool once it's been read to the end, or closes
+     * the connection if the body is abandoned part way through
+     */
+    private static class PooledBodyInputStream extends FilterInputStream {
+        private final HostPool pool;
+        private final Connection conn;
+        private final boolean reusable;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        PooledBodyInputStream(HostPool pool, Connection conn, InputStream body, boolean reusable) {
+            super(body);
+            this.pool = pool;
+            this.conn = conn;
+            this.reusable = reusable;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int b = super.read();
+                if(b == -1) finish(true);
+                return b;
+            } catch(IOException e) {
+                finish(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                int read = super.read(buffer, offset, length);
+                if(read == -1) finish(true);
+                return read;
+            } catch(IOException e) {
+                finish(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish(isComplete());
+        }
+
+        private boolean isComplete() {
+            if(in instanceof HttpMessages.FixedLengthInputStream) return ((HttpMessages.FixedLengthInputStream) in).isComplete();
+            if(in instanceof HttpMessages.ChunkedInputStream) return ((HttpMessages.ChunkedInputStream) in).isComplete();
+            return false;
+        }
+
+        private void finish(boolean complete) {
+            if(released.compareAndSet(false, true)) {
+                pool.release(complete && reusable ? conn : conn.closed());
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package com.stackmob.sdk.push;
 
 import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
 import com.stackmob.sdk.api.StackMobOptions;
 import com.stackmob.sdk.api.StackMobSession;
 import com.stackmob.sdk.callback.StackMobRawCallback;
@@ -32,7 +33,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class StackMobPush {
 
@@ -116,7 +116,20 @@ public class StackMobPush {
      * note that this callback may be called in a background thread
      */
     public StackMobPush(int apiVersionNumber, String apiKey, String apiSecret, String host, StackMobRedirectedCallback redirectedCallback) {
-        this.executor = Executors.newCachedThreadPool();
+        this(apiVersionNumber, apiKey, apiSecret, host, redirectedCallback, StackMobExecutors.cached());
+    }
+
+    /**
+     * the most complete constructor, also allowing you to choose how requests are executed
+     * @param apiVersionNumber the version of the API to use
+     * @param apiKey the api key for your app
+     * @param apiSecret the api secret for your app
+     * @param host the base url for requests
+     * @param redirectedCallback callback to be called if the StackMob platform issues a redirect
+     * @param executor runs requests and their callbacks. See {@link StackMobExecutors} for some common choices
+     */
+    public StackMobPush(int apiVersionNumber, String apiKey, String apiSecret, String host, StackMobRedirectedCallback redirectedCallback, ExecutorService executor) {
+        this.executor = executor;
         this.session = new StackMobSession(StackMob.OAuthVersion.One, apiVersionNumber, apiKey, apiSecret, StackMob.DEFAULT_USER_SCHEMA_NAME, StackMob.DEFAULT_USER_ID);
         this.host = host;
         this.redirectedCallback = redirectedCallback;
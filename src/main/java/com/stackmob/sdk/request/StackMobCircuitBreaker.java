@@ -0,0 +1,307 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.exception.StackMobCircuitOpenException;
+import com.stackmob.sdk.util.Http;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops sending requests to an endpoint, meaning a host and the first part of the method path such as
+ * {@code api.stackmob.com/book}, while most recent requests to it are failing or slow. Rather than every call
+ * waiting for the network to fail, calls fail straight away through
+ * {@link com.stackmob.sdk.callback.StackMobRawCallback#unsent} with a {@link StackMobCircuitOpenException}:
+ *
+ * <pre>
+ * {@code
+ * stackmob.getSession().setCircuitBreaker(new StackMobCircuitBreaker().withFailureRate(0.25)
+ *                                                                    .withSlowCalls(0.5, 5, TimeUnit.SECONDS)
+ *                                                                    .withOpenDuration(10, TimeUnit.SECONDS));
+ * }
+ * </pre>
+ *
+ * A request counts as failed if it got no response or a 5xx response. Once enough of the recent requests to an
+ * endpoint have failed, or taken longer than the slow call threshold, the circuit opens. After the open duration a
+ * few probe requests are let through; if they all succeed the circuit closes, otherwise it opens again
+ */
+public class StackMobCircuitBreaker {
+
+    public static final int DEFAULT_WINDOW_SIZE = 50;
+    public static final int DEFAULT_MIN_CALLS = 20;
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+    public static final double DEFAULT_SLOW_CALL_RATE = 1.0;
+    public static final long DEFAULT_SLOW_CALL_MILLIS = 30 * 1000;
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+    public static final int DEFAULT_PROBES = 3;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private volatile int windowSize = DEFAULT_WINDOW_SIZE;
+    private volatile int minCalls = DEFAULT_MIN_CALLS;
+    private volatile double failureRate = DEFAULT_FAILURE_RATE;
+    private volatile double slowCallRate = DEFAULT_SLOW_CALL_RATE;
+    private volatile long slowCallNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_CALL_MILLIS);
+    private volatile long openNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_OPEN_MILLIS);
+    private volatile int probes = DEFAULT_PROBES;
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+    private final AtomicLong shortCircuited = new AtomicLong();
+
+    /**
+     * @param windowSize how many of the most recent requests to an endpoint to judge it by. Defaults to 50
+     * @param minCalls how many requests have to have been made before the circuit can open. Defaults to 20
+     * @return the breaker
+     */
+    public StackMobCircuitBreaker withWindow(int windowSize, int minCalls) {
+        if(minCalls < 1 || windowSize < minCalls) throw new IllegalArgumentException("The window must satisfy 1 <= minCalls <= windowSize");
+        this.windowSize = windowSize;
+        this.minCalls = minCalls;
+        return this;
+    }
+
+    /**
+     * @param failureRate the fraction of requests that have to fail for the circuit to open. Defaults to 0.5
+     * @return the breaker
+     */
+    public StackMobCircuitBreaker withFailureRate(double failureRate) {
+        if(failureRate <= 0 || failureRate > 1) throw new IllegalArgumentException("The failure rate must be above 0 and at most 1");
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    /**
+     * @param slowCallRate the fraction of requests that have to be slow for the circuit to open. Defaults to 1, so
+     *                     only an endpoint where everything is slow is avoided
+     * @param threshold how long a request can take before it counts as slow. Defaults to 30s
+     * @param unit the unit of the threshold
+     * @return the breaker
+     */
+    public StackMobCircuitBreaker withSlowCalls(double slowCallRate, long threshold, TimeUnit unit) {
+        if(slowCallRate <= 0 || slowCallRate > 1) throw new IllegalArgumentException("The slow call rate must be above 0 and at most 1");
+        this.slowCallRate = slowCallRate;
+        this.slowCallNanos = unit.toNanos(threshold);
+        return this;
+    }
+
+    /**
+     * @param duration how long to avoid an endpoint before probing it again. Defaults to 30s
+     * @param unit the unit of the duration
+     * @return the breaker
+     */
+    public StackMobCircuitBreaker withOpenDuration(long duration, TimeUnit unit) {
+        this.openNanos = unit.toNanos(duration);
+        return this;
+    }
+
+    /**
+     * @param probes how many requests must succeed after the open duration for the circuit to close. Defaults to 3
+     * @return the breaker
+     */
+    public StackMobCircuitBreaker withProbes(int probes) {
+        if(probes < 1) throw new IllegalArgumentException("At least one probe is required");
+        this.probes = probes;
+        return this;
+    }
+
+    /**
+     * @param host the host, as passed to {@link StackMobRequest#setUrlFormat(String)}
+     * @param method the method path
+     * @return the state of the endpoint's circuit
+     */
+    public State getState(String host, String method) {
+        return getCircuit(endpoint(host, method)).getState();
+    }
+
+    /**
+     * @return how many requests have failed without being sent
+     */
+    public long getShortCircuitedCount() {
+        return shortCircuited.get();
+    }
+
+    /**
+     * close every circuit, forgetting what's been seen so far
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    /**
+     * the host and the first part of the method path, so requests for different objects in a schema share a circuit
+     */
+    static String endpoint(String host, String method) {
+        return Http.endpoint(host, method);
+    }
+
+    /**
+     * ask to send a request to an endpoint
+     * @return the call to report the outcome to
+     * @throws StackMobCircuitOpenException if the endpoint is being avoided
+     */
+    Call acquire(String host, String method) throws StackMobCircuitOpenException {
+        String endpoint = endpoint(host, method);
+        Call call = getCircuit(endpoint).acquire();
+        if(call == null) {
+            shortCircuited.incrementAndGet();
+            throw new StackMobCircuitOpenException(endpoint, getCircuit(endpoint).getRetryAfterMillis());
+        }
+        return call;
+    }
+
+    private Circuit getCircuit(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if(circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(endpoint, created);
+            if(circuit == null) circuit = created;
+        }
+        return circuit;
+    }
+
+    /**
+     * a request let through. Its outcome must be reported once the response arrives or the request fails
+     */
+    class Call {
+        private final Circuit circuit;
+        private final boolean probe;
+        private final long generation;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+
+        private Call(Circuit circuit, boolean probe, long generation) {
+            this.circuit = circuit;
+            this.probe = probe;
+            this.generation = generation;
+        }
+
+        /**
+         * @param statusCode the response's status, or -1 if there wasn't a response
+         * @param sentNanos when the request went to the transport, so time spent queued here doesn't make it slow
+         */
+        void complete(int statusCode, long sentNanos) {
+            if(finished.compareAndSet(false, true)) {
+                boolean failed = statusCode == -1 || statusCode >= 500;
+                circuit.record(this, failed, System.nanoTime() - sentNanos >= slowCallNanos);
+            }
+        }
+
+        /**
+         * the request wasn't sent after all, so it says nothing about the endpoint
+         */
+        void cancel() {
+            if(finished.compareAndSet(false, true)) {
+                circuit.cancel(this);
+            }
+        }
+    }
+
+    private class Circuit {
+        // all guarded by this
+        private State state = State.CLOSED;
+        private boolean[] failures = new boolean[windowSize];
+        private boolean[] slow = new boolean[windowSize];
+        private int next = 0;
+        private int recorded = 0;
+        private int failureCount = 0;
+        private int slowCount = 0;
+        private long openedAtNanos;
+        private int probesStarted = 0;
+        private int probesSucceeded = 0;
+        // calls made before the circuit last changed state are ignored
+        private long generation = 0;
+
+        synchronized State getState() {
+            if(state == State.OPEN && System.nanoTime() - openedAtNanos >= openNanos) return State.HALF_OPEN;
+            return state;
+        }
+
+        synchronized long getRetryAfterMillis() {
+            if(state != State.OPEN) return 0;
+            return Math.max(0, TimeUnit.NANOSECONDS.toMillis(openNanos - (System.nanoTime() - openedAtNanos)));
+        }
+
+        synchronized Call acquire() {
+            if(state == State.OPEN) {
+                if(System.nanoTime() - openedAtNanos < openNanos) return null;
+                changeState(State.HALF_OPEN);
+            }
+            if(state == State.HALF_OPEN) {
+                if(probesStarted >= probes) return null;
+                probesStarted++;
+                return new Call(this, true, generation);
+            }
+            return new Call(this, false, generation);
+        }
+
+        synchronized void record(Call call, boolean failed, boolean wasSlow) {
+            if(call.generation != generation) return;
+            if(call.probe) {
+                if(failed || wasSlow) {
+                    open();
+                } else if(++probesSucceeded >= probes) {
+                    changeState(State.CLOSED);
+                }
+                return;
+            }
+            if(recorded == failures.length) {
+                if(failures[next]) failureCount--;
+                if(slow[next]) slowCount--;
+            } else {
+                recorded++;
+            }
+            failures[next] = failed;
+            slow[next] = wasSlow;
+            if(failed) failureCount++;
+            if(wasSlow) slowCount++;
+            next = (next + 1) % failures.length;
+            if(recorded >= minCalls && (failureCount >= failureRate * recorded || slowCount >= slowCallRate * recorded)) {
+                open();
+            }
+        }
+
+        synchronized void cancel(Call call) {
+            if(call.probe && call.generation == generation) probesStarted--;
+        }
+
+        private void open() {
+            changeState(State.OPEN);
+            openedAtNanos = System.nanoTime();
+        }
+
+        private void changeState(State newState) {
+            state = newState;
+            generation++;
+            probesStarted = 0;
+            probesSucceeded = 0;
+            if(newState == State.CLOSED) {
+                failures = new boolean[windowSize];
+                slow = new boolean[windowSize];
+                next = 0;
+                recorded = 0;
+                failureCount = 0;
+                slowCount = 0;
+            }
+        }
+    }
+}
@@ -22,17 +22,16 @@ import com.stackmob.sdk.api.*;
 import com.stackmob.sdk.api.StackMob.OAuthVersion;
 import com.stackmob.sdk.callback.StackMobRawCallback;
 import com.stackmob.sdk.callback.StackMobRedirectedCallback;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobCircuitOpenException;
 import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.net.*;
 import com.stackmob.sdk.push.StackMobPushToken;
 import com.stackmob.sdk.util.*;
-import org.scribe.builder.ServiceBuilder;
 import org.scribe.exceptions.OAuthException;
 import org.scribe.model.OAuthRequest;
-import org.scribe.model.Response;
 import org.scribe.model.Token;
 import org.scribe.model.Verb;
-import org.scribe.oauth.OAuthService;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -44,7 +43,11 @@ import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The base class for StackMob's internal representation of a request. This class is only meant to be used inside the sdk
@@ -59,6 +62,18 @@ public abstract class StackMobRequest {
     protected static final String API_KEY_HEADER = "X-StackMob-API-Key";
     protected static final String AUTHORIZATION_HEADER = "Authorization";
 
+    /**
+     * Gson is thread safe once built, so every request shares this one instead of configuring its own
+     */
+    private static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(StackMobPushToken.class, new StackMobPushToken.Deserializer())
+            .registerTypeAdapter(StackMobPushToken.class, new StackMobPushToken.Serializer())
+            .registerTypeAdapter(StackMobForgotPasswordEmail.class, new StackMobForgotPasswordEmail.Deserializer())
+            .registerTypeAdapter(StackMobForgotPasswordEmail.class, new StackMobForgotPasswordEmail.Serializer())
+            .registerTypeAdapter(StackMobNull.class, new StackMobNull.Adapter())
+            .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.PROTECTED, Modifier.TRANSIENT, Modifier.STATIC)
+            .create();
+
 
     protected final ExecutorService executor;
     protected final StackMobSession session;
@@ -74,10 +89,13 @@ public abstract class StackMobRequest {
     protected List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
     private AtomicBoolean triedRefreshToken = new AtomicBoolean(false);
     private OAuthVersion oauthVersionOverride;
+    private volatile boolean sent = false;
+    private volatile long lastRetryDelay = 0;
+    private String correlationId;
+    private volatile StackMobSpan span;
+    private volatile StackMobTracer tracer;
 
-    protected Gson gson;
-
-    private OAuthService oAuthService;
+    protected Gson gson = GSON;
 
 
 
@@ -101,18 +119,6 @@ public abstract class StackMobRequest {
         this.callback = cb;
         this.redirectedCallback = redirCb;
         this.oauthVersionOverride = oauthVersionOverride;
-
-        GsonBuilder gsonBuilder = new GsonBuilder()
-                                  .registerTypeAdapter(StackMobPushToken.class, new StackMobPushToken.Deserializer())
-                                  .registerTypeAdapter(StackMobPushToken.class, new StackMobPushToken.Serializer())
-                                  .registerTypeAdapter(StackMobForgotPasswordEmail.class, new StackMobForgotPasswordEmail.Deserializer())
-                                  .registerTypeAdapter(StackMobForgotPasswordEmail.class, new StackMobForgotPasswordEmail.Serializer())
-                                  .registerTypeAdapter(StackMobNull.class, new StackMobNull.Adapter())
-                                  .excludeFieldsWithModifiers(Modifier.PRIVATE, Modifier.PROTECTED, Modifier.TRANSIENT, Modifier.STATIC);
-        gson = gsonBuilder.create();
-
-        if(!isOAuth2()) oAuthService = new ServiceBuilder().provider(StackMobApi.class).apiKey(session.getKey()).apiSecret(session.getSecret()).build();
-
     }
 
     public StackMobRequest setUrlFormat(String urlFmt) {
@@ -120,9 +126,34 @@ public abstract class StackMobRequest {
         return this;
     }
 
+    /**
+     * trace this request under an existing correlation id, because it's being made on behalf of another request
+     * @param correlationId the other request's correlation id, or null to get a new one
+     */
+    public StackMobRequest setCorrelationId(String correlationId) {
+        this.correlationId = correlationId;
+        return this;
+    }
+
+    /**
+     * @return the id this request is traced under, or null if it isn't being traced
+     */
+    public String getCorrelationId() {
+        StackMobSpan s = span;
+        return s == null ? correlationId : s.getCorrelationId();
+    }
+
     protected abstract String getRequestBody();
 
     public void sendRequest() {
+        if(!sent) {
+            sent = true;
+            session.getRetryPolicy().recordRequest();
+            tracer = session.getTracer();
+            if(tracer != null) {
+                span = new StackMobSpan(correlationId == null ? StackMobSpan.newCorrelationId() : correlationId, httpVerb, getEndpoint());
+            }
+        }
         try {
             if(HttpVerbWithoutPayload.GET == httpVerb) {
                 sendGetRequest();
@@ -141,11 +172,11 @@ public abstract class StackMobRequest {
             }
             else {
                 StackMobException ex = new StackMobException(String.format("The StackMob SDK doesn't support the HTTP verb %s at this time", httpVerb.toString()));
-                callback.unsent(ex);
+                unsent(callback, ex);
             }
         }
         catch(StackMobException e) {
-            callback.unsent(e);
+            unsent(callback, e);
         }
     }
 
@@ -329,11 +360,9 @@ public abstract class StackMobRequest {
     }
 
     protected OAuthRequest getOAuthRequest(String scheme, HttpVerb method, String url) {
+        long startNanos = System.nanoTime();
         Verb verb = Verb.valueOf(method.toString());
         OAuthRequest oReq = new OAuthRequest(verb, url);
-        int apiVersion = session.getApiVersionNumber();
-        final String accept = "application/vnd.stackmob+json; version="+apiVersion;
-
         List<Map.Entry<String, String>> headerList = new ArrayList<Map.Entry<String, String>>();
 
         //build basic headers
@@ -350,7 +379,7 @@ public abstract class StackMobRequest {
             }
         }
 
-        if(!hasAcceptHeader) headerList.add(new Pair<String, String>("Accept", accept));
+        if(!hasAcceptHeader) headerList.add(new Pair<String, String>("Accept", session.getAcceptHeader()));
         headerList.add(new Pair<String, String>("User-Agent", session.getUserAgent()));
         String cookieHeader = session.getCookieManager().cookieHeader();
         if(cookieHeader.length() > 0) headerList.add(new Pair<String, String>("Cookie", cookieHeader));
@@ -361,7 +390,7 @@ public abstract class StackMobRequest {
         }
 
         switch(getOAuthVersion()) {
-            case One: oAuthService.signRequest(new Token("", ""), oReq); break;
+            case One: session.getOAuthService().signRequest(new Token("", ""), oReq); break;
             case Two: {
                 oReq.addHeader(API_KEY_HEADER, session.getKey());
                 if(session.oauth2TokenValid()) {
@@ -378,6 +407,7 @@ public abstract class StackMobRequest {
             }
         }
 
+        trace(StackMobSpan.Phase.BUILD, startNanos);
         return oReq;
     }
 
@@ -389,7 +419,25 @@ public abstract class StackMobRequest {
         }
     }
 
-    private byte[] getByteArray(InputStream is) {
+    /**
+     * @param expectedLength the Content-Length of the response, or -1 if it isn't known. When it is, the body is read
+     *                       straight into an array of the right size
+     */
+    private byte[] getByteArray(InputStream is, int expectedLength) {
+        if(is == null) return new byte[0];
+        if(expectedLength >= 0) {
+            byte[] body = new byte[expectedLength];
+            int read = 0;
+            try {
+                int n;
+                while(read < expectedLength && (n = is.read(body, read, expectedLength - read)) != -1) {
+                    read += n;
+                }
+            } catch (IOException ex) {
+                return new byte[0];
+            }
+            return read == expectedLength ? body : Arrays.copyOf(body, read);
+        }
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
 
         int nRead;
@@ -440,6 +488,9 @@ public abstract class StackMobRequest {
 
     protected void refreshTokenAndResend() {
         triedRefreshToken.set(true);
+        recordCount(StackMobMetricsRegistry.TOKEN_REFRESHES);
+        StackMobSpan s = span;
+        if(s != null) s.refreshedToken();
         StackMobAccessTokenRequest.newRefreshTokenRequest(executor, session, redirectedCallback, new StackMobRawCallback() {
             @Override
             public void unsent(StackMobException e) {
@@ -460,7 +511,7 @@ public abstract class StackMobRequest {
             public void circularRedirect(String originalUrl, Map<String, String> redirectHeaders, String redirectBody, String newURL) {
 
             }
-        }).setUrlFormat(urlFormat).sendRequest();
+        }).setUrlFormat(urlFormat).setCorrelationId(getCorrelationId()).sendRequest();
     }
     
     protected void sendRequest(final OAuthRequest req) throws InterruptedException, ExecutionException {
@@ -468,112 +519,500 @@ public abstract class StackMobRequest {
 
         if(isOAuth2() && !session.oauth2TokenValid() && canDoRefreshToken()) {
             refreshTokenAndResend();
-        } else {
-            executor.submit(new Callable<Object>() {
+            return;
+        }
+        final StackMobCircuitBreaker.Call call;
+        try {
+            call = session.getCircuitBreaker() == null ? null : session.getCircuitBreaker().acquire(urlFormat, methodName);
+        } catch(StackMobCircuitOpenException e) {
+            unsent(cb, e);
+            return;
+        }
+        StackMobRequestLimiter limiter = session.getRequestLimiter();
+        if(limiter == null) {
+            execute(req, cb, new Attempt(req, null, call));
+        } else if(!limiter.submit(urlFormat, new StackMobRequestLimiter.Task() {
+            @Override
+            public void run(StackMobRequestLimiter.Permit permit) {
+                execute(req, cb, new Attempt(req, permit, call));
+            }
+        })) {
+            if(call != null) call.cancel();
+            unsent(cb, new StackMobException(String.format("The request was rejected because too many are waiting to be sent to %s", urlFormat)));
+        }
+    }
+
+    /**
+     * send the request now. The attempt is finished as soon as the response starts to arrive
+     */
+    private void execute(final OAuthRequest req, final StackMobRawCallback cb, final Attempt attempt) {
+        if(session.getHttpTransport() instanceof StackMobAsyncHttpTransport) {
+            // The transport waits on the network without a thread; only handling the response takes one
+            attempt.start();
+            logRequest(req);
+            ((StackMobAsyncHttpTransport) session.getHttpTransport()).executeAsync(req, new StackMobAsyncHttpTransport.ResponseHandler() {
                 @Override
-                public String call() throws Exception {
-                    try {
-                        session.getLogger().logInfo("%s", "Request URL: " + req.getUrl() + "\nRequest Verb: " + getRequestVerb(req) + "\nRequest Headers: " + getRequestHeaders(req) + "\nRequest Body: " + req.getBodyContents());
-                        Response ret = req.send();
-                        byte[] rawBody;
-                        String stringBody;
-                        try {
-                           // Apparently sometime this just NPEs
-                           rawBody = getByteArray(ret.getStream());
-                           stringBody = new String(rawBody, "UTF-8");
-                        } catch(Exception e) {
-                           stringBody = "{}";
-                           rawBody = new byte[0];
-                        }
-                        String trimmedBody = stringBody.length() < 1000 ? stringBody : (stringBody.subSequence(0, 1000) + " (truncated)");
-                        session.getLogger().logInfo("%s", "Response StatusCode: " + ret.getCode() + "\nResponse Headers: " + ret.getHeaders() + "\nResponse: " + trimmedBody);
-                        if(!isOAuth2() && ret.getHeaders() != null) session.recordServerTimeDiff(ret.getHeader("Date"));
-                        if(HttpRedirectHelper.isRedirected(ret.getCode())) {
-                            session.getLogger().logInfo("Response was redirected");
-                            String newLocation = HttpRedirectHelper.getNewLocation(ret.getHeaders());
-                            URL url = new URL(newLocation);
-                            String oldDomain = Http.fullDomain(getScheme(), urlFormat);
-                            String newDomain = Http.fullDomain(url.getProtocol(), url.getAuthority());
-                            if(session.getRedirect(oldDomain).equals(newDomain)) {
-                                callback.circularRedirect(req.getUrl(), ret.getHeaders(), stringBody, newLocation);
-                            } else {
-                                session.setRedirect(oldDomain, newDomain, HttpRedirectHelper.isPermanentRedirect(ret.getCode()));
-                                HttpVerb verb = HttpVerbHelper.valueOf(req.getVerb().toString());
-                                OAuthRequest newReq = getOAuthRequest(url.getProtocol(), verb, newLocation);
-                                if(req.getBodyContents() != null && req.getBodyContents().length() > 0) {
-                                    newReq = getOAuthRequest(url.getProtocol(), verb, newLocation, req.getBodyContents());
-                                }
-                                redirectedCallback.redirected(req.getUrl(), ret.getHeaders(), stringBody, newReq.getUrl());
-                                if(callback.redirected(req.getUrl(), ret.getHeaders(), stringBody, newReq.getUrl())) {
-                                    sendRequest(newReq);
-                                }
+                public void completed(final StackMobHttpResponse ret) {
+                    attempt.finish(ret.getCode());
+                    handOff(new Callable<Object>() {
+                        @Override
+                        public String call() throws Exception {
+                            try {
+                                handleResponse(req, cb, ret);
+                            } catch(Throwable t) {
+                                handleFailure(req, cb, t);
                             }
+                            return null;
                         }
-                        else {
-                            List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
-                            if(ret.getHeaders() != null) {
-                                for(Map.Entry<String, String> header : ret.getHeaders().entrySet()) {
-                                    headers.add(header);
-                                }
-                            }
-                            if(Http.isSuccess(ret.getCode())) {
-                                session.getCookieManager().storeCookies(ret);
-                            }
-                            boolean retried = false;
-                            if(Http.isUnavailable(ret.getCode())) {
-                                int afterMilliseconds = -1;
-                                for(Map.Entry<String, String> headerPair : headers) {
-                                    if(Http.isRetryAfterHeader(headerPair.getKey())) {
-                                        try {
-                                            int candidateMilliseconds = Integer.parseInt(headerPair.getValue()) * 1000;
-                                            if(candidateMilliseconds > 0) {
-                                                afterMilliseconds = candidateMilliseconds;
-                                            }
-                                        } catch(Throwable ignore) { }
-                                    }
-                                }
-                                if(afterMilliseconds != -1 && cb.getRetriesRemaining() > 0 && cb.retry(afterMilliseconds)) {
-                                    cb.setRetriesRemaining(cb.getRetriesRemaining() - 1);
-                                    sendRequest();
-                                    retried = true;
-                                }
-                            }
-                            if(!retried) {
-                                if(ret.getCode() == HttpURLConnection.HTTP_UNAUTHORIZED && canDoRefreshToken()) {
-                                    refreshTokenAndResend();
-                                } else {
-                                    try {
-                                        cb.setDone(getRequestVerb(req),
-                                                req.getUrl(),
-                                                getRequestHeaders(req),
-                                                req.getBodyContents(),
-                                                ret.getCode(),
-                                                headers,
-                                                rawBody);
-                                    }
-                                    catch(Throwable t) {
-                                        session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
-                                    }
-                                }
+                    });
+                }
+
+                @Override
+                public void failed(final IOException e) {
+                    attempt.finish(-1);
+                    handOff(new Callable<Object>() {
+                        @Override
+                        public String call() throws Exception {
+                            handleConnectionFailure(req, cb, e);
+                            return null;
+                        }
+                    });
+                }
+            });
+        } else {
+            final long submittedNanos = System.nanoTime();
+            try {
+                executor.submit(new Callable<Object>() {
+                    @Override
+                    public String call() throws Exception {
+                        recordQueueWait(submittedNanos);
+                        attempt.start();
+                        try {
+                            logRequest(req);
+                            StackMobHttpResponse ret;
+                            try {
+                                ret = session.getHttpTransport().execute(req);
+                            } catch(IOException e) {
+                                attempt.finish(-1);
+                                handleConnectionFailure(req, cb, e);
+                                return null;
                             }
+                            attempt.finish(ret.getCode());
+                            handleResponse(req, cb, ret);
+                        } catch(Throwable t) {
+                            attempt.finish(-1);
+                            handleFailure(req, cb, t);
                         }
-                    } catch(OAuthException e) {
-                        session.getLogger().logWarning("Unexpected OAuth exception prevented message from being sent %s", StackMobLogger.getStackTrace(e));
-                        cb.unsent(new StackMobException(e.getMessage()));
+                        return null;
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                attempt.cancel();
+                unsent(cb, new StackMobException("The request was rejected because too many are in progress"));
+            }
+        }
+    }
+
+    /**
+     * one try at sending the request, from the point of view of everything that watches requests go by
+     */
+    private class Attempt {
+        private final OAuthRequest req;
+        private final StackMobRequestLimiter.Permit permit;
+        private final StackMobCircuitBreaker.Call call;
+        private final StackMobMetricsRegistry metrics = session.getMetrics();
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private long startNanos;
+
+        Attempt(OAuthRequest req, StackMobRequestLimiter.Permit permit, StackMobCircuitBreaker.Call call) {
+            this.req = req;
+            this.permit = permit;
+            this.call = call;
+        }
+
+        /**
+         * the request is about to go to the transport
+         */
+        void start() {
+            startNanos = System.nanoTime();
+            StackMobSpan s = span;
+            if(s != null) s.attempted(req.getUrl());
+            if(metrics != null) {
+                String endpoint = getEndpoint();
+                metrics.adjust(StackMobMetricsRegistry.IN_FLIGHT, endpoint, 1);
+                String body = req.getBodyContents();
+                metrics.record(StackMobMetricsRegistry.REQUEST_BYTES, endpoint, body == null ? 0 : Http.utf8Length(body));
+            }
+        }
+
+        /**
+         * @param statusCode the response's status, or -1 if there wasn't a response
+         */
+        void finish(int statusCode) {
+            if(!finished.compareAndSet(false, true)) return;
+            if(permit != null) permit.release(statusCode, startNanos);
+            if(call != null) call.complete(statusCode, startNanos);
+            trace(StackMobSpan.Phase.NETWORK, startNanos);
+            if(metrics != null) {
+                String endpoint = getEndpoint();
+                metrics.adjust(StackMobMetricsRegistry.IN_FLIGHT, endpoint, -1);
+                metrics.record(StackMobMetricsRegistry.LATENCY, endpoint, System.nanoTime() - startNanos);
+                metrics.increment(statusCode == -1 ? StackMobMetricsRegistry.NO_RESPONSE : StackMobMetricsRegistry.RESPONSE_STATUS + statusCode, endpoint);
+            }
+        }
+
+        /**
+         * the request was never sent, so it says nothing about the endpoint
+         */
+        void cancel() {
+            if(!finished.compareAndSet(false, true)) return;
+            if(call != null) call.cancel();
+            if(permit != null) permit.cancel();
+        }
+    }
+
+    /**
+     * @return the host and the first part of the method path, which requests are grouped by when they're watched
+     */
+    protected String getEndpoint() {
+        return Http.endpoint(urlFormat, methodName);
+    }
+
+    private void recordQueueWait(long submittedNanos) {
+        StackMobMetricsRegistry metrics = session.getMetrics();
+        if(metrics != null) metrics.record(StackMobMetricsRegistry.QUEUE_WAIT, getEndpoint(), System.nanoTime() - submittedNanos);
+        trace(StackMobSpan.Phase.QUEUE, submittedNanos);
+    }
+
+    /**
+     * add the time from startNanos until now to the request's span, if it's being traced
+     */
+    private void trace(StackMobSpan.Phase phase, long startNanos) {
+        StackMobSpan s = span;
+        if(s != null) s.record(phase, startNanos, System.nanoTime());
+    }
+
+    /**
+     * a callback is about to be called with the request's outcome
+     * @return what to pass to {@link #calledBack(long, int)} once it returns
+     */
+    private long callingBack() {
+        StackMobSpan s = span;
+        return s == null ? 0 : s.callbackStarting();
+    }
+
+    /**
+     * the callback has returned, so the request's span is over
+     * @param statusCode the final response's status, or -1 if there wasn't a response
+     */
+    private void calledBack(long callbackStartNanos, int statusCode) {
+        StackMobSpan s = span;
+        if(s != null && s.callbackFinished(callbackStartNanos, statusCode)) {
+            try {
+                tracer.spanFinished(s);
+            } catch(Throwable t) {
+                if(session.getLogger().isWarningEnabled()) {
+                    session.getLogger().logWarning("Tracer threw error %s", StackMobLogger.getStackTrace(t));
+                }
+            }
+        }
+    }
 
-                    } catch(Throwable t) {
-                        session.getLogger().logWarning("Invoking callback after unexpected exception %s", StackMobLogger.getStackTrace(t));
+    private void unsent(StackMobRawCallback cb, StackMobException e) {
+        long callbackStartNanos = callingBack();
+        try {
+            cb.unsent(e);
+        } finally {
+            calledBack(callbackStartNanos, -1);
+        }
+    }
+
+    private void recordCount(String name) {
+        StackMobMetricsRegistry metrics = session.getMetrics();
+        if(metrics != null) metrics.increment(name, getEndpoint());
+    }
+
+    /**
+     * run response handling on the executor. This is called on the async transport's I/O thread, which must never
+     * parse a response or run a callback, so if the executor won't take the work or would run it right here (as
+     * {@link StackMobExecutors#callerRuns()} and the caller runs policy do) it goes to a separate callback thread
+     */
+    private void handOff(final Callable<Object> task) {
+        final long submittedNanos = System.nanoTime();
+        final Thread ioThread = Thread.currentThread();
+        try {
+            executor.submit(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    if(Thread.currentThread() == ioThread) {
+                        CallbackThreads.executor.submit(this);
+                        return null;
+                    }
+                    recordQueueWait(submittedNanos);
+                    return task.call();
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            CallbackThreads.executor.submit(task);
+        }
+    }
+
+    /**
+     * daemon threads for response handling the request's executor can't take, created on first use
+     */
+    private static class CallbackThreads {
+        static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "StackMob-callback-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private void logRequest(OAuthRequest req) {
+        StackMobLogger logger = session.getLogger();
+        if(logger.isInfoEnabled()) {
+            logger.logEvent(StackMobLogEvent.request(getRequestVerb(req), req.getUrl(), req.getHeaders(), req.getBodyContents()));
+        }
+    }
+
+    private void handleResponse(OAuthRequest req, StackMobRawCallback cb, StackMobHttpResponse ret) throws Exception {
+        if(cb instanceof StackMobStreamingCallback && Http.isSuccess(ret.getCode())) {
+            streamResponse(req, (StackMobStreamingCallback) cb, ret);
+            return;
+        }
+        byte[] rawBody;
+        boolean readFailed = false;
+        long readStartNanos = System.nanoTime();
+        try {
+           rawBody = getByteArray(ret.getBody(), req.getVerb() == Verb.HEAD ? 0 : contentLength(ret));
+        } catch(Exception e) {
+           rawBody = new byte[0];
+           readFailed = true;
+        } finally {
+           ret.close();
+        }
+        trace(StackMobSpan.Phase.READ, readStartNanos);
+        StackMobMetricsRegistry metrics = session.getMetrics();
+        if(metrics != null) metrics.record(StackMobMetricsRegistry.RESPONSE_BYTES, getEndpoint(), rawBody.length);
+        StackMobLogger logger = session.getLogger();
+        if(logger.isInfoEnabled()) {
+            logger.logEvent(StackMobLogEvent.response(getRequestVerb(req), req.getUrl(), ret.getCode(), ret.getHeaders(), rawBody));
+        }
+        if(!isOAuth2() && ret.getHeaders() != null) session.recordServerTimeDiff(ret.getHeader("Date"));
+        if(HttpRedirectHelper.isRedirected(ret.getCode())) {
+            logger.logInfo("Response was redirected");
+            recordCount(StackMobMetricsRegistry.REDIRECTS);
+            StackMobSpan s = span;
+            if(s != null) s.redirected();
+            String stringBody = readFailed ? "{}" : new String(rawBody, "UTF-8");
+            String newLocation = HttpRedirectHelper.getNewLocation(ret.getHeaders());
+            URL url = new URL(newLocation);
+            String oldDomain = Http.fullDomain(getScheme(), urlFormat);
+            String newDomain = Http.fullDomain(url.getProtocol(), url.getAuthority());
+            if(session.getRedirect(oldDomain).equals(newDomain)) {
+                long callbackStartNanos = callingBack();
+                try {
+                    callback.circularRedirect(req.getUrl(), ret.getHeaders(), stringBody, newLocation);
+                } finally {
+                    calledBack(callbackStartNanos, ret.getCode());
+                }
+            } else {
+                session.setRedirect(oldDomain, newDomain, HttpRedirectHelper.isPermanentRedirect(ret.getCode()));
+                HttpVerb verb = HttpVerbHelper.valueOf(req.getVerb().toString());
+                OAuthRequest newReq = getOAuthRequest(url.getProtocol(), verb, newLocation);
+                if(req.getBodyContents() != null && req.getBodyContents().length() > 0) {
+                    newReq = getOAuthRequest(url.getProtocol(), verb, newLocation, req.getBodyContents());
+                }
+                redirectedCallback.redirected(req.getUrl(), ret.getHeaders(), stringBody, newReq.getUrl());
+                if(callback.redirected(req.getUrl(), ret.getHeaders(), stringBody, newReq.getUrl())) {
+                    sendRequest(newReq);
+                }
+            }
+        }
+        else {
+            List<Map.Entry<String, String>> headers = getResponseHeaders(ret);
+            if(Http.isSuccess(ret.getCode())) {
+                session.getCookieManager().storeCookies(ret.getHeaders());
+            }
+            boolean retried = false;
+            if(Http.isUnavailable(ret.getCode())) {
+                int afterMilliseconds = -1;
+                for(Map.Entry<String, String> headerPair : headers) {
+                    if(Http.isRetryAfterHeader(headerPair.getKey())) {
+                        try {
+                            int candidateMilliseconds = Integer.parseInt(headerPair.getValue()) * 1000;
+                            if(candidateMilliseconds > 0) {
+                                afterMilliseconds = candidateMilliseconds;
+                            }
+                        } catch(Throwable ignore) { }
+                    }
+                }
+                if(afterMilliseconds != -1) {
+                    retried = scheduleRetry(cb, afterMilliseconds);
+                }
+            }
+            if(!retried) {
+                if(ret.getCode() == HttpURLConnection.HTTP_UNAUTHORIZED && canDoRefreshToken()) {
+                    refreshTokenAndResend();
+                } else {
+                    long callbackStartNanos = callingBack();
+                    try {
                         cb.setDone(getRequestVerb(req),
                                 req.getUrl(),
                                 getRequestHeaders(req),
                                 req.getBodyContents(),
-                                -1,
-                                EmptyHeaders,
-                                t.getMessage().getBytes());
+                                ret.getCode(),
+                                headers,
+                                rawBody);
+                    }
+                    catch(Throwable t) {
+                        logCallbackError(t);
+                    }
+                    finally {
+                        calledBack(callbackStartNanos, ret.getCode());
                     }
-                    return null;
                 }
-            });
+            }
+        }
+    }
+
+    /**
+     * hand a successful response to a streaming callback without buffering it
+     */
+    private void streamResponse(OAuthRequest req, StackMobStreamingCallback cb, StackMobHttpResponse ret) {
+        StackMobMetricsRegistry metrics = session.getMetrics();
+        // the body isn't read here, so its size is only known if the server said what it would be
+        if(metrics != null && contentLength(ret) >= 0) metrics.record(StackMobMetricsRegistry.RESPONSE_BYTES, getEndpoint(), contentLength(ret));
+        StackMobLogger logger = session.getLogger();
+        if(logger.isInfoEnabled()) {
+            logger.logEvent(StackMobLogEvent.response(getRequestVerb(req), req.getUrl(), ret.getCode(), ret.getHeaders(), null));
+        }
+        if(!isOAuth2()) session.recordServerTimeDiff(ret.getHeader("Date"));
+        session.getCookieManager().storeCookies(ret.getHeaders());
+        long callbackStartNanos = callingBack();
+        try {
+            cb.setStreamed(getRequestVerb(req),
+                    req.getUrl(),
+                    getRequestHeaders(req),
+                    req.getBodyContents(),
+                    ret.getCode(),
+                    getResponseHeaders(ret),
+                    ret.getBody());
+        } catch(Throwable t) {
+            logCallbackError(t);
+        } finally {
+            ret.close();
+            calledBack(callbackStartNanos, ret.getCode());
+        }
+    }
+
+    private void logCallbackError(Throwable t) {
+        if(session.getLogger().isErrorEnabled()) {
+            session.getLogger().logError("Callback threw error %s", StackMobLogger.getStackTrace(t));
+        }
+    }
+
+    private static List<Map.Entry<String, String>> getResponseHeaders(StackMobHttpResponse ret) {
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        if(ret.getHeaders() != null) {
+            for(Map.Entry<String, String> header : ret.getHeaders().entrySet()) {
+                headers.add(header);
+            }
+        }
+        return headers;
+    }
+
+    private static int contentLength(StackMobHttpResponse ret) {
+        String length = ret.getHeader("Content-Length");
+        if(length == null) return -1;
+        try {
+            return Integer.parseInt(length.trim());
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * send the request again later if the callback and the retry policy allow it. Waiting happens on the policy's
+     * timer, so no thread is held in the meantime
+     * @return whether a retry was scheduled
+     */
+    private boolean scheduleRetry(final StackMobRawCallback cb, long retryAfterMillis) {
+        if(cb.getRetriesRemaining() <= 0) return false;
+        StackMobRetryPolicy policy = session.getRetryPolicy();
+        long delay = policy.nextDelay(lastRetryDelay, retryAfterMillis);
+        // only tell the callback about a retry the budget allows
+        if(!policy.tryAcquire()) return false;
+        if(!cb.retry((int) Math.min(delay, Integer.MAX_VALUE))) {
+            policy.refund();
+            return false;
+        }
+        cb.setRetriesRemaining(cb.getRetriesRemaining() - 1);
+        lastRetryDelay = delay;
+        recordCount(StackMobMetricsRegistry.RETRIES);
+        StackMobSpan s = span;
+        if(s != null) s.retried();
+        if(session.getLogger().isInfoEnabled()) {
+            session.getLogger().logInfo("Retrying request in %dms", delay);
+        }
+        policy.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // the timer only waits; the request goes back through the executor like any other
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendRequest();
+                        }
+                    });
+                } catch(RejectedExecutionException e) {
+                    unsent(cb, new StackMobException("The retry was rejected because too many requests are in progress"));
+                }
+            }
+        }, delay);
+        return true;
+    }
+
+    /**
+     * the request got no response at all. It's retried if repeating it is safe, otherwise the callback is told
+     */
+    private void handleConnectionFailure(OAuthRequest req, StackMobRawCallback cb, IOException e) {
+        if(!session.getRetryPolicy().canRetryConnectionError(httpVerb, e) || !scheduleRetry(cb, 0)) {
+            handleFailure(req, cb, e);
+        }
+    }
+
+    private void handleFailure(OAuthRequest req, StackMobRawCallback cb, Throwable t) {
+        StackMobLogger logger = session.getLogger();
+        if(t instanceof OAuthException) {
+            if(logger.isWarningEnabled()) {
+                logger.logWarning("Unexpected OAuth exception prevented message from being sent %s", StackMobLogger.getStackTrace(t));
+            }
+            unsent(cb, new StackMobException(t.getMessage()));
+        } else {
+            if(logger.isWarningEnabled()) {
+                logger.logWarning("Invoking callback after unexpected exception %s", StackMobLogger.getStackTrace(t));
+            }
+            // some exceptions, like a ClosedChannelException from the nio transport, have no message
+            String message = t.getMessage() == null ? t.toString() : t.getMessage();
+            long callbackStartNanos = callingBack();
+            try {
+                cb.setDone(getRequestVerb(req),
+                        req.getUrl(),
+                        getRequestHeaders(req),
+                        req.getBodyContents(),
+                        -1,
+                        EmptyHeaders,
+                        message.getBytes());
+            } finally {
+                calledBack(callbackStartNanos, -1);
+            }
         }
     }
 
@@ -0,0 +1,363 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.util.Http;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how many requests are sent to each host, such as the api and push hosts, so a burst of calls can't
+ * overwhelm either the app or StackMob. Each host gets an adaptive concurrency limit: it grows by one for every
+ * limit's worth of successful responses, and shrinks by a fraction when the host answers with a 503 or 429, fails
+ * to answer, or answers much more slowly than usual. An optional token bucket also caps the request rate:
+ *
+ * <pre>
+ * {@code
+ * stackmob.getSession().setRequestLimiter(new StackMobRequestLimiter().withConcurrency(10, 2, 50)
+ *                                                                    .withRate(20, 40)
+ *                                                                    .withMaxQueued(0));
+ * }
+ * </pre>
+ *
+ * Requests over the limit wait in a bounded queue and are sent in order as others finish. Once the queue is full,
+ * or straight away if it has no room, they fail through {@link com.stackmob.sdk.callback.StackMobRawCallback#unsent}.
+ * No thread is held while a request waits
+ */
+public class StackMobRequestLimiter {
+
+    public static final int DEFAULT_INITIAL_LIMIT = 20;
+    public static final int DEFAULT_MIN_LIMIT = 1;
+    public static final int DEFAULT_MAX_LIMIT = 200;
+    public static final int DEFAULT_MAX_QUEUED = 1000;
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+    public static final double DEFAULT_LATENCY_TOLERANCE = 2.0;
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    // a response has to be at least this much slower than usual before it counts as the host being overloaded
+    private static final long MIN_LATENCY_INCREASE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final double LATENCY_SMOOTHING = 0.05;
+
+    /**
+     * a request waiting to be sent
+     */
+    interface Task {
+        void run(Permit permit);
+    }
+
+    private volatile int initialLimit = DEFAULT_INITIAL_LIMIT;
+    private volatile int minLimit = DEFAULT_MIN_LIMIT;
+    private volatile int maxLimit = DEFAULT_MAX_LIMIT;
+    private volatile int maxQueued = DEFAULT_MAX_QUEUED;
+    private volatile double backoffRatio = DEFAULT_BACKOFF_RATIO;
+    private volatile double latencyTolerance = DEFAULT_LATENCY_TOLERANCE;
+    private volatile double permitsPerSecond = 0;
+    private volatile int burst = 0;
+    private final ConcurrentMap<String, HostLimit> hosts = new ConcurrentHashMap<String, HostLimit>();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile ScheduledExecutorService scheduler;
+
+    /**
+     * create a limiter with its own timer thread, started the first time the rate limit holds a request back
+     */
+    public StackMobRequestLimiter() { }
+
+    /**
+     * create a limiter that waits out the rate limit on an existing scheduler
+     * @param scheduler sends requests once the rate allows
+     */
+    public StackMobRequestLimiter(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * set the range the concurrency limit for each host moves in. Defaults to starting at 20, between 1 and 200
+     * @param initial how many requests to allow at once before anything is known about the host
+     * @param min the limit never drops below this, however badly the host is doing
+     * @param max the limit never grows above this
+     * @return the limiter
+     */
+    public StackMobRequestLimiter withConcurrency(int initial, int min, int max) {
+        if(min < 1 || initial < min || max < initial) throw new IllegalArgumentException("The limits must satisfy 1 <= min <= initial <= max");
+        this.initialLimit = initial;
+        this.minLimit = min;
+        this.maxLimit = max;
+        return this;
+    }
+
+    /**
+     * cap the rate requests are sent to each host at. There's no cap by default
+     * @param permitsPerSecond how many requests a second to allow, or 0 for no cap
+     * @param burst how many requests can be sent at once after a quiet spell
+     * @return the limiter
+     */
+    public StackMobRequestLimiter withRate(double permitsPerSecond, int burst) {
+        if(permitsPerSecond < 0 || (permitsPerSecond > 0 && burst < 1)) throw new IllegalArgumentException("The rate can't be negative and the burst must allow a request");
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        return this;
+    }
+
+    /**
+     * @param maxQueued how many requests to each host can wait for a chance to be sent. 0 fails requests over the
+     *                  limit straight away. Defaults to 1000
+     * @return the limiter
+     */
+    public StackMobRequestLimiter withMaxQueued(int maxQueued) {
+        if(maxQueued < 0) throw new IllegalArgumentException("The queue limit can't be negative");
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    /**
+     * set how hard the limit backs off
+     * @param backoffRatio what the limit is multiplied by when the host is overloaded. Defaults to 0.9
+     * @param latencyTolerance how many times slower than usual a response has to be to count as the host being
+     *                         overloaded. Defaults to 2
+     * @return the limiter
+     */
+    public StackMobRequestLimiter withBackoff(double backoffRatio, double latencyTolerance) {
+        if(backoffRatio <= 0 || backoffRatio >= 1 || latencyTolerance <= 1) throw new IllegalArgumentException("The backoff ratio must be between 0 and 1 and the tolerance above 1");
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    /**
+     * @param host the host, as passed to {@link StackMobRequest#setUrlFormat(String)}
+     * @return how many requests may currently be in progress to the host
+     */
+    public int getConcurrencyLimit(String host) {
+        return (int) getHost(host).getLimit();
+    }
+
+    /**
+     * @param host the host, as passed to {@link StackMobRequest#setUrlFormat(String)}
+     * @return how many requests to the host are in progress
+     */
+    public int getInFlight(String host) {
+        return getHost(host).getInFlight();
+    }
+
+    /**
+     * @return how many requests have failed because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * run a task when the host has room for it, which may be right away
+     * @return false if the task can't be run or queued and never will be
+     */
+    boolean submit(String host, Task task) {
+        return getHost(host).submit(task);
+    }
+
+    private HostLimit getHost(String host) {
+        HostLimit limit = hosts.get(host);
+        if(limit == null) {
+            HostLimit created = new HostLimit();
+            limit = hosts.putIfAbsent(host, created);
+            if(limit == null) limit = created;
+        }
+        return limit;
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService current = scheduler;
+        if(current == null) {
+            synchronized(this) {
+                if(scheduler == null) scheduler = StackMobExecutors.timer();
+                current = scheduler;
+            }
+        }
+        return current;
+    }
+
+    private static void runAll(List<Task> tasks, List<Permit> permits) {
+        for(int i = 0; i < tasks.size(); i++) {
+            tasks.get(i).run(permits.get(i));
+        }
+    }
+
+    /**
+     * the right to have one request in progress. It must be released once the response arrives or the request fails
+     */
+    class Permit {
+        private final HostLimit host;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Permit(HostLimit host) {
+            this.host = host;
+        }
+
+        /**
+         * @param statusCode the response's status, or -1 if there wasn't a response
+         * @param sentNanos when the request went to the transport, so time spent queued here isn't taken for latency
+         */
+        void release(int statusCode, long sentNanos) {
+            if(released.compareAndSet(false, true)) {
+                host.release(true, statusCode, sentNanos);
+            }
+        }
+
+        /**
+         * the request wasn't sent after all, so it says nothing about the host
+         */
+        void cancel() {
+            if(released.compareAndSet(false, true)) {
+                host.release(false, -1, 0);
+            }
+        }
+    }
+
+    private class HostLimit {
+        // all guarded by this
+        private double limit = initialLimit;
+        private int inFlight = 0;
+        private final ArrayDeque<Task> queue = new ArrayDeque<Task>();
+        private double tokens = burst;
+        private long lastRefillNanos = System.nanoTime();
+        private long lastDecreaseNanos = System.nanoTime();
+        private double smoothedLatencyNanos = -1;
+        private boolean drainScheduled = false;
+
+        synchronized double getLimit() {
+            return limit;
+        }
+
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        boolean submit(Task task) {
+            Permit permit = null;
+            synchronized(this) {
+                if(queue.isEmpty() && tryStart()) {
+                    permit = new Permit(this);
+                } else if(queue.size() < maxQueued) {
+                    queue.add(task);
+                    scheduleDrainIfThrottled();
+                } else {
+                    rejected.incrementAndGet();
+                    return false;
+                }
+            }
+            if(permit != null) task.run(permit);
+            return true;
+        }
+
+        void release(boolean sent, int statusCode, long sentNanos) {
+            List<Task> tasks = new ArrayList<Task>();
+            List<Permit> permits = new ArrayList<Permit>();
+            synchronized(this) {
+                inFlight--;
+                if(sent) adjust(statusCode, sentNanos);
+                takeRunnable(tasks, permits);
+            }
+            runAll(tasks, permits);
+        }
+
+        private void drain() {
+            List<Task> tasks = new ArrayList<Task>();
+            List<Permit> permits = new ArrayList<Permit>();
+            synchronized(this) {
+                drainScheduled = false;
+                takeRunnable(tasks, permits);
+            }
+            runAll(tasks, permits);
+        }
+
+        private void takeRunnable(List<Task> tasks, List<Permit> permits) {
+            while(!queue.isEmpty() && tryStart()) {
+                tasks.add(queue.poll());
+                permits.add(new Permit(this));
+            }
+            scheduleDrainIfThrottled();
+        }
+
+        private boolean tryStart() {
+            if(inFlight >= (int) limit) return false;
+            if(permitsPerSecond > 0) {
+                refill();
+                if(tokens < 1) return false;
+                tokens -= 1;
+            }
+            inFlight++;
+            return true;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+            lastRefillNanos = now;
+        }
+
+        /**
+         * when requests are waiting on the rate rather than on other requests finishing, nothing else will wake them
+         */
+        private void scheduleDrainIfThrottled() {
+            if(drainScheduled || queue.isEmpty() || permitsPerSecond <= 0 || inFlight >= (int) limit) return;
+            drainScheduled = true;
+            long waitNanos = (long) ((1 - tokens) * TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+            Runnable drain = new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+            try {
+                getScheduler().schedule(drain, Math.max(waitNanos, 0), TimeUnit.NANOSECONDS);
+            } catch(RejectedExecutionException e) {
+                drainScheduled = false;
+            }
+        }
+
+        private void adjust(int statusCode, long sentNanos) {
+            long latencyNanos = System.nanoTime() - sentNanos;
+            boolean overloaded = statusCode == -1 || Http.isUnavailable(statusCode) || statusCode == TOO_MANY_REQUESTS;
+            if(!overloaded && smoothedLatencyNanos >= 0) {
+                overloaded = latencyNanos > smoothedLatencyNanos * latencyTolerance
+                        && latencyNanos - smoothedLatencyNanos > MIN_LATENCY_INCREASE_NANOS;
+            }
+            if(statusCode != -1) {
+                smoothedLatencyNanos = smoothedLatencyNanos < 0 ? latencyNanos
+                        : smoothedLatencyNanos + LATENCY_SMOOTHING * (latencyNanos - smoothedLatencyNanos);
+            }
+            if(overloaded) {
+                // requests sent before the last decrease were sent under the old limit, so they don't count again
+                if(sentNanos - lastDecreaseNanos >= 0) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastDecreaseNanos = System.nanoTime();
+                }
+            } else {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.net.HttpVerb;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how long to wait before sending a failed request again, and waits on a timer rather than on one of the
+ * executor's threads. Once the wait is over the request is sent from its executor as usual. A 503 with a
+ * Retry-After header is retried after at least that long. Requests that never got a response, because the
+ * connection was refused or dropped, can be retried too with {@link #withRetryOnConnectionErrors(boolean)}. Waits
+ * grow exponentially with decorrelated jitter, so clients that failed together don't all come back at the same
+ * moment:
+ *
+ * <pre>
+ * {@code
+ * stackmob.getSession().setRetryPolicy(new StackMobRetryPolicy().withBackoff(200, 10000, TimeUnit.MILLISECONDS)
+ *                                                              .withBudget(0.1, 5));
+ * }
+ * </pre>
+ *
+ * Retries also draw on a budget shared by every request in the session: each request adds a fraction of a retry to
+ * it, with a few retries a second always allowed, so an outage can't turn every request into several. How many
+ * times a single request may be retried is still up to its callback, see
+ * {@link com.stackmob.sdk.callback.StackMobRawCallback#setRetriesRemaining(int)}
+ */
+public class StackMobRetryPolicy {
+
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 100;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30 * 1000;
+    public static final double DEFAULT_BUDGET_RATIO = 0.2;
+    public static final int DEFAULT_MIN_RETRIES_PER_SECOND = 10;
+
+    private static final double MAX_BALANCE = 100;
+
+    private volatile long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private volatile boolean retryConnectionErrors = false;
+    private final Random random = new Random();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong overBudget = new AtomicLong();
+    private volatile ScheduledExecutorService scheduler;
+
+    // guarded by this
+    private double budgetRatio = DEFAULT_BUDGET_RATIO;
+    private int minRetriesPerSecond = DEFAULT_MIN_RETRIES_PER_SECOND;
+    private double balance = 0;
+    private long reserveSecond = 0;
+    private int reserveUsed = 0;
+
+    /**
+     * create a policy with its own timer thread, started the first time something is retried
+     */
+    public StackMobRetryPolicy() { }
+
+    /**
+     * create a policy that waits on an existing scheduler
+     * @param scheduler times the retries. Each is handed to its request's executor when it's due, so the scheduler
+     *                  isn't kept busy
+     */
+    public StackMobRetryPolicy(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * set how long to wait between attempts. The first retry waits around the base delay, and each one after that
+     * up to three times as long as the last, never more than the maximum. Defaults to 100ms and 30s
+     * @param baseDelay the shortest wait
+     * @param maxDelay the longest wait, unless the server asks for longer with Retry-After
+     * @param unit the unit of the delays
+     * @return the policy
+     */
+    public StackMobRetryPolicy withBackoff(long baseDelay, long maxDelay, TimeUnit unit) {
+        if(baseDelay < 0 || maxDelay < baseDelay) throw new IllegalArgumentException("The delays must satisfy 0 <= baseDelay <= maxDelay");
+        this.baseDelayMillis = unit.toMillis(baseDelay);
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+        return this;
+    }
+
+    /**
+     * @param retryConnectionErrors whether to retry requests that got no response at all. Only gets and heads are
+     *                              retried this way, since anything else may have reached the server before the
+     *                              connection failed, and timeouts never are, since the wait has already been long.
+     *                              Defaults to false
+     * @return the policy
+     */
+    public StackMobRetryPolicy withRetryOnConnectionErrors(boolean retryConnectionErrors) {
+        this.retryConnectionErrors = retryConnectionErrors;
+        return this;
+    }
+
+    /**
+     * limit retries across the whole session
+     * @param ratio how many retries each request adds to the budget, so 0.2 allows one retry for every five requests
+     * @param minRetriesPerSecond retries that are always allowed each second, so a quiet app can still retry
+     * @return the policy
+     */
+    public synchronized StackMobRetryPolicy withBudget(double ratio, int minRetriesPerSecond) {
+        if(ratio < 0 || minRetriesPerSecond < 0) throw new IllegalArgumentException("The budget can't be negative");
+        this.budgetRatio = ratio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        return this;
+    }
+
+    /**
+     * @return the number of retries scheduled
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of retries that weren't made because the budget was used up
+     */
+    public long getOverBudgetCount() {
+        return overBudget.get();
+    }
+
+    /**
+     * note that a request is being sent for the first time, which adds to the retry budget
+     */
+    synchronized void recordRequest() {
+        balance = Math.min(balance + budgetRatio, MAX_BALANCE);
+    }
+
+    /**
+     * @param verb the request's verb
+     * @param e why the request got no response
+     * @return whether a request that got no response can be retried
+     */
+    boolean canRetryConnectionError(HttpVerb verb, IOException e) {
+        // the request may have reached the server before the connection failed, so only repeat what's harmless to.
+        // PUT is used for [inc] counters and relationship appends, and a repeated DELETE would report a 404
+        if(!retryConnectionErrors || e instanceof SocketTimeoutException) return false;
+        return verb == HttpVerbWithoutPayload.GET || verb == HttpVerbWithoutPayload.HEAD;
+    }
+
+    /**
+     * @param previousDelayMillis how long the last retry of this request waited, or 0 if this is the first
+     * @param retryAfterMillis how long the server asked us to wait, or 0
+     * @return how long to wait before the next attempt
+     */
+    long nextDelay(long previousDelayMillis, long retryAfterMillis) {
+        long base = baseDelayMillis;
+        long max = maxDelayMillis;
+        long upper = Math.max(base, previousDelayMillis * 3);
+        long jittered = Math.min(max, base + (long) (random.nextDouble() * (upper - base)));
+        return Math.max(jittered, retryAfterMillis);
+    }
+
+    /**
+     * take a retry from the budget
+     * @return whether there was one to take
+     */
+    synchronized boolean tryAcquire() {
+        long second = System.currentTimeMillis() / 1000;
+        if(second != reserveSecond) {
+            reserveSecond = second;
+            reserveUsed = 0;
+        }
+        if(reserveUsed < minRetriesPerSecond) {
+            reserveUsed++;
+        } else if(balance >= 1) {
+            balance -= 1;
+        } else {
+            overBudget.incrementAndGet();
+            return false;
+        }
+        retries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * give back a retry taken with {@link #tryAcquire()} that won't be made after all
+     */
+    synchronized void refund() {
+        retries.decrementAndGet();
+        balance = Math.min(balance + 1, MAX_BALANCE);
+    }
+
+    /**
+     * run a retry after a delay. If the timer won't take it, it runs now
+     */
+    void schedule(Runnable retry, long delayMillis) {
+        try {
+            getScheduler().schedule(retry, delayMillis, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException e) {
+            retry.run();
+        }
+    }
+
+    private ScheduledExecutorService getScheduler() {
+        ScheduledExecutorService current = scheduler;
+        if(current == null) {
+            synchronized(this) {
+                if(scheduler == null) scheduler = StackMobExecutors.timer();
+                current = scheduler;
+            }
+        }
+        return current;
+    }
+}
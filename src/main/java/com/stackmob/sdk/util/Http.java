@@ -46,4 +46,42 @@ public class Http {
     public static String fullDomain(String scheme, String domain) {
         return String.format("%s://%s", scheme, domain);
     }
+
+    /**
+     * group requests to a host by the first part of their path, so requests for different objects in a schema are
+     * treated alike
+     * @param host the host
+     * @param path the path, with or without a leading slash
+     * @return the host and first part of the path, such as api.stackmob.com/book
+     */
+    public static String endpoint(String host, String path) {
+        String schema = path == null ? "" : path;
+        while(schema.startsWith("/")) schema = schema.substring(1);
+        int slash = schema.indexOf('/');
+        if(slash >= 0) schema = schema.substring(0, slash);
+        return host + "/" + schema;
+    }
+
+    /**
+     * count the bytes a string takes up in UTF-8 without encoding it
+     * @param s the string
+     * @return its length in bytes
+     */
+    public static int utf8Length(String s) {
+        int length = 0;
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) {
+                length += 1;
+            } else if(c < 0x800) {
+                length += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
 }
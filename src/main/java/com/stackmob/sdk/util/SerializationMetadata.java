@@ -30,6 +30,8 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This class stores some information about classes in an easily queriable form
@@ -47,34 +49,50 @@ public enum SerializationMetadata {
     MODEL_ARRAY;
 
     public static SerializationMetadata getSerializationMetadata(Class<?> actualClass, String fieldName) {
-        ensureMetadata(actualClass);
-        return metadataForClasses.get(actualClass).get(fieldName);
+        return classMetadata(actualClass).metadata.get(fieldName);
     }
     
     public static String getFieldNameFromJsonName(Class<?> actualClass, String jsonName) {
-        ensureMetadata(actualClass);
-        return jsonNamesForClasses.get(actualClass).get(jsonName);
+        return classMetadata(actualClass).fieldNames.get(jsonName);
     }
 
-    private static Map<Class<?>,Map<String,SerializationMetadata>> metadataForClasses = new HashMap<Class<?>, Map<String, SerializationMetadata>>();
-    private static Map<Class<?>,Map<String,String>> jsonNamesForClasses = new HashMap<Class<?>, Map<String, String>>();
+    /**
+     * The metadata for one class. Never modified once it's been published
+     */
+    private static class ClassMetadata {
+        private final Map<String, SerializationMetadata> metadata = new HashMap<String, SerializationMetadata>();
+        private final Map<String, String> fieldNames = new HashMap<String, String>();
 
-    public static synchronized void ensureMetadata(Class<?> actualClass) {
-        if(!metadataForClasses.containsKey(actualClass)) {
-            metadataForClasses.put(actualClass,new HashMap<String, SerializationMetadata>());
-            jsonNamesForClasses.put(actualClass, new HashMap<String, String>());
+        private ClassMetadata(Class<?> actualClass) {
             Class<?> currentClass = actualClass;
             //Sort the fields into groupings we care about for serialization
             while(!currentClass.equals(StackMobModel.class)) {
                 for(Field field : currentClass.getDeclaredFields()) {
-                    jsonNamesForClasses.get(actualClass).put(field.getName().toLowerCase(), field.getName());
-                    metadataForClasses.get(actualClass).put(field.getName(), determineMetadata(field));
+                    fieldNames.put(field.getName().toLowerCase(), field.getName());
+                    metadata.put(field.getName(), determineMetadata(field));
                 }
                 currentClass = currentClass.getSuperclass();
             }
         }
     }
 
+    // Reads take no lock. Two threads may both build the metadata for a new class, but only one copy is kept
+    private static final ConcurrentMap<Class<?>, ClassMetadata> metadataForClasses = new ConcurrentHashMap<Class<?>, ClassMetadata>();
+
+    private static ClassMetadata classMetadata(Class<?> actualClass) {
+        ClassMetadata classMetadata = metadataForClasses.get(actualClass);
+        if(classMetadata == null) {
+            classMetadata = new ClassMetadata(actualClass);
+            ClassMetadata existing = metadataForClasses.putIfAbsent(actualClass, classMetadata);
+            if(existing != null) classMetadata = existing;
+        }
+        return classMetadata;
+    }
+
+    public static void ensureMetadata(Class<?> actualClass) {
+        classMetadata(actualClass);
+    }
+
     private static SerializationMetadata determineMetadata(Field field) {
         if(isArray(field.getType())) {
             Class<?> componentClass = getComponentClass(field);
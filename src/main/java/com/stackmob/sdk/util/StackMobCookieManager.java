@@ -51,7 +51,11 @@ public class StackMobCookieManager {
     }
 
     public void storeCookies(Response resp) {
-        storeCookie(resp.getHeaders().get(SetCookieHeaderKey));
+        storeCookies(resp.getHeaders());
+    }
+
+    public void storeCookies(Map<String, String> headers) {
+        storeCookie(headers.get(SetCookieHeaderKey));
     }
     
     protected void storeCookie(String cookieString) {
@@ -0,0 +1,246 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the sdk's measurements in memory so they can be read back:
+ *
+ * <pre>
+ * {@code
+ * StackMobInMemoryMetrics metrics = new StackMobInMemoryMetrics();
+ * stackmob.getSession().setMetrics(metrics);
+ * ...
+ * StackMobInMemoryMetrics.Snapshot latency = metrics.getHistogram(StackMobMetricsRegistry.LATENCY, "api.stackmob.com/book");
+ * System.out.println("p99 " + latency.getPercentile(0.99) / 1000000 + "ms over " + latency.getCount() + " requests");
+ * }
+ * </pre>
+ *
+ * Counters and gauges are exact. Histograms count every value, but percentiles are taken from the most recent
+ * values only, so they describe recent behavior rather than everything since the app started
+ */
+public class StackMobInMemoryMetrics implements StackMobMetricsRegistry {
+
+    public static final int DEFAULT_SAMPLES = 1024;
+
+    private final int samples;
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * keep the most recent 1024 values of each histogram for percentiles
+     */
+    public StackMobInMemoryMetrics() {
+        this(DEFAULT_SAMPLES);
+    }
+
+    /**
+     * @param samples how many of the most recent values of each histogram to keep for percentiles
+     */
+    public StackMobInMemoryMetrics(int samples) {
+        if(samples < 1) throw new IllegalArgumentException("At least one sample is required");
+        this.samples = samples;
+    }
+
+    private static String key(String name, String endpoint) {
+        return name + " " + endpoint;
+    }
+
+    private static AtomicLong getOrCreate(ConcurrentMap<String, AtomicLong> values, String key) {
+        AtomicLong value = values.get(key);
+        if(value == null) {
+            AtomicLong created = new AtomicLong();
+            value = values.putIfAbsent(key, created);
+            if(value == null) value = created;
+        }
+        return value;
+    }
+
+    @Override
+    public void increment(String name, String endpoint) {
+        getOrCreate(counters, key(name, endpoint)).incrementAndGet();
+    }
+
+    @Override
+    public void record(String name, String endpoint, long value) {
+        String key = key(name, endpoint);
+        Histogram histogram = histograms.get(key);
+        if(histogram == null) {
+            Histogram created = new Histogram(samples);
+            histogram = histograms.putIfAbsent(key, created);
+            if(histogram == null) histogram = created;
+        }
+        histogram.add(value);
+    }
+
+    @Override
+    public void adjust(String name, String endpoint, long delta) {
+        getOrCreate(gauges, key(name, endpoint)).addAndGet(delta);
+    }
+
+    /**
+     * @param name the counter's name
+     * @param endpoint the endpoint
+     * @return the count, 0 if nothing has been counted
+     */
+    public long getCount(String name, String endpoint) {
+        AtomicLong value = counters.get(key(name, endpoint));
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * @param name the gauge's name
+     * @param endpoint the endpoint
+     * @return the gauge's value, 0 if it's never been adjusted
+     */
+    public long getGauge(String name, String endpoint) {
+        AtomicLong value = gauges.get(key(name, endpoint));
+        return value == null ? 0 : value.get();
+    }
+
+    /**
+     * @param name the histogram's name
+     * @param endpoint the endpoint
+     * @return the histogram as it is now, empty if nothing has been recorded
+     */
+    public Snapshot getHistogram(String name, String endpoint) {
+        Histogram histogram = histograms.get(key(name, endpoint));
+        return histogram == null ? new Snapshot(0, 0, 0, 0, new long[0]) : histogram.snapshot();
+    }
+
+    /**
+     * @return the endpoints anything has been measured for
+     */
+    public Set<String> getEndpoints() {
+        Set<String> endpoints = new TreeSet<String>();
+        for(Map<String, ?> values : Arrays.<Map<String, ?>>asList(counters, gauges, histograms)) {
+            for(String key : values.keySet()) {
+                endpoints.add(key.substring(key.indexOf(' ') + 1));
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * forget everything measured so far
+     */
+    public void clear() {
+        counters.clear();
+        gauges.clear();
+        histograms.clear();
+    }
+
+    /**
+     * a histogram's values at one moment
+     */
+    public static class Snapshot {
+        private final long count;
+        private final long min;
+        private final long max;
+        private final long sum;
+        private final long[] recent;
+
+        Snapshot(long count, long min, long max, long sum, long[] recent) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.sum = sum;
+            this.recent = recent;
+        }
+
+        /**
+         * @return how many values have been recorded
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the smallest value recorded, 0 if there are none
+         */
+        public long getMin() {
+            return min;
+        }
+
+        /**
+         * @return the largest value recorded, 0 if there are none
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the mean of every value recorded, 0 if there are none
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param fraction between 0 and 1, such as 0.99
+         * @return the smallest recent value that the given fraction of recent values are no bigger than, 0 if
+         *         there are none
+         */
+        public long getPercentile(double fraction) {
+            if(recent.length == 0) return 0;
+            int index = (int) Math.ceil(fraction * recent.length) - 1;
+            return recent[Math.max(0, Math.min(recent.length - 1, index))];
+        }
+    }
+
+    private static class Histogram {
+        // all guarded by this
+        private final long[] recent;
+        private int next = 0;
+        private int filled = 0;
+        private long count = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        private long sum = 0;
+
+        Histogram(int samples) {
+            recent = new long[samples];
+        }
+
+        synchronized void add(long value) {
+            recent[next] = value;
+            next = (next + 1) % recent.length;
+            if(filled < recent.length) filled++;
+            count++;
+            sum += value;
+            if(value < min) min = value;
+            if(value > max) max = value;
+        }
+
+        Snapshot snapshot() {
+            long[] sorted;
+            Snapshot snapshot;
+            synchronized(this) {
+                sorted = Arrays.copyOf(recent, filled);
+                snapshot = new Snapshot(count, count == 0 ? 0 : min, count == 0 ? 0 : max, sum, sorted);
+            }
+            // sorted outside the lock, the snapshot isn't handed out until it's done
+            Arrays.sort(sorted);
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.util;
+
+import com.stackmob.sdk.net.HttpVerb;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+
+/**
+ * A request sent to or response received from StackMob, as reported to {@link StackMobLogger#logEvent(StackMobLogEvent)}.
+ * Events hold references to the data the request already has, and are only formatted if {@link #toString()} is called
+ */
+public class StackMobLogEvent {
+
+    public enum Type {
+        REQUEST,
+        RESPONSE
+    }
+
+    private static final int MAX_LOGGED_BODY_CHARS = 1000;
+
+    private final Type type;
+    private final HttpVerb verb;
+    private final String url;
+    private final Map<String, String> headers;
+    private final String requestBody;
+    private final int statusCode;
+    private final byte[] responseBody;
+    private final boolean streamed;
+
+    private StackMobLogEvent(Type type, HttpVerb verb, String url, Map<String, String> headers, String requestBody,
+                             int statusCode, byte[] responseBody, boolean streamed) {
+        this.type = type;
+        this.verb = verb;
+        this.url = url;
+        this.headers = headers;
+        this.requestBody = requestBody;
+        this.statusCode = statusCode;
+        this.responseBody = responseBody;
+        this.streamed = streamed;
+    }
+
+    /**
+     * @param verb the request's verb
+     * @param url the url requested
+     * @param headers the request headers
+     * @param body the request body, empty for requests without one
+     * @return an event describing a request about to be sent
+     */
+    public static StackMobLogEvent request(HttpVerb verb, String url, Map<String, String> headers, String body) {
+        return new StackMobLogEvent(Type.REQUEST, verb, url, headers, body, -1, null, false);
+    }
+
+    /**
+     * @param verb the request's verb
+     * @param url the url requested
+     * @param statusCode the response status code
+     * @param headers the response headers
+     * @param body the response body, or null if it was streamed to the callback rather than read
+     * @return an event describing a received response
+     */
+    public static StackMobLogEvent response(HttpVerb verb, String url, int statusCode, Map<String, String> headers, byte[] body) {
+        return new StackMobLogEvent(Type.RESPONSE, verb, url, headers, null, statusCode, body, body == null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public HttpVerb getVerb() {
+        return verb;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the request headers for a request, the response headers for a response
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the request body, null for responses
+     */
+    public String getRequestBody() {
+        return requestBody;
+    }
+
+    /**
+     * @return the status code, -1 for requests
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the response body, null for requests and streamed responses
+     */
+    public byte[] getResponseBody() {
+        return responseBody;
+    }
+
+    /**
+     * @return whether the response body went straight to the callback without being read
+     */
+    public boolean isStreamed() {
+        return streamed;
+    }
+
+    @Override
+    public String toString() {
+        if(type == Type.REQUEST) {
+            return "Request URL: " + url + "\nRequest Verb: " + verb + "\nRequest Headers: " + headers + "\nRequest Body: " + requestBody;
+        }
+        return "Response StatusCode: " + statusCode + "\nResponse Headers: " + headers + "\nResponse: " + describeBody();
+    }
+
+    private String describeBody() {
+        if(streamed) return "(streamed)";
+        // Decode a bit more than we show, multibyte characters can take up to four bytes
+        int bytesToDecode = Math.min(responseBody.length, MAX_LOGGED_BODY_CHARS * 4);
+        String body;
+        try {
+            body = new String(responseBody, 0, bytesToDecode, "UTF-8");
+        } catch(UnsupportedEncodingException e) {
+            return "(unreadable)";
+        }
+        boolean truncated = bytesToDecode < responseBody.length || body.length() > MAX_LOGGED_BODY_CHARS;
+        return truncated ? body.substring(0, Math.min(body.length(), MAX_LOGGED_BODY_CHARS)) + " (truncated)" : body;
+    }
+}
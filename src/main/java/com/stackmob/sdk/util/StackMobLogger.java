@@ -22,6 +22,14 @@ import java.io.StringWriter;
  * Logs messages to System.out. When set in {@link com.stackmob.sdk.api.StackMob#setLogger(StackMobLogger)}, this class will be used
  * to log helpful messages. It does nothing unless enabled with {@link #setLogging(boolean)}. This class can be
  * overridden on platforms to log to the appropriate location
+ *
+ * The sdk checks the level methods such as {@link #isInfoEnabled()} before building any message, so a disabled
+ * logger costs nothing. Requests and responses are reported as {@link StackMobLogEvent}s; override
+ * {@link #logEvent(StackMobLogEvent)} to receive their fields directly rather than as formatted text.
+ *
+ * Since the level methods all follow {@link #setLogging(boolean)}, a subclass that overrides {@link #logInfo} and
+ * friends is no longer called at all unless it also calls setLogging(true) or overrides the level methods. Earlier
+ * versions called the log methods regardless and left the check to them.
  */
 public class StackMobLogger {
     
@@ -35,6 +43,50 @@ public class StackMobLogger {
         enableLogging = logging;
     }
 
+    /**
+     * @return whether logging has been enabled with {@link #setLogging(boolean)}
+     */
+    public boolean isLoggingEnabled() {
+        return enableLogging;
+    }
+
+    /**
+     * @return whether debug messages will be logged. Override to filter by level
+     */
+    public boolean isDebugEnabled() {
+        return enableLogging;
+    }
+
+    /**
+     * @return whether info messages and events will be logged. Override to filter by level
+     */
+    public boolean isInfoEnabled() {
+        return enableLogging;
+    }
+
+    /**
+     * @return whether warnings will be logged. Override to filter by level
+     */
+    public boolean isWarningEnabled() {
+        return enableLogging;
+    }
+
+    /**
+     * @return whether errors will be logged. Override to filter by level
+     */
+    public boolean isErrorEnabled() {
+        return enableLogging;
+    }
+
+    /**
+     * log a request or response. Only called when {@link #isInfoEnabled()} is true. By default the event is formatted
+     * and logged with info priority
+     * @param event the event
+     */
+    public void logEvent(StackMobLogEvent event) {
+        logInfo("%s", event);
+    }
+
 
     /**
      * log a message with debug priority
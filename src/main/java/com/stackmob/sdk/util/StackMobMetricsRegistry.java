@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+/**
+ * Receives measurements of what the sdk is doing. Set one with
+ * {@link com.stackmob.sdk.api.StackMobSession#setMetrics(StackMobMetricsRegistry)} to keep them in memory with
+ * {@link StackMobInMemoryMetrics}, or implement this interface to pass them on to the metrics system you already use.
+ *
+ * Every measurement has one of the names below and the endpoint it's about, which is the host and the first part of
+ * the path, such as {@code api.stackmob.com/book}. Methods are called on the threads doing the work, so they must be
+ * thread safe and quick
+ */
+public interface StackMobMetricsRegistry {
+
+    /** histogram of nanoseconds from sending a request to its response starting to arrive */
+    String LATENCY = "request.latency";
+    /** histogram of nanoseconds a request or response waited for a thread from the executor */
+    String QUEUE_WAIT = "request.queue_wait";
+    /** histogram of the size of request bodies, in bytes */
+    String REQUEST_BYTES = "request.bytes";
+    /** histogram of the size of response bodies, in bytes */
+    String RESPONSE_BYTES = "response.bytes";
+    /** counter of responses, with the status code appended, such as {@code response.status.200} */
+    String RESPONSE_STATUS = "response.status.";
+    /** counter of requests that got no response at all */
+    String NO_RESPONSE = "response.none";
+    /** counter of requests that were sent again after failing */
+    String RETRIES = "request.retries";
+    /** counter of redirects followed */
+    String REDIRECTS = "request.redirects";
+    /** counter of OAuth2 access tokens refreshed */
+    String TOKEN_REFRESHES = "oauth2.token_refreshes";
+    /** counter of gets answered by an identical get that was already on its way */
+    String COALESCED = "datastore.coalesced";
+    /** counter of reads answered from the cache */
+    String CACHE_HITS = "datastore.cache_hits";
+    /** gauge of requests waiting for a response */
+    String IN_FLIGHT = "request.in_flight";
+
+    /**
+     * count something happening once
+     * @param name the counter's name
+     * @param endpoint what it happened to
+     */
+    void increment(String name, String endpoint);
+
+    /**
+     * add a value to a histogram
+     * @param name the histogram's name
+     * @param endpoint what the value is about
+     * @param value the value
+     */
+    void record(String name, String endpoint, long value);
+
+    /**
+     * move a gauge up or down
+     * @param name the gauge's name
+     * @param endpoint what the gauge is about
+     * @param delta how much to change it by
+     */
+    void adjust(String name, String endpoint, long delta);
+}
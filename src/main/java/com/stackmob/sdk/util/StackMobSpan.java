@@ -0,0 +1,313 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import com.stackmob.sdk.net.HttpVerb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The life of one request, from the first time it's sent until its callback returns, as reported to a
+ * {@link StackMobTracer}. Retries, redirects and OAuth2 token refreshes all belong to the same span, and the request
+ * made to refresh the token reports a span of its own with the same correlation id.
+ *
+ * Times are from {@link System#nanoTime()}, so they can only be compared with each other
+ */
+public class StackMobSpan {
+
+    public enum Phase {
+        /** waiting for a thread from the executor, either to send the request or to handle its response */
+        QUEUE,
+        /** building the request's headers and signing it */
+        BUILD,
+        /** from handing the request to the transport until its response starts to arrive */
+        NETWORK,
+        /** reading the response body */
+        READ,
+        /** filling models in from the response. This happens inside CALLBACK */
+        DECODE,
+        /** running the callback, including any decoding it does */
+        CALLBACK
+    }
+
+    /**
+     * a span of time spent in one phase. A phase can happen more than once, such as NETWORK when a request is retried
+     */
+    public static class Timing {
+        private final Phase phase;
+        private final long startNanos;
+        private final long endNanos;
+
+        Timing(Phase phase, long startNanos, long endNanos) {
+            this.phase = phase;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+        }
+
+        public Phase getPhase() {
+            return phase;
+        }
+
+        public long getStartNanos() {
+            return startNanos;
+        }
+
+        public long getEndNanos() {
+            return endNanos;
+        }
+
+        public long getDuration() {
+            return endNanos - startNanos;
+        }
+    }
+
+    private static final ThreadLocal<StackMobSpan> current = new ThreadLocal<StackMobSpan>();
+    private static final String idPrefix = Long.toHexString(new Random().nextLong()) + "-";
+    private static final AtomicLong nextId = new AtomicLong();
+
+    private final String correlationId;
+    private final HttpVerb verb;
+    private final String endpoint;
+    private final long startNanos = System.nanoTime();
+    private final List<Timing> timings = new ArrayList<Timing>();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private final AtomicInteger retries = new AtomicInteger();
+    private final AtomicInteger redirects = new AtomicInteger();
+    private final AtomicInteger tokenRefreshes = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+    private volatile String url;
+    private volatile int statusCode = -1;
+    private volatile long endNanos = -1;
+
+    // only touched by the thread running the callback
+    private StackMobSpan outer;
+    private int decodeDepth = 0;
+    private long decodeStartNanos;
+
+    /**
+     * @param correlationId identifies the request, and any other requests made on its behalf
+     * @param verb the request's verb
+     * @param endpoint the host and first part of the path the request is going to
+     */
+    public StackMobSpan(String correlationId, HttpVerb verb, String endpoint) {
+        this.correlationId = correlationId;
+        this.verb = verb;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * @return a correlation id that's unique within this process and unlikely to be used by any other
+     */
+    public static String newCorrelationId() {
+        return idPrefix + Long.toHexString(nextId.incrementAndGet());
+    }
+
+    /**
+     * @return the span whose callback is running on this thread, or null if there isn't one
+     */
+    public static StackMobSpan current() {
+        return current.get();
+    }
+
+    /**
+     * start timing decoding for the span whose callback is running on this thread. Decoding that happens inside other
+     * decoding is only counted once
+     * @return the span to call {@link #decoded()} on when decoding is done, or null if there's no span to time
+     */
+    public static StackMobSpan decoding() {
+        StackMobSpan span = current.get();
+        if(span != null && span.decodeDepth++ == 0) span.decodeStartNanos = System.nanoTime();
+        return span;
+    }
+
+    /**
+     * decoding started with {@link #decoding()} is done
+     */
+    public void decoded() {
+        if(--decodeDepth == 0) record(Phase.DECODE, decodeStartNanos, System.nanoTime());
+    }
+
+    /**
+     * the callback is about to run on this thread
+     * @return when the callback started, to pass to {@link #callbackFinished(long, int)}
+     */
+    public long callbackStarting() {
+        outer = current.get();
+        current.set(this);
+        return System.nanoTime();
+    }
+
+    /**
+     * the callback has returned, so the request is done
+     * @param callbackStartNanos what {@link #callbackStarting()} returned
+     * @param statusCode the final response's status, or -1 if there wasn't a response
+     * @return whether this finished the span, rather than it having been finished already
+     */
+    public boolean callbackFinished(long callbackStartNanos, int statusCode) {
+        record(Phase.CALLBACK, callbackStartNanos, System.nanoTime());
+        current.set(outer);
+        outer = null;
+        if(!finished.compareAndSet(false, true)) return false;
+        this.statusCode = statusCode;
+        this.endNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * @param phase what the time was spent on
+     * @param startNanos when it started
+     * @param endNanos when it ended
+     */
+    public void record(Phase phase, long startNanos, long endNanos) {
+        synchronized(timings) {
+            timings.add(new Timing(phase, startNanos, endNanos));
+        }
+    }
+
+    /**
+     * the request is being sent
+     * @param url where it's being sent
+     */
+    public void attempted(String url) {
+        this.url = url;
+        attempts.incrementAndGet();
+    }
+
+    public void retried() {
+        retries.incrementAndGet();
+    }
+
+    public void redirected() {
+        redirects.incrementAndGet();
+    }
+
+    public void refreshedToken() {
+        tokenRefreshes.incrementAndGet();
+    }
+
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    public HttpVerb getVerb() {
+        return verb;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the url the request was last sent to, or null if it was never sent
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return the final response's status, or -1 if there wasn't one
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return how many times the request was handed to the transport
+     */
+    public int getAttempts() {
+        return attempts.get();
+    }
+
+    public int getRetries() {
+        return retries.get();
+    }
+
+    public int getRedirects() {
+        return redirects.get();
+    }
+
+    public int getTokenRefreshes() {
+        return tokenRefreshes.get();
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return when the callback returned, or -1 if it hasn't yet
+     */
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    /**
+     * @return nanoseconds from the request first being sent until its callback returned, or -1 if it hasn't yet
+     */
+    public long getDuration() {
+        long end = endNanos;
+        return end == -1 ? -1 : end - startNanos;
+    }
+
+    /**
+     * @return every timing recorded, in the order they finished
+     */
+    public List<Timing> getTimings() {
+        synchronized(timings) {
+            return new ArrayList<Timing>(timings);
+        }
+    }
+
+    /**
+     * @param phase a phase
+     * @return the total nanoseconds spent in the phase
+     */
+    public long getTime(Phase phase) {
+        long total = 0;
+        synchronized(timings) {
+            for(Timing timing : timings) {
+                if(timing.phase == phase) total += timing.getDuration();
+            }
+        }
+        return total;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1000000.0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder()
+                .append(correlationId).append(" ").append(verb).append(" ").append(url)
+                .append(" status=").append(statusCode)
+                .append(" total=").append(millis(getDuration())).append("ms");
+        for(Phase phase : Phase.values()) {
+            sb.append(" ").append(phase.name().toLowerCase()).append("=").append(millis(getTime(phase))).append("ms");
+        }
+        if(attempts.get() > 1) sb.append(" attempts=").append(attempts.get());
+        if(retries.get() > 0) sb.append(" retries=").append(retries.get());
+        if(redirects.get() > 0) sb.append(" redirects=").append(redirects.get());
+        if(tokenRefreshes.get() > 0) sb.append(" token_refreshes=").append(tokenRefreshes.get());
+        return sb.toString();
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+/**
+ * Receives a {@link StackMobSpan} for every request once its callback has been called, showing where the request's
+ * time went. Set one with {@link com.stackmob.sdk.api.StackMobSession#setTracer(StackMobTracer)}:
+ *
+ * <pre>
+ * {@code
+ * stackmob.getSession().setTracer(new StackMobTracer() {
+ *     public void spanFinished(StackMobSpan span) {
+ *         if(span.getDuration() > 1000000000L) System.out.println("slow request " + span);
+ *     }
+ * });
+ * }
+ * </pre>
+ *
+ * This is called on the thread that ran the callback, so it must be thread safe and quick
+ */
+public interface StackMobTracer {
+
+    /**
+     * @param span the finished request's timings
+     */
+    void spanFinished(StackMobSpan span);
+}
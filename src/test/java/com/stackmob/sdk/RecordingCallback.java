@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A callback for tests against a {@link StackMobTestServer}. It keeps what it was called with and can be waited on
+ */
+public class RecordingCallback extends StackMobCallback {
+    public final CountDownLatch done;
+    public final AtomicInteger calls = new AtomicInteger();
+    public final AtomicInteger failures = new AtomicInteger();
+    public final List<Integer> delays = new CopyOnWriteArrayList<Integer>();
+    public volatile String body;
+    public volatile StackMobException error;
+    public volatile long finishedAt;
+    private volatile boolean retrying = true;
+
+    public RecordingCallback() {
+        this(1);
+    }
+
+    /**
+     * @param expected the number of requests this callback will be used for
+     */
+    public RecordingCallback(int expected) {
+        this(new CountDownLatch(expected));
+    }
+
+    /**
+     * @param done counted down every time the callback is called, so several callbacks can be waited on together
+     */
+    public RecordingCallback(CountDownLatch done) {
+        this.done = done;
+    }
+
+    /**
+     * turn down any retry the sdk offers, so a failure is seen straight away
+     */
+    public RecordingCallback withoutRetries() {
+        retrying = false;
+        return this;
+    }
+
+    @Override
+    public void success(String responseBody) {
+        body = responseBody;
+        finished();
+    }
+
+    @Override
+    public void failure(StackMobException e) {
+        error = e;
+        failures.incrementAndGet();
+        finished();
+    }
+
+    @Override
+    public boolean retry(int afterMilliseconds) {
+        delays.add(afterMilliseconds);
+        return retrying;
+    }
+
+    private void finished() {
+        calls.incrementAndGet();
+        finishedAt = System.nanoTime();
+        done.countDown();
+    }
+
+    /**
+     * wait for every expected call, failing the test if they don't come within ten seconds
+     */
+    public void await() throws InterruptedException {
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+}
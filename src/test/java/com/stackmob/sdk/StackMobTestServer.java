@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk;
+
+import com.stackmob.sdk.api.StackMob;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A local http server for tests that need a real response, and StackMobs pointed at it
+ */
+public class StackMobTestServer {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * start a server on a free port that hands every request to the handler
+     * @param handler answers requests, several at a time
+     */
+    public StackMobTestServer(HttpHandler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", handler);
+        server.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the host and port to send requests to
+     */
+    public String getHost() {
+        return "127.0.0.1:" + getPort();
+    }
+
+    /**
+     * @param executor the executor to run requests on
+     * @return a StackMob that sends its requests to this server
+     */
+    public StackMob stackmob(ExecutorService executor) {
+        return stackmob(getHost(), executor);
+    }
+
+    /**
+     * @param host the host and port to send requests to
+     * @param executor the executor to run requests on
+     * @return a StackMob with test credentials that sends its requests to the host
+     */
+    public static StackMob stackmob(String host, ExecutorService executor) {
+        return new StackMob(StackMob.OAuthVersion.One, 0, "API_KEY", "API_SECRET", host,
+                StackMob.DEFAULT_USER_SCHEMA_NAME, StackMob.DEFAULT_USER_ID, StackMob.DEFAULT_PASSWORD_FIELD,
+                StackMob.DEFAULT_REDIRECTED_CALLBACK, executor);
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    public static String read(InputStream in) throws IOException {
+        return new String(readAll(in), "UTF-8");
+    }
+}
@@ -0,0 +1,218 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.exception.StackMobHTTPResponseException;
+import com.stackmob.sdk.model.StackMobModel;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StackMobBatcherTests {
+
+    public static class Thing extends StackMobModel {
+        private String name;
+
+        public Thing() {
+            super(Thing.class);
+        }
+
+        public Thing(String id, String name) {
+            this();
+            setID(id);
+            this.name = name;
+        }
+    }
+
+    private StackMobTestServer server;
+    private StackMob stackmob;
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private final Map<String, String> names = new HashMap<String, String>();
+
+    @Before
+    public void startServer() throws IOException {
+        names.put("a", "first");
+        names.put("b", "second");
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI());
+                JsonElement result = new JsonArray();
+                if(exchange.getRequestMethod().equals("POST")) {
+                    result = new JsonParser().parse(StackMobTestServer.read(exchange.getRequestBody()));
+                    if(result.isJsonArray()) {
+                        // a bulk save only lists the ids that were saved, as StackMobLocalServer does
+                        JsonArray succeeded = new JsonArray();
+                        JsonArray failed = new JsonArray();
+                        for(JsonElement object : result.getAsJsonArray()) {
+                            if("bad".equals(object.getAsJsonObject().get("name").getAsString())) {
+                                failed.add(object);
+                            } else {
+                                succeeded.add(object.getAsJsonObject().get("thing_id"));
+                            }
+                        }
+                        JsonObject bulk = new JsonObject();
+                        bulk.add("succeeded", succeeded);
+                        bulk.add("failed", failed);
+                        result = bulk;
+                    } else {
+                        // echo the object back with a creation date, the way a save would
+                        result.getAsJsonObject().addProperty("createddate", 1000);
+                    }
+                } else if(exchange.getRequestURI().getQuery() == null) {
+                    // an unbatched fetch of one object by its id
+                    String path = exchange.getRequestURI().getPath();
+                    String id = path.substring(path.lastIndexOf('/') + 1);
+                    JsonObject object = new JsonObject();
+                    object.addProperty("thing_id", id);
+                    object.addProperty("name", names.get(id));
+                    result = object;
+                } else {
+                    String ids = exchange.getRequestURI().getQuery().substring("thing_id[in]=".length());
+                    for(String id : ids.split(",")) {
+                        if(names.containsKey(id)) {
+                            JsonObject object = new JsonObject();
+                            object.addProperty("thing_id", id);
+                            object.addProperty("name", names.get(id));
+                            result.getAsJsonArray().add(object);
+                        }
+                    }
+                }
+                byte[] body = result.toString().getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        stackmob = server.stackmob(StackMobExecutors.callerRuns());
+    }
+
+    @After
+    public void stopServer() {
+        stackmob.getDatastore().setBatcher(null);
+        server.stop();
+    }
+
+    private Thing thing(String id, String name) {
+        Thing thing = new Thing(id, name);
+        thing.setStackMob(stackmob);
+        return thing;
+    }
+
+    private static class LatchedCallback extends StackMobCallback {
+        private final CountDownLatch latch;
+        volatile StackMobException failure;
+
+        LatchedCallback(CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void success(String responseBody) {
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            failure = e;
+            latch.countDown();
+        }
+    }
+
+    @Test public void fetchesAreCoalesced() throws Exception {
+        stackmob.getDatastore().setBatcher(new StackMobBatcher(stackmob.getDatastore()).withWindow(50, TimeUnit.MILLISECONDS));
+        Thing a = thing("a", null);
+        Thing b = thing("b", null);
+        Thing missing = thing("missing", null);
+        CountDownLatch latch = new CountDownLatch(3);
+        LatchedCallback aCallback = new LatchedCallback(latch);
+        LatchedCallback bCallback = new LatchedCallback(latch);
+        LatchedCallback missingCallback = new LatchedCallback(latch);
+        a.fetch(aCallback);
+        b.fetch(bCallback);
+        missing.fetch(missingCallback);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).startsWith("GET /thing?"));
+        assertNull(aCallback.failure);
+        assertNull(bCallback.failure);
+        assertEquals("first", a.name);
+        assertEquals("second", b.name);
+        assertTrue(missingCallback.failure instanceof StackMobHTTPResponseException);
+        assertEquals(Integer.valueOf(404), ((StackMobHTTPResponseException) missingCallback.failure).getCode());
+    }
+
+    @Test public void savesAreCoalescedUpToTheMaximum() throws Exception {
+        stackmob.getDatastore().setBatcher(new StackMobBatcher(stackmob.getDatastore()).withWindow(50, TimeUnit.MILLISECONDS).withMaxBatchSize(2));
+        CountDownLatch latch = new CountDownLatch(3);
+        List<LatchedCallback> callbacks = new ArrayList<LatchedCallback>();
+        for(int i = 0; i < 3; i++) {
+            LatchedCallback callback = new LatchedCallback(latch);
+            callbacks.add(callback);
+            thing("id" + i, "thing" + i).save(callback);
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for(LatchedCallback callback : callbacks) {
+            assertNull(callback.failure);
+        }
+        // the first two fill a batch, the third goes out alone when its window ends
+        assertEquals(Arrays.asList("POST /thing", "POST /thing"), requests);
+    }
+
+    @Test public void failedSavesInABatchAreReportedSeparately() throws Exception {
+        stackmob.getDatastore().setBatcher(new StackMobBatcher(stackmob.getDatastore()).withWindow(50, TimeUnit.MILLISECONDS));
+        CountDownLatch latch = new CountDownLatch(3);
+        LatchedCallback good = new LatchedCallback(latch);
+        LatchedCallback bad = new LatchedCallback(latch);
+        LatchedCallback alsoGood = new LatchedCallback(latch);
+        thing("a", "first").save(good);
+        thing("b", "bad").save(bad);
+        thing("c", "third").save(alsoGood);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("POST /thing"), requests);
+        assertNull(good.failure);
+        assertNull(alsoGood.failure);
+        assertTrue(bad.failure instanceof StackMobHTTPResponseException);
+        assertEquals(Integer.valueOf(400), ((StackMobHTTPResponseException) bad.failure).getCode());
+    }
+
+    @Test public void unbatchedWithoutBatcher() throws Exception {
+        CountDownLatch latch = new CountDownLatch(2);
+        thing("a", null).fetch(new LatchedCallback(latch));
+        thing("b", null).fetch(new LatchedCallback(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("GET /thing/a", "GET /thing/b"), requests);
+    }
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.RecordingCallback;
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.callback.StackMobCountCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StackMobDatastoreTests {
+
+    private StackMobTestServer server;
+    private StackMob stackmob;
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private volatile CountDownLatch release = new CountDownLatch(0);
+    private volatile String contentRange = null;
+    private volatile String body = null;
+    private volatile int headStatus = 200;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI());
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch(InterruptedException ignore) { }
+                if(contentRange != null && exchange.getRequestHeaders().containsKey("Range")) {
+                    exchange.getResponseHeaders().add("Content-Range", contentRange);
+                }
+                if(exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.sendResponseHeaders(headStatus, -1);
+                    exchange.close();
+                    return;
+                }
+                String response = body != null ? body : "{\"path\":\"" + exchange.getRequestURI().getPath() + "\"}";
+                byte[] bytes = response.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, bytes.length);
+                exchange.getResponseBody().write(bytes);
+                exchange.close();
+            }
+        });
+        stackmob = server.stackmob(StackMobExecutors.cached());
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private void awaitRequests(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(requests.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test public void identicalConcurrentGetsShareOneRequest() throws Exception {
+        stackmob.getDatastore().setCoalesceGets(true);
+        release = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(6);
+        List<RecordingCallback> callbacks = new CopyOnWriteArrayList<RecordingCallback>();
+        for(int i = 0; i < 5; i++) {
+            RecordingCallback callback = new RecordingCallback(latch);
+            callbacks.add(callback);
+            stackmob.getDatastore().get("thing/1", callback);
+            awaitRequests(1);
+        }
+        // a different url isn't affected
+        RecordingCallback other = new RecordingCallback(latch);
+        stackmob.getDatastore().get("thing/2", other);
+        awaitRequests(2);
+        release.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+        assertEquals(2, requests.size());
+        for(RecordingCallback callback : callbacks) {
+            assertEquals("{\"path\":\"/thing/1\"}", callback.body);
+        }
+        assertEquals("{\"path\":\"/thing/2\"}", other.body);
+    }
+
+    @Test public void laterGetsGoToTheNetwork() throws Exception {
+        for(int i = 0; i < 2; i++) {
+            CountDownLatch latch = new CountDownLatch(1);
+            stackmob.getDatastore().get("thing/1", new RecordingCallback(latch));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, requests.size());
+    }
+
+    @Test public void getsAfterAWriteDontJoinEarlierOnes() throws Exception {
+        stackmob.getDatastore().setCoalesceGets(true);
+        release = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(3);
+        RecordingCallback before = new RecordingCallback(latch);
+        stackmob.getDatastore().get("thing/1", before);
+        awaitRequests(1);
+        stackmob.getDatastore().put("thing", "1", "{\"name\":\"new\"}", new RecordingCallback(latch));
+        awaitRequests(2);
+        RecordingCallback after = new RecordingCallback(latch);
+        stackmob.getDatastore().get("thing/1", after);
+        awaitRequests(3);
+        release.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(3, requests.size());
+        assertEquals("GET /thing/1", requests.get(2));
+    }
+
+    @Test public void coalescingIsOffByDefault() throws Exception {
+        assertFalse(stackmob.getDatastore().isCoalescingGets());
+        release = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(2);
+        stackmob.getDatastore().get("thing/1", new RecordingCallback(latch));
+        stackmob.getDatastore().get("thing/1", new RecordingCallback(latch));
+        awaitRequests(2);
+        release.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, requests.size());
+    }
+
+    @Test public void getsForDifferentUsersAreNotShared() throws Exception {
+        stackmob.getDatastore().setCoalesceGets(true);
+        release = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(2);
+        stackmob.getSession().setLastUserLoginName("alice");
+        stackmob.getDatastore().get("thing/1", new RecordingCallback(latch));
+        awaitRequests(1);
+        stackmob.getSession().setLastUserLoginName("bob");
+        stackmob.getDatastore().get("thing/1", new RecordingCallback(latch));
+        awaitRequests(2);
+        release.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, requests.size());
+    }
+
+    private String getAndWait(String path) throws InterruptedException {
+        return getAndWait(path, StackMobOptions.none());
+    }
+
+    private String getAndWait(String path, StackMobOptions options) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        RecordingCallback callback = new RecordingCallback(latch);
+        stackmob.getDatastore().get(path, options, callback);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        return callback.body;
+    }
+
+    private void postAndWait(String path) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        stackmob.getDatastore().post(path, "{}", new RecordingCallback(latch));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void repeatedGetsAreAnsweredFromTheCache() throws Exception {
+        StackMobCache cache = new StackMobCache();
+        stackmob.getDatastore().setCache(cache);
+        assertEquals("{\"path\":\"/thing/1\"}", getAndWait("thing/1"));
+        assertEquals("{\"path\":\"/thing/1\"}", getAndWait("thing/1"));
+        assertEquals(1, requests.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // a different select is a different response
+        getAndWait("thing/1", StackMobOptions.selectedFields(Arrays.asList("name")));
+        assertEquals(2, requests.size());
+    }
+
+    @Test public void cachedResponsesExpire() throws Exception {
+        stackmob.getDatastore().setCache(new StackMobCache().withTTL(50, TimeUnit.MILLISECONDS).withTTL("other", 0, TimeUnit.SECONDS));
+        getAndWait("thing/1");
+        getAndWait("thing/1");
+        assertEquals(1, requests.size());
+        Thread.sleep(100);
+        getAndWait("thing/1");
+        assertEquals(2, requests.size());
+
+        getAndWait("other/1");
+        getAndWait("other/1");
+        assertEquals(4, requests.size());
+    }
+
+    @Test public void leastRecentlyUsedResponsesAreEvicted() throws Exception {
+        StackMobCache cache = new StackMobCache().withMaxEntries(2);
+        stackmob.getDatastore().setCache(cache);
+        getAndWait("thing/1");
+        getAndWait("thing/2");
+        getAndWait("thing/1");
+        getAndWait("thing/3");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictionCount());
+        getAndWait("thing/1");
+        assertEquals(3, requests.size());
+        getAndWait("thing/2");
+        assertEquals(4, requests.size());
+    }
+
+    @Test public void writesInvalidateTheirSchema() throws Exception {
+        stackmob.getDatastore().setCache(new StackMobCache());
+        getAndWait("thing/1");
+        getAndWait("other/1");
+        postAndWait("thing");
+        getAndWait("thing/1");
+        getAndWait("other/1");
+        assertEquals(Arrays.asList("GET /thing/1", "GET /other/1", "POST /thing", "GET /thing/1"), requests);
+    }
+
+    private static class CountCallback extends StackMobCountCallback {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        volatile long count = Long.MIN_VALUE;
+
+        @Override
+        public void success(long count) {
+            this.count = count;
+            latch.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            latch.countDown();
+        }
+    }
+
+    private long countAndWait(String schema) throws InterruptedException {
+        CountCallback callback = new CountCallback();
+        stackmob.getDatastore().count(new StackMobQuery(schema), callback);
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        return callback.count;
+    }
+
+    @Test public void countsOnlyNeedTheHeaders() throws Exception {
+        contentRange = "objects 0-0/42";
+        assertEquals(42, countAndWait("thing"));
+        assertEquals(Arrays.asList("HEAD /thing"), requests);
+    }
+
+    @Test public void countsFallBackToCountingTheBody() throws Exception {
+        body = "[{\"a\":[1,2,{\"b\":3}]},{},{}]";
+        assertEquals(3, countAndWait("thing"));
+        assertEquals(Arrays.asList("HEAD /thing", "GET /thing"), requests);
+        assertTrue(stackmob.getDatastore().isCountingWithHead());
+
+        // the head didn't give a total, so the next count of that schema skips it
+        requests.clear();
+        assertEquals(3, countAndWait("thing"));
+        assertEquals(3, countAndWait("other"));
+        assertEquals(Arrays.asList("GET /thing", "HEAD /other", "GET /other"), requests);
+
+        // until the schema has grown enough to have a total
+        contentRange = "objects 0-0/42";
+        requests.clear();
+        assertEquals(42, countAndWait("thing"));
+        assertEquals(42, countAndWait("thing"));
+        assertEquals(Arrays.asList("GET /thing", "HEAD /thing"), requests);
+
+        contentRange = null;
+        headStatus = 405;
+        requests.clear();
+        assertEquals(3, countAndWait("more"));
+        assertEquals(3, countAndWait("more"));
+        assertEquals(Arrays.asList("HEAD /more", "GET /more", "GET /more"), requests);
+        assertFalse(stackmob.getDatastore().isCountingWithHead());
+    }
+
+    @Test public void countsAreCachedWithTheirOwnTTL() throws Exception {
+        contentRange = "objects 0-0/42";
+        stackmob.getDatastore().setCache(new StackMobCache().withTTL(0, TimeUnit.SECONDS).withCountTTL(100, TimeUnit.MILLISECONDS));
+        assertEquals(42, countAndWait("thing"));
+        assertEquals(42, countAndWait("thing"));
+        assertEquals(1, requests.size());
+        Thread.sleep(150);
+        assertEquals(42, countAndWait("thing"));
+        assertEquals(2, requests.size());
+
+        // writing to the schema drops its counts
+        postAndWait("thing");
+        assertEquals(42, countAndWait("thing"));
+        assertEquals(4, requests.size());
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.StackMobNioHttpTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobExecutorsTests {
+
+    @Test public void callerRunsUsesTheCallingThread() throws Exception {
+        ExecutorService executor = StackMobExecutors.callerRuns();
+        Future<Thread> ran = executor.submit(new Callable<Thread>() {
+            @Override
+            public Thread call() throws Exception {
+                return Thread.currentThread();
+            }
+        });
+        assertTrue(ran.isDone());
+        assertSame(Thread.currentThread(), ran.get());
+        executor.shutdown();
+        assertTrue(executor.isShutdown());
+    }
+
+    @Test public void boundedAppliesRejectionPolicy() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = StackMobExecutors.bounded(1, 1, new ThreadPoolExecutor.AbortPolicy());
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch(InterruptedException ignored) { }
+            }
+        };
+        executor.execute(blocker);
+        executor.execute(blocker);
+        try {
+            executor.execute(blocker);
+            fail("expected the third task to be rejected");
+        } catch(RejectedExecutionException expected) { }
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void boundedDefaultsToCallerRuns() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = StackMobExecutors.bounded(1, 1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch(InterruptedException ignored) { }
+            }
+        };
+        executor.execute(blocker);
+        executor.execute(blocker);
+        final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+        assertSame(Thread.currentThread(), ranOn.get());
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test public void virtualThreadsAlwaysProvidesAnExecutor() throws Exception {
+        ExecutorService executor = StackMobExecutors.virtualThreads();
+        assertEquals("done", executor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return "done";
+            }
+        }).get(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test public void rejectedRequestIsUnsent() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = StackMobExecutors.bounded(1, 1, new ThreadPoolExecutor.AbortPolicy());
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch(InterruptedException ignored) { }
+            }
+        };
+        executor.execute(blocker);
+        executor.execute(blocker);
+        StackMob stackmob = StackMobTestServer.stackmob(StackMob.DEFAULT_API_HOST, executor);
+        assertSame(executor, stackmob.getExecutor());
+        final AtomicReference<StackMobException> failure = new AtomicReference<StackMobException>();
+        stackmob.getDatastore().get("thing", new StackMobCallback() {
+            @Override
+            public void success(String responseBody) { }
+
+            @Override
+            public void failure(StackMobException e) {
+                failure.set(e);
+            }
+        });
+        assertNotNull(failure.get());
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test public void asyncResponsesAreNotHandledOnTheIOThread() throws Exception {
+        StackMobTestServer server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        StackMobNioHttpTransport transport = new StackMobNioHttpTransport();
+        try {
+            StackMob stackmob = server.stackmob(StackMobExecutors.callerRuns());
+            stackmob.getSession().setHttpTransport(transport);
+            final CountDownLatch done = new CountDownLatch(1);
+            final AtomicReference<String> ranOn = new AtomicReference<String>();
+            stackmob.getDatastore().get("thing", new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    ranOn.set(Thread.currentThread().getName());
+                    done.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    ranOn.set(Thread.currentThread().getName());
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertFalse(ranOn.get().startsWith("StackMob NIO"));
+        } finally {
+            transport.shutdown();
+            server.stop();
+        }
+    }
+}
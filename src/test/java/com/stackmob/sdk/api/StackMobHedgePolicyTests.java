@@ -0,0 +1,154 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.stackmob.sdk.RecordingCallback;
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.callback.StackMobStreamingCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Scanner;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StackMobHedgePolicyTests {
+
+    private StackMobTestServer server;
+    private StackMob stackmob;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> seen = new ConcurrentHashMap<String, AtomicInteger>();
+    private volatile long firstSleepMillis = 0;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                String path = exchange.getRequestURI().getPath();
+                seen.putIfAbsent(path, new AtomicInteger());
+                // only the first request for each path is slow, so a hedge of it comes back quickly
+                if(seen.get(path).getAndIncrement() == 0 && path.endsWith("slow")) {
+                    try {
+                        Thread.sleep(firstSleepMillis);
+                    } catch(InterruptedException ignore) { }
+                }
+                byte[] body = ("\"" + path + "\"").getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        stackmob = server.stackmob(StackMobExecutors.cached());
+        stackmob.getDatastore().setCoalesceGets(false);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private long timedGet(String path, RecordingCallback callback) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        stackmob.getDatastore().get(path, callback);
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        return System.currentTimeMillis() - start;
+    }
+
+    @Test public void slowReadsAreHedged() throws Exception {
+        firstSleepMillis = 1000;
+        StackMobHedgePolicy policy = new StackMobHedgePolicy().withDelay(50, TimeUnit.MILLISECONDS).withMaxHedgeRatio(1);
+        stackmob.getDatastore().setHedgePolicy(policy);
+        RecordingCallback callback = new RecordingCallback();
+        assertTrue(timedGet("book/slow", callback) < 800);
+        assertNull(callback.error);
+        assertEquals("\"/book/slow\"", callback.body);
+        assertEquals(1, policy.getHedgedCount());
+        // the slow response is thrown away when it arrives
+        Thread.sleep(1100);
+        assertEquals(1, callback.calls.get());
+        assertEquals(2, requests.get());
+    }
+
+    @Test public void fastReadsAreNotHedged() throws Exception {
+        StackMobHedgePolicy policy = new StackMobHedgePolicy().withDelay(200, TimeUnit.MILLISECONDS).withMaxHedgeRatio(1);
+        stackmob.getDatastore().setHedgePolicy(policy);
+        for(int i = 0; i < 5; i++) {
+            timedGet("book/" + i, new RecordingCallback());
+        }
+        Thread.sleep(300);
+        assertEquals(5, requests.get());
+        assertEquals(0, policy.getHedgedCount());
+    }
+
+    @Test public void hedgesAreLimitedToAFractionOfReads() throws Exception {
+        firstSleepMillis = 300;
+        StackMobHedgePolicy policy = new StackMobHedgePolicy().withDelay(20, TimeUnit.MILLISECONDS).withMaxHedgeRatio(0.5);
+        stackmob.getDatastore().setHedgePolicy(policy);
+        RecordingCallback first = new RecordingCallback();
+        RecordingCallback second = new RecordingCallback();
+        // two reads only earn one hedge
+        assertTrue(timedGet("book/aslow", first) >= 300);
+        assertTrue(timedGet("book/bslow", second) < 250);
+        assertEquals(1, policy.getHedgedCount());
+    }
+
+    @Test public void theDelayFollowsRecentResponseTimes() throws Exception {
+        firstSleepMillis = 1000;
+        StackMobHedgePolicy policy = new StackMobHedgePolicy().withPercentile(0.95, 5, TimeUnit.MILLISECONDS).withMaxHedgeRatio(1);
+        stackmob.getDatastore().setHedgePolicy(policy);
+        String endpoint = StackMobHedgePolicy.endpoint(HttpVerbWithoutPayload.GET, "book/1");
+        assertEquals(-1, policy.delayNanos(endpoint));
+        for(int i = 0; i < StackMobHedgePolicy.MIN_SAMPLES; i++) {
+            timedGet("book/" + i, new RecordingCallback());
+        }
+        assertTrue(policy.delayNanos(endpoint) >= TimeUnit.MILLISECONDS.toNanos(5));
+        assertTrue(timedGet("book/slow", new RecordingCallback()) < 800);
+        assertEquals(1, policy.getHedgedCount());
+    }
+
+    @Test public void streamingCallbacksGetTheFirstResponse() throws Exception {
+        firstSleepMillis = 1000;
+        stackmob.getDatastore().setHedgePolicy(new StackMobHedgePolicy().withDelay(50, TimeUnit.MILLISECONDS).withMaxHedgeRatio(1));
+        final CountDownLatch done = new CountDownLatch(1);
+        final String[] body = new String[1];
+        stackmob.getDatastore().get("book/slow", new StackMobStreamingCallback() {
+            @Override
+            public void success(InputStream responseBody) throws IOException {
+                body[0] = new Scanner(responseBody, "UTF-8").useDelimiter("\\A").next();
+                done.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(800, TimeUnit.MILLISECONDS));
+        assertEquals("\"/book/slow\"", body[0]);
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.api;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.stackmob.sdk.RecordingCallback;
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.util.Pair;
+import com.stackmob.sdk.util.StackMobLogger;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StackMobWriteBehindTests {
+
+    private StackMobTestServer server;
+    private StackMob stackmob;
+    private File journal;
+    private StackMobWriteBehind writeBehind;
+    private final List<String> requests = new CopyOnWriteArrayList<String>();
+    private volatile int status = 200;
+
+    @Before
+    public void startServer() throws IOException {
+        journal = File.createTempFile("stackmob", ".journal");
+        journal.delete();
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = StackMobTestServer.read(exchange.getRequestBody());
+                requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI() + (body.length() > 0 ? " " + body : ""));
+                byte[] response = (status == 200 ? reply(body) : "{\"error\":\"nope\"}").getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, response.length == 0 ? -1 : response.length);
+                if(response.length > 0) exchange.getResponseBody().write(response);
+                exchange.close();
+            }
+        });
+        stackmob = server.stackmob(StackMobExecutors.callerRuns());
+    }
+
+    @After
+    public void stopServer() {
+        if(writeBehind != null) writeBehind.shutdown();
+        server.stop();
+        journal.delete();
+    }
+
+    /**
+     * a bulk post gets the api's succeeded/failed summary, with anything named "bad" failing. Everything else is
+     * echoed back
+     */
+    private static String reply(String body) {
+        if(!body.startsWith("[")) return body;
+        JsonArray succeeded = new JsonArray();
+        JsonArray failed = new JsonArray();
+        for(JsonElement object : new JsonParser().parse(body).getAsJsonArray()) {
+            if("bad".equals(object.getAsJsonObject().get("name").getAsString())) {
+                failed.add(object);
+            } else {
+                succeeded.add(object.getAsJsonObject().get("thing_id"));
+            }
+        }
+        JsonObject result = new JsonObject();
+        result.add("succeeded", succeeded);
+        result.add("failed", failed);
+        return result.toString();
+    }
+
+    private StackMobWriteBehind open() throws IOException {
+        writeBehind = new StackMobWriteBehind(stackmob.getDatastore(), journal).withFlushInterval(1, TimeUnit.HOURS);
+        return writeBehind;
+    }
+
+    private static JsonObject thing(String id, String name) {
+        JsonObject thing = new JsonObject();
+        thing.addProperty("thing_id", id);
+        thing.addProperty("name", name);
+        return thing;
+    }
+
+    private void awaitSent() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(writeBehind.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, writeBehind.getPendingCount());
+    }
+
+    private static final List<Map.Entry<String, String>> NO_HEADERS = new ArrayList<Map.Entry<String, String>>();
+
+    @Test public void writesReturnBeforeTheyreSent() throws Exception {
+        open();
+        RecordingCallback callback = new RecordingCallback();
+        writeBehind.save("thing", "thing_id", thing("a", "first"), NO_HEADERS, callback);
+        assertEquals("{\"thing_id\":\"a\",\"name\":\"first\"}", callback.body);
+        assertEquals(1, writeBehind.getPendingCount());
+        assertTrue(requests.isEmpty());
+    }
+
+    @Test public void consecutiveSavesAreSentTogetherInOrder() throws Exception {
+        open();
+        writeBehind.save("thing", "thing_id", thing("a", "first"), NO_HEADERS, new RecordingCallback());
+        writeBehind.save("thing", "thing_id", thing("b", "second"), NO_HEADERS, new RecordingCallback());
+        // the same object again has to wait for the first save to land
+        writeBehind.save("thing", "thing_id", thing("a", "third"), NO_HEADERS, new RecordingCallback());
+        writeBehind.delete("thing", "b", new RecordingCallback());
+        writeBehind.flush();
+        awaitSent();
+        assertEquals(Arrays.asList(
+                "POST /thing [{\"thing_id\":\"a\",\"name\":\"first\"},{\"thing_id\":\"b\",\"name\":\"second\"}]",
+                "POST /thing {\"thing_id\":\"a\",\"name\":\"third\"}",
+                "DELETE /thing/b"), requests);
+    }
+
+    @Test public void headersAreKept() throws Exception {
+        open();
+        List<Map.Entry<String, String>> headers = new ArrayList<Map.Entry<String, String>>();
+        headers.add(new Pair<String, String>("X-StackMob-Relations", "owner=user"));
+        writeBehind.save("thing", "thing_id", thing("a", "first"), headers, new RecordingCallback());
+        writeBehind.save("thing", "thing_id", thing("b", "second"), NO_HEADERS, new RecordingCallback());
+        writeBehind.flush();
+        awaitSent();
+        assertEquals(2, requests.size());
+    }
+
+    @Test public void unsentWritesAreRecoveredWhenTheJournalIsReopened() throws Exception {
+        status = 503;
+        open();
+        writeBehind.save("thing", "thing_id", thing("a", "first"), NO_HEADERS, new RecordingCallback());
+        writeBehind.delete("thing", "b", new RecordingCallback());
+        writeBehind.flush();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(requests.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        writeBehind.shutdown();
+        assertEquals(1, requests.size());
+
+        status = 200;
+        requests.clear();
+        open();
+        assertEquals(2, writeBehind.getPendingCount());
+        awaitSent();
+        assertEquals(Arrays.asList("POST /thing {\"thing_id\":\"a\",\"name\":\"first\"}", "DELETE /thing/b"), requests);
+    }
+
+    @Test public void writesAreKeptWhileTheServerIsUnreachable() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int closedPort = socket.getLocalPort();
+        socket.close();
+        StackMob unreachable = StackMobTestServer.stackmob("127.0.0.1:" + closedPort, StackMobExecutors.callerRuns());
+        writeBehind = new StackMobWriteBehind(unreachable.getDatastore(), journal).withFlushInterval(1, TimeUnit.HOURS);
+        writeBehind.save("thing", "thing_id", thing("a", "first"), NO_HEADERS, new RecordingCallback());
+        writeBehind.flush();
+        Thread.sleep(500);
+        assertEquals(1, writeBehind.getPendingCount());
+        writeBehind.shutdown();
+
+        open();
+        assertEquals(1, writeBehind.getPendingCount());
+        awaitSent();
+        assertEquals(Arrays.asList("POST /thing {\"thing_id\":\"a\",\"name\":\"first\"}"), requests);
+    }
+
+    @Test public void rejectedWritesAreDropped() throws Exception {
+        status = 400;
+        open();
+        writeBehind.save("thing", "thing_id", thing("a", "first"), NO_HEADERS, new RecordingCallback());
+        writeBehind.save("thing", "thing_id", thing("b", "second"), NO_HEADERS, new RecordingCallback());
+        writeBehind.flush();
+        awaitSent();
+        // the batch is rejected, then each save on its own
+        assertEquals(3, requests.size());
+    }
+
+    @Test public void everyWriteInARejectedBatchIsSentAlone() throws Exception {
+        status = 400;
+        open();
+        writeBehind.save("thing", "thing_id", thing("a", "first"), NO_HEADERS, new RecordingCallback());
+        writeBehind.save("thing", "thing_id", thing("b", "second"), NO_HEADERS, new RecordingCallback());
+        writeBehind.save("thing", "thing_id", thing("c", "third"), NO_HEADERS, new RecordingCallback());
+        writeBehind.flush();
+        awaitSent();
+        assertEquals(Arrays.asList(
+                "POST /thing [{\"thing_id\":\"a\",\"name\":\"first\"},{\"thing_id\":\"b\",\"name\":\"second\"},{\"thing_id\":\"c\",\"name\":\"third\"}]",
+                "POST /thing {\"thing_id\":\"a\",\"name\":\"first\"}",
+                "POST /thing {\"thing_id\":\"b\",\"name\":\"second\"}",
+                "POST /thing {\"thing_id\":\"c\",\"name\":\"third\"}"), requests);
+    }
+
+    @Test public void savesABulkPostReportsAsFailedAreRejected() throws Exception {
+        final List<String> errors = new CopyOnWriteArrayList<String>();
+        StackMobLogger logger = new StackMobLogger() {
+            @Override
+            public void logError(String format, Object... args) {
+                errors.add(String.format(format, args));
+            }
+        };
+        logger.setLogging(true);
+        stackmob.getSession().setLogger(logger);
+        open();
+        writeBehind.save("thing", "thing_id", thing("a", "first"), NO_HEADERS, new RecordingCallback());
+        writeBehind.save("thing", "thing_id", thing("b", "bad"), NO_HEADERS, new RecordingCallback());
+        writeBehind.flush();
+        awaitSent();
+        assertEquals(1, requests.size());
+        assertEquals(Arrays.asList("Write-behind save to thing rejected: {\"thing_id\":\"b\",\"name\":\"bad\"}"), errors);
+    }
+
+    @Test public void writesThatDontFitAreSentDirectly() throws Exception {
+        writeBehind = new StackMobWriteBehind(stackmob.getDatastore(), journal, 64).withFlushInterval(1, TimeUnit.HOURS);
+        RecordingCallback callback = new RecordingCallback();
+        writeBehind.save("thing", "thing_id", thing("a", "a name that makes this too big for the journal"), NO_HEADERS, callback);
+        assertEquals(0, writeBehind.getPendingCount());
+        assertEquals(1, requests.size());
+        assertEquals("{\"thing_id\":\"a\",\"name\":\"a name that makes this too big for the journal\"}", callback.body);
+    }
+
+    @Test public void theJournalIsReusedOnceEmpty() throws Exception {
+        writeBehind = new StackMobWriteBehind(stackmob.getDatastore(), journal, 256).withFlushInterval(1, TimeUnit.HOURS);
+        for(int i = 0; i < 20; i++) {
+            writeBehind.save("thing", "thing_id", thing("a", "name " + i), NO_HEADERS, new RecordingCallback());
+            writeBehind.flush();
+            awaitSent();
+        }
+        assertEquals(20, requests.size());
+    }
+
+    private StackMobBatcherTests.Thing thing(StackMobBatcherTests.Thing thing) {
+        thing.setStackMob(stackmob);
+        return thing;
+    }
+
+    @Test public void modelWritesGoThroughTheJournal() throws Exception {
+        stackmob.getDatastore().setWriteBehind(open());
+        RecordingCallback saved = new RecordingCallback();
+        thing(new StackMobBatcherTests.Thing("a", "first")).save(saved);
+        RecordingCallback destroyed = new RecordingCallback();
+        thing(new StackMobBatcherTests.Thing("b", "second")).destroy(destroyed);
+        assertNotNull(saved.body);
+        assertNotNull(destroyed.body);
+        assertEquals(2, writeBehind.getPendingCount());
+        assertTrue(requests.isEmpty());
+
+        // new objects get their id on this side, so they can wait too
+        thing(new StackMobBatcherTests.Thing(null, "third")).save(new RecordingCallback());
+        assertEquals(3, writeBehind.getPendingCount());
+        writeBehind.flush();
+        awaitSent();
+        assertEquals(3, requests.size());
+        stackmob.getDatastore().setWriteBehind(null);
+        writeBehind = null;
+    }
+}
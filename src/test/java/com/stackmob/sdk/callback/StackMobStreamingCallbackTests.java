@@ -0,0 +1,211 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.callback;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobCache;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.exception.StackMobHTTPResponseException;
+import com.stackmob.sdk.net.HttpVerb;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobStreamingCallbackTests {
+
+    private static final int BODY_SIZE = 100000;
+
+    private StackMobTestServer server;
+    private StackMob stackmob;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if(exchange.getRequestURI().getPath().startsWith("/missing")) {
+                    byte[] error = "{\"error\":\"not found\"}".getBytes("UTF-8");
+                    exchange.sendResponseHeaders(404, error.length);
+                    exchange.getResponseBody().write(error);
+                } else {
+                    // chunked, so the client can't know the size up front
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream out = exchange.getResponseBody();
+                    for(int i = 0; i < BODY_SIZE; i++) {
+                        out.write('a' + i % 26);
+                    }
+                }
+                exchange.close();
+            }
+        });
+        stackmob = server.stackmob(StackMobExecutors.callerRuns());
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test public void streamsSuccessfulResponse() throws Exception {
+        final AtomicReference<byte[]> body = new AtomicReference<byte[]>();
+        final AtomicReference<StackMobException> failure = new AtomicReference<StackMobException>();
+        stackmob.getDatastore().get("thing", new StackMobStreamingCallback() {
+            @Override
+            public void success(InputStream responseBody) throws IOException {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int read;
+                while((read = responseBody.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                body.set(out.toByteArray());
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                failure.set(e);
+            }
+        });
+        assertNull(failure.get());
+        assertEquals(BODY_SIZE, body.get().length);
+        assertEquals('a', body.get()[0]);
+        assertEquals('a' + (BODY_SIZE - 1) % 26, body.get()[BODY_SIZE - 1]);
+    }
+
+    @Test public void deliversChunks() throws Exception {
+        final AtomicInteger total = new AtomicInteger();
+        final AtomicInteger largest = new AtomicInteger();
+        final AtomicInteger completions = new AtomicInteger();
+        stackmob.getDatastore().get("thing", new StackMobChunkCallback(4096) {
+            @Override
+            public void chunk(ByteBuffer chunk) {
+                total.addAndGet(chunk.remaining());
+                largest.set(Math.max(largest.get(), chunk.remaining()));
+            }
+
+            @Override
+            public void complete() {
+                completions.incrementAndGet();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                fail(e.getMessage());
+            }
+        });
+        assertEquals(BODY_SIZE, total.get());
+        assertTrue(largest.get() <= 4096);
+        assertEquals(1, completions.get());
+    }
+
+    @Test public void failedResponseIsBuffered() throws Exception {
+        final AtomicReference<StackMobException> failure = new AtomicReference<StackMobException>();
+        stackmob.getDatastore().get("missing", new StackMobStreamingCallback() {
+            @Override
+            public void success(InputStream responseBody) {
+                fail("the request should have failed");
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                failure.set(e);
+            }
+        });
+        assertTrue(failure.get() instanceof StackMobHTTPResponseException);
+        assertEquals(Integer.valueOf(404), ((StackMobHTTPResponseException) failure.get()).getCode());
+    }
+
+    @Test public void queryStreamsWhileCoalescingGets() throws Exception {
+        stackmob.getDatastore().setCoalesceGets(true);
+        final AtomicBoolean streamed = new AtomicBoolean(false);
+        final AtomicInteger length = new AtomicInteger();
+        stackmob.getDatastore().get(new StackMobQuery("thing"), new StackMobStreamingCallback() {
+            @Override
+            public void setStreamed(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders,
+                                    String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders,
+                                    InputStream responseBody) {
+                streamed.set(true);
+                super.setStreamed(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+            }
+
+            @Override
+            public void success(InputStream responseBody) throws IOException {
+                while(responseBody.read() != -1) {
+                    length.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                fail(e.getMessage());
+            }
+        });
+        assertTrue(streamed.get());
+        assertEquals(BODY_SIZE, length.get());
+    }
+
+    @Test public void streamedGetsArentCached() throws Exception {
+        stackmob.getDatastore().setCache(new StackMobCache());
+        for(int i = 0; i < 2; i++) {
+            final AtomicBoolean streamed = new AtomicBoolean(false);
+            final AtomicInteger length = new AtomicInteger();
+            stackmob.getDatastore().get(new StackMobQuery("thing"), new StackMobStreamingCallback() {
+                @Override
+                public void setStreamed(HttpVerb requestVerb, String requestURL, List<Map.Entry<String, String>> requestHeaders,
+                                        String requestBody, Integer responseStatusCode, List<Map.Entry<String, String>> responseHeaders,
+                                        InputStream responseBody) {
+                    streamed.set(true);
+                    super.setStreamed(requestVerb, requestURL, requestHeaders, requestBody, responseStatusCode, responseHeaders, responseBody);
+                }
+
+                @Override
+                public void success(InputStream responseBody) throws IOException {
+                    while(responseBody.read() != -1) {
+                        length.incrementAndGet();
+                    }
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    fail(e.getMessage());
+                }
+            });
+            // nothing was kept from the first get, so the second streams from the server too
+            assertTrue(streamed.get());
+            assertEquals(BODY_SIZE, length.get());
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.stackmob.sdk.model;
 
 import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
 import com.stackmob.sdk.StackMobTestCommon;
 import com.stackmob.sdk.api.StackMobFile;
 import com.stackmob.sdk.api.StackMobForgotPasswordEmail;
@@ -29,10 +30,12 @@ import com.stackmob.sdk.exception.StackMobException;
 import com.stackmob.sdk.testobjects.Author;
 import com.stackmob.sdk.testobjects.Book;
 import com.stackmob.sdk.testobjects.Library;
+import com.stackmob.sdk.util.SerializationMetadata;
 import com.stackmob.sdk.util.TypeHints;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.StringReader;
 import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.*;
@@ -155,6 +158,16 @@ public class StackMobModelTests extends StackMobTestCommon {
         assertEquals(test.getSchemaName(), "somethingelse");
     }
 
+    @Test public void testRegisterModels() throws Exception {
+        StackMobModel.registerModels(AlternateName.class, Library.class);
+        assertEquals("somethingelse", SerializationPlan.forClass(AlternateName.class).getSchemaName());
+        assertEquals("author", SerializationPlan.forClass(Author.class).getSchemaName());
+        try {
+            StackMobModel.registerModels(String.class);
+            fail("a class that isn't a model should be rejected");
+        } catch(IllegalArgumentException expected) { }
+    }
+
     String bookName1 = "The C Programming Language";
     String bookPublisher1 = "Prentice Hall";
     
@@ -204,6 +217,49 @@ public class StackMobModelTests extends StackMobTestCommon {
         assertEquals(new Date(0), c.date);
     }
     
+    @Test public void testListFromJsonStream() throws Exception {
+        String json = "[{\"number\":1338,\"strings\":[\"hello!\",\"world!\"],\"test\":true,\"mybytes\":[1,2,3],\"foo\":\"testpassed\",\"bar\":27,\"uuid\":\"00000000-0000-0003-0000-000000000005\",\"date\":0,\"complicated_id\":\"first\"}," +
+                       "{\"foo\":null,\"bar\":2.0,\"extra\":{\"ignored\":[1,2]},\"complicated_id\":\"second\"}]";
+        List<Complicated> list = StackMobModel.listFromJson(stackmob, Complicated.class, new JsonReader(new StringReader(json)));
+        assertEquals(2, list.size());
+        Complicated c = list.get(0);
+        assertEquals("first", c.getID());
+        assertTrue(c.hasData());
+        assertEquals("testpassed", c.foo);
+        assertEquals(27, c.bar);
+        assertEquals(1338, c.number);
+        assertEquals("00000000-0000-0003-0000-000000000005", c.uuid.toString());
+        assertEquals("hello!", c.strings[0]);
+        assertEquals(true, c.test);
+        assertEquals(1, c.myBytes[0]);
+        assertEquals(new Date(0), c.date);
+        Complicated c2 = list.get(1);
+        assertEquals("second", c2.getID());
+        assertNull(c2.foo);
+        assertEquals(2, c2.bar);
+    }
+
+    @Test public void testFillRelationsFromJsonStream() throws Exception {
+        String json = "[{\"title\":\"" + bookName1 + "\",\"author\":\"KnR\"}," +
+                       "{\"title\":\"" + bookName1 + "\",\"author\":{\"author_id\":\"KnR\",\"name\":\"Kernighan and Ritchie\"}}]";
+        List<Book> books = StackMobModel.listFromJson(stackmob, Book.class, new JsonReader(new StringReader(json)));
+        assertEquals(2, books.size());
+        assertEquals(bookName1, books.get(0).getTitle());
+        assertEquals("KnR", books.get(0).getAuthor().getID());
+        // the same author in one response is one object, filled in by whichever copy was expanded
+        assertSame(books.get(0).getAuthor(), books.get(1).getAuthor());
+        assertEquals("Kernighan and Ritchie", books.get(1).getAuthor().getName());
+    }
+
+    @Test public void testRepeatedRelationsAreShared() throws Exception {
+        String author = "{\"author_id\":\"KnR\",\"name\":\"Kernighan and Ritchie\"}";
+        String json = "[{\"title\":\"" + bookName1 + "\",\"author\":" + author + "}," +
+                       "{\"title\":\"The Practice of Programming\",\"author\":" + author + "}]";
+        List<Book> books = StackMobModel.listFromJson(stackmob, Book.class, new JsonReader(new StringReader(json)));
+        assertSame(books.get(0).getAuthor(), books.get(1).getAuthor());
+        assertEquals("Kernighan and Ritchie", books.get(0).getAuthor().getName());
+    }
+
     private class REALLY_SUPER_LONG_NAME_THAT_IS_SIMPLY_TOO_LONG extends StackMobModel {
         public REALLY_SUPER_LONG_NAME_THAT_IS_SIMPLY_TOO_LONG() {
             super(REALLY_SUPER_LONG_NAME_THAT_IS_SIMPLY_TOO_LONG.class);
@@ -251,6 +307,35 @@ public class StackMobModelTests extends StackMobTestCommon {
         assertEquals("author.birthplace=geopoint", types.toHeaderString());
     }
 
+    private static class Node extends StackMobModel {
+        public Node(String id) {
+            super(Node.class);
+            setID(id);
+        }
+        protected String label = "node";
+        protected Node next;
+    }
+
+    @Test public void testCyclicModelsToJSON() throws Exception {
+        Node first = new Node("first");
+        Node second = new Node("second");
+        first.next = second;
+        second.next = first;
+        JsonObject object = new JsonParser().parse(first.toJson(StackMobOptions.depthOf(1))).getAsJsonObject();
+        assertEquals("node", object.get("label").getAsString());
+        JsonObject next = object.get("next").getAsJsonObject();
+        assertEquals("second", next.get("node_id").getAsString());
+        assertEquals("first", next.get("next").getAsString());
+    }
+
+    @Test public void testSerializationPlanIsShared() throws Exception {
+        SerializationPlan plan = SerializationPlan.forClass(Book.class);
+        assertSame(plan, SerializationPlan.forClass(Book.class));
+        assertEquals(SerializationMetadata.MODEL, plan.getField("author").metadata);
+        assertSame(plan.getField("author"), plan.getFieldForJsonName("author"));
+        assertNull(plan.getFieldForJsonName("nonexistent"));
+    }
+
     @Test public void testNestedModelsSelection() throws Exception {
         Book b = testBook();
         TypeHints relations = new TypeHints();
@@ -433,6 +518,21 @@ public class StackMobModelTests extends StackMobTestCommon {
         assertEquals("c",((Simple)replaceUpdated.get(2)).foo);
         assertEquals(4,((Simple)replaceUpdated.get(2)).bar);
     }
+
+    @Test public void testUpdateLargeModelListFromJson() throws Exception {
+        List<Simple> existing = new ArrayList<Simple>();
+        JsonArray update = new JsonArray();
+        for(int i = 0; i < 20000; i++) {
+            existing.add(new Simple("id" + i, "old", i));
+            update.add(new JsonParser().parse("{\"simple_id\":\"id" + (19999 - i) + "\", \"foo\":\"new\"}"));
+        }
+        List<StackMobModel> updated = StackMobModel.updateModelListFromJson(update, existing, Simple.class);
+        assertEquals(20000, updated.size());
+        assertSame(existing.get(19999), updated.get(0));
+        assertEquals("new", ((Simple) updated.get(0)).foo);
+        assertEquals(19999, ((Simple) updated.get(0)).bar);
+        assertSame(existing.get(0), updated.get(19999));
+    }
     
     private static class LotsOfCollections extends StackMobModel {
         public LotsOfCollections(List<Simple> simples) {
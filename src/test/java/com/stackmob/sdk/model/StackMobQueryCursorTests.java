@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.testobjects.Book;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class StackMobQueryCursorTests {
+
+    private static final Pattern RANGE = Pattern.compile("objects=(\\d+)-(\\d+)");
+
+    private StackMobTestServer server;
+    private StackMob stackmob;
+    private final List<String> ranges = new CopyOnWriteArrayList<String>();
+    private volatile int total = 25;
+    private volatile boolean sendContentRange = true;
+    private volatile int failAt = -1;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Matcher range = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+                int start = 0;
+                int end = total - 1;
+                if(range.matches()) {
+                    start = Integer.parseInt(range.group(1));
+                    end = Math.min(end, Integer.parseInt(range.group(2)));
+                    ranges.add(range.group(1) + "-" + range.group(2));
+                }
+                if(start == failAt) {
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+                StringBuilder json = new StringBuilder("[");
+                for(int i = start; i <= end; i++) {
+                    if(i > start) json.append(",");
+                    json.append("{\"book_id\":\"b").append(i).append("\",\"title\":\"title ").append(i).append("\"}");
+                }
+                byte[] body = json.append("]").toString().getBytes("UTF-8");
+                if(sendContentRange) exchange.getResponseHeaders().add("Content-Range", "objects " + start + "-" + end + "/" + total);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        stackmob = server.stackmob(StackMobExecutors.cached());
+        stackmob.getDatastore().setCoalesceGets(false);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private StackMobQueryCursor<Book> cursor() {
+        return StackMobModel.cursor(stackmob, Book.class, new StackMobQuery()).withPageSize(10);
+    }
+
+    @Test public void readsEveryPage() throws Exception {
+        StackMobQueryCursor<Book> cursor = cursor();
+        int read = 0;
+        int pages = 0;
+        while(cursor.hasNextPage()) {
+            for(Book book : cursor.nextPage()) {
+                assertEquals("title " + read, book.getTitle());
+                read++;
+            }
+            pages++;
+        }
+        assertEquals(25, read);
+        assertEquals(3, pages);
+        assertEquals(25, cursor.getTotal());
+        assertEquals(3, ranges.size());
+    }
+
+    @Test public void fetchesAheadOfTheCaller() throws Exception {
+        StackMobQueryCursor<Book> cursor = cursor().withPrefetch(2);
+        assertEquals(10, cursor.nextPage().size());
+        // pages 1 and 2 are on their way without being asked for
+        long deadline = System.currentTimeMillis() + 5000;
+        while(ranges.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(3, ranges.size());
+        assertTrue(ranges.contains("20-29"));
+        assertEquals(10, cursor.nextPage().size());
+        assertEquals(5, cursor.nextPage().size());
+        assertFalse(cursor.hasNextPage());
+        assertEquals(3, ranges.size());
+    }
+
+    @Test public void withoutPrefetchPagesAreFetchedWhenAskedFor() throws Exception {
+        StackMobQueryCursor<Book> cursor = cursor().withPrefetch(0);
+        cursor.nextPage();
+        Thread.sleep(100);
+        assertEquals(1, ranges.size());
+    }
+
+    @Test public void emptyResults() throws Exception {
+        total = 0;
+        assertFalse(cursor().hasNextPage());
+    }
+
+    @Test public void noContentRangeMeansOnePage() throws Exception {
+        total = 5;
+        sendContentRange = false;
+        StackMobQueryCursor<Book> cursor = cursor();
+        assertEquals(5, cursor.nextPage().size());
+        assertFalse(cursor.hasNextPage());
+        assertEquals(-1, cursor.getTotal());
+    }
+
+    @Test public void aFailedPageEndsTheCursor() throws Exception {
+        failAt = 10;
+        StackMobQueryCursor<Book> cursor = cursor();
+        assertEquals(10, cursor.nextPage().size());
+        assertTrue(cursor.hasNextPage());
+        try {
+            cursor.nextPage();
+            fail("expected the second page to fail");
+        } catch(StackMobException expected) { }
+        assertFalse(cursor.hasNextPage());
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.model;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.api.StackMobQuery;
+import com.stackmob.sdk.callback.StackMobScanCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.testobjects.Book;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class StackMobScanTests {
+
+    private static final Pattern RANGE = Pattern.compile("objects=(\\d+)-(\\d+)");
+
+    private StackMobTestServer server;
+    private StackMob stackmob;
+    private final List<String> ranges = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger mostActive = new AtomicInteger();
+    private final Map<Integer, Integer> failuresLeft = new ConcurrentHashMap<Integer, Integer>();
+    private volatile int slowStart = -1;
+    private final int total = 95;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                Matcher range = RANGE.matcher(String.valueOf(exchange.getRequestHeaders().getFirst("Range")));
+                assertTrue(range.matches());
+                int start = Integer.parseInt(range.group(1));
+                int end = Math.min(total - 1, Integer.parseInt(range.group(2)));
+                ranges.add(range.group(1) + "-" + range.group(2));
+                int now = active.incrementAndGet();
+                while(mostActive.get() < now && !mostActive.compareAndSet(mostActive.get(), now));
+                try {
+                    Thread.sleep(start == slowStart ? 300 : 20);
+                } catch(InterruptedException ignore) { }
+                active.decrementAndGet();
+                Integer failures = failuresLeft.get(start);
+                if(failures != null && failures > 0) {
+                    failuresLeft.put(start, failures - 1);
+                    exchange.sendResponseHeaders(500, -1);
+                    exchange.close();
+                    return;
+                }
+                StringBuilder json = new StringBuilder("[");
+                for(int i = start; i <= end; i++) {
+                    if(i > start) json.append(",");
+                    json.append("{\"book_id\":\"b").append(i).append("\",\"title\":\"").append(i).append("\"}");
+                }
+                byte[] body = json.append("]").toString().getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Range", "objects " + start + "-" + end + "/" + total);
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        stackmob = server.stackmob(StackMobExecutors.cached());
+        stackmob.getDatastore().setCoalesceGets(false);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private static class RecordingScanCallback extends StackMobScanCallback<Book> {
+        final List<List<Book>> partitions = new CopyOnWriteArrayList<List<Book>>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger delivering = new AtomicInteger();
+        volatile boolean overlapped = false;
+        volatile long count = -1;
+        volatile StackMobException error;
+
+        @Override
+        public void partition(List<Book> models) {
+            if(delivering.incrementAndGet() > 1) overlapped = true;
+            partitions.add(models);
+            delivering.decrementAndGet();
+        }
+
+        @Override
+        public void success(long count) {
+            this.count = count;
+            done.countDown();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            error = e;
+            done.countDown();
+        }
+
+        Set<String> titles() {
+            Set<String> titles = new HashSet<String>();
+            for(List<Book> partition : partitions) {
+                for(Book book : partition) {
+                    titles.add(book.getTitle());
+                }
+            }
+            return titles;
+        }
+    }
+
+    private RecordingScanCallback scan(StackMobScan<Book> scan) throws InterruptedException {
+        RecordingScanCallback callback = new RecordingScanCallback();
+        scan.start(callback);
+        assertTrue(callback.done.await(10, TimeUnit.SECONDS));
+        return callback;
+    }
+
+    private StackMobScan<Book> books() {
+        return StackMobModel.scan(stackmob, Book.class, new StackMobQuery()).withPartitionSize(10);
+    }
+
+    @Test public void readsEverythingInParallel() throws Exception {
+        RecordingScanCallback callback = scan(books().withConcurrency(4));
+        assertNull(callback.error);
+        assertEquals(95, callback.count);
+        assertEquals(10, callback.partitions.size());
+        assertEquals(95, callback.titles().size());
+        assertFalse(callback.overlapped);
+        assertTrue(mostActive.get() > 1);
+        assertTrue(mostActive.get() <= 4);
+        // the count, then one request per partition
+        assertEquals(11, ranges.size());
+    }
+
+    @Test public void orderedScansDeliverInRangeOrder() throws Exception {
+        slowStart = 0;
+        RecordingScanCallback callback = scan(books().withConcurrency(3).withOrdered(true));
+        assertEquals(95, callback.count);
+        for(int i = 0; i < callback.partitions.size(); i++) {
+            assertEquals(String.valueOf(i * 10), callback.partitions.get(i).get(0).getTitle());
+        }
+    }
+
+    @Test public void unorderedScansDontWaitForSlowPartitions() throws Exception {
+        slowStart = 0;
+        RecordingScanCallback callback = scan(books().withConcurrency(3));
+        assertEquals(95, callback.count);
+        assertFalse("0".equals(callback.partitions.get(0).get(0).getTitle()));
+    }
+
+    @Test public void aFailedPartitionIsRetriedOnItsOwn() throws Exception {
+        failuresLeft.put(20, 1);
+        RecordingScanCallback callback = scan(books());
+        assertNull(callback.error);
+        assertEquals(95, callback.count);
+        assertEquals(12, ranges.size());
+        assertEquals(2, Collections.frequency(ranges, "20-29"));
+    }
+
+    @Test public void theScanFailsWhenAPartitionRunsOutOfRetries() throws Exception {
+        failuresLeft.put(20, 10);
+        RecordingScanCallback callback = scan(books().withRetries(1));
+        assertNotNull(callback.error);
+        assertEquals(2, Collections.frequency(ranges, "20-29"));
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.net;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class StackMobNioHttpTransportTests {
+
+    private StackMobTestServer server;
+    private String baseUrl;
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int now = concurrent.incrementAndGet();
+                while(true) {
+                    int max = maxConcurrent.get();
+                    if(now <= max || maxConcurrent.compareAndSet(max, now)) break;
+                }
+                try {
+                    clientPorts.add(exchange.getRemoteAddress().getPort());
+                    byte[] requestBody = StackMobTestServer.readAll(exchange.getRequestBody());
+                    String path = exchange.getRequestURI().getPath();
+                    if(path.startsWith("/slow")) Thread.sleep(Long.parseLong(exchange.getRequestURI().getQuery()));
+                    byte[] response = ("{\"path\":\"" + path + "\",\"body\":\"" + new String(requestBody, "UTF-8") + "\"}").getBytes("UTF-8");
+                    exchange.getResponseHeaders().add("Content-Type", "application/json");
+                    if(path.startsWith("/chunked")) {
+                        exchange.sendResponseHeaders(200, 0);
+                        OutputStream out = exchange.getResponseBody();
+                        out.write(response, 0, 5);
+                        out.flush();
+                        out.write(response, 5, response.length - 5);
+                    } else {
+                        exchange.sendResponseHeaders(200, response.length);
+                        exchange.getResponseBody().write(response);
+                    }
+                } catch(InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                } finally {
+                    concurrent.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        baseUrl = "http://127.0.0.1:" + server.getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private String send(StackMobHttpTransport transport, OAuthRequest request) throws IOException {
+        StackMobHttpResponse response = transport.execute(request);
+        assertEquals(200, response.getCode());
+        try {
+            return new String(StackMobTestServer.readAll(response.getBody()), "UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        StackMobNioHttpTransport transport = new StackMobNioHttpTransport();
+        for(int i = 0; i < 5; i++) {
+            assertEquals("{\"path\":\"/thing\",\"body\":\"\"}", send(transport, new OAuthRequest(Verb.GET, baseUrl + "/thing")));
+        }
+        assertEquals(1, clientPorts.size());
+        transport.shutdown();
+    }
+
+    @Test
+    public void testPostAndChunkedResponse() throws Exception {
+        StackMobNioHttpTransport transport = new StackMobNioHttpTransport();
+        OAuthRequest post = new OAuthRequest(Verb.POST, baseUrl + "/chunked");
+        post.addHeader("Content-Type", "application/json; charset=utf-8");
+        post.addPayload("hello");
+        assertEquals("{\"path\":\"/chunked\",\"body\":\"hello\"}", send(transport, post));
+        assertEquals("{\"path\":\"/after\",\"body\":\"\"}", send(transport, new OAuthRequest(Verb.GET, baseUrl + "/after")));
+        assertEquals(1, clientPorts.size());
+        transport.shutdown();
+    }
+
+    @Test
+    public void testInFlightRequestsAreBounded() throws Exception {
+        final StackMobNioHttpTransport transport = new StackMobNioHttpTransport().withMaxInFlight(4);
+        int total = 40;
+        final CountDownLatch latch = new CountDownLatch(total);
+        final AtomicInteger successes = new AtomicInteger();
+        for(int i = 0; i < total; i++) {
+            transport.executeAsync(new OAuthRequest(Verb.GET, baseUrl + "/slow?20"), new StackMobAsyncHttpTransport.ResponseHandler() {
+                @Override
+                public void completed(StackMobHttpResponse response) {
+                    if(response.getCode() == 200) successes.incrementAndGet();
+                    latch.countDown();
+                }
+
+                @Override
+                public void failed(IOException e) {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(transport.getQueuedCount() > 0);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(total, successes.get());
+        assertTrue(maxConcurrent.get() <= 4);
+        assertTrue(clientPorts.size() <= 4);
+        assertEquals(0, transport.getInFlightCount());
+        assertEquals(4, transport.getIdleConnectionCount(new URL(baseUrl)));
+        transport.shutdown();
+    }
+
+    @Test
+    public void testRequestsBeyondTheQueueAreRejected() throws Exception {
+        StackMobNioHttpTransport transport = new StackMobNioHttpTransport().withMaxInFlight(1).withMaxQueued(0);
+        final CountDownLatch latch = new CountDownLatch(1);
+        transport.executeAsync(new OAuthRequest(Verb.GET, baseUrl + "/slow?200"), new StackMobAsyncHttpTransport.ResponseHandler() {
+            @Override
+            public void completed(StackMobHttpResponse response) {
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(IOException e) {
+                latch.countDown();
+            }
+        });
+        try {
+            transport.execute(new OAuthRequest(Verb.GET, baseUrl + "/thing"));
+            fail("expected the request to be rejected");
+        } catch(IOException expected) { }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        transport.shutdown();
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        StackMobNioHttpTransport transport = new StackMobNioHttpTransport().withReadTimeout(100);
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        transport.executeAsync(new OAuthRequest(Verb.GET, baseUrl + "/slow?2000"), new StackMobAsyncHttpTransport.ResponseHandler() {
+            @Override
+            public void completed(StackMobHttpResponse response) {
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(IOException e) {
+                failure.set(e);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertTrue(failure.get() instanceof SocketTimeoutException);
+        transport.shutdown();
+    }
+}
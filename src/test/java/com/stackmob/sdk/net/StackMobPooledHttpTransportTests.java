@@ -0,0 +1,292 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.net;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.scribe.model.OAuthRequest;
+import org.scribe.model.Verb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class StackMobPooledHttpTransportTests {
+
+    private StackMobTestServer server;
+    private String baseUrl;
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] requestBody = StackMobTestServer.readAll(exchange.getRequestBody());
+                String path = exchange.getRequestURI().getPath();
+                byte[] response = ("{\"path\":\"" + path + "\",\"body\":\"" + new String(requestBody, "UTF-8") + "\"}").getBytes("UTF-8");
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                if(exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.sendResponseHeaders(200, -1);
+                } else if(path.startsWith("/chunked")) {
+                    exchange.sendResponseHeaders(200, 0);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(response, 0, 5);
+                    out.flush();
+                    out.write(response, 5, response.length - 5);
+                } else {
+                    exchange.sendResponseHeaders(200, response.length);
+                    exchange.getResponseBody().write(response);
+                }
+                exchange.close();
+            }
+        });
+        baseUrl = "http://127.0.0.1:" + server.getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private String send(StackMobHttpTransport transport, OAuthRequest request) throws IOException {
+        StackMobHttpResponse response = transport.execute(request);
+        assertEquals(200, response.getCode());
+        try {
+            return new String(StackMobTestServer.readAll(response.getBody()), "UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testConnectionIsReused() throws Exception {
+        StackMobPooledHttpTransport transport = new StackMobPooledHttpTransport();
+        for(int i = 0; i < 5; i++) {
+            assertEquals("{\"path\":\"/thing\",\"body\":\"\"}", send(transport, new OAuthRequest(Verb.GET, baseUrl + "/thing")));
+        }
+        assertEquals(1, clientPorts.size());
+        assertEquals(1, transport.getIdleConnectionCount(new URL(baseUrl)));
+        transport.shutdown();
+        assertEquals(0, transport.getIdleConnectionCount(new URL(baseUrl)));
+    }
+
+    @Test
+    public void testPostAndChunkedResponse() throws Exception {
+        StackMobPooledHttpTransport transport = new StackMobPooledHttpTransport();
+        OAuthRequest post = new OAuthRequest(Verb.POST, baseUrl + "/chunked");
+        post.addHeader("Content-Type", "application/json; charset=utf-8");
+        post.addPayload("hello");
+        assertEquals("{\"path\":\"/chunked\",\"body\":\"hello\"}", send(transport, post));
+        assertEquals("{\"path\":\"/after\",\"body\":\"\"}", send(transport, new OAuthRequest(Verb.GET, baseUrl + "/after")));
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void testHeadHasNoBody() throws Exception {
+        StackMobPooledHttpTransport transport = new StackMobPooledHttpTransport();
+        StackMobHttpResponse response = transport.execute(new OAuthRequest(Verb.HEAD, baseUrl + "/thing"));
+        assertEquals(200, response.getCode());
+        assertEquals("application/json", response.getHeader("content-type"));
+        assertEquals(-1, response.getBody().read());
+        assertEquals(1, transport.getIdleConnectionCount(new URL(baseUrl)));
+    }
+
+    @Test
+    public void testAbandonedBodyClosesConnection() throws Exception {
+        StackMobPooledHttpTransport transport = new StackMobPooledHttpTransport().withMaxConnectionsPerHost(1).withPoolTimeout(1000);
+        StackMobHttpResponse response = transport.execute(new OAuthRequest(Verb.GET, baseUrl + "/thing"));
+        response.getBody().read();
+        response.close();
+        assertEquals(0, transport.getIdleConnectionCount(new URL(baseUrl)));
+        // the permit was returned, so a second request doesn't time out waiting for the pool
+        send(transport, new OAuthRequest(Verb.GET, baseUrl + "/thing"));
+        assertEquals(2, clientPorts.size());
+    }
+
+    @Test
+    public void testRequestsGoThroughTheProxy() throws Exception {
+        final List<String> proxied = new CopyOnWriteArrayList<String>();
+        StackMobTestServer proxy = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                proxied.add(exchange.getRequestURI().toString());
+                exchange.sendResponseHeaders(200, 2);
+                exchange.getResponseBody().write("{}".getBytes("UTF-8"));
+                exchange.close();
+            }
+        });
+        try {
+            final Proxy httpProxy = new Proxy(Proxy.Type.HTTP, proxy.getAddress());
+            StackMobPooledHttpTransport transport = new StackMobPooledHttpTransport().withProxySelector(new ProxySelector() {
+                @Override
+                public List<Proxy> select(URI uri) {
+                    return Collections.singletonList(httpProxy);
+                }
+
+                @Override
+                public void connectFailed(URI uri, SocketAddress sa, IOException ioe) { }
+            });
+            assertEquals("{}", send(transport, new OAuthRequest(Verb.GET, "http://api.stackmob.invalid/thing?a=b")));
+            assertEquals(Arrays.asList("http://api.stackmob.invalid/thing?a=b"), proxied);
+            assertTrue(clientPorts.isEmpty());
+        } finally {
+            proxy.stop();
+        }
+    }
+
+    /**
+     * a server that answers the first request on each connection, then reads the next one and hangs up without
+     * answering, like a server closing a keep-alive connection just as a request arrives
+     */
+    private static class DroppingServer extends Thread {
+        private final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        private final List<String> requestLines = new CopyOnWriteArrayList<String>();
+
+        DroppingServer() throws IOException {
+            setDaemon(true);
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + socket.getLocalPort() + "/thing";
+        }
+
+        private String readRequest(InputStream in) throws IOException {
+            String requestLine = HttpMessages.readLine(in);
+            int length = 0;
+            String line;
+            while((line = HttpMessages.readLine(in)) != null && line.length() > 0) {
+                if(line.toLowerCase().startsWith("content-length:")) length = Integer.parseInt(line.substring(15).trim());
+            }
+            for(int i = 0; i < length; i++) in.read();
+            requestLines.add(requestLine);
+            return requestLine;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    Socket conn = socket.accept();
+                    try {
+                        readRequest(conn.getInputStream());
+                        conn.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}".getBytes("UTF-8"));
+                        conn.getOutputStream().flush();
+                        readRequest(conn.getInputStream());
+                    } catch(IOException ignore) {
+                    } finally {
+                        conn.close();
+                    }
+                }
+            } catch(IOException done) { }
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testGetIsResentWhenAReusedConnectionDrops() throws Exception {
+        DroppingServer dropping = new DroppingServer();
+        dropping.start();
+        try {
+            StackMobPooledHttpTransport transport = new StackMobPooledHttpTransport();
+            assertEquals("{}", send(transport, new OAuthRequest(Verb.GET, dropping.url())));
+            assertEquals("{}", send(transport, new OAuthRequest(Verb.GET, dropping.url())));
+            assertEquals(3, dropping.requestLines.size());
+        } finally {
+            dropping.close();
+        }
+    }
+
+    @Test
+    public void testPostIsNotResentWhenAReusedConnectionDrops() throws Exception {
+        DroppingServer dropping = new DroppingServer();
+        dropping.start();
+        try {
+            StackMobPooledHttpTransport transport = new StackMobPooledHttpTransport();
+            assertEquals("{}", send(transport, new OAuthRequest(Verb.GET, dropping.url())));
+            OAuthRequest post = new OAuthRequest(Verb.POST, dropping.url());
+            post.addPayload("{\"count[inc]\":1}");
+            try {
+                transport.execute(post);
+                fail("expected the dropped post to fail");
+            } catch(IOException expected) { }
+            int posts = 0;
+            for(String line : dropping.requestLines) {
+                if(line.startsWith("POST")) posts++;
+            }
+            assertEquals(1, posts);
+        } finally {
+            dropping.close();
+        }
+    }
+
+    @Test
+    public void testPostSkipsAnIdleConnectionTheServerClosed() throws Exception {
+        final List<Integer> ports = new CopyOnWriteArrayList<Integer>();
+        final ServerSocket closing = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        Socket conn = closing.accept();
+                        ports.add(conn.getPort());
+                        InputStream in = conn.getInputStream();
+                        String line;
+                        int length = 0;
+                        HttpMessages.readLine(in);
+                        while((line = HttpMessages.readLine(in)) != null && line.length() > 0) {
+                            if(line.toLowerCase().startsWith("content-length:")) length = Integer.parseInt(line.substring(15).trim());
+                        }
+                        for(int i = 0; i < length; i++) in.read();
+                        // claims keep-alive, then hangs up anyway
+                        conn.getOutputStream().write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}".getBytes("UTF-8"));
+                        conn.close();
+                    }
+                } catch(IOException done) { }
+            }
+        };
+        serverThread.setDaemon(true);
+        serverThread.start();
+        try {
+            String url = "http://127.0.0.1:" + closing.getLocalPort() + "/thing";
+            StackMobPooledHttpTransport transport = new StackMobPooledHttpTransport();
+            assertEquals("{}", send(transport, new OAuthRequest(Verb.GET, url)));
+            Thread.sleep(100);
+            OAuthRequest post = new OAuthRequest(Verb.POST, url);
+            post.addPayload("{}");
+            assertEquals("{}", send(transport, post));
+            assertEquals(2, ports.size());
+        } finally {
+            closing.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobCircuitOpenException;
+import com.stackmob.sdk.exception.StackMobException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StackMobCircuitBreakerTests {
+
+    private StackMobTestServer server;
+    private String host;
+    private StackMob stackmob;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile int status = 500;
+    private volatile long sleepMillis = 0;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch(InterruptedException ignore) { }
+                byte[] body = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        host = server.getHost();
+        stackmob = server.stackmob(StackMobExecutors.cached());
+        stackmob.getDatastore().setCoalesceGets(false);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private StackMobCircuitBreaker breaker(StackMobCircuitBreaker breaker) {
+        stackmob.getSession().setCircuitBreaker(breaker);
+        return breaker;
+    }
+
+    private StackMobException get(String path) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final StackMobException[] error = new StackMobException[1];
+        stackmob.getDatastore().get(path, new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+                done.countDown();
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                error[0] = e;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        return error[0];
+    }
+
+    private void getInTurn(String path, int times) throws InterruptedException {
+        for(int i = 0; i < times; i++) {
+            get(path);
+        }
+    }
+
+    @Test public void failingEndpointsAreShortCircuited() throws Exception {
+        StackMobCircuitBreaker breaker = breaker(new StackMobCircuitBreaker().withWindow(10, 5));
+        getInTurn("book/1", 5);
+        assertEquals(StackMobCircuitBreaker.State.OPEN, breaker.getState(host, "book"));
+        StackMobException error = get("book/2");
+        assertTrue(error instanceof StackMobCircuitOpenException);
+        assertEquals(host + "/book", ((StackMobCircuitOpenException) error).getEndpoint());
+        assertTrue(((StackMobCircuitOpenException) error).getRetryAfterMillis() > 0);
+        assertEquals(5, requests.get());
+        assertEquals(1, breaker.getShortCircuitedCount());
+        // other endpoints on the host are still tried
+        assertFalse(get("author") instanceof StackMobCircuitOpenException);
+        assertEquals(6, requests.get());
+    }
+
+    @Test public void occasionalFailuresDontOpenTheCircuit() throws Exception {
+        StackMobCircuitBreaker breaker = breaker(new StackMobCircuitBreaker().withWindow(10, 5));
+        for(int i = 0; i < 10; i++) {
+            status = i % 3 == 0 ? 500 : 200;
+            get("book");
+        }
+        assertEquals(StackMobCircuitBreaker.State.CLOSED, breaker.getState(host, "book"));
+    }
+
+    @Test public void successfulProbesCloseTheCircuit() throws Exception {
+        StackMobCircuitBreaker breaker = breaker(new StackMobCircuitBreaker().withWindow(10, 5).withProbes(2)
+                .withOpenDuration(100, TimeUnit.MILLISECONDS));
+        getInTurn("book", 5);
+        status = 200;
+        Thread.sleep(150);
+        assertEquals(StackMobCircuitBreaker.State.HALF_OPEN, breaker.getState(host, "book"));
+        assertNull(get("book"));
+        assertEquals(StackMobCircuitBreaker.State.HALF_OPEN, breaker.getState(host, "book"));
+        assertNull(get("book"));
+        assertEquals(StackMobCircuitBreaker.State.CLOSED, breaker.getState(host, "book"));
+    }
+
+    @Test public void aFailedProbeOpensTheCircuitAgain() throws Exception {
+        StackMobCircuitBreaker breaker = breaker(new StackMobCircuitBreaker().withWindow(10, 5)
+                .withOpenDuration(100, TimeUnit.MILLISECONDS));
+        getInTurn("book", 5);
+        Thread.sleep(150);
+        assertFalse(get("book") instanceof StackMobCircuitOpenException);
+        assertEquals(StackMobCircuitBreaker.State.OPEN, breaker.getState(host, "book"));
+        assertTrue(get("book") instanceof StackMobCircuitOpenException);
+        assertEquals(6, requests.get());
+    }
+
+    @Test public void slowEndpointsAreShortCircuited() throws Exception {
+        status = 200;
+        sleepMillis = 60;
+        StackMobCircuitBreaker breaker = breaker(new StackMobCircuitBreaker().withWindow(10, 3)
+                .withSlowCalls(0.5, 50, TimeUnit.MILLISECONDS));
+        getInTurn("book", 3);
+        assertEquals(StackMobCircuitBreaker.State.OPEN, breaker.getState(host, "book"));
+    }
+
+    @Test public void timeWaitingForAThreadDoesntMakeACallSlow() throws Exception {
+        status = 200;
+        sleepMillis = 30;
+        // every call is let through straight away, then waits its turn for the one thread
+        stackmob = server.stackmob(StackMobExecutors.bounded(1, 10));
+        StackMobCircuitBreaker breaker = breaker(new StackMobCircuitBreaker().withWindow(10, 3)
+                .withSlowCalls(0.5, 100, TimeUnit.MILLISECONDS));
+        final CountDownLatch done = new CountDownLatch(5);
+        for(int i = 0; i < 5; i++) {
+            stackmob.getDatastore().get("book", new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    done.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(StackMobCircuitBreaker.State.CLOSED, breaker.getState(host, "book"));
+    }
+
+    @Test public void endpointsAreTheHostAndFirstPathSegment() {
+        assertEquals("host/book", StackMobCircuitBreaker.endpoint("host", "book/123"));
+        assertEquals("host/book", StackMobCircuitBreaker.endpoint("host", "/book"));
+        assertEquals("host/", StackMobCircuitBreaker.endpoint("host", null));
+    }
+}
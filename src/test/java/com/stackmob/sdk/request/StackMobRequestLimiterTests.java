@@ -0,0 +1,157 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.RecordingCallback;
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StackMobRequestLimiterTests {
+
+    private StackMobTestServer server;
+    private String host;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger mostActive = new AtomicInteger();
+    private volatile int status = 200;
+    private volatile long sleepMillis = 0;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int now = active.incrementAndGet();
+                while(mostActive.get() < now && !mostActive.compareAndSet(mostActive.get(), now));
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch(InterruptedException ignore) { }
+                active.decrementAndGet();
+                byte[] body = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(status, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        host = server.getHost();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private StackMob stackmob(StackMobRequestLimiter limiter) {
+        return stackmob(limiter, StackMobExecutors.cached());
+    }
+
+    private StackMob stackmob(StackMobRequestLimiter limiter, ExecutorService executor) {
+        StackMob stackmob = server.stackmob(executor);
+        stackmob.getDatastore().setCoalesceGets(false);
+        stackmob.getSession().setRequestLimiter(limiter);
+        return stackmob;
+    }
+
+    private void getInTurn(StackMob stackmob, int times) throws InterruptedException {
+        for(int i = 0; i < times; i++) {
+            RecordingCallback callback = new RecordingCallback().withoutRetries();
+            stackmob.getDatastore().get("thing", callback);
+            callback.await();
+        }
+    }
+
+    @Test public void requestsOverTheLimitWait() throws Exception {
+        sleepMillis = 100;
+        StackMob stackmob = stackmob(new StackMobRequestLimiter().withConcurrency(2, 1, 2));
+        RecordingCallback callback = new RecordingCallback(8).withoutRetries();
+        for(int i = 0; i < 8; i++) {
+            stackmob.getDatastore().get("thing", callback);
+        }
+        callback.await();
+        assertEquals(0, callback.failures.get());
+        assertEquals(2, mostActive.get());
+        assertEquals(0, stackmob.getSession().getRequestLimiter().getInFlight(host));
+    }
+
+    @Test public void requestsOverAFullQueueFailFast() throws Exception {
+        sleepMillis = 300;
+        StackMobRequestLimiter limiter = new StackMobRequestLimiter().withConcurrency(1, 1, 1).withMaxQueued(0);
+        StackMob stackmob = stackmob(limiter);
+        RecordingCallback slow = new RecordingCallback().withoutRetries();
+        stackmob.getDatastore().get("thing", slow);
+        RecordingCallback rejected = new RecordingCallback().withoutRetries();
+        stackmob.getDatastore().get("thing", rejected);
+        assertTrue(rejected.done.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(1, rejected.failures.get());
+        assertEquals(1, limiter.getRejectedCount());
+        slow.await();
+        assertEquals(0, slow.failures.get());
+    }
+
+    @Test public void theLimitBacksOffWhenTheHostIsUnavailable() throws Exception {
+        status = 503;
+        StackMobRequestLimiter limiter = new StackMobRequestLimiter().withConcurrency(10, 2, 10);
+        getInTurn(stackmob(limiter), 5);
+        assertEquals(5, limiter.getConcurrencyLimit(host));
+        getInTurn(stackmob(limiter), 20);
+        assertEquals(2, limiter.getConcurrencyLimit(host));
+    }
+
+    @Test public void theLimitGrowsWhileTheHostIsHealthy() throws Exception {
+        StackMobRequestLimiter limiter = new StackMobRequestLimiter().withConcurrency(2, 1, 4);
+        getInTurn(stackmob(limiter), 20);
+        assertEquals(4, limiter.getConcurrencyLimit(host));
+    }
+
+    @Test public void timeWaitingForAThreadIsntLatency() throws Exception {
+        sleepMillis = 150;
+        StackMobRequestLimiter limiter = new StackMobRequestLimiter().withConcurrency(4, 1, 4);
+        // every request gets a permit straight away, then waits its turn for the one thread
+        StackMob stackmob = stackmob(limiter, StackMobExecutors.bounded(1, 10));
+        RecordingCallback callback = new RecordingCallback(4).withoutRetries();
+        for(int i = 0; i < 4; i++) {
+            stackmob.getDatastore().get("thing", callback);
+        }
+        callback.await();
+        assertEquals(0, callback.failures.get());
+        assertEquals(4, limiter.getConcurrencyLimit(host));
+    }
+
+    @Test public void theRateIsCapped() throws Exception {
+        StackMob stackmob = stackmob(new StackMobRequestLimiter().withRate(10, 1));
+        RecordingCallback callback = new RecordingCallback(5).withoutRetries();
+        long start = System.currentTimeMillis();
+        for(int i = 0; i < 5; i++) {
+            stackmob.getDatastore().get("thing", callback);
+        }
+        callback.await();
+        assertEquals(0, callback.failures.get());
+        // the first goes straight away, the rest a tenth of a second apart
+        assertTrue(System.currentTimeMillis() - start >= 380);
+    }
+}
@@ -169,4 +169,15 @@ public class StackMobRequestTests extends StackMobTestCommon {
         asserter.assertLatchFinished(latch);
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRequestsShareScaffolding() {
+        StackMobRequest first = new StackMobRequestWithoutPayload(executor, session, null, HttpVerbWithoutPayload.GET, "listapi", null, redirectedCallback);
+        StackMobRequest second = new StackMobRequestWithPayload(executor, session, null, HttpVerbWithPayload.POST, "listapi", null, redirectedCallback);
+        assertSame(first.gson, second.gson);
+        assertSame(session.getOAuthService(), session.getOAuthService());
+        assertSame(session.getUserAgent(), session.getUserAgent());
+        assertEquals("application/vnd.stackmob+json; version=" + session.getApiVersionNumber(), session.getAcceptHeader());
+        assertSame(session.getOAuthService(), new StackMobSession(session).getOAuthService());
+    }
+}
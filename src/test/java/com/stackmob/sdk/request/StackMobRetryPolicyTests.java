@@ -0,0 +1,203 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.RecordingCallback;
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.net.HttpVerbWithPayload;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StackMobRetryPolicyTests {
+
+    private StackMobTestServer server;
+    private final AtomicInteger unavailableLeft = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                if(exchange.getRequestURI().getPath().endsWith("busy") && unavailableLeft.getAndDecrement() > 0) {
+                    exchange.getResponseHeaders().add("Retry-After", "1");
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private StackMob stackmob(int port, ExecutorService executor, StackMobRetryPolicy policy) {
+        StackMob stackmob = StackMobTestServer.stackmob("127.0.0.1:" + port, executor);
+        stackmob.getDatastore().setCoalesceGets(false);
+        stackmob.getSession().setRetryPolicy(policy);
+        return stackmob;
+    }
+
+    private static int closedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    @Test public void unavailableIsRetriedWithoutHoldingAThread() throws Exception {
+        unavailableLeft.set(1);
+        StackMob stackmob = stackmob(server.getPort(), StackMobExecutors.bounded(1, 10), new StackMobRetryPolicy());
+        RecordingCallback busy = new RecordingCallback();
+        stackmob.getDatastore().get("busy", busy);
+        // give the first request time to get its 503
+        Thread.sleep(200);
+        RecordingCallback quick = new RecordingCallback();
+        stackmob.getDatastore().get("quick", quick);
+        quick.await();
+        busy.await();
+        assertNull(busy.error);
+        assertEquals(1, busy.delays.size());
+        assertTrue(busy.delays.get(0) >= 1000);
+        // the only worker thread was free while the busy request waited to be retried
+        assertTrue(quick.finishedAt < busy.finishedAt);
+        assertEquals(3, requests.get());
+        assertEquals(1, stackmob.getSession().getRetryPolicy().getRetryCount());
+    }
+
+    @Test public void connectionErrorsAreRetriedWithBackoff() throws Exception {
+        StackMobRetryPolicy policy = new StackMobRetryPolicy().withBackoff(5, 50, TimeUnit.MILLISECONDS).withRetryOnConnectionErrors(true);
+        StackMob stackmob = stackmob(closedPort(), StackMobExecutors.cached(), policy);
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.getDatastore().get("thing", callback);
+        callback.await();
+        assertNotNull(callback.error);
+        assertEquals(3, callback.delays.size());
+        assertEquals(3, policy.getRetryCount());
+        for(int delay : callback.delays) {
+            assertTrue(delay >= 5 && delay <= 50);
+        }
+    }
+
+    @Test public void postsAreNotRetriedOnConnectionErrors() throws Exception {
+        StackMobRetryPolicy policy = new StackMobRetryPolicy().withBackoff(5, 50, TimeUnit.MILLISECONDS).withRetryOnConnectionErrors(true);
+        StackMob stackmob = stackmob(closedPort(), StackMobExecutors.cached(), policy);
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.getDatastore().post("thing", "{}", callback);
+        callback.await();
+        assertNotNull(callback.error);
+        assertTrue(callback.delays.isEmpty());
+        assertEquals(0, policy.getRetryCount());
+    }
+
+    @Test public void putsAreNotRetriedOnConnectionErrors() throws Exception {
+        StackMobRetryPolicy policy = new StackMobRetryPolicy().withBackoff(5, 50, TimeUnit.MILLISECONDS).withRetryOnConnectionErrors(true);
+        StackMob stackmob = stackmob(closedPort(), StackMobExecutors.cached(), policy);
+        RecordingCallback callback = new RecordingCallback();
+        // incrementing isn't safe to repeat
+        stackmob.getDatastore().put("thing", "1", "{\"count[inc]\":1}", callback);
+        callback.await();
+        assertNotNull(callback.error);
+        assertTrue(callback.delays.isEmpty());
+        assertEquals(0, policy.getRetryCount());
+    }
+
+    @Test public void retriesAreSentFromTheExecutor() throws Exception {
+        final List<String> submitters = new CopyOnWriteArrayList<String>();
+        ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 1, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "retry-test");
+            }
+        }) {
+            @Override
+            public void execute(Runnable command) {
+                submitters.add(Thread.currentThread().getName());
+                super.execute(command);
+            }
+        };
+        StackMobRetryPolicy policy = new StackMobRetryPolicy().withBackoff(5, 50, TimeUnit.MILLISECONDS).withRetryOnConnectionErrors(true);
+        StackMob stackmob = stackmob(closedPort(), executor, policy);
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.getDatastore().get("thing", callback);
+        callback.await();
+        assertEquals(3, policy.getRetryCount());
+        // the timer hands each retry over, and the executor's own thread sends it
+        assertTrue(submitters.contains("retry-test"));
+        executor.shutdown();
+    }
+
+    @Test public void retriesStopWhenTheBudgetRunsOut() throws Exception {
+        StackMobRetryPolicy policy = new StackMobRetryPolicy().withBackoff(5, 50, TimeUnit.MILLISECONDS).withRetryOnConnectionErrors(true).withBudget(1, 0);
+        StackMob stackmob = stackmob(closedPort(), StackMobExecutors.cached(), policy);
+        RecordingCallback callback = new RecordingCallback();
+        stackmob.getDatastore().get("thing", callback);
+        callback.await();
+        assertNotNull(callback.error);
+        // the one request paid for one retry, and the callback only heard about that one
+        assertEquals(1, policy.getRetryCount());
+        assertEquals(1, policy.getOverBudgetCount());
+        assertEquals(1, callback.delays.size());
+    }
+
+    @Test public void onlyChosenConnectionErrorsAreRetried() {
+        StackMobRetryPolicy policy = new StackMobRetryPolicy();
+        assertFalse(policy.canRetryConnectionError(HttpVerbWithoutPayload.GET, new ConnectException()));
+        policy.withRetryOnConnectionErrors(true);
+        assertTrue(policy.canRetryConnectionError(HttpVerbWithoutPayload.GET, new ConnectException()));
+        assertTrue(policy.canRetryConnectionError(HttpVerbWithoutPayload.HEAD, new ConnectException()));
+        assertFalse(policy.canRetryConnectionError(HttpVerbWithoutPayload.GET, new SocketTimeoutException()));
+        assertFalse(policy.canRetryConnectionError(HttpVerbWithoutPayload.DELETE, new ConnectException()));
+        assertFalse(policy.canRetryConnectionError(HttpVerbWithPayload.PUT, new ConnectException()));
+        assertFalse(policy.canRetryConnectionError(HttpVerbWithPayload.POST, new ConnectException()));
+    }
+
+    @Test public void delaysGrowAndStayWithinBounds() {
+        StackMobRetryPolicy policy = new StackMobRetryPolicy().withBackoff(100, 1000, TimeUnit.MILLISECONDS);
+        long delay = 0;
+        for(int i = 0; i < 100; i++) {
+            long next = policy.nextDelay(delay, 0);
+            assertTrue(next >= 100 && next <= Math.max(100, Math.min(1000, delay * 3)));
+            delay = next;
+        }
+        assertEquals(5000, policy.nextDelay(delay, 5000));
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.request;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import com.stackmob.sdk.util.StackMobSpan;
+import com.stackmob.sdk.util.StackMobTracer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StackMobTracingTests {
+
+    private StackMobTestServer server;
+    private final AtomicInteger unavailableLeft = new AtomicInteger();
+    private final BlockingQueue<StackMobSpan> spans = new LinkedBlockingQueue<StackMobSpan>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if(exchange.getRequestURI().getPath().endsWith("busy") && unavailableLeft.getAndDecrement() > 0) {
+                    exchange.getResponseHeaders().add("Retry-After", "1");
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = "{}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private StackMob stackmob() {
+        StackMob stackmob = server.stackmob(StackMobExecutors.cached());
+        stackmob.getDatastore().setCoalesceGets(false);
+        stackmob.getSession().setRetryPolicy(new StackMobRetryPolicy().withBackoff(5, 50, TimeUnit.MILLISECONDS));
+        stackmob.getSession().setTracer(new StackMobTracer() {
+            @Override
+            public void spanFinished(StackMobSpan span) {
+                spans.add(span);
+            }
+        });
+        return stackmob;
+    }
+
+    private static class SpanCheckingCallback extends StackMobCallback {
+        volatile StackMobSpan current;
+
+        @Override
+        public void success(String responseBody) {
+            current = StackMobSpan.current();
+        }
+
+        @Override
+        public void failure(StackMobException e) {
+            current = StackMobSpan.current();
+        }
+    }
+
+    private StackMobSpan nextSpan() throws InterruptedException {
+        StackMobSpan span = spans.poll(10, TimeUnit.SECONDS);
+        assertNotNull(span);
+        return span;
+    }
+
+    @Test public void spanTimesEachPhase() throws Exception {
+        SpanCheckingCallback callback = new SpanCheckingCallback();
+        stackmob().getDatastore().get("thing", callback);
+        StackMobSpan span = nextSpan();
+        assertSame(span, callback.current);
+        assertNotNull(span.getCorrelationId());
+        assertEquals(HttpVerbWithoutPayload.GET, span.getVerb());
+        assertEquals(200, span.getStatusCode());
+        assertEquals(1, span.getAttempts());
+        assertTrue(span.getUrl().contains("/thing"));
+        for(StackMobSpan.Phase phase : new StackMobSpan.Phase[] { StackMobSpan.Phase.QUEUE, StackMobSpan.Phase.BUILD,
+                StackMobSpan.Phase.NETWORK, StackMobSpan.Phase.READ, StackMobSpan.Phase.CALLBACK }) {
+            assertTrue(phase.name(), span.getTime(phase) > 0);
+        }
+        assertTrue(span.getDuration() >= span.getTime(StackMobSpan.Phase.NETWORK));
+        for(StackMobSpan.Timing timing : span.getTimings()) {
+            assertTrue(timing.getStartNanos() >= span.getStartNanos());
+            assertTrue(timing.getEndNanos() <= span.getEndNanos());
+        }
+        // the callback is the last thing the span covers
+        assertNull(StackMobSpan.current());
+    }
+
+    @Test public void retriesBelongToTheSameSpan() throws Exception {
+        unavailableLeft.set(1);
+        stackmob().getDatastore().get("busy", new SpanCheckingCallback());
+        StackMobSpan span = nextSpan();
+        assertEquals(200, span.getStatusCode());
+        assertEquals(2, span.getAttempts());
+        assertEquals(1, span.getRetries());
+        int networkTimings = 0;
+        for(StackMobSpan.Timing timing : span.getTimings()) {
+            if(timing.getPhase() == StackMobSpan.Phase.NETWORK) networkTimings++;
+        }
+        assertEquals(2, networkTimings);
+        assertNull(spans.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test public void requestsGetTheirOwnCorrelationIds() throws Exception {
+        StackMob stackmob = stackmob();
+        stackmob.getDatastore().get("thing", new SpanCheckingCallback());
+        stackmob.getDatastore().get("thing", new SpanCheckingCallback());
+        assertFalse(nextSpan().getCorrelationId().equals(nextSpan().getCorrelationId()));
+    }
+
+    @Test public void nestedDecodingIsTimedOnce() throws Exception {
+        StackMobSpan span = new StackMobSpan(StackMobSpan.newCorrelationId(), HttpVerbWithoutPayload.GET, "host/thing");
+        assertNull(StackMobSpan.decoding());
+        long callbackStartNanos = span.callbackStarting();
+        assertSame(span, StackMobSpan.decoding());
+        assertSame(span, StackMobSpan.decoding());
+        span.decoded();
+        span.decoded();
+        assertTrue(span.callbackFinished(callbackStartNanos, 200));
+        assertFalse(span.callbackFinished(callbackStartNanos, 200));
+        int decodeTimings = 0;
+        for(StackMobSpan.Timing timing : span.getTimings()) {
+            if(timing.getPhase() == StackMobSpan.Phase.DECODE) decodeTimings++;
+        }
+        assertEquals(1, decodeTimings);
+        assertNull(StackMobSpan.current());
+    }
+
+    @Test public void requestsAreNotTracedByDefault() {
+        StackMob stackmob = stackmob();
+        stackmob.getSession().setTracer(null);
+        StackMobRequest request = new StackMobRequestWithoutPayload(StackMobExecutors.cached(), stackmob.getSession(), null,
+                HttpVerbWithoutPayload.GET, "thing", new SpanCheckingCallback(), StackMob.DEFAULT_REDIRECTED_CALLBACK);
+        request.sendRequest();
+        assertNull(request.getCorrelationId());
+    }
+}
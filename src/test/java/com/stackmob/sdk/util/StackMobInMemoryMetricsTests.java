@@ -0,0 +1,128 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdk.util;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class StackMobInMemoryMetricsTests {
+
+    @Test public void countersAndGauges() {
+        StackMobInMemoryMetrics metrics = new StackMobInMemoryMetrics();
+        metrics.increment("retries", "host/book");
+        metrics.increment("retries", "host/book");
+        metrics.adjust("in_flight", "host/book", 3);
+        metrics.adjust("in_flight", "host/book", -1);
+        assertEquals(2, metrics.getCount("retries", "host/book"));
+        assertEquals(0, metrics.getCount("retries", "host/author"));
+        assertEquals(2, metrics.getGauge("in_flight", "host/book"));
+        assertEquals(1, metrics.getEndpoints().size());
+        metrics.clear();
+        assertEquals(0, metrics.getCount("retries", "host/book"));
+    }
+
+    @Test public void histogramPercentiles() {
+        StackMobInMemoryMetrics metrics = new StackMobInMemoryMetrics();
+        for(int i = 100; i >= 1; i--) {
+            metrics.record("latency", "host/book", i);
+        }
+        StackMobInMemoryMetrics.Snapshot snapshot = metrics.getHistogram("latency", "host/book");
+        assertEquals(100, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(100, snapshot.getMax());
+        assertEquals(50.5, snapshot.getMean(), 0.001);
+        assertEquals(50, snapshot.getPercentile(0.5));
+        assertEquals(95, snapshot.getPercentile(0.95));
+        assertEquals(100, snapshot.getPercentile(1));
+        assertEquals(0, metrics.getHistogram("latency", "host/author").getCount());
+    }
+
+    @Test public void percentilesComeFromRecentValues() {
+        StackMobInMemoryMetrics metrics = new StackMobInMemoryMetrics(10);
+        for(int i = 0; i < 100; i++) {
+            metrics.record("latency", "host/book", i < 90 ? 1000 : 1);
+        }
+        StackMobInMemoryMetrics.Snapshot snapshot = metrics.getHistogram("latency", "host/book");
+        assertEquals(100, snapshot.getCount());
+        assertEquals(1000, snapshot.getMax());
+        assertEquals(1, snapshot.getPercentile(0.99));
+    }
+
+    @Test public void requestsAreMeasured() throws Exception {
+        StackMobTestServer server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "{\"title\":\"cafe\"}".getBytes("UTF-8");
+                exchange.sendResponseHeaders(exchange.getRequestURI().getPath().contains("missing") ? 404 : 200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        try {
+            String host = server.getHost();
+            StackMob stackmob = server.stackmob(StackMobExecutors.cached());
+            StackMobInMemoryMetrics metrics = new StackMobInMemoryMetrics();
+            stackmob.getSession().setMetrics(metrics);
+            final CountDownLatch done = new CountDownLatch(3);
+            StackMobCallback callback = new StackMobCallback() {
+                @Override
+                public void success(String responseBody) {
+                    done.countDown();
+                }
+
+                @Override
+                public void failure(StackMobException e) {
+                    done.countDown();
+                }
+            };
+            stackmob.getDatastore().get("book/1", callback);
+            stackmob.getDatastore().post("book", "{\"title\":\"cafe\"}", callback);
+            stackmob.getDatastore().get("book/missing", callback);
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+
+            String endpoint = host + "/book";
+            assertEquals(3, metrics.getHistogram(StackMobMetricsRegistry.LATENCY, endpoint).getCount());
+            assertEquals(3, metrics.getHistogram(StackMobMetricsRegistry.QUEUE_WAIT, endpoint).getCount());
+            assertEquals(2, metrics.getCount(StackMobMetricsRegistry.RESPONSE_STATUS + 200, endpoint));
+            assertEquals(1, metrics.getCount(StackMobMetricsRegistry.RESPONSE_STATUS + 404, endpoint));
+            assertEquals(0, metrics.getGauge(StackMobMetricsRegistry.IN_FLIGHT, endpoint));
+            assertEquals(16, metrics.getHistogram(StackMobMetricsRegistry.REQUEST_BYTES, endpoint).getMax());
+            assertEquals(16, metrics.getHistogram(StackMobMetricsRegistry.RESPONSE_BYTES, endpoint).getMax());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test public void utf8Lengths() {
+        assertEquals(3, Http.utf8Length("abc"));
+        assertEquals(5, Http.utf8Length("café"));
+        assertEquals(3, Http.utf8Length("€"));
+        assertEquals(4, Http.utf8Length("😀"));
+    }
+}
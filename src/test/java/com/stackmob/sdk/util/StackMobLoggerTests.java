@@ -0,0 +1,140 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.stackmob.sdk.util;
+
+import com.stackmob.sdk.StackMobTestServer;
+import com.stackmob.sdk.api.StackMob;
+import com.stackmob.sdk.api.StackMobExecutors;
+import com.stackmob.sdk.callback.StackMobCallback;
+import com.stackmob.sdk.exception.StackMobException;
+import com.stackmob.sdk.net.HttpVerbWithoutPayload;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StackMobLoggerTests {
+
+    private static final String BODY = "{\"thing_id\":\"1\"}";
+
+    private StackMobTestServer server;
+    private StackMob stackmob;
+    private RecordingLogger logger;
+
+    private static class RecordingLogger extends StackMobLogger {
+        final List<StackMobLogEvent> events = new ArrayList<StackMobLogEvent>();
+        int messages = 0;
+
+        @Override
+        public void logEvent(StackMobLogEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void logDebug(String format, Object... args) {
+            messages++;
+        }
+
+        @Override
+        public void logInfo(String format, Object... args) {
+            messages++;
+        }
+    }
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StackMobTestServer(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = BODY.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            }
+        });
+        stackmob = server.stackmob(StackMobExecutors.callerRuns());
+        logger = new RecordingLogger();
+        stackmob.getSession().setLogger(logger);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private void get() {
+        stackmob.getDatastore().get("thing", new StackMobCallback() {
+            @Override
+            public void success(String responseBody) {
+            }
+
+            @Override
+            public void failure(StackMobException e) {
+                fail(e.getMessage());
+            }
+        });
+    }
+
+    @Test public void disabledLoggerSeesNothing() {
+        get();
+        assertTrue(logger.events.isEmpty());
+        assertEquals(0, logger.messages);
+    }
+
+    @Test public void enabledLoggerGetsEvents() throws Exception {
+        logger.setLogging(true);
+        get();
+        assertEquals(2, logger.events.size());
+
+        StackMobLogEvent request = logger.events.get(0);
+        assertEquals(StackMobLogEvent.Type.REQUEST, request.getType());
+        assertEquals(HttpVerbWithoutPayload.GET, request.getVerb());
+        assertTrue(request.getUrl().endsWith("/thing"));
+        assertEquals(-1, request.getStatusCode());
+
+        StackMobLogEvent response = logger.events.get(1);
+        assertEquals(StackMobLogEvent.Type.RESPONSE, response.getType());
+        assertEquals(200, response.getStatusCode());
+        assertEquals(BODY, new String(response.getResponseBody(), "UTF-8"));
+        assertFalse(response.isStreamed());
+        assertTrue(response.toString().endsWith("Response: " + BODY));
+    }
+
+    @Test public void longBodiesAreTruncated() throws Exception {
+        StringBuilder body = new StringBuilder();
+        for(int i = 0; i < 5000; i++) {
+            body.append('x');
+        }
+        StackMobLogEvent event = StackMobLogEvent.response(HttpVerbWithoutPayload.GET, "http://example.com", 200,
+                Collections.<String, String>emptyMap(), body.toString().getBytes("UTF-8"));
+        assertTrue(event.toString().endsWith("Response: " + body.substring(0, 1000) + " (truncated)"));
+
+        StackMobLogEvent streamed = StackMobLogEvent.response(HttpVerbWithoutPayload.GET, "http://example.com", 200,
+                Collections.<String, String>emptyMap(), null);
+        assertTrue(streamed.isStreamed());
+        assertTrue(streamed.toString().endsWith("Response: (streamed)"));
+    }
+}